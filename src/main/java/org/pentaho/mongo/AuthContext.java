@@ -31,7 +31,7 @@ import javax.security.auth.login.LoginContext;
  * @author Jordan Ganoff <jganoff@pentaho.com>
  */
 public class AuthContext {
-  private LoginContext login;
+  private volatile LoginContext login;
 
   /**
    * Create a context for the given login. If the login is null all operations will be done as the current user.
@@ -45,6 +45,19 @@ public class AuthContext {
     this.login = login;
   }
 
+  /**
+   * Replaces the login used by this context, so renewed credentials take effect for everyone holding it.
+   *
+   * @param login the new login
+   */
+  void setLogin( LoginContext login ) {
+    this.login = login;
+  }
+
+  LoginContext getLogin() {
+    return login;
+  }
+
   /**
    * Execute an action on behalf of the login used to create this context. If no user is explicitly authenticated the
    * action will be executed as the current user.
@@ -53,11 +66,12 @@ public class AuthContext {
    * @return The return value of the action
    */
   public <T> T doAs( PrivilegedAction<T> action ) {
-    if ( login == null ) {
+    LoginContext current = login;
+    if ( current == null ) {
       // If a user is not explicitly authenticated directly execute the action
       return action.run();
     } else {
-      return Subject.doAs( login.getSubject(), action );
+      return Subject.doAs( current.getSubject(), action );
     }
   }
 
@@ -71,7 +85,8 @@ public class AuthContext {
    *                                   will be provided in {@link PrivilegedActionException#getCause()}.
    */
   public <T> T doAs( PrivilegedExceptionAction<T> action ) throws PrivilegedActionException {
-    if ( login == null ) {
+    LoginContext current = login;
+    if ( current == null ) {
       // If a user is not explicitly authenticated directly execute the action
       try {
         return action.run();
@@ -81,7 +96,7 @@ public class AuthContext {
         throw new PrivilegedActionException( ex );
       }
     } else {
-      return Subject.doAs( login.getSubject(), action );
+      return Subject.doAs( current.getSubject(), action );
     }
   }
 }
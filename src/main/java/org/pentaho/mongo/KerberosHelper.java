@@ -36,7 +36,7 @@ public class KerberosHelper {
    * @return The authentication mode to use when creating JAAS {@link LoginContext}s.
    * @param props properties for this connection
    */
-  private static JaasAuthenticationMode lookupLoginAuthMode( MongoProperties props ) throws MongoDbException {
+  static JaasAuthenticationMode lookupLoginAuthMode( MongoProperties props ) throws MongoDbException {
     return JaasAuthenticationMode.byName( props.get( MongoProp.PENTAHO_JAAS_AUTH_MODE ) );
   }
 
@@ -47,7 +47,7 @@ public class KerberosHelper {
    * @return keytab file location if defined as the variable "PENTAHO_JAAS_KEYTAB_FILE".
    * @param props properties for this connection
    */
-  private static String lookupKeytabFile( MongoProperties props ) {
+  static String lookupKeytabFile( MongoProperties props ) {
     return props.get( MongoProp.PENTAHO_JAAS_KEYTAB_FILE );
   }
 
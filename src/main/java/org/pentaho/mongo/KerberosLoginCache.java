@@ -0,0 +1,243 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo;
+
+import org.pentaho.mongo.KerberosUtil.JaasAuthenticationMode;
+
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process wide cache of Kerberos {@link AuthContext}s, keyed by principal, {@link JaasAuthenticationMode} and keytab
+ * file, so wrappers connecting as the same principal share one JAAS login instead of each logging in to the KDC.
+ * <p/>
+ * Each cached login is renewed in the background once {@link #RENEW_FRACTION} of its ticket granting ticket's
+ * lifetime has passed.  The new LoginContext is swapped into the existing AuthContext, so holders of the context
+ * pick up the fresh ticket without noticing.  If a renewal fails it is retried after {@link #RETRY_DELAY}, and a
+ * context whose ticket has already expired is logged in again synchronously by the next
+ * {@link #getAuthContext(String, MongoProperties)}.
+ *
+ * @see KerberosHelper#login(String, MongoProperties)
+ */
+public class KerberosLoginCache {
+  /**
+   * The fraction of the ticket lifetime after which it is renewed.
+   */
+  static final double RENEW_FRACTION = 0.8;
+
+  /**
+   * Milliseconds between renewals of logins whose ticket lifetime is unknown, e.g. in EXTERNAL mode.
+   */
+  static final long DEFAULT_RENEW_INTERVAL = TimeUnit.HOURS.toMillis( 1 );
+
+  /**
+   * Milliseconds to wait before retrying a failed renewal.
+   */
+  static final long RETRY_DELAY = TimeUnit.MINUTES.toMillis( 1 );
+
+  private static final KerberosLoginCache INSTANCE = new KerberosLoginCache( new Login() {
+    @Override public LoginContext login( JaasAuthenticationMode authMode, String principal, String keytabFile )
+      throws LoginException {
+      return KerberosUtil.loginAs( authMode, principal, keytabFile );
+    }
+  }, null );
+
+  /**
+   * Performs the actual JAAS login.
+   */
+  interface Login {
+    LoginContext login( JaasAuthenticationMode authMode, String principal, String keytabFile ) throws LoginException;
+  }
+
+  private final Login login;
+  private final Map<String, CachedLogin> logins = new HashMap<String, CachedLogin>();
+  private ScheduledExecutorService renewer;
+
+  KerberosLoginCache( Login login, ScheduledExecutorService renewer ) {
+    this.login = login;
+    this.renewer = renewer;
+  }
+
+  public static KerberosLoginCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the AuthContext for the principal and the JAAS settings in props, logging in if there is no valid
+   * cached login.
+   *
+   * @param principal Principal to log in as.
+   * @param props     properties for this connection
+   * @return a context which stays valid for as long as it can be renewed
+   * @throws MongoDbException if an error occurs while logging in.
+   */
+  public AuthContext getAuthContext( String principal, MongoProperties props ) throws MongoDbException {
+    JaasAuthenticationMode authMode = KerberosHelper.lookupLoginAuthMode( props );
+    String keytabFile = KerberosHelper.lookupKeytabFile( props );
+    String key = authMode + "\0" + principal + "\0" + keytabFile;
+    CachedLogin cached;
+    synchronized ( this ) {
+      cached = logins.get( key );
+      if ( cached == null ) {
+        cached = new CachedLogin( key, authMode, principal, keytabFile );
+        logins.put( key, cached );
+      }
+    }
+    // log in holding only the entry, so a slow KDC does not hold up other principals
+    synchronized ( cached ) {
+      if ( cached.context == null ) {
+        // first lookup, or the first login failed
+        cached.context = new AuthContext( cached.login() );
+        scheduleIfCached( cached, renewDelay( cached.context.getLogin().getSubject(), System.currentTimeMillis() ) );
+      } else if ( isExpired( cached.context.getLogin().getSubject(), System.currentTimeMillis() ) ) {
+        // the background renewal has been failing, don't hand out a context which can't authenticate
+        renew( cached );
+      }
+      return cached.context;
+    }
+  }
+
+  /**
+   * Drops all cached logins and cancels their renewals.  Contexts already handed out keep their current login.
+   */
+  public synchronized void clear() {
+    for ( CachedLogin cached : logins.values() ) {
+      if ( cached.renewal != null ) {
+        cached.renewal.cancel( false );
+      }
+    }
+    logins.clear();
+  }
+
+  void renew( CachedLogin cached ) throws MongoDbException {
+    synchronized ( cached ) {
+      if ( !isCached( cached ) ) {
+        // cleared since the renewal was scheduled
+        return;
+      }
+      // The previous LoginContext is not logged out: connections may still be authenticating with its Subject.
+      LoginContext renewed = cached.login();
+      cached.context.setLogin( renewed );
+      scheduleIfCached( cached, renewDelay( renewed.getSubject(), System.currentTimeMillis() ) );
+    }
+  }
+
+  private synchronized boolean isCached( CachedLogin cached ) {
+    return logins.get( cached.key ) == cached;
+  }
+
+  private synchronized void scheduleIfCached( CachedLogin cached, long delay ) {
+    if ( isCached( cached ) ) {
+      schedule( cached, delay );
+    }
+  }
+
+  /**
+   * Must hold the cache's lock.
+   */
+  private void schedule( final CachedLogin cached, long delay ) {
+    if ( cached.renewal != null ) {
+      cached.renewal.cancel( false );
+    }
+    cached.renewal = getRenewer().schedule( new Runnable() {
+      @Override public void run() {
+        try {
+          renew( cached );
+        } catch ( Exception e ) {
+          scheduleIfCached( cached, RETRY_DELAY );
+        }
+      }
+    }, delay, TimeUnit.MILLISECONDS );
+  }
+
+  private ScheduledExecutorService getRenewer() {
+    if ( renewer == null ) {
+      renewer = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+        @Override public Thread newThread( Runnable r ) {
+          Thread thread = new Thread( r, "pentaho-mongo-kerberos-renewer" );
+          thread.setDaemon( true );
+          return thread;
+        }
+      } );
+    }
+    return renewer;
+  }
+
+  /**
+   * @return milliseconds from now until the subject's ticket granting ticket should be renewed
+   */
+  static long renewDelay( Subject subject, long now ) {
+    KerberosTicket tgt = findTgt( subject );
+    if ( tgt == null || tgt.getEndTime() == null ) {
+      return DEFAULT_RENEW_INTERVAL;
+    }
+    long start = tgt.getStartTime() != null ? tgt.getStartTime().getTime() : now;
+    long renewAt = start + (long) ( ( tgt.getEndTime().getTime() - start ) * RENEW_FRACTION );
+    return Math.max( 0, renewAt - now );
+  }
+
+  static boolean isExpired( Subject subject, long now ) {
+    KerberosTicket tgt = findTgt( subject );
+    return tgt != null && tgt.getEndTime() != null && tgt.getEndTime().getTime() <= now;
+  }
+
+  private static KerberosTicket findTgt( Subject subject ) {
+    if ( subject == null ) {
+      return null;
+    }
+    for ( KerberosTicket ticket : subject.getPrivateCredentials( KerberosTicket.class ) ) {
+      if ( ticket.getServer() != null && ticket.getServer().getName().startsWith( "krbtgt/" ) ) {
+        return ticket;
+      }
+    }
+    return null;
+  }
+
+  class CachedLogin {
+    private final String key;
+    private final JaasAuthenticationMode authMode;
+    private final String principal;
+    private final String keytabFile;
+    private AuthContext context;
+    private ScheduledFuture<?> renewal;
+
+    CachedLogin( String key, JaasAuthenticationMode authMode, String principal, String keytabFile ) {
+      this.key = key;
+      this.authMode = authMode;
+      this.principal = principal;
+      this.keytabFile = keytabFile;
+    }
+
+    LoginContext login() throws MongoDbException {
+      try {
+        return login.login( authMode, principal, keytabFile );
+      } catch ( LoginException ex ) {
+        throw new MongoDbException( "Unable to authenticate as '" + principal + "'", ex );
+      }
+    }
+  }
+}
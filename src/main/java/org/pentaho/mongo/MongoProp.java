@@ -61,6 +61,13 @@ public enum MongoProp {
    */
   PENTAHO_JAAS_KEYTAB_FILE,
 
+  /**
+   * The number of documents a Kerberos authenticated cursor reads ahead within a single privileged
+   * call, rather than entering the security context once per document.  Setting this to the cursor's
+   * batch size drains one driver batch per call.  Defaults to 0, which disables read ahead.
+   */
+  KERBEROS_CURSOR_PREFETCH,
+
   /**
    * The database to be used during initial authentication.
    */
@@ -99,6 +106,70 @@ public enum MongoProp {
 
   USE_ATLAS,
 
+  /**
+   * Indicates whether MongoClientWrappers created with identical properties should share a single
+   * underlying MongoClient (and therefore a single connection pool).  The shared client is closed
+   * once the last wrapper using it has been disposed.  Defaults to "false".
+   */
+  USE_SHARED_CLIENT,
+
+  /**
+   * How long (millis) the replica set configuration read from local.system.replset is cached and
+   * used to answer tag set and lastErrorMode lookups.  The cache is also refreshed whenever the
+   * driver observes a change of primary or replica set members.  Defaults to 60000.
+   */
+  REPLICA_SET_CONFIG_TTL,
+
+  /**
+   * The maximum number of documents per second inserted, updated, saved or removed through the collections
+   * of a client.  Unset or 0 for no limit.
+   */
+  THROTTLE_WRITE_DOCS_PER_SECOND,
+
+  /**
+   * The maximum number of document bytes per second written through the collections of a client.  Unset or
+   * 0 for no limit.
+   */
+  THROTTLE_WRITE_BYTES_PER_SECOND,
+
+  /**
+   * The maximum number of documents per second read from cursors of the collections of a client.  Unset or
+   * 0 for no limit.
+   */
+  THROTTLE_READ_DOCS_PER_SECOND,
+
+  /**
+   * The maximum number of document bytes per second read from cursors of the collections of a client.  Unset
+   * or 0 for no limit.
+   */
+  THROTTLE_READ_BYTES_PER_SECOND,
+
+  /**
+   * Indicates whether the THROTTLE_* rates are shared by all clients connecting to the same HOST and PORT
+   * with the same rates, rather than applying to each client separately.  Defaults to "false".
+   */
+  THROTTLE_SHARED,
+
+  /**
+   * Indicates whether aggregation pipelines are rewritten to filter and trim documents earlier, see
+   * {@link org.pentaho.mongo.wrapper.collection.PipelineOptimizer}.  Defaults to "false".
+   */
+  OPTIMIZE_AGGREGATION_PIPELINE,
+
+  /**
+   * How long (millis) the estimated document counts of collections are cached by a client, see
+   * {@link org.pentaho.mongo.wrapper.collection.MongoCollectionWrapper#estimatedCount()}.  Defaults to 0,
+   * i.e. they are read every time.
+   */
+  ESTIMATED_COUNT_TTL,
+
+  /**
+   * How long (millis) a client caches the database, collection and index listings returned by
+   * {@link org.pentaho.mongo.wrapper.MongoClientWrapper}.  Entries are invalidated when collections or indexes
+   * are created or dropped through the client.  Defaults to 0, i.e. they are read every time.
+   */
+  METADATA_CACHE_TTL,
+
   // MongoClientOptions values.  The following properties correspond to
   // http://api.mongodb.org/java/2.12/com/mongodb/MongoClientOptions.html
 
@@ -84,6 +84,20 @@ public class MongoProperties {
     return Boolean.parseBoolean( props.get( MongoProp.USE_ATLAS ) );
   }
 
+  /**
+   * Convenience method to determine the boolean property USE_SHARED_CLIENT.
+   */
+  public boolean useSharedClient() {
+    return Boolean.parseBoolean( props.get( MongoProp.USE_SHARED_CLIENT ) );
+  }
+
+  /**
+   * @return the value of prop parsed as a long, or defaultVal if it is unset or cannot be parsed.
+   */
+  public long getLong( MongoProp prop, long defaultVal, MongoUtilLogger log ) {
+    return new MongoPropToOption( log ).longValue( props.get( prop ), defaultVal );
+  }
+
   /**
    * @return the com.mongodb.ReadPreference associated with the MongoProp.readPreference value.
    */
@@ -0,0 +1,228 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the number of documents per round trip, e.g. a cursor's batchSize or the size of a bulk write, from
+ * the round trips observed so far.
+ * <p/>
+ * The size is adjusted additively increasing, multiplicatively decreasing (AIMD): after each full batch
+ * which completed within the target latency it grows by a fixed increment, and after a batch which was too
+ * slow or failed it is cut by a factor.  It is further capped so that a batch of documents of the average
+ * observed size fits into maxBatchBytes.  A slow link therefore settles on batches which just meet the target
+ * latency, while a fast one grows them up to the maximum.
+ * <p/>
+ * Use one instance per collection and kind of operation, as reads and writes of different collections
+ * behave differently.  The current size and the averages it is based on are exposed for monitoring.
+ * Instances are thread safe.
+ */
+public class AdaptiveBatchSize {
+  /**
+   * The weight of the latest batch in the moving averages.
+   */
+  static final double SMOOTHING = 0.2;
+
+  private final int minSize;
+  private final int maxSize;
+  private final int increment;
+  private final double decrease;
+  private final long targetLatencyNanos;
+  private final long maxBatchBytes;
+  private int size;
+  private double averageLatencyNanos;
+  private double averageDocumentBytes;
+  private double errorRate;
+  private long batches;
+  private long increases;
+  private long decreases;
+
+  public static class Builder {
+    private int initialSize = 1000;
+    private int minSize = 10;
+    private int maxSize = 100000;
+    private int increment = 100;
+    private double decrease = 0.5;
+    private long targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos( 200 );
+    private long maxBatchBytes = 16 * 1024 * 1024;
+
+    /**
+     * @param initialSize the size before any batch has been observed, 1000 by default
+     */
+    public Builder initialSize( int initialSize ) {
+      this.initialSize = initialSize;
+      return this;
+    }
+
+    /**
+     * @param minSize the smallest size chosen, 10 by default
+     * @param maxSize the largest size chosen, 100000 by default
+     */
+    public Builder range( int minSize, int maxSize ) {
+      if ( minSize <= 0 || maxSize < minSize ) {
+        throw new IllegalArgumentException( "Invalid range " + minSize + " - " + maxSize );
+      }
+      this.minSize = minSize;
+      this.maxSize = maxSize;
+      return this;
+    }
+
+    /**
+     * @param increment the number of documents added after a fast batch, 100 by default
+     */
+    public Builder increment( int increment ) {
+      if ( increment <= 0 ) {
+        throw new IllegalArgumentException( "increment must be positive" );
+      }
+      this.increment = increment;
+      return this;
+    }
+
+    /**
+     * @param decrease the factor applied after a slow or failed batch, 0.5 by default
+     */
+    public Builder decrease( double decrease ) {
+      if ( decrease <= 0 || decrease >= 1 ) {
+        throw new IllegalArgumentException( "decrease must be between 0 and 1" );
+      }
+      this.decrease = decrease;
+      return this;
+    }
+
+    /**
+     * @param targetLatency the longest a round trip should take, 200 ms by default
+     */
+    public Builder targetLatency( long targetLatency, TimeUnit unit ) {
+      if ( targetLatency <= 0 ) {
+        throw new IllegalArgumentException( "targetLatency must be positive" );
+      }
+      this.targetLatencyNanos = unit.toNanos( targetLatency );
+      return this;
+    }
+
+    /**
+     * @param maxBatchBytes the largest batch, in bytes of documents, 16 MB by default
+     */
+    public Builder maxBatchBytes( long maxBatchBytes ) {
+      if ( maxBatchBytes <= 0 ) {
+        throw new IllegalArgumentException( "maxBatchBytes must be positive" );
+      }
+      this.maxBatchBytes = maxBatchBytes;
+      return this;
+    }
+
+    public AdaptiveBatchSize build() {
+      return new AdaptiveBatchSize( this );
+    }
+  }
+
+  private AdaptiveBatchSize( Builder builder ) {
+    minSize = builder.minSize;
+    maxSize = builder.maxSize;
+    increment = builder.increment;
+    decrease = builder.decrease;
+    targetLatencyNanos = builder.targetLatencyNanos;
+    maxBatchBytes = builder.maxBatchBytes;
+    size = Math.max( minSize, Math.min( maxSize, builder.initialSize ) );
+  }
+
+  /**
+   * @return the number of documents the next batch should hold
+   */
+  public synchronized int getBatchSize() {
+    return size;
+  }
+
+  /**
+   * Records a completed round trip and adjusts the batch size.
+   *
+   * @param documents the number of documents in the batch
+   * @param bytes     the size of the documents, or 0 if not known
+   * @param nanos     the time the round trip took
+   * @param failed    whether the round trip failed
+   */
+  public synchronized void record( int documents, long bytes, long nanos, boolean failed ) {
+    batches++;
+    averageLatencyNanos = average( averageLatencyNanos, nanos );
+    errorRate = average( errorRate, failed ? 1 : 0 );
+    if ( documents > 0 && bytes > 0 ) {
+      averageDocumentBytes = averageDocumentBytes == 0 ? (double) bytes / documents
+        : average( averageDocumentBytes, (double) bytes / documents );
+    }
+    int next = size;
+    if ( failed || nanos > targetLatencyNanos ) {
+      next = Math.max( minSize, (int) ( size * decrease ) );
+    } else if ( documents >= size ) {
+      // only a batch which was limited by the size says anything about a larger one
+      next = (int) Math.min( maxSize, (long) size + increment );
+    }
+    if ( averageDocumentBytes > 0 ) {
+      next = (int) Math.max( minSize, Math.min( next, (long) ( maxBatchBytes / averageDocumentBytes ) ) );
+    }
+    if ( next > size ) {
+      increases++;
+    } else if ( next < size ) {
+      decreases++;
+    }
+    size = next;
+  }
+
+  private double average( double average, double value ) {
+    return batches == 1 ? value : average + SMOOTHING * ( value - average );
+  }
+
+  /**
+   * @return the moving average of the round trip time in milliseconds
+   */
+  public synchronized double getAverageLatencyMillis() {
+    return averageLatencyNanos / 1000000d;
+  }
+
+  /**
+   * @return the moving average of the document size in bytes, or 0 if not known
+   */
+  public synchronized double getAverageDocumentBytes() {
+    return averageDocumentBytes;
+  }
+
+  /**
+   * @return the moving average of the fraction of failed round trips
+   */
+  public synchronized double getErrorRate() {
+    return errorRate;
+  }
+
+  public synchronized long getBatchCount() {
+    return batches;
+  }
+
+  public synchronized long getIncreaseCount() {
+    return increases;
+  }
+
+  public synchronized long getDecreaseCount() {
+    return decreases;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format( "AdaptiveBatchSize{size=%d, batches=%d, latency=%.1f ms, documentBytes=%.0f, "
+      + "errorRate=%.3f, increases=%d, decreases=%d}", size, batches, getAverageLatencyMillis(),
+      averageDocumentBytes, errorRate, increases, decreases );
+  }
+}
@@ -0,0 +1,77 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper;
+
+import org.pentaho.mongo.MongoProp;
+import org.pentaho.mongo.MongoProperties;
+import org.pentaho.mongo.MongoUtilLogger;
+import org.pentaho.mongo.wrapper.collection.CountCache;
+import org.pentaho.mongo.wrapper.collection.MongoCollectionWrapper;
+import org.pentaho.mongo.wrapper.collection.ThrottledCollectionWrapper;
+
+/**
+ * The settings a {@link MongoClientWrapper} applies to its collections, read once from its properties: the
+ * THROTTLE_* rates and the caches enabled by ESTIMATED_COUNT_TTL and METADATA_CACHE_TTL.
+ */
+class CollectionSettings {
+  private final Throttle readThrottle;
+  private final Throttle writeThrottle;
+  private final CountCache countCache;
+  private final MetadataCache metadataCache;
+
+  CollectionSettings( MongoProperties props, MongoUtilLogger log ) {
+    readThrottle = Throttle.forProperties( props, MongoProp.THROTTLE_READ_DOCS_PER_SECOND,
+      MongoProp.THROTTLE_READ_BYTES_PER_SECOND, log );
+    writeThrottle = Throttle.forProperties( props, MongoProp.THROTTLE_WRITE_DOCS_PER_SECOND,
+      MongoProp.THROTTLE_WRITE_BYTES_PER_SECOND, log );
+    long countTtl = props == null ? 0 : props.getLong( MongoProp.ESTIMATED_COUNT_TTL, 0, log );
+    countCache = countTtl > 0 ? new CountCache( countTtl ) : null;
+    long metadataTtl = props == null ? 0 : props.getLong( MongoProp.METADATA_CACHE_TTL, 0, log );
+    metadataCache = metadataTtl > 0 ? new MetadataCache( metadataTtl ) : null;
+  }
+
+  /**
+   * @return the cache of estimated counts, or null if ESTIMATED_COUNT_TTL is not set
+   */
+  CountCache getCountCache() {
+    return countCache;
+  }
+
+  /**
+   * @return the cache of database, collection and index listings, or null if METADATA_CACHE_TTL is not set
+   */
+  MetadataCache getMetadataCache() {
+    return metadataCache;
+  }
+
+  /**
+   * Applies the THROTTLE_* rates, if any, to the collection.
+   */
+  MongoCollectionWrapper throttle( MongoCollectionWrapper collection ) {
+    return readThrottle == null && writeThrottle == null ? collection
+      : new ThrottledCollectionWrapper( collection, readThrottle, writeThrottle );
+  }
+
+  /**
+   * Invalidates the cached listings of the collection, after it was created.
+   */
+  void collectionCreated( String db, String collection ) {
+    if ( metadataCache != null ) {
+      metadataCache.collectionCreated( db, collection );
+    }
+  }
+}
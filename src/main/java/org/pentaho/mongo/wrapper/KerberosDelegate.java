@@ -0,0 +1,82 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper;
+
+import com.mongodb.MongoException;
+import org.pentaho.mongo.AuthContext;
+import org.pentaho.mongo.MongoDbException;
+
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+
+/**
+ * Base class for the hand written delegates which run every call against a wrapped object within
+ * an AuthContext.  They replace the reflective {@link KerberosInvocationHandler} proxies, and
+ * propagate exceptions the same way.
+ *
+ * @param <T> the wrapped interface
+ */
+public abstract class KerberosDelegate<T> {
+  protected final AuthContext authContext;
+  protected final T delegate;
+
+  protected KerberosDelegate( AuthContext authContext, T delegate ) {
+    this.authContext = authContext;
+    this.delegate = delegate;
+  }
+
+  public AuthContext getAuthContext() {
+    return authContext;
+  }
+
+  public T getDelegate() {
+    return delegate;
+  }
+
+  /**
+   * Runs the action in the AuthContext.  MongoDbExceptions thrown by the action are rethrown as is,
+   * any other checked exception is wrapped in a MongoDbException.
+   */
+  protected <R> R doAs( PrivilegedExceptionAction<R> action ) throws MongoDbException {
+    try {
+      return authContext.doAs( action );
+    } catch ( PrivilegedActionException e ) {
+      if ( e.getCause() instanceof MongoDbException ) {
+        throw (MongoDbException) e.getCause();
+      } else {
+        throw new MongoDbException( e.getCause() );
+      }
+    }
+  }
+
+  /**
+   * Runs the action in the AuthContext, for methods which can't declare a MongoDbException.  Runtime
+   * exceptions are rethrown as is, anything else is wrapped in a MongoException.
+   */
+  protected <R> R doAsUnchecked( PrivilegedExceptionAction<R> action ) {
+    try {
+      return authContext.doAs( action );
+    } catch ( PrivilegedActionException e ) {
+      if ( e.getCause() instanceof RuntimeException ) {
+        throw (RuntimeException) e.getCause();
+      } else {
+        throw new MongoException( e.getCause().getMessage(), e.getCause() );
+      }
+    }
+  }
+}
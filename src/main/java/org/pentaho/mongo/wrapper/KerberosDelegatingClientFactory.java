@@ -0,0 +1,49 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoCredential;
+import com.mongodb.ServerAddress;
+import org.pentaho.mongo.AuthContext;
+
+import java.security.PrivilegedExceptionAction;
+import java.util.List;
+
+/**
+ * MongoClientFactory which creates clients within an AuthContext.
+ */
+public class KerberosDelegatingClientFactory extends KerberosDelegate<MongoClientFactory>
+  implements MongoClientFactory {
+
+  public KerberosDelegatingClientFactory( AuthContext authContext, MongoClientFactory delegate ) {
+    super( authContext, delegate );
+  }
+
+  @Override
+  public MongoClient getMongoClient( final List<ServerAddress> serverAddressList,
+                                     final List<MongoCredential> credList,
+                                     final MongoClientOptions opts, final boolean useReplicaSet ) {
+    return doAsUnchecked( new PrivilegedExceptionAction<MongoClient>() {
+      @Override public MongoClient run() {
+        return delegate.getMongoClient( serverAddressList, credList, opts, useReplicaSet );
+      }
+    } );
+  }
+}
@@ -0,0 +1,160 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoCredential;
+import com.mongodb.ReplicaSetStatus;
+import org.pentaho.mongo.AuthContext;
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.collection.MongoCollectionWrapper;
+
+import java.security.PrivilegedExceptionAction;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * MongoClientWrapper which runs every call against the wrapped client within an AuthContext.
+ */
+public class KerberosDelegatingClientWrapper extends KerberosDelegate<MongoClientWrapper>
+  implements MongoClientWrapper {
+
+  public KerberosDelegatingClientWrapper( AuthContext authContext, MongoClientWrapper delegate ) {
+    super( authContext, delegate );
+  }
+
+  @Override
+  public Set<String> getCollectionsNames( final String dB ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<Set<String>>() {
+      @Override public Set<String> run() throws MongoDbException {
+        return delegate.getCollectionsNames( dB );
+      }
+    } );
+  }
+
+  @Override
+  public List<String> getIndexInfo( final String dbName, final String collection ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<List<String>>() {
+      @Override public List<String> run() throws MongoDbException {
+        return delegate.getIndexInfo( dbName, collection );
+      }
+    } );
+  }
+
+  @Override
+  public List<String> getExistingIndexInfo( final String dbName, final String collection ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<List<String>>() {
+      @Override public List<String> run() throws MongoDbException {
+        return delegate.getExistingIndexInfo( dbName, collection );
+      }
+    } );
+  }
+
+  @Override
+  public List<String> getDatabaseNames() throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<List<String>>() {
+      @Override public List<String> run() throws MongoDbException {
+        return delegate.getDatabaseNames();
+      }
+    } );
+  }
+
+  @Override
+  public List<String> getAllTags() throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<List<String>>() {
+      @Override public List<String> run() throws MongoDbException {
+        return delegate.getAllTags();
+      }
+    } );
+  }
+
+  @Override
+  public List<String> getReplicaSetMembersThatSatisfyTagSets( final List<DBObject> tagSets )
+    throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<List<String>>() {
+      @Override public List<String> run() throws MongoDbException {
+        return delegate.getReplicaSetMembersThatSatisfyTagSets( tagSets );
+      }
+    } );
+  }
+
+  @Override
+  public List<String> getLastErrorModes() throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<List<String>>() {
+      @Override public List<String> run() throws MongoDbException {
+        return delegate.getLastErrorModes();
+      }
+    } );
+  }
+
+  @Override
+  public List<MongoCredential> getCredentialList() {
+    return doAsUnchecked( new PrivilegedExceptionAction<List<MongoCredential>>() {
+      @Override public List<MongoCredential> run() {
+        return delegate.getCredentialList();
+      }
+    } );
+  }
+
+  @Override
+  public MongoCollectionWrapper createCollection( final String db, final String name ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<MongoCollectionWrapper>() {
+      @Override public MongoCollectionWrapper run() throws MongoDbException {
+        return delegate.createCollection( db, name );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCollectionWrapper getCollection( final String db, final String name ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<MongoCollectionWrapper>() {
+      @Override public MongoCollectionWrapper run() throws MongoDbException {
+        return delegate.getCollection( db, name );
+      }
+    } );
+  }
+
+  @Override
+  public void dispose() throws MongoDbException {
+    doAs( new PrivilegedExceptionAction<Void>() {
+      @Override public Void run() throws MongoDbException {
+        delegate.dispose();
+        return null;
+      }
+    } );
+  }
+
+  @Override
+  public <ReturnType> ReturnType perform( final String db, final MongoDBAction<ReturnType> action )
+    throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<ReturnType>() {
+      @Override public ReturnType run() throws MongoDbException {
+        return delegate.perform( db, action );
+      }
+    } );
+  }
+
+  @Override
+  public ReplicaSetStatus getReplicaSetStatus() {
+    return doAsUnchecked( new PrivilegedExceptionAction<ReplicaSetStatus>() {
+      @Override public ReplicaSetStatus run() {
+        return delegate.getReplicaSetStatus();
+      }
+    } );
+  }
+}
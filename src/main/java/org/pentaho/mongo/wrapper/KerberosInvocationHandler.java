@@ -30,7 +30,11 @@ import org.pentaho.mongo.MongoDbException;
 /**
  * Handles proxying all method calls through an AuthContext.  This allows methods
  * to be executed as an authenticated user via a LoginContext.
+ *
+ * @deprecated the wrappers created by this library use the reflection free {@link KerberosDelegate}
+ * implementations instead.
  */
+@Deprecated
 public class KerberosInvocationHandler implements InvocationHandler {
   private final AuthContext authContext;
   private final Object delegate;
@@ -22,15 +22,16 @@ import com.mongodb.MongoClient;
 import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoCredential;
 import org.pentaho.mongo.AuthContext;
-import org.pentaho.mongo.KerberosHelper;
+import org.pentaho.mongo.KerberosLoginCache;
 import org.pentaho.mongo.MongoDbException;
 import org.pentaho.mongo.MongoProp;
 import org.pentaho.mongo.MongoProperties;
 import org.pentaho.mongo.MongoUtilLogger;
+import org.pentaho.mongo.wrapper.collection.KerberosDelegatingCollectionWrapper;
 import org.pentaho.mongo.wrapper.collection.KerberosMongoCollectionWrapper;
 import org.pentaho.mongo.wrapper.collection.MongoCollectionWrapper;
+import org.pentaho.mongo.wrapper.collection.PipelineOptimizer;
 
-import javax.security.auth.login.LoginContext;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -49,15 +50,11 @@ class KerberosMongoClientWrapper extends UsernamePasswordMongoClientWrapper {
 
   private AuthContext getAuthContext( MongoProperties props ) throws MongoDbException {
     if ( authContext == null ) {
-      return new AuthContext( initLoginContext( props ) );
+      return KerberosLoginCache.getInstance().getAuthContext( props.get( MongoProp.USERNAME ), props );
     }
     return authContext;
   }
 
-  private LoginContext initLoginContext( MongoProperties props ) throws MongoDbException {
-    return KerberosHelper.login( props.get( MongoProp.USERNAME ), props );
-  }
-
   KerberosMongoClientWrapper( MongoClient client, MongoUtilLogger log, String username, AuthContext authContext ) {
     super( client, log, username );
     this.authContext = authContext;
@@ -77,8 +74,13 @@ class KerberosMongoClientWrapper extends UsernamePasswordMongoClientWrapper {
 
   @Override
   protected MongoCollectionWrapper wrap( DBCollection collection ) {
-    return KerberosInvocationHandler.wrap( MongoCollectionWrapper.class, authContext,
-      new KerberosMongoCollectionWrapper( collection, authContext ) );
+    return new KerberosDelegatingCollectionWrapper( authContext,
+      new KerberosMongoCollectionWrapper( collection, authContext, getCursorPrefetch(),
+        PipelineOptimizer.forProperties( props, getLog() ), getCountCache(), getMetadataCache() ) );
+  }
+
+  private int getCursorPrefetch() {
+    return props == null ? 0 : (int) props.getLong( MongoProp.KERBEROS_CURSOR_PREFETCH, 0, getLog() );
   }
 
   public AuthContext getAuthContext() {
@@ -87,8 +89,7 @@ class KerberosMongoClientWrapper extends UsernamePasswordMongoClientWrapper {
 
   @Override public MongoClientFactory getClientFactory( final MongoProperties opts ) {
     try {
-      return KerberosInvocationHandler
-        .wrap( MongoClientFactory.class, getAuthContext( opts ), new DefaultMongoClientFactory() );
+      return new KerberosDelegatingClientFactory( getAuthContext( opts ), new DefaultMongoClientFactory() );
     } catch ( MongoDbException e ) {
       return super.getClientFactory( opts );
     }
@@ -0,0 +1,178 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper;
+
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.collection.CollectionChangeListener;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the database, collection and index listings of a client for a TTL, so that repeated lookups, e.g.
+ * from dialogs, are answered from memory.  Each entry expires separately, TTL after it was loaded.  Entries
+ * are invalidated when collections or indexes are created or dropped through the client's wrappers; changes
+ * made by other clients are only seen once the entries expire.
+ */
+class MetadataCache implements CollectionChangeListener {
+  static final String DATABASES = "databases";
+
+  /**
+   * Reads a listing from the server.
+   */
+  interface Loader<T> {
+    T load() throws MongoDbException;
+  }
+
+  /**
+   * Decides whether a loaded listing is cached.
+   */
+  interface Cacheable<T> {
+    boolean isCacheable( T value );
+  }
+
+  /**
+   * Caches only listings which are not empty.
+   */
+  static final Cacheable<Collection<?>> NOT_EMPTY = new Cacheable<Collection<?>>() {
+    @Override public boolean isCacheable( Collection<?> value ) {
+      return !value.isEmpty();
+    }
+  };
+
+  private final long ttlNanos;
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+  /**
+   * Counts invalidations, so that a value loaded while an entry was invalidated is not cached.
+   */
+  private long invalidations;
+
+  /**
+   * @param ttl how long (millis) an entry is kept
+   */
+  MetadataCache( long ttl ) {
+    if ( ttl <= 0 ) {
+      throw new IllegalArgumentException( "ttl must be positive" );
+    }
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos( ttl );
+  }
+
+  /**
+   * @return the cached value of the key, loading it if it is not cached or has expired
+   * @throws MongoDbException if the value had to be loaded and that failed
+   */
+  <T> T get( String key, Loader<T> loader ) throws MongoDbException {
+    return get( key, loader, null );
+  }
+
+  /**
+   * @param cacheable decides whether the loaded value is cached, or null to cache every value
+   * @return the cached value of the key, loading it if it is not cached or has expired
+   * @throws MongoDbException if the value had to be loaded and that failed
+   */
+  @SuppressWarnings( "unchecked" )
+  <T> T get( String key, Loader<T> loader, Cacheable<? super T> cacheable ) throws MongoDbException {
+    long generation;
+    synchronized ( this ) {
+      Entry entry = entries.get( key );
+      if ( entry != null && System.nanoTime() - entry.loadedAt < ttlNanos ) {
+        return (T) entry.value;
+      }
+      generation = invalidations;
+    }
+    // load without the lock, so that a slow listing does not hold up other lookups; concurrent misses of the
+    // same key may each load it
+    long loadedAt = System.nanoTime();
+    T value = loader.load();
+    if ( cacheable != null && !cacheable.isCacheable( value ) ) {
+      return value;
+    }
+    synchronized ( this ) {
+      if ( invalidations == generation ) {
+        entries.put( key, new Entry( value, loadedAt ) );
+      }
+    }
+    return value;
+  }
+
+  /**
+   * @return the cached value of the key, or the loaded value if cache is null, i.e. caching is disabled
+   */
+  static <T> T get( MetadataCache cache, String key, Loader<T> loader ) throws MongoDbException {
+    return cache == null ? loader.load() : cache.get( key, loader );
+  }
+
+  /**
+   * @return the cached value of the key, or the loaded value if cache is null, i.e. caching is disabled
+   */
+  static <T> T get( MetadataCache cache, String key, Loader<T> loader, Cacheable<? super T> cacheable )
+    throws MongoDbException {
+    return cache == null ? loader.load() : cache.get( key, loader, cacheable );
+  }
+
+  synchronized void invalidate( String key ) {
+    invalidations++;
+    entries.remove( key );
+  }
+
+  static String collectionsKey( String db ) {
+    return "collections:" + db;
+  }
+
+  static String indexesKey( String db, String collection ) {
+    return "indexes:" + db + "." + collection;
+  }
+
+  /**
+   * Invalidates the entries listing the collection, after it was created.
+   */
+  void collectionCreated( String db, String collection ) {
+    collectionChanged( db, collection );
+  }
+
+  @Override
+  public void collectionDropped( String db, String collection ) {
+    collectionChanged( db, collection );
+  }
+
+  private synchronized void collectionChanged( String db, String collection ) {
+    // creating a collection can create its database, dropping the last one drops it
+    invalidations++;
+    entries.remove( DATABASES );
+    entries.remove( collectionsKey( db ) );
+    entries.remove( indexesKey( db, collection ) );
+  }
+
+  @Override
+  public synchronized void indexesChanged( String db, String collection ) {
+    invalidations++;
+    entries.remove( indexesKey( db, collection ) );
+  }
+
+  private static class Entry {
+    private final Object value;
+    private final long loadedAt;
+
+    Entry( Object value, long loadedAt ) {
+      this.value = value;
+      this.loadedAt = loadedAt;
+    }
+  }
+}
@@ -30,10 +30,13 @@ import org.pentaho.mongo.MongoProperties;
 import org.pentaho.mongo.MongoUtilLogger;
 import org.pentaho.mongo.wrapper.collection.DefaultMongoCollectionWrapper;
 import org.pentaho.mongo.wrapper.collection.MongoCollectionWrapper;
+import org.pentaho.mongo.wrapper.collection.PipelineOptimizer;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 /**
  * Created by dams on 13-02-2017.
@@ -47,6 +50,8 @@ public class MongoAtlasClientWrapper implements MongoClientWrapper {
   private final MongoClient mongo;
   private final MongoClientURI mongoClientURI;
   private final MongoUtilLogger log;
+  private final CollectionSettings collectionSettings;
+  private boolean disposed;
   protected MongoProperties props;
 
 
@@ -56,7 +61,16 @@ public class MongoAtlasClientWrapper implements MongoClientWrapper {
 
     String uri = new StringBuilder( "mongodb://" ).append( props.get( MongoProp.USERNAME ) ).append( ":" ).append( props.get( MongoProp.PASSWORD ) ).append( "@" ).append( props.get( MongoProp.HOST ) ).toString();
     this.mongoClientURI = new MongoClientURI( uri );
-    this.mongo = new MongoClient( mongoClientURI );
+    if ( props.useSharedClient() ) {
+      this.mongo = MongoClientRegistry.getInstance().acquire( props, new Callable<MongoClient>() {
+        @Override public MongoClient call() {
+          return new MongoClient( mongoClientURI );
+        }
+      } );
+    } else {
+      this.mongo = new MongoClient( mongoClientURI );
+    }
+    collectionSettings = new CollectionSettings( props, log );
   }
 
   MongoAtlasClientWrapper( MongoClient mongoClient, MongoClientURI mongoClientURI, MongoProperties props, MongoUtilLogger log ) {
@@ -64,12 +78,17 @@ public class MongoAtlasClientWrapper implements MongoClientWrapper {
     this.mongo = mongoClient;
     this.log = log;
     this.props = props;
+    collectionSettings = new CollectionSettings( props, log );
   }
 
   MongoClient getMongo() {
     return mongo;
   }
 
+  MetadataCache getMetadataCache() {
+    return collectionSettings.getMetadataCache();
+  }
+
   /**
    * Retrieve all database names found in MongoDB as visible by the authenticated user.
    *
@@ -77,11 +96,16 @@ public class MongoAtlasClientWrapper implements MongoClientWrapper {
    */
   @Override
   public List<String> getDatabaseNames() throws MongoDbException {
-    try {
-      return  getMongo().getDatabaseNames();
-    } catch ( Exception e ) {
-      throw new MongoDbException( e );
-    }
+    return new ArrayList<String>( MetadataCache.get( getMetadataCache(), MetadataCache.DATABASES,
+      new MetadataCache.Loader<List<String>>() {
+        @Override public List<String> load() throws MongoDbException {
+          try {
+            return getMongo().getDatabaseNames();
+          } catch ( Exception e ) {
+            throw new MongoDbException( e );
+          }
+        }
+      } ) );
   }
 
   protected DB getDb( String dbName ) throws MongoDbException {
@@ -99,16 +123,21 @@ public class MongoAtlasClientWrapper implements MongoClientWrapper {
    * @return Set of collections in the database requested.
    * @throws MongoDbException If an error occurs.
    */
-  public Set<String> getCollectionsNames( String dB ) throws MongoDbException {
-    try {
-      return getDb( dB ).getCollectionNames();
-    } catch ( Exception e ) {
-      if ( e instanceof MongoDbException ) {
-        throw (MongoDbException) e;
-      } else {
-        throw new MongoDbException( e );
-      }
-    }
+  public Set<String> getCollectionsNames( final String dB ) throws MongoDbException {
+    return new LinkedHashSet<String>( MetadataCache.get( getMetadataCache(), MetadataCache.collectionsKey( dB ),
+      new MetadataCache.Loader<Set<String>>() {
+        @Override public Set<String> load() throws MongoDbException {
+          try {
+            return getDb( dB ).getCollectionNames();
+          } catch ( Exception e ) {
+            if ( e instanceof MongoDbException ) {
+              throw (MongoDbException) e;
+            } else {
+              throw new MongoDbException( e );
+            }
+          }
+        }
+      } ) );
   }
 
   /**
@@ -129,6 +158,31 @@ public class MongoAtlasClientWrapper implements MongoClientWrapper {
     return null;
   }
 
+  @Override
+  public List<String> getExistingIndexInfo( final String dbName, final String collection )
+    throws MongoDbException {
+    // no indexes are not cached: the collection may not exist yet
+    return new ArrayList<String>( MetadataCache.get( getMetadataCache(), MetadataCache.indexesKey( dbName, collection ),
+      new MetadataCache.Loader<List<String>>() {
+        @Override public List<String> load() throws MongoDbException {
+          try {
+            // listIndexes returns no indexes, rather than failing, for a collection that does not exist
+            List<String> indexes = new ArrayList<String>();
+            for ( DBObject index : getDb( dbName ).getCollection( collection ).getIndexInfo() ) {
+              indexes.add( index.toString() );
+            }
+            return indexes;
+          } catch ( Exception e ) {
+            if ( e instanceof MongoDbException ) {
+              throw (MongoDbException) e;
+            } else {
+              throw new MongoDbException( e );
+            }
+          }
+        }
+      }, MetadataCache.NOT_EMPTY ) );
+  }
+
   @Override
   public List<String> getAllTags() throws MongoDbException {
     return null;
@@ -149,17 +203,21 @@ public class MongoAtlasClientWrapper implements MongoClientWrapper {
   }
 
   protected MongoCollectionWrapper wrap( DBCollection collection ) {
-    return new DefaultMongoCollectionWrapper( collection );
+    return new DefaultMongoCollectionWrapper( collection, PipelineOptimizer.forProperties( props, log ),
+      collectionSettings.getCountCache(), collectionSettings.getMetadataCache() );
   }
 
   @Override
   public MongoCollectionWrapper getCollection( String db, String name ) throws MongoDbException {
-    return wrap( getDb( db ).getCollection( name ) );
+    return collectionSettings.throttle( wrap( getDb( db ).getCollection( name ) ) );
   }
 
   @Override
   public MongoCollectionWrapper createCollection( String db, String name ) throws MongoDbException {
-    return wrap( getDb( db ).createCollection( name, null ) );
+    MongoCollectionWrapper collection =
+      collectionSettings.throttle( wrap( getDb( db ).createCollection( name, null ) ) );
+    collectionSettings.collectionCreated( db, name );
+    return collection;
   }
 
   @Override
@@ -169,8 +227,11 @@ public class MongoAtlasClientWrapper implements MongoClientWrapper {
   }
 
   @Override
-  public void dispose() {
-    getMongo().close();
+  public synchronized void dispose() {
+    if ( !disposed ) {
+      disposed = true;
+      MongoClientRegistry.getInstance().release( getMongo() );
+    }
   }
 
   @Override public ReplicaSetStatus getReplicaSetStatus() {
@@ -0,0 +1,160 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper;
+
+import com.mongodb.MongoClient;
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.MongoProp;
+import org.pentaho.mongo.MongoProperties;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Process wide registry of MongoClients which are shared between MongoClientWrappers
+ * created with identical MongoProperties (see {@link MongoProp#USE_SHARED_CLIENT}).
+ * Clients are reference counted, and only closed once the last wrapper using them
+ * has been disposed.
+ */
+class MongoClientRegistry {
+  private static final MongoClientRegistry INSTANCE = new MongoClientRegistry();
+
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  private final Map<String, SharedClient> clientsByKey = new HashMap<String, SharedClient>();
+  private final Map<MongoClient, SharedClient> clientsByInstance =
+    new IdentityHashMap<MongoClient, SharedClient>();
+
+  static MongoClientRegistry getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the client registered for the given properties, creating it with clientSupplier if
+   * none exists yet.  Each call must be balanced by a call to {@link #release(MongoClient)}.
+   *
+   * @param props          the properties the client is built from
+   * @param clientSupplier creates the client when no matching client is registered
+   * @return the shared client
+   * @throws MongoDbException if the client could not be created
+   */
+  synchronized MongoClient acquire( MongoProperties props, Callable<MongoClient> clientSupplier )
+    throws MongoDbException {
+    String key = fingerprint( props );
+    SharedClient shared = clientsByKey.get( key );
+    if ( shared == null ) {
+      MongoClient client = create( clientSupplier );
+      if ( client == null ) {
+        return null;
+      }
+      shared = new SharedClient( key, client );
+      clientsByKey.put( key, shared );
+      clientsByInstance.put( client, shared );
+    }
+    shared.references++;
+    return shared.client;
+  }
+
+  /**
+   * Releases one reference to the client, closing it if it was the last one.  Clients which
+   * were not obtained from this registry are closed immediately.
+   *
+   * @param client the client to release
+   */
+  void release( MongoClient client ) {
+    if ( client == null ) {
+      return;
+    }
+    synchronized ( this ) {
+      SharedClient shared = clientsByInstance.get( client );
+      if ( shared != null && --shared.references > 0 ) {
+        return;
+      }
+      if ( shared != null ) {
+        clientsByKey.remove( shared.key );
+        clientsByInstance.remove( client );
+      }
+    }
+    client.close();
+  }
+
+  /**
+   * @return true if the client is currently handed out by this registry.
+   */
+  synchronized boolean isShared( MongoClient client ) {
+    return client != null && clientsByInstance.containsKey( client );
+  }
+
+  synchronized int getReferenceCount( MongoClient client ) {
+    SharedClient shared = clientsByInstance.get( client );
+    return shared == null ? 0 : shared.references;
+  }
+
+  private MongoClient create( Callable<MongoClient> clientSupplier ) throws MongoDbException {
+    try {
+      return clientSupplier.call();
+    } catch ( MongoDbException e ) {
+      throw e;
+    } catch ( Exception e ) {
+      throw new MongoDbException( e );
+    }
+  }
+
+  /**
+   * Builds a canonical key for the given properties.  Every property takes part (hosts, credentials
+   * and client options alike), and the result is hashed so that passwords are not retained in clear
+   * text.
+   */
+  static String fingerprint( MongoProperties props ) {
+    StringBuilder canonical = new StringBuilder();
+    for ( MongoProp prop : MongoProp.values() ) {
+      String value = props.get( prop );
+      if ( value != null ) {
+        canonical.append( prop.name() ).append( '=' ).append( value.length() ).append( ':' ).append( value )
+          .append( ';' );
+      }
+    }
+    try {
+      byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( canonical.toString().getBytes( UTF8 ) );
+      StringBuilder hex = new StringBuilder( digest.length * 2 );
+      for ( byte b : digest ) {
+        hex.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+      }
+      return hex.toString();
+    } catch ( NoSuchAlgorithmException e ) {
+      // every JRE is required to provide SHA-256
+      throw new IllegalStateException( e );
+    }
+  }
+
+  private static class SharedClient {
+    private final String key;
+    private final MongoClient client;
+    private int references;
+
+    private SharedClient( String key, MongoClient client ) {
+      this.key = key;
+      this.client = client;
+    }
+  }
+}
@@ -38,6 +38,16 @@ public interface MongoClientWrapper {
 
   public List<String> getIndexInfo( String dbName, String collection ) throws MongoDbException;
 
+  /**
+   * Gets the indexes of a collection without creating it, unlike {@link #getIndexInfo(String, String)}.
+   *
+   * @param dbName     the database of the collection
+   * @param collection the collection
+   * @return the indexes of the collection, or an empty list if it does not exist
+   * @throws MongoDbException if a problem occurs
+   */
+  public List<String> getExistingIndexInfo( String dbName, String collection ) throws MongoDbException;
+
   /**
    * Retrieve all database names found in MongoDB as visible by the authenticated user.
    * 
@@ -102,7 +112,8 @@ public interface MongoClientWrapper {
   public MongoCollectionWrapper getCollection( String db, String name ) throws MongoDbException;
 
   /**
-   * Calls the close() method on the underling MongoClient.
+   * Calls the close() method on the underling MongoClient.  If the client is shared
+   * (see MongoProp.USE_SHARED_CLIENT) it is only closed once the last wrapper using it is disposed.
    * @throws MongoDbException
    */
   public void dispose() throws MongoDbException;
@@ -17,8 +17,6 @@
 
 package org.pentaho.mongo.wrapper;
 
-import java.lang.reflect.Proxy;
-
 import org.pentaho.mongo.MongoUtilLogger;
 import org.pentaho.mongo.Util;
 import org.pentaho.mongo.MongoDbException;
@@ -46,7 +44,7 @@ public class MongoClientWrapperFactory  {
       return new MongoAtlasClientWrapper( props, log );
     }
     if ( props.useKerberos() ) {
-      return initKerberosProxy( new KerberosMongoClientWrapper( props, log ) );
+      return initKerberosDelegate( new KerberosMongoClientWrapper( props, log ) );
     } else if ( !Util.isEmpty( props.get( MongoProp.USERNAME ) )
         || !Util.isEmpty( props.get( MongoProp.PASSWORD ) )
         || !Util.isEmpty( props.get( MongoProp.AUTH_DATABASE ) ) ) {
@@ -56,10 +54,8 @@ public class MongoClientWrapperFactory  {
     return new NoAuthMongoClientWrapper( props, log );
   }
 
-  private static MongoClientWrapper initKerberosProxy(
+  private static MongoClientWrapper initKerberosDelegate(
     KerberosMongoClientWrapper wrapper ) {
-    return (MongoClientWrapper) Proxy.newProxyInstance( wrapper.getClass().getClassLoader(),
-      new Class<?>[] { MongoClientWrapper.class },
-      new KerberosInvocationHandler( wrapper.getAuthContext(), wrapper ) );
+    return new KerberosDelegatingClientWrapper( wrapper.getAuthContext(), wrapper );
   }
 }
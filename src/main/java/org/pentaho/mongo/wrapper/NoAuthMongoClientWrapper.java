@@ -32,13 +32,17 @@ import org.pentaho.mongo.MongoProp;
 import org.pentaho.mongo.MongoProperties;
 import org.pentaho.mongo.MongoUtilLogger;
 import org.pentaho.mongo.Util;
+import org.pentaho.mongo.wrapper.collection.CountCache;
 import org.pentaho.mongo.wrapper.collection.DefaultMongoCollectionWrapper;
 import org.pentaho.mongo.wrapper.collection.MongoCollectionWrapper;
+import org.pentaho.mongo.wrapper.collection.PipelineOptimizer;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 /**
  * Implementation of MongoClientWrapper which uses the MONGO-CR auth mechanism.
@@ -58,6 +62,11 @@ class NoAuthMongoClientWrapper implements MongoClientWrapper {
 
   private final MongoClient mongo;
   private final MongoUtilLogger log;
+  private final ReplicaSetConfigCache replSetConfigCache;
+  private final CollectionSettings collectionSettings;
+  private ReplicaSetTagIndex tagIndex;
+  private BasicDBList tagIndexMembers;
+  private boolean disposed;
 
   protected MongoProperties props;
 
@@ -73,6 +82,8 @@ class NoAuthMongoClientWrapper implements MongoClientWrapper {
     this.log = log;
     this.props = props;
     mongo = getClient( props.buildMongoClientOptions( log ) );
+    replSetConfigCache = initReplSetConfigCache( props, log );
+    collectionSettings = new CollectionSettings( props, log );
   }
 
   NoAuthMongoClientWrapper(
@@ -82,12 +93,36 @@ class NoAuthMongoClientWrapper implements MongoClientWrapper {
     this.mongo = mongo;
     this.log = log;
     this.props = props;
+    replSetConfigCache = initReplSetConfigCache( props, log );
+    collectionSettings = new CollectionSettings( props, log );
+  }
+
+  private ReplicaSetConfigCache initReplSetConfigCache( MongoProperties props, MongoUtilLogger log ) {
+    long ttl = props == null ? ReplicaSetConfigCache.DEFAULT_TTL
+      : props.getLong( MongoProp.REPLICA_SET_CONFIG_TTL, ReplicaSetConfigCache.DEFAULT_TTL, log );
+    return new ReplicaSetConfigCache( new ReplicaSetConfigCache.Loader() {
+      @Override public DBObject loadConfig() throws MongoDbException {
+        return readReplicaSetConfig();
+      }
+    }, ttl );
   }
 
   MongoClient getMongo() {
     return mongo;
   }
 
+  MongoUtilLogger getLog() {
+    return log;
+  }
+
+  CountCache getCountCache() {
+    return collectionSettings.getCountCache();
+  }
+
+  MetadataCache getMetadataCache() {
+    return collectionSettings.getMetadataCache();
+  }
+
   private List<ServerAddress> getServerAddressList() throws MongoDbException {
     String hostsPorts = props.get( MongoProp.HOST );
     String singlePort = props.get( MongoProp.PORT );
@@ -139,9 +174,9 @@ class NoAuthMongoClientWrapper implements MongoClientWrapper {
   }
 
 
-  protected MongoClient getClient( MongoClientOptions opts ) throws MongoDbException {
-    List<MongoCredential> credList = getCredentialList();
-    List<ServerAddress> serverAddressList = getServerAddressList();
+  protected MongoClient getClient( final MongoClientOptions opts ) throws MongoDbException {
+    final List<MongoCredential> credList = getCredentialList();
+    final List<ServerAddress> serverAddressList = getServerAddressList();
 
     if ( serverAddressList.size() == 0 ) {
       // There should be minimally one server defined.  Default is localhost, so
@@ -151,6 +186,15 @@ class NoAuthMongoClientWrapper implements MongoClientWrapper {
           MongoClientWrapper.class,
           "MongoNoAuthWrapper.Message.Error.NoHostSet" ) );
     }
+    if ( props.useSharedClient() ) {
+      return MongoClientRegistry.getInstance().acquire( props, new Callable<MongoClient>() {
+        @Override public MongoClient call() {
+          return getClientFactory( props )
+            .getMongoClient( serverAddressList, credList, opts,
+              props.useAllReplicaSetMembers() );
+        }
+      } );
+    }
     return getClientFactory( props )
       .getMongoClient( serverAddressList, credList, opts,
         props.useAllReplicaSetMembers() );
@@ -163,11 +207,16 @@ class NoAuthMongoClientWrapper implements MongoClientWrapper {
    * @throws MongoDbException
    */
   public List<String> getDatabaseNames() throws MongoDbException {
-    try {
-      return getMongo().getDatabaseNames();
-    } catch ( Exception e ) {
-      throw new MongoDbException( e );
-    }
+    return new ArrayList<String>( MetadataCache.get( getMetadataCache(), MetadataCache.DATABASES,
+      new MetadataCache.Loader<List<String>>() {
+        @Override public List<String> load() throws MongoDbException {
+          try {
+            return getMongo().getDatabaseNames();
+          } catch ( Exception e ) {
+            throw new MongoDbException( e );
+          }
+        }
+      } ) );
   }
 
   protected DB getDb( String dbName ) throws MongoDbException {
@@ -185,16 +234,21 @@ class NoAuthMongoClientWrapper implements MongoClientWrapper {
    * @return Set of collections in the database requested.
    * @throws MongoDbException If an error occurs.
    */
-  public Set<String> getCollectionsNames( String dB ) throws MongoDbException {
-    try {
-      return getDb( dB ).getCollectionNames();
-    } catch ( Exception e ) {
-      if ( e instanceof MongoDbException ) {
-        throw (MongoDbException) e;
-      } else {
-        throw new MongoDbException( e );
-      }
-    }
+  public Set<String> getCollectionsNames( final String dB ) throws MongoDbException {
+    return new LinkedHashSet<String>( MetadataCache.get( getMetadataCache(), MetadataCache.collectionsKey( dB ),
+      new MetadataCache.Loader<Set<String>>() {
+        @Override public Set<String> load() throws MongoDbException {
+          try {
+            return getDb( dB ).getCollectionNames();
+          } catch ( Exception e ) {
+            if ( e instanceof MongoDbException ) {
+              throw (MongoDbException) e;
+            } else {
+              throw new MongoDbException( e );
+            }
+          }
+        }
+      } ) );
   }
 
   /**
@@ -208,19 +262,7 @@ class NoAuthMongoClientWrapper implements MongoClientWrapper {
   public List<String> getLastErrorModes() throws MongoDbException {
     List<String> customLastErrorModes = new ArrayList<String>();
 
-    DB local = getDb( LOCAL_DB );
-    if ( local != null ) {
-      try {
-        DBCollection replset = local.getCollection( REPL_SET_COLLECTION );
-        if ( replset != null ) {
-          DBObject config = replset.findOne();
-
-          extractLastErrorModes( config, customLastErrorModes );
-        }
-      } catch ( Exception e ) {
-        throw new MongoDbException( e );
-      }
-    }
+    extractLastErrorModes( getReplicaSetConfig(), customLastErrorModes );
 
     return customLastErrorModes;
   }
@@ -241,7 +283,27 @@ class NoAuthMongoClientWrapper implements MongoClientWrapper {
     }
   }
 
-  public List<String> getIndexInfo( String dbName, String collection ) throws MongoDbException {
+  public List<String> getIndexInfo( final String dbName, final String collection ) throws MongoDbException {
+    return new ArrayList<String>( MetadataCache.get( getMetadataCache(), MetadataCache.indexesKey( dbName, collection ),
+      new MetadataCache.Loader<List<String>>() {
+        @Override public List<String> load() throws MongoDbException {
+          return readIndexInfo( dbName, collection, true );
+        }
+      } ) );
+  }
+
+  @Override
+  public List<String> getExistingIndexInfo( final String dbName, final String collection ) throws MongoDbException {
+    // no indexes are not cached, so that getIndexInfo still creates the collection
+    return new ArrayList<String>( MetadataCache.get( getMetadataCache(), MetadataCache.indexesKey( dbName, collection ),
+      new MetadataCache.Loader<List<String>>() {
+        @Override public List<String> load() throws MongoDbException {
+          return readIndexInfo( dbName, collection, false );
+        }
+      }, MetadataCache.NOT_EMPTY ) );
+  }
+
+  private List<String> readIndexInfo( String dbName, String collection, boolean create ) throws MongoDbException {
     try {
       DB db = getDb( dbName );
 
@@ -255,8 +317,9 @@ class NoAuthMongoClientWrapper implements MongoClientWrapper {
           BaseMessages.getString( PKG, "MongoNoAuthWrapper.ErrorMessage.NoCollectionSpecified" ) ); //$NON-NLS-1$
       }
 
-      if ( !db.collectionExists( collection ) ) {
+      if ( create && !db.collectionExists( collection ) ) {
         db.createCollection( collection, null );
+        collectionSettings.collectionCreated( dbName, collection );
       }
 
       DBCollection coll = db.getCollection( collection );
@@ -268,6 +331,10 @@ class NoAuthMongoClientWrapper implements MongoClientWrapper {
 
       List<DBObject> collInfo = coll.getIndexInfo();
       List<String> result = new ArrayList<String>();
+      if ( !create && ( collInfo == null || collInfo.size() == 0 ) ) {
+        // there are no indexes only if the collection does not exist
+        return result;
+      }
       if ( collInfo == null || collInfo.size() == 0 ) {
         throw new MongoDbException( BaseMessages.getString( PKG,
           "MongoNoAuthWrapper.ErrorMessage.UnableToGetInfoForCollection", //$NON-NLS-1$
@@ -297,36 +364,56 @@ class NoAuthMongoClientWrapper implements MongoClientWrapper {
 
   private BasicDBList getRepSetMemberRecords() throws MongoDbException {
     BasicDBList setMembers = null;
+    DBObject config = getReplicaSetConfig();
+
+    if ( config != null ) {
+      Object members = config.get( REPL_SET_MEMBERS );
+
+      if ( members instanceof BasicDBList ) {
+        if ( ( (BasicDBList) members ).size() == 0 ) {
+          // log that there are no replica set members defined
+          logInfo( BaseMessages.getString( PKG,
+              "MongoNoAuthWrapper.Message.Warning.NoReplicaSetMembersDefined" ) ); //$NON-NLS-1$
+        } else {
+          setMembers = (BasicDBList) members;
+        }
+
+      } else {
+        // log that there are no replica set members defined
+        logInfo( BaseMessages.getString( PKG,
+            "MongoNoAuthWrapper.Message.Warning.NoReplicaSetMembersDefined" ) ); //$NON-NLS-1$
+      }
+    } else {
+      // log that there are no replica set members defined
+      logInfo( BaseMessages.getString( PKG,
+          "MongoNoAuthWrapper.Message.Warning.NoReplicaSetMembersDefined" ) ); //$NON-NLS-1$
+    }
+
+    return setMembers;
+  }
+
+  /**
+   * @return the replica set configuration, served from the snapshot cache while it is current.
+   * @throws MongoDbException if the configuration could not be read
+   */
+  protected DBObject getReplicaSetConfig() throws MongoDbException {
+    return replSetConfigCache.getConfig( getMongo() );
+  }
+
+  /**
+   * Reads the replica set configuration document from local.system.replset.
+   *
+   * @return the configuration, or null if it is not available
+   * @throws MongoDbException if a problem occurs
+   */
+  private DBObject readReplicaSetConfig() throws MongoDbException {
     try {
       DB local = getDb( LOCAL_DB );
       if ( local != null ) {
 
         DBCollection replset = local.getCollection( REPL_SET_COLLECTION );
         if ( replset != null ) {
-          DBObject config = replset.findOne();
-
-          if ( config != null ) {
-            Object members = config.get( REPL_SET_MEMBERS );
-
-            if ( members instanceof BasicDBList ) {
-              if ( ( (BasicDBList) members ).size() == 0 ) {
-                // log that there are no replica set members defined
-                logInfo( BaseMessages.getString( PKG,
-                    "MongoNoAuthWrapper.Message.Warning.NoReplicaSetMembersDefined" ) ); //$NON-NLS-1$
-              } else {
-                setMembers = (BasicDBList) members;
-              }
-
-            } else {
-              // log that there are no replica set members defined
-              logInfo( BaseMessages.getString( PKG,
-                  "MongoNoAuthWrapper.Message.Warning.NoReplicaSetMembersDefined" ) ); //$NON-NLS-1$
-            }
-          } else {
-            // log that there are no replica set members defined
-            logInfo( BaseMessages.getString( PKG,
-                "MongoNoAuthWrapper.Message.Warning.NoReplicaSetMembersDefined" ) ); //$NON-NLS-1$
-          }
+          return replset.findOne();
         } else {
           // log that the replica set collection is not available
           logInfo( BaseMessages.getString( PKG,
@@ -337,15 +424,12 @@ class NoAuthMongoClientWrapper implements MongoClientWrapper {
         logInfo(
             BaseMessages.getString( PKG, "MongoNoAuthWrapper.Message.Warning.LocalDBNotAvailable" ) ); //$NON-NLS-1$
       }
+    } catch ( MongoDbException e ) {
+      throw e;
     } catch ( Exception ex ) {
       throw new MongoDbException( ex );
-    } finally {
-      if ( getMongo() != null ) {
-        getMongo().close();
-      }
     }
-
-    return setMembers;
+    return null;
   }
 
   private void logInfo( String message ) {
@@ -417,63 +501,32 @@ class NoAuthMongoClientWrapper implements MongoClientWrapper {
   }
 
   protected List<DBObject> checkForReplicaSetMembersThatSatisfyTagSets( List<DBObject> tagSets, BasicDBList members ) {
-    List<DBObject> satisfy = new ArrayList<DBObject>();
-    if ( members != null && members.size() > 0 ) {
-      for ( Object m : members ) {
-        if ( m != null ) {
-          DBObject tags = (DBObject) ( (DBObject) m ).get( "tags" ); //$NON-NLS-1$
-          if ( tags == null ) {
-            continue;
-          }
-
-          for ( DBObject toMatch : tagSets ) {
-            boolean match = true;
-
-            for ( String tagName : toMatch.keySet() ) {
-              String tagValue = toMatch.get( tagName ).toString();
-
-              // does replica set member m's tags contain this tag?
-              Object matchVal = tags.get( tagName );
-
-              if ( matchVal == null ) {
-                match = false; // doesn't match this particular tag set
-                // no need to check any other keys in toMatch
-                break;
-              }
-
-              if ( !matchVal.toString().equals( tagValue ) ) {
-                // rep set member m's tags has this tag, but it's value does not
-                // match
-                match = false;
-
-                // no need to check any other keys in toMatch
-                break;
-              }
-            }
+    return getTagIndex( members ).match( tagSets );
+  }
 
-            if ( match ) {
-              // all tag/values present and match - add this member (only if its
-              // not already there)
-              if ( !satisfy.contains( m ) ) {
-                satisfy.add( (DBObject) m );
-              }
-            }
-          }
-        }
-      }
+  /**
+   * @return the tag index for the given member records, reused for as long as the cached replica set
+   * config they came from is current.
+   */
+  private synchronized ReplicaSetTagIndex getTagIndex( BasicDBList members ) {
+    if ( tagIndex == null || tagIndexMembers != members ) {
+      tagIndex = new ReplicaSetTagIndex( members );
+      tagIndexMembers = members;
     }
-
-    return satisfy;
+    return tagIndex;
   }
 
   @Override
   public MongoCollectionWrapper getCollection( String db, String name ) throws MongoDbException {
-    return wrap( getDb( db ).getCollection( name ) );
+    return collectionSettings.throttle( wrap( getDb( db ).getCollection( name ) ) );
   }
 
   @Override
   public MongoCollectionWrapper createCollection( String db, String name ) throws MongoDbException {
-    return wrap( getDb( db ).createCollection( name, null ) );
+    MongoCollectionWrapper collection =
+      collectionSettings.throttle( wrap( getDb( db ).createCollection( name, null ) ) );
+    collectionSettings.collectionCreated( db, name );
+    return collection;
   }
 
 
@@ -484,12 +537,19 @@ class NoAuthMongoClientWrapper implements MongoClientWrapper {
   }
 
   protected MongoCollectionWrapper wrap( DBCollection collection ) {
-    return new DefaultMongoCollectionWrapper( collection );
+    return new DefaultMongoCollectionWrapper( collection, PipelineOptimizer.forProperties( props, log ),
+      collectionSettings.getCountCache(), collectionSettings.getMetadataCache() );
   }
 
+  /**
+   * Closes the underlying MongoClient, or releases this wrapper's reference to it if the client is shared.
+   */
   @Override
-  public void dispose() {
-    getMongo().close();
+  public synchronized void dispose() {
+    if ( !disposed ) {
+      disposed = true;
+      MongoClientRegistry.getInstance().release( getMongo() );
+    }
   }
 
   @Override public ReplicaSetStatus getReplicaSetStatus() {
@@ -0,0 +1,221 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.collection.MongoCollectionWrapper;
+import org.pentaho.mongo.wrapper.cursor.MergingCursorWrapper;
+import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Reads a collection through several cursors, each scanning one range of the _id index.
+ * <p/>
+ * The ranges are split at keys returned by the splitVector command, sized from the collection's data size.
+ * Where splitVector is not available, e.g. through mongos or without the required privileges, they are
+ * split at evenly spaced keys of a $sample of the collection.  If neither works the whole collection is read
+ * as a single range.  Ranges are bounded with the $min/$max modifiers on the _id index rather than with
+ * query operators, so documents whose _id values are of different BSON types are all covered.
+ * <p/>
+ * The range cursors can be consumed independently with {@link #openCursors(DBObject, DBObject)}, or as a
+ * single stream read by a pool of workers with {@link #openMergedCursor(DBObject, DBObject, int)}.
+ */
+public class ParallelCollectionReader {
+  /**
+   * The number of sampled keys per partition when splitting from a $sample.
+   */
+  static final int SAMPLES_PER_PARTITION = 10;
+
+  static final DBObject ID_INDEX = new BasicDBObject( "_id", 1 );
+
+  private final MongoClientWrapper client;
+  private final String dbName;
+  private final String collectionName;
+  private final int partitions;
+  private List<DBObject> splitPoints;
+
+  /**
+   * @param client         the client to read with
+   * @param dbName         the database of the collection
+   * @param collectionName the collection to read
+   * @param partitions     the number of ranges to split the collection into
+   */
+  public ParallelCollectionReader( MongoClientWrapper client, String dbName, String collectionName,
+                                   int partitions ) {
+    if ( partitions <= 0 ) {
+      throw new IllegalArgumentException( "partitions must be positive" );
+    }
+    this.client = client;
+    this.dbName = dbName;
+    this.collectionName = collectionName;
+    this.partitions = partitions;
+  }
+
+  /**
+   * @return the ordered _id keys, e.g. { "_id": 1000 }, at which the collection is split.  There are at most
+   * partitions - 1 of them; fewer if the collection is too small to split further.
+   * @throws MongoDbException if the collection could not be read
+   */
+  public synchronized List<DBObject> getSplitPoints() throws MongoDbException {
+    if ( splitPoints == null ) {
+      splitPoints = partitions == 1 ? Collections.<DBObject>emptyList()
+        : client.perform( dbName, new MongoDBAction<List<DBObject>>() {
+          @Override public List<DBObject> perform( DB db ) throws MongoDbException {
+            return computeSplitPoints( db.getCollection( collectionName ), partitions );
+          }
+        } );
+    }
+    return splitPoints;
+  }
+
+  /**
+   * Opens one cursor per range.  The cursors can be read concurrently and each must be closed.
+   *
+   * @param query  the query each cursor runs, or null for all documents
+   * @param fields the fields to return, or null for all fields
+   * @return the cursors, in _id order of their ranges
+   * @throws MongoDbException if the collection could not be read
+   */
+  public List<MongoCursorWrapper> openCursors( DBObject query, DBObject fields ) throws MongoDbException {
+    List<DBObject> splits = getSplitPoints();
+    MongoCollectionWrapper collection = client.getCollection( dbName, collectionName );
+    DBObject filter = query == null ? new BasicDBObject() : query;
+    List<MongoCursorWrapper> cursors = new ArrayList<MongoCursorWrapper>( splits.size() + 1 );
+    for ( int i = 0; i <= splits.size(); i++ ) {
+      MongoCursorWrapper cursor = collection.find( filter, fields ).hint( ID_INDEX );
+      if ( i > 0 ) {
+        cursor = cursor.min( splits.get( i - 1 ) );
+      }
+      if ( i < splits.size() ) {
+        cursor = cursor.max( splits.get( i ) );
+      }
+      cursors.add( cursor );
+    }
+    return cursors;
+  }
+
+  /**
+   * Opens the range cursors and reads them on a pool with one daemon thread per range, which is shut down
+   * when the returned cursor is closed.
+   *
+   * @param query        the query each cursor runs, or null for all documents
+   * @param fields       the fields to return, or null for all fields
+   * @param maxDocuments the approximate maximum number of documents to read ahead
+   * @return a cursor returning the documents of all ranges, in no particular order
+   * @throws MongoDbException if the collection could not be read
+   */
+  public MongoCursorWrapper openMergedCursor( DBObject query, DBObject fields, int maxDocuments )
+    throws MongoDbException {
+    return MergingCursorWrapper.merge( openCursors( query, fields ), maxDocuments );
+  }
+
+  /**
+   * Opens the range cursors and reads them on the given pool.
+   *
+   * @param query        the query each cursor runs, or null for all documents
+   * @param fields       the fields to return, or null for all fields
+   * @param pool         runs one task per range; its size bounds the number of ranges read concurrently
+   * @param maxDocuments the approximate maximum number of documents to read ahead
+   * @return a cursor returning the documents of all ranges, in no particular order
+   * @throws MongoDbException if the collection could not be read
+   */
+  public MongoCursorWrapper openMergedCursor( DBObject query, DBObject fields, ExecutorService pool,
+                                              int maxDocuments ) throws MongoDbException {
+    return new MergingCursorWrapper( openCursors( query, fields ), pool, false, maxDocuments );
+  }
+
+  static List<DBObject> computeSplitPoints( DBCollection collection, int partitions ) {
+    List<DBObject> keys = splitVector( collection, partitions );
+    if ( keys == null ) {
+      keys = sample( collection, partitions );
+    }
+    return pick( keys, partitions );
+  }
+
+  /**
+   * @return the keys returned by splitVector, or null if the command is not available
+   */
+  @SuppressWarnings( "unchecked" )
+  static List<DBObject> splitVector( DBCollection collection, int partitions ) {
+    try {
+      CommandResult stats = collection.getStats();
+      Object size = stats.get( "size" );
+      if ( !stats.ok() || !( size instanceof Number ) ) {
+        return null;
+      }
+      // splitVector splits at half of maxChunkSizeBytes
+      long chunkBytes = Math.max( 1, 2 * ( (Number) size ).longValue() / partitions );
+      CommandResult result = collection.getDB().command(
+        new BasicDBObject( "splitVector", collection.getFullName() )
+          .append( "keyPattern", ID_INDEX )
+          .append( "maxChunkSizeBytes", chunkBytes ) );
+      if ( !result.ok() || !( result.get( "splitKeys" ) instanceof List ) ) {
+        return null;
+      }
+      return (List<DBObject>) result.get( "splitKeys" );
+    } catch ( MongoException e ) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the sorted _id keys of a sample of the collection, or no keys if $sample is not available
+   */
+  static List<DBObject> sample( DBCollection collection, int partitions ) {
+    List<DBObject> keys = new ArrayList<DBObject>();
+    try {
+      for ( DBObject key : collection.aggregate( Arrays.<DBObject>asList(
+        new BasicDBObject( "$sample", new BasicDBObject( "size", partitions * SAMPLES_PER_PARTITION ) ),
+        new BasicDBObject( "$project", ID_INDEX ),
+        new BasicDBObject( "$sort", ID_INDEX ) ) ).results() ) {
+        keys.add( key );
+      }
+    } catch ( MongoException e ) {
+      keys.clear();
+    }
+    return keys;
+  }
+
+  /**
+   * @return up to partitions - 1 evenly spaced, distinct keys
+   */
+  static List<DBObject> pick( List<DBObject> keys, int partitions ) {
+    List<DBObject> picked = new ArrayList<DBObject>( partitions - 1 );
+    if ( keys.isEmpty() ) {
+      return picked;
+    }
+    for ( int i = 1; i < partitions; i++ ) {
+      DBObject key = new BasicDBObject( "_id", keys.get( (int) ( (long) i * keys.size() / partitions ) ).get( "_id" ) );
+      if ( picked.isEmpty() || !picked.get( picked.size() - 1 ).equals( key ) ) {
+        picked.add( key );
+      }
+    }
+    return picked;
+  }
+}
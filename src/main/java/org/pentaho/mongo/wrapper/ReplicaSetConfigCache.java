@@ -0,0 +1,118 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.ReplicaSetStatus;
+import com.mongodb.ServerAddress;
+import org.pentaho.mongo.MongoDbException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps a snapshot of the replica set configuration document (local.system.replset) so that
+ * tag and lastErrorMode lookups can be answered from memory.  The snapshot is reloaded once
+ * its TTL has expired, or earlier if the driver's monitored view of the cluster (set name,
+ * primary or member addresses) has changed since it was taken.
+ */
+class ReplicaSetConfigCache {
+  static final long DEFAULT_TTL = 60000L;
+
+  /**
+   * Reads the replica set configuration from the server.  May return null if there is none.
+   */
+  interface Loader {
+    DBObject loadConfig() throws MongoDbException;
+  }
+
+  private final Loader loader;
+  private final long ttl;
+
+  private boolean loaded;
+  private long loadedAt;
+  private String clusterSignature;
+  private DBObject config;
+
+  ReplicaSetConfigCache( Loader loader, long ttl ) {
+    this.loader = loader;
+    this.ttl = ttl;
+  }
+
+  /**
+   * @param client the client whose cluster state is checked for changes, may be null
+   * @return the cached configuration document, or null if the server has none
+   * @throws MongoDbException if the configuration had to be reloaded and that failed
+   */
+  synchronized DBObject getConfig( MongoClient client ) throws MongoDbException {
+    String signature = clusterSignature( client );
+    long now = System.currentTimeMillis();
+    if ( !loaded || now - loadedAt >= ttl || !equal( signature, clusterSignature ) ) {
+      DBObject fresh = loader.loadConfig();
+      config = fresh;
+      clusterSignature = signature;
+      loadedAt = now;
+      loaded = true;
+    }
+    return config;
+  }
+
+  /**
+   * Discards the current snapshot so the next lookup reads the configuration from the server.
+   */
+  synchronized void invalidate() {
+    loaded = false;
+    config = null;
+  }
+
+  /**
+   * Summarizes the cluster state already tracked by the driver's server monitors.  No round trip
+   * to the server is made.
+   */
+  static String clusterSignature( MongoClient client ) {
+    if ( client == null ) {
+      return null;
+    }
+    try {
+      StringBuilder signature = new StringBuilder();
+      ReplicaSetStatus status = client.getReplicaSetStatus();
+      if ( status != null ) {
+        signature.append( status.getName() ).append( '|' ).append( status.getMaster() ).append( '|' );
+      }
+      List<ServerAddress> addresses = client.getAllAddress();
+      if ( addresses != null ) {
+        List<String> hosts = new ArrayList<String>( addresses.size() );
+        for ( ServerAddress address : addresses ) {
+          hosts.add( address.toString() );
+        }
+        Collections.sort( hosts );
+        signature.append( hosts );
+      }
+      return signature.toString();
+    } catch ( RuntimeException e ) {
+      // cluster state unknown, fall back to the TTL alone
+      return null;
+    }
+  }
+
+  private static boolean equal( String a, String b ) {
+    return a == null ? b == null : a.equals( b );
+  }
+}
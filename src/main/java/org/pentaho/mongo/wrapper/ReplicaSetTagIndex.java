@@ -0,0 +1,109 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.DBObject;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inverted index over the tags of a list of replica set member records.  Each tagName : tagValue
+ * pair maps to the set of members carrying it, so matching a tag set is an intersection and
+ * matching a list of tag sets is the union of those intersections.
+ */
+class ReplicaSetTagIndex {
+  private static final String TAGS = "tags"; //$NON-NLS-1$
+
+  private final List<DBObject> members = new ArrayList<DBObject>();
+  private final Map<String, BitSet> membersByTag = new HashMap<String, BitSet>();
+  private final BitSet taggedMembers = new BitSet();
+
+  ReplicaSetTagIndex( BasicDBList memberRecords ) {
+    if ( memberRecords == null ) {
+      return;
+    }
+    for ( Object m : memberRecords ) {
+      if ( m == null ) {
+        continue;
+      }
+      DBObject tags = (DBObject) ( (DBObject) m ).get( TAGS );
+      if ( tags == null ) {
+        continue;
+      }
+      int position = members.size();
+      members.add( (DBObject) m );
+      taggedMembers.set( position );
+
+      for ( String tagName : tags.keySet() ) {
+        Object tagValue = tags.get( tagName );
+        if ( tagValue == null ) {
+          continue;
+        }
+        String key = key( tagName, tagValue.toString() );
+        BitSet bits = membersByTag.get( key );
+        if ( bits == null ) {
+          bits = new BitSet();
+          membersByTag.put( key, bits );
+        }
+        bits.set( position );
+      }
+    }
+  }
+
+  /**
+   * Returns the members satisfying at least one of the tag sets, i.e. carrying every tag of that set.
+   * Each member is returned once, in the order of the original member records.
+   *
+   * @param tagSets the tag sets to match against
+   * @return the matching member records
+   */
+  List<DBObject> match( List<DBObject> tagSets ) {
+    BitSet satisfy = new BitSet();
+    for ( DBObject toMatch : tagSets ) {
+      BitSet matching = (BitSet) taggedMembers.clone();
+      for ( String tagName : toMatch.keySet() ) {
+        BitSet bits = membersByTag.get( key( tagName, toMatch.get( tagName ).toString() ) );
+        if ( bits == null ) {
+          matching.clear();
+          break;
+        }
+        matching.and( bits );
+        if ( matching.isEmpty() ) {
+          break;
+        }
+      }
+      satisfy.or( matching );
+    }
+
+    List<DBObject> result = new ArrayList<DBObject>( satisfy.cardinality() );
+    for ( int i = satisfy.nextSetBit( 0 ); i >= 0; i = satisfy.nextSetBit( i + 1 ) ) {
+      result.add( members.get( i ) );
+    }
+    return result;
+  }
+
+  private static String key( String tagName, String tagValue ) {
+    // tag names can't contain a NUL character, so the key is unambiguous
+    return tagName + '\u0000' + tagValue;
+  }
+}
@@ -0,0 +1,112 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper;
+
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.MongoProp;
+import org.pentaho.mongo.MongoProperties;
+import org.pentaho.mongo.MongoUtilLogger;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limits the rate of documents, and optionally of their bytes, read from or written to MongoDB.  Callers
+ * block in {@link #acquire(int, long)} until the operation fits into the configured rates.  Up to one second
+ * worth of either rate may be used in a burst after a pause.
+ * <p/>
+ * Throttles are configured with the THROTTLE_* {@link MongoProp}s and applied to collections by
+ * {@link org.pentaho.mongo.wrapper.collection.ThrottledCollectionWrapper}.  Instances are thread safe.
+ */
+public class Throttle {
+  private static final Map<String, Throttle> shared = new HashMap<String, Throttle>();
+
+  private final TokenBucket documents;
+  private final TokenBucket bytes;
+
+  /**
+   * @param documentsPerSecond the maximum rate of documents, or 0 for no limit
+   * @param bytesPerSecond     the maximum rate of document bytes, or 0 for no limit
+   */
+  public Throttle( double documentsPerSecond, double bytesPerSecond ) {
+    this( documentsPerSecond > 0 ? new TokenBucket( documentsPerSecond, documentsPerSecond ) : null,
+      bytesPerSecond > 0 ? new TokenBucket( bytesPerSecond, bytesPerSecond ) : null );
+  }
+
+  Throttle( TokenBucket documents, TokenBucket bytes ) {
+    this.documents = documents;
+    this.bytes = bytes;
+  }
+
+  /**
+   * @return the throttle configured by the given rate properties, or null if neither is set.  If
+   * THROTTLE_SHARED is true, wrappers connecting to the same HOST and PORT with the same rates share one
+   * throttle, so the rates apply to all of them together.
+   */
+  public static Throttle forProperties( MongoProperties props, MongoProp documentsPerSecond,
+                                        MongoProp bytesPerSecond, MongoUtilLogger log ) {
+    if ( props == null ) {
+      return null;
+    }
+    long documents = props.getLong( documentsPerSecond, 0, log );
+    long bytes = props.getLong( bytesPerSecond, 0, log );
+    if ( documents <= 0 && bytes <= 0 ) {
+      return null;
+    }
+    if ( !Boolean.parseBoolean( props.get( MongoProp.THROTTLE_SHARED ) ) ) {
+      return new Throttle( documents, bytes );
+    }
+    String key = props.get( MongoProp.HOST ) + "\0" + props.get( MongoProp.PORT ) + "\0" + documentsPerSecond
+      + "=" + documents + "\0" + bytesPerSecond + "=" + bytes;
+    synchronized ( shared ) {
+      Throttle throttle = shared.get( key );
+      if ( throttle == null ) {
+        throttle = new Throttle( documents, bytes );
+        shared.put( key, throttle );
+      }
+      return throttle;
+    }
+  }
+
+  /**
+   * @return whether the bytes of documents are limited, i.e. whether callers need to compute them
+   */
+  public boolean limitsBytes() {
+    return bytes != null;
+  }
+
+  /**
+   * Waits until the documents fit into the rates.
+   *
+   * @param documentCount the number of documents
+   * @param byteCount     the size of the documents; ignored unless {@link #limitsBytes()}
+   * @throws MongoDbException if interrupted while waiting
+   */
+  public void acquire( int documentCount, long byteCount ) throws MongoDbException {
+    try {
+      if ( documents != null ) {
+        documents.acquire( documentCount );
+      }
+      if ( bytes != null ) {
+        bytes.acquire( byteCount );
+      }
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new MongoDbException( "Interrupted while throttled", e );
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter.  Tokens accumulate at a fixed rate up to a burst size; a request for more tokens
+ * than are available takes them anyway, leaving the bucket in debt, and waits until the debt would have been
+ * refilled.  Later requests queue behind that debt, so callers are paced smoothly at the rate, and requests
+ * larger than the burst size are allowed without stalling forever.
+ */
+class TokenBucket {
+  interface Clock {
+    long nanoTime();
+
+    void sleep( long nanos ) throws InterruptedException;
+  }
+
+  static final Clock SYSTEM_CLOCK = new Clock() {
+    @Override public long nanoTime() {
+      return System.nanoTime();
+    }
+
+    @Override public void sleep( long nanos ) throws InterruptedException {
+      TimeUnit.NANOSECONDS.sleep( nanos );
+    }
+  };
+
+  private final double tokensPerNano;
+  private final double burst;
+  private final Clock clock;
+  private double tokens;
+  private long refilled;
+
+  /**
+   * @param ratePerSecond the number of tokens added per second
+   * @param burst         the maximum number of tokens which accumulate while the bucket is not used
+   */
+  TokenBucket( double ratePerSecond, double burst ) {
+    this( ratePerSecond, burst, SYSTEM_CLOCK );
+  }
+
+  TokenBucket( double ratePerSecond, double burst, Clock clock ) {
+    if ( ratePerSecond <= 0 || burst <= 0 ) {
+      throw new IllegalArgumentException( "rate and burst must be positive" );
+    }
+    this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos( 1 );
+    this.burst = burst;
+    this.clock = clock;
+    this.tokens = burst;
+    this.refilled = clock.nanoTime();
+  }
+
+  /**
+   * Takes the tokens, waiting until the bucket is no longer in debt.
+   *
+   * @throws InterruptedException if interrupted while waiting; the tokens are still taken
+   */
+  void acquire( long count ) throws InterruptedException {
+    long wait = reserve( count );
+    if ( wait > 0 ) {
+      clock.sleep( wait );
+    }
+  }
+
+  /**
+   * @return the nanos to wait for the tokens
+   */
+  synchronized long reserve( long count ) {
+    long now = clock.nanoTime();
+    tokens = Math.min( burst, tokens + ( now - refilled ) * tokensPerNano );
+    refilled = now;
+    tokens -= count;
+    return tokens >= 0 ? 0 : (long) Math.ceil( -tokens / tokensPerNano );
+  }
+}
@@ -0,0 +1,238 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.collection;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.AggregationOutput;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteResult;
+import com.mongodb.client.model.CountOptions;
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.AdaptiveBatchSize;
+import org.pentaho.mongo.wrapper.cursor.AdaptiveCursorWrapper;
+import org.pentaho.mongo.wrapper.cursor.BsonBytes;
+import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+
+import java.util.List;
+
+/**
+ * MongoCollectionWrapper which sizes reads and writes with {@link AdaptiveBatchSize}s.
+ * <p/>
+ * Cursors returned by find() are wrapped in {@link AdaptiveCursorWrapper}s using the read controller.
+ * insert() and bulkWrite() split their documents into round trips of the size chosen by the write controller,
+ * timing each of them.  Either controller may be null to leave that kind of operation unchanged.  Keep one
+ * wrapper, or at least one pair of controllers, per collection.
+ */
+public class AdaptiveCollectionWrapper implements MongoCollectionWrapper {
+  private final MongoCollectionWrapper delegate;
+  private final AdaptiveBatchSize reads;
+  private final AdaptiveBatchSize writes;
+
+  /**
+   * @param delegate the collection to read and write
+   * @param reads    chooses the batchSize of cursors, or null
+   * @param writes   chooses the number of documents per insert or bulk write, or null
+   */
+  public AdaptiveCollectionWrapper( MongoCollectionWrapper delegate, AdaptiveBatchSize reads,
+                                    AdaptiveBatchSize writes ) {
+    this.delegate = delegate;
+    this.reads = reads;
+    this.writes = writes;
+  }
+
+  public AdaptiveBatchSize getReadBatchSize() {
+    return reads;
+  }
+
+  public AdaptiveBatchSize getWriteBatchSize() {
+    return writes;
+  }
+
+  @Override
+  public MongoCursorWrapper find( DBObject dbObject, DBObject dbObject2 ) throws MongoDbException {
+    return wrap( delegate.find( dbObject, dbObject2 ) );
+  }
+
+  @Override
+  public AggregationOutput aggregate( DBObject firstP, DBObject[] remainder ) throws MongoDbException {
+    return delegate.aggregate( firstP, remainder );
+  }
+
+  @Override
+  public MongoCursorWrapper aggregate( List<DBObject> pipeline, AggregationOptions options )
+    throws MongoDbException {
+    // the batch size of an aggregation is fixed by its options
+    return delegate.aggregate( pipeline, options );
+  }
+
+  @Override
+  public MongoCursorWrapper find() throws MongoDbException {
+    return wrap( delegate.find() );
+  }
+
+  @Override
+  public void drop() throws MongoDbException {
+    delegate.drop();
+  }
+
+  @Override
+  public WriteResult update( DBObject updateQuery, DBObject insertUpdate, boolean upsert, boolean multi )
+    throws MongoDbException {
+    return delegate.update( updateQuery, insertUpdate, upsert, multi );
+  }
+
+  @Override
+  public WriteResult insert( List<DBObject> m_batch ) throws MongoDbException {
+    if ( writes == null ) {
+      return delegate.insert( m_batch );
+    }
+    int n = 0;
+    WriteResult result = null;
+    int start = 0;
+    do {
+      int end = Math.min( m_batch.size(), start + writes.getBatchSize() );
+      List<DBObject> chunk = m_batch.subList( start, end );
+      long bytes = chunk.isEmpty() ? 0 : (long) BsonBytes.size( chunk.get( 0 ) ) * chunk.size();
+      long started = System.nanoTime();
+      try {
+        result = delegate.insert( chunk );
+      } catch ( MongoDbException e ) {
+        writes.record( chunk.size(), bytes, System.nanoTime() - started, true );
+        throw e;
+      } catch ( MongoException e ) {
+        writes.record( chunk.size(), bytes, System.nanoTime() - started, true );
+        throw e;
+      }
+      writes.record( chunk.size(), bytes, System.nanoTime() - started, false );
+      if ( result.wasAcknowledged() ) {
+        n += result.getN();
+      }
+      start = end;
+    } while ( start < m_batch.size() );
+    return result.wasAcknowledged() ? new WriteResult( n, false, null ) : result;
+  }
+
+  @Override
+  public MongoCursorWrapper find( DBObject query ) throws MongoDbException {
+    return wrap( delegate.find( query ) );
+  }
+
+  @Override
+  public void dropIndex( BasicDBObject mongoIndex ) throws MongoDbException {
+    delegate.dropIndex( mongoIndex );
+  }
+
+  @Override
+  public void createIndex( BasicDBObject mongoIndex ) throws MongoDbException {
+    delegate.createIndex( mongoIndex );
+  }
+
+  @Override
+  public void createIndex( BasicDBObject mongoIndex, BasicDBObject options ) throws MongoDbException {
+    delegate.createIndex( mongoIndex, options );
+  }
+
+  @Override
+  public WriteResult remove() throws MongoDbException {
+    return delegate.remove();
+  }
+
+  @Override
+  public WriteResult remove( DBObject query ) throws MongoDbException {
+    return delegate.remove( query );
+  }
+
+  @Override
+  public WriteResult save( DBObject toTry ) throws MongoDbException {
+    return delegate.save( toTry );
+  }
+
+  @Override
+  public long count() throws MongoDbException {
+    return delegate.count();
+  }
+
+  @Override
+  public long count( DBObject query, CountOptions options ) throws MongoDbException {
+    return delegate.count( query, options );
+  }
+
+  @Override
+  public long estimatedCount() throws MongoDbException {
+    return delegate.estimatedCount();
+  }
+
+  @Override
+  public List distinct( String key ) throws MongoDbException {
+    return delegate.distinct( key );
+  }
+
+  @Override
+  public DistinctValues distinct( String key, DBObject query ) throws MongoDbException {
+    return delegate.distinct( key, query );
+  }
+
+  @Override
+  public List<MongoCursorWrapper> parallelScan( int numCursors, int batchSize ) throws MongoDbException {
+    return delegate.parallelScan( numCursors, batchSize );
+  }
+
+  @Override
+  public BulkWriteSummary bulkWrite( List<BulkWriteRequest> requests, boolean ordered ) throws MongoDbException {
+    return bulkWrite( requests, ordered, DefaultMongoCollectionWrapper.DEFAULT_MAX_BATCH_COUNT, 0 );
+  }
+
+  @Override
+  public BulkWriteSummary bulkWrite( List<BulkWriteRequest> requests, boolean ordered, int maxBatchCount,
+                                     int maxBatchBytes ) throws MongoDbException {
+    if ( writes == null ) {
+      return delegate.bulkWrite( requests, ordered, maxBatchCount, maxBatchBytes );
+    }
+    BulkWriteSummary summary = new BulkWriteSummary();
+    int start = 0;
+    while ( start < requests.size() ) {
+      int size = Math.min( maxBatchCount, writes.getBatchSize() );
+      int end = Math.min( requests.size(), start + size );
+      List<BulkWriteRequest> chunk = requests.subList( start, end );
+      long bytes = (long) chunk.get( 0 ).size() * chunk.size();
+      long started = System.nanoTime();
+      BulkWriteSummary result;
+      try {
+        result = delegate.bulkWrite( chunk, ordered, size, maxBatchBytes );
+      } catch ( MongoDbException e ) {
+        writes.record( chunk.size(), bytes, System.nanoTime() - started, true );
+        throw e;
+      } catch ( MongoException e ) {
+        writes.record( chunk.size(), bytes, System.nanoTime() - started, true );
+        throw e;
+      }
+      writes.record( chunk.size(), bytes, System.nanoTime() - started, !result.isSuccessful() );
+      summary.merge( start, result );
+      if ( ordered && !result.getErrors().isEmpty() ) {
+        break;
+      }
+      start = end;
+    }
+    return summary;
+  }
+
+  private MongoCursorWrapper wrap( MongoCursorWrapper cursor ) {
+    return reads == null ? cursor : new AdaptiveCursorWrapper( cursor, reads );
+  }
+}
@@ -0,0 +1,151 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.collection;
+
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteRequestBuilder;
+import com.mongodb.DBObject;
+import org.pentaho.mongo.wrapper.cursor.BsonBytes;
+
+/**
+ * One write of a {@link MongoCollectionWrapper#bulkWrite(java.util.List, boolean)}.  Created with the static
+ * factory methods, e.g. <code>BulkWriteRequest.updateOne( query, update, true )</code> for an upsert.
+ */
+public final class BulkWriteRequest {
+  public enum Type {
+    INSERT, UPDATE_ONE, UPDATE_MANY, REPLACE_ONE, DELETE_ONE, DELETE_MANY
+  }
+
+  private final Type type;
+  private final DBObject query;
+  private final DBObject document;
+  private final boolean upsert;
+
+  private BulkWriteRequest( Type type, DBObject query, DBObject document, boolean upsert ) {
+    this.type = type;
+    this.query = query;
+    this.document = document;
+    this.upsert = upsert;
+  }
+
+  public static BulkWriteRequest insert( DBObject document ) {
+    return new BulkWriteRequest( Type.INSERT, null, document, false );
+  }
+
+  public static BulkWriteRequest updateOne( DBObject query, DBObject update ) {
+    return updateOne( query, update, false );
+  }
+
+  public static BulkWriteRequest updateOne( DBObject query, DBObject update, boolean upsert ) {
+    return new BulkWriteRequest( Type.UPDATE_ONE, query, update, upsert );
+  }
+
+  public static BulkWriteRequest updateMany( DBObject query, DBObject update ) {
+    return updateMany( query, update, false );
+  }
+
+  public static BulkWriteRequest updateMany( DBObject query, DBObject update, boolean upsert ) {
+    return new BulkWriteRequest( Type.UPDATE_MANY, query, update, upsert );
+  }
+
+  public static BulkWriteRequest replaceOne( DBObject query, DBObject replacement ) {
+    return replaceOne( query, replacement, false );
+  }
+
+  public static BulkWriteRequest replaceOne( DBObject query, DBObject replacement, boolean upsert ) {
+    return new BulkWriteRequest( Type.REPLACE_ONE, query, replacement, upsert );
+  }
+
+  public static BulkWriteRequest deleteOne( DBObject query ) {
+    return new BulkWriteRequest( Type.DELETE_ONE, query, null, false );
+  }
+
+  public static BulkWriteRequest deleteMany( DBObject query ) {
+    return new BulkWriteRequest( Type.DELETE_MANY, query, null, false );
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * @return the query selecting the documents to update, replace or delete, or null for an insert
+   */
+  public DBObject getQuery() {
+    return query;
+  }
+
+  /**
+   * @return the document to insert, the update or the replacement, or null for a delete
+   */
+  public DBObject getDocument() {
+    return document;
+  }
+
+  public boolean isUpsert() {
+    return upsert;
+  }
+
+  /**
+   * @return the approximate size of the request in a write command, i.e. the size of its documents
+   */
+  int size() {
+    return ( query == null ? 0 : BsonBytes.size( query ) ) + ( document == null ? 0 : BsonBytes.size( document ) );
+  }
+
+  void addTo( BulkWriteOperation operation ) {
+    if ( type == Type.INSERT ) {
+      operation.insert( document );
+      return;
+    }
+    BulkWriteRequestBuilder find = operation.find( query );
+    switch ( type ) {
+      case UPDATE_ONE:
+        if ( upsert ) {
+          find.upsert().updateOne( document );
+        } else {
+          find.updateOne( document );
+        }
+        break;
+      case UPDATE_MANY:
+        if ( upsert ) {
+          find.upsert().update( document );
+        } else {
+          find.update( document );
+        }
+        break;
+      case REPLACE_ONE:
+        if ( upsert ) {
+          find.upsert().replaceOne( document );
+        } else {
+          find.replaceOne( document );
+        }
+        break;
+      case DELETE_ONE:
+        find.removeOne();
+        break;
+      default:
+        find.remove();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return type + ( upsert ? " (upsert)" : "" ) + ( query == null ? "" : " " + query )
+      + ( document == null ? "" : " " + document );
+  }
+}
@@ -0,0 +1,233 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.collection;
+
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.BulkWriteUpsert;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcernError;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The combined result of the batches run by {@link MongoCollectionWrapper#bulkWrite(List, boolean)}.
+ * <p/>
+ * Indexes, of upserts and errors, refer to the position of the request in the list passed to bulkWrite rather
+ * than within its batch.  The counts are only available if the writes were acknowledged.
+ */
+public class BulkWriteSummary {
+  private final List<BulkWriteResult> batchResults = new ArrayList<BulkWriteResult>();
+  private final List<BulkWriteUpsert> upserts = new ArrayList<BulkWriteUpsert>();
+  private final List<WriteError> errors = new ArrayList<WriteError>();
+  private final List<WriteConcernError> writeConcernErrors = new ArrayList<WriteConcernError>();
+  private boolean acknowledged = true;
+  private boolean modifiedCountAvailable = true;
+  private int sentCount;
+  private int insertedCount;
+  private int matchedCount;
+  private int modifiedCount;
+  private int removedCount;
+
+  /**
+   * An error writing one of the requests.
+   */
+  public static class WriteError {
+    private final int index;
+    private final BulkWriteRequest request;
+    private final BulkWriteError error;
+
+    WriteError( int index, BulkWriteRequest request, BulkWriteError error ) {
+      this.index = index;
+      this.request = request;
+      this.error = error;
+    }
+
+    /**
+     * @return the position of the request in the list passed to bulkWrite
+     */
+    public int getIndex() {
+      return index;
+    }
+
+    public BulkWriteRequest getRequest() {
+      return request;
+    }
+
+    public int getCode() {
+      return error.getCode();
+    }
+
+    public String getMessage() {
+      return error.getMessage();
+    }
+
+    public DBObject getDetails() {
+      return error.getDetails();
+    }
+
+    @Override
+    public String toString() {
+      return "request " + index + ": " + error.getCode() + " " + error.getMessage();
+    }
+  }
+
+  /**
+   * @return the result of each batch, in the order they were run
+   */
+  public List<BulkWriteResult> getBatchResults() {
+    return Collections.unmodifiableList( batchResults );
+  }
+
+  /**
+   * @return the number of requests sent to the server.  Ordered writes stop at the first failing batch, so
+   * fewer requests than were passed to bulkWrite may have been sent, and those after the first error in the
+   * failing batch were not run.
+   */
+  public int getSentCount() {
+    return sentCount;
+  }
+
+  public boolean isAcknowledged() {
+    return acknowledged;
+  }
+
+  /**
+   * @return true if there were neither write errors nor write concern errors
+   */
+  public boolean isSuccessful() {
+    return errors.isEmpty() && writeConcernErrors.isEmpty();
+  }
+
+  public int getInsertedCount() {
+    checkAcknowledged();
+    return insertedCount;
+  }
+
+  public int getMatchedCount() {
+    checkAcknowledged();
+    return matchedCount;
+  }
+
+  /**
+   * @return false if a batch was run against a server which does not report the number of modified documents
+   */
+  public boolean isModifiedCountAvailable() {
+    checkAcknowledged();
+    return modifiedCountAvailable;
+  }
+
+  public int getModifiedCount() {
+    if ( !isModifiedCountAvailable() ) {
+      throw new UnsupportedOperationException( "The modified count is not available" );
+    }
+    return modifiedCount;
+  }
+
+  public int getRemovedCount() {
+    checkAcknowledged();
+    return removedCount;
+  }
+
+  public List<BulkWriteUpsert> getUpserts() {
+    checkAcknowledged();
+    return Collections.unmodifiableList( upserts );
+  }
+
+  /**
+   * @return the errors of individual requests, in the order of their batches
+   */
+  public List<WriteError> getErrors() {
+    return Collections.unmodifiableList( errors );
+  }
+
+  /**
+   * @return the write concern errors, at most one per batch
+   */
+  public List<WriteConcernError> getWriteConcernErrors() {
+    return Collections.unmodifiableList( writeConcernErrors );
+  }
+
+  void addBatch( int offset, int size, BulkWriteResult result ) {
+    batchResults.add( result );
+    sentCount += size;
+    if ( !result.isAcknowledged() ) {
+      acknowledged = false;
+      return;
+    }
+    insertedCount += result.getInsertedCount();
+    matchedCount += result.getMatchedCount();
+    removedCount += result.getRemovedCount();
+    if ( result.isModifiedCountAvailable() ) {
+      modifiedCount += result.getModifiedCount();
+    } else {
+      modifiedCountAvailable = false;
+    }
+    for ( BulkWriteUpsert upsert : result.getUpserts() ) {
+      upserts.add( new BulkWriteUpsert( offset + upsert.getIndex(), upsert.getId() ) );
+    }
+  }
+
+  void addErrors( int offset, List<BulkWriteRequest> requests, List<BulkWriteError> batchErrors,
+                  WriteConcernError writeConcernError ) {
+    for ( BulkWriteError error : batchErrors ) {
+      int index = offset + error.getIndex();
+      errors.add( new WriteError( index, requests.get( index ), error ) );
+    }
+    if ( writeConcernError != null ) {
+      writeConcernErrors.add( writeConcernError );
+    }
+  }
+
+  /**
+   * Adds the results of a bulkWrite of the requests starting at offset.
+   */
+  void merge( int offset, BulkWriteSummary other ) {
+    batchResults.addAll( other.batchResults );
+    sentCount += other.sentCount;
+    acknowledged &= other.acknowledged;
+    modifiedCountAvailable &= other.modifiedCountAvailable;
+    insertedCount += other.insertedCount;
+    matchedCount += other.matchedCount;
+    modifiedCount += other.modifiedCount;
+    removedCount += other.removedCount;
+    for ( BulkWriteUpsert upsert : other.upserts ) {
+      upserts.add( new BulkWriteUpsert( offset + upsert.getIndex(), upsert.getId() ) );
+    }
+    for ( WriteError error : other.errors ) {
+      errors.add( new WriteError( offset + error.index, error.request, error.error ) );
+    }
+    writeConcernErrors.addAll( other.writeConcernErrors );
+  }
+
+  private void checkAcknowledged() {
+    if ( !acknowledged ) {
+      throw new UnsupportedOperationException( "Unacknowledged writes do not report counts" );
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "BulkWriteSummary{batches=" + batchResults.size() + ", sent=" + sentCount
+      + ( acknowledged ? ", inserted=" + insertedCount + ", matched=" + matchedCount + ", modified="
+      + ( modifiedCountAvailable ? String.valueOf( modifiedCount ) : "n/a" ) + ", removed=" + removedCount
+      + ", upserts=" + upserts.size() : ", unacknowledged" ) + ", errors=" + errors + ", writeConcernErrors="
+      + writeConcernErrors + "}";
+  }
+}
@@ -0,0 +1,34 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper.collection;
+
+/**
+ * Notified by {@link DefaultMongoCollectionWrapper} of changes to collection metadata made through it, e.g. so
+ * that cached listings can be invalidated.
+ */
+public interface CollectionChangeListener {
+  /**
+   * The collection was dropped.
+   */
+  void collectionDropped( String db, String collection );
+
+  /**
+   * An index of the collection was created or dropped.
+   */
+  void indexesChanged( String db, String collection );
+}
@@ -0,0 +1,77 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.collection;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the estimated document counts of collections, by namespace, for a TTL so that repeated
+ * {@link MongoCollectionWrapper#estimatedCount()} calls, e.g. from progress reporting, do not each read the
+ * collection statistics.  One cache is shared by the collections of a client.
+ */
+public class CountCache {
+  private final long ttlNanos;
+  private final Map<String, Entry> counts = new HashMap<String, Entry>();
+
+  /**
+   * @param ttl how long (millis) a count is kept
+   */
+  public CountCache( long ttl ) {
+    if ( ttl <= 0 ) {
+      throw new IllegalArgumentException( "ttl must be positive" );
+    }
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos( ttl );
+  }
+
+  /**
+   * @return the count cached for the namespace, or null if there is none or it has expired
+   */
+  public synchronized Long get( String namespace ) {
+    Entry entry = counts.get( namespace );
+    if ( entry == null ) {
+      return null;
+    }
+    if ( System.nanoTime() - entry.loadedAt >= ttlNanos ) {
+      counts.remove( namespace );
+      return null;
+    }
+    return entry.count;
+  }
+
+  public synchronized void put( String namespace, long count ) {
+    counts.put( namespace, new Entry( count, System.nanoTime() ) );
+  }
+
+  /**
+   * Discards the count cached for the namespace, e.g. after the collection was dropped.
+   */
+  public synchronized void invalidate( String namespace ) {
+    counts.remove( namespace );
+  }
+
+  private static class Entry {
+    private final long count;
+    private final long loadedAt;
+
+    Entry( long count, long loadedAt ) {
+      this.count = count;
+      this.loadedAt = loadedAt;
+    }
+  }
+}
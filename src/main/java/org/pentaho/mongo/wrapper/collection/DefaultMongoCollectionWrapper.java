@@ -17,24 +17,71 @@
 
 package org.pentaho.mongo.wrapper.collection;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.cursor.CommandCursorWrapper;
 import org.pentaho.mongo.wrapper.cursor.DefaultCursorWrapper;
 import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
 
+import com.mongodb.AggregationOptions;
 import com.mongodb.AggregationOutput;
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.CommandResult;
+import com.mongodb.Cursor;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoCommandException;
+import com.mongodb.ParallelScanOptions;
 import com.mongodb.WriteResult;
+import com.mongodb.client.model.CountOptions;
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
 
 public class DefaultMongoCollectionWrapper implements MongoCollectionWrapper {
+  /**
+   * The server's default maxWriteBatchSize.
+   */
+  public static final int DEFAULT_MAX_BATCH_COUNT = 1000;
+
+  /**
+   * The estimated collection size up to which distinct(key, query) tries the distinct command.
+   */
+  public static final long DISTINCT_COMMAND_MAX_DOCUMENTS = 100000;
+
+  /**
+   * Server error codes for a distinct reply over the maximum BSON document size.
+   */
+  private static final int DISTINCT_TOO_BIG = 17217;
+  private static final int BSON_OBJECT_TOO_LARGE = 10334;
+
   private final DBCollection collection;
+  private final PipelineOptimizer pipelineOptimizer;
+  private final CountCache countCache;
+  private final CollectionChangeListener listener;
 
   public DefaultMongoCollectionWrapper( DBCollection collection ) {
+    this( collection, null, null, null );
+  }
+
+  /**
+   * @param pipelineOptimizer rewrites the pipelines passed to aggregate, or null to send them as given
+   * @param countCache        keeps the results of estimatedCount, or null to read them every time
+   * @param listener          notified when the collection or its indexes are dropped or created, may be null
+   */
+  public DefaultMongoCollectionWrapper( DBCollection collection, PipelineOptimizer pipelineOptimizer,
+                                        CountCache countCache, CollectionChangeListener listener ) {
     this.collection = collection;
+    this.pipelineOptimizer = pipelineOptimizer;
+    this.countCache = countCache;
+    this.listener = listener;
   }
 
   @Override
@@ -44,7 +91,40 @@ public class DefaultMongoCollectionWrapper implements MongoCollectionWrapper {
 
   @Override
   public AggregationOutput aggregate( DBObject firstP, DBObject[] remainder ) throws MongoDbException {
-    return collection.aggregate( firstP, remainder );
+    if ( pipelineOptimizer == null ) {
+      return collection.aggregate( firstP, remainder );
+    }
+    List<DBObject> pipeline = new ArrayList<DBObject>( remainder.length + 1 );
+    pipeline.add( firstP );
+    pipeline.addAll( Arrays.asList( remainder ) );
+    return collection.aggregate( optimize( pipeline ) );
+  }
+
+  private List<DBObject> optimize( List<DBObject> pipeline ) {
+    return pipelineOptimizer == null ? pipeline : pipelineOptimizer.optimize( pipeline );
+  }
+
+  @Override
+  public MongoCursorWrapper aggregate( List<DBObject> pipeline, AggregationOptions options )
+    throws MongoDbException {
+    return wrap( collection.aggregate( optimize( pipeline ), streaming( options ) ) );
+  }
+
+  /**
+   * @return options returning the results through a server cursor, rather than inline in a single 16MB
+   * reply, with the other settings of options
+   */
+  static AggregationOptions streaming( AggregationOptions options ) {
+    if ( options.getOutputMode() == AggregationOptions.OutputMode.CURSOR ) {
+      return options;
+    }
+    return AggregationOptions.builder()
+      .outputMode( AggregationOptions.OutputMode.CURSOR )
+      .allowDiskUse( options.getAllowDiskUse() )
+      .batchSize( options.getBatchSize() )
+      .maxTime( options.getMaxTime( TimeUnit.MILLISECONDS ), TimeUnit.MILLISECONDS )
+      .bypassDocumentValidation( options.getBypassDocumentValidation() )
+      .build();
   }
 
   @Override
@@ -55,6 +135,12 @@ public class DefaultMongoCollectionWrapper implements MongoCollectionWrapper {
   @Override
   public void drop() throws MongoDbException {
     collection.drop();
+    if ( countCache != null ) {
+      countCache.invalidate( collection.getFullName() );
+    }
+    if ( listener != null ) {
+      listener.collectionDropped( collection.getDB().getName(), collection.getName() );
+    }
   }
 
   @Override
@@ -76,16 +162,25 @@ public class DefaultMongoCollectionWrapper implements MongoCollectionWrapper {
   @Override
   public void dropIndex( BasicDBObject mongoIndex ) throws MongoDbException {
     collection.dropIndex( mongoIndex );
+    indexesChanged();
   }
 
   @Override
   public void createIndex( BasicDBObject mongoIndex ) throws MongoDbException {
     collection.createIndex( mongoIndex );
+    indexesChanged();
   }
 
   @Override
   public void createIndex( BasicDBObject mongoIndex, BasicDBObject options ) throws MongoDbException {
     collection.createIndex( mongoIndex, options );
+    indexesChanged();
+  }
+
+  private void indexesChanged() {
+    if ( listener != null ) {
+      listener.indexesChanged( collection.getDB().getName(), collection.getName() );
+    }
   }
 
   @Override
@@ -107,11 +202,155 @@ public class DefaultMongoCollectionWrapper implements MongoCollectionWrapper {
     return collection.count();
   }
 
+  @Override public long count( DBObject query, CountOptions options ) throws MongoDbException {
+    BasicDBObject command = new BasicDBObject( "count", collection.getName() )
+      .append( "query", query == null ? new BasicDBObject() : query );
+    if ( options != null ) {
+      if ( options.getLimit() > 0 ) {
+        command.append( "limit", options.getLimit() );
+      }
+      if ( options.getSkip() > 0 ) {
+        command.append( "skip", options.getSkip() );
+      }
+      if ( options.getHint() != null ) {
+        command.append( "hint", toDBObject( options.getHint() ) );
+      } else if ( options.getHintString() != null ) {
+        command.append( "hint", options.getHintString() );
+      }
+      if ( options.getMaxTime( TimeUnit.MILLISECONDS ) > 0 ) {
+        command.append( "maxTimeMS", options.getMaxTime( TimeUnit.MILLISECONDS ) );
+      }
+    }
+    CommandResult result = collection.getDB().command( command, collection.getReadPreference() );
+    result.throwOnError();
+    return ( (Number) result.get( "n" ) ).longValue();
+  }
+
+  private static DBObject toDBObject( Bson bson ) {
+    if ( bson instanceof DBObject ) {
+      return (DBObject) bson;
+    }
+    return BasicDBObject.parse(
+      bson.toBsonDocument( BsonDocument.class, MongoClient.getDefaultCodecRegistry() ).toJson() );
+  }
+
+  @Override public long estimatedCount() throws MongoDbException {
+    String namespace = collection.getFullName();
+    Long cached = countCache == null ? null : countCache.get( namespace );
+    if ( cached != null ) {
+      return cached;
+    }
+    CommandResult stats = collection.getStats();
+    Object count = stats.get( "count" );
+    // e.g. views have no statistics, but counting all documents also only reads metadata
+    long estimate = stats.ok() && count instanceof Number ? ( (Number) count ).longValue() : collection.count();
+    if ( countCache != null ) {
+      countCache.put( namespace, estimate );
+    }
+    return estimate;
+  }
+
   @Override public List distinct( String key ) throws MongoDbException {
     return collection.distinct( key );
   }
 
+  @Override public DistinctValues distinct( String key, DBObject query ) throws MongoDbException {
+    if ( estimatedCount() <= DISTINCT_COMMAND_MAX_DOCUMENTS ) {
+      try {
+        return new DistinctValues( collection.distinct( key, query == null ? new BasicDBObject() : query ) );
+      } catch ( MongoCommandException e ) {
+        if ( e.getErrorCode() != DISTINCT_TOO_BIG && e.getErrorCode() != BSON_OBJECT_TOO_LARGE ) {
+          throw e;
+        }
+      }
+    }
+    return new DistinctValues( aggregate( distinctPipeline( key, query ),
+      AggregationOptions.builder().outputMode( AggregationOptions.OutputMode.CURSOR ).allowDiskUse( true )
+        .build() ) );
+  }
+
+  /**
+   * @return a pipeline returning a document per distinct value of the key, with the value as its _id
+   */
+  static List<DBObject> distinctPipeline( String key, DBObject query ) {
+    // the distinct command ignores documents without the key
+    DBObject exists = new BasicDBObject( key, new BasicDBObject( "$exists", true ) );
+    DBObject match = query == null || query.keySet().isEmpty() ? exists
+      : new BasicDBObject( "$and", Arrays.asList( query, exists ) );
+    List<DBObject> pipeline = new ArrayList<DBObject>();
+    pipeline.add( new BasicDBObject( "$match", match ) );
+    // like the distinct command, look into arrays along the path, e.g. a: [ { b: 1 }, { b: 2 } ] for a.b
+    for ( int dot = key.indexOf( '.' ); dot >= 0; dot = key.indexOf( '.', dot + 1 ) ) {
+      pipeline.add( new BasicDBObject( "$unwind", "$" + key.substring( 0, dot ) ) );
+    }
+    // keep null values, but not documents whose array value was empty, which are left without the key
+    pipeline.add( new BasicDBObject( "$unwind",
+      new BasicDBObject( "path", "$" + key ).append( "preserveNullAndEmptyArrays", true ) ) );
+    pipeline.add( new BasicDBObject( "$match", exists ) );
+    pipeline.add( new BasicDBObject( "$group", new BasicDBObject( "_id", "$" + key ) ) );
+    return pipeline;
+  }
+
+  @Override
+  public List<MongoCursorWrapper> parallelScan( int numCursors, int batchSize ) throws MongoDbException {
+    List<Cursor> cursors = collection.parallelScan(
+      ParallelScanOptions.builder().numCursors( numCursors ).batchSize( batchSize ).build() );
+    List<MongoCursorWrapper> wrapped = new ArrayList<MongoCursorWrapper>( cursors.size() );
+    for ( Cursor cursor : cursors ) {
+      wrapped.add( wrap( cursor ) );
+    }
+    return wrapped;
+  }
+
+  @Override
+  public BulkWriteSummary bulkWrite( List<BulkWriteRequest> requests, boolean ordered ) throws MongoDbException {
+    // the driver splits write commands over the server's message size itself, without encoding twice
+    return bulkWrite( requests, ordered, DEFAULT_MAX_BATCH_COUNT, 0 );
+  }
+
+  @Override
+  public BulkWriteSummary bulkWrite( List<BulkWriteRequest> requests, boolean ordered, int maxBatchCount,
+                                     int maxBatchBytes ) throws MongoDbException {
+    if ( maxBatchCount <= 0 ) {
+      throw new IllegalArgumentException( "maxBatchCount must be positive" );
+    }
+    BulkWriteSummary summary = new BulkWriteSummary();
+    int start = 0;
+    while ( start < requests.size() ) {
+      BulkWriteOperation operation = ordered ? collection.initializeOrderedBulkOperation()
+        : collection.initializeUnorderedBulkOperation();
+      int end = start;
+      long bytes = 0;
+      while ( end < requests.size() && end - start < maxBatchCount ) {
+        BulkWriteRequest request = requests.get( end );
+        if ( maxBatchBytes > 0 ) {
+          bytes += request.size();
+          if ( bytes > maxBatchBytes && end > start ) {
+            break;
+          }
+        }
+        request.addTo( operation );
+        end++;
+      }
+      try {
+        summary.addBatch( start, end - start, operation.execute() );
+      } catch ( BulkWriteException e ) {
+        summary.addBatch( start, end - start, e.getWriteResult() );
+        summary.addErrors( start, requests, e.getWriteErrors(), e.getWriteConcernError() );
+        if ( ordered && !e.getWriteErrors().isEmpty() ) {
+          break;
+        }
+      }
+      start = end;
+    }
+    return summary;
+  }
+
   protected MongoCursorWrapper wrap( DBCursor cursor ) {
     return new DefaultCursorWrapper( cursor );
   }
+
+  protected MongoCursorWrapper wrap( Cursor cursor ) {
+    return new CommandCursorWrapper( cursor );
+  }
 }
@@ -0,0 +1,87 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.collection;
+
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The distinct values of a key, see {@link MongoCollectionWrapper#distinct(String, com.mongodb.DBObject)}.
+ * Values are either read from the reply of the distinct command or streamed from the cursor of an
+ * aggregation grouping on the key, in which case they must be closed.
+ */
+public class DistinctValues {
+  private final Iterator<?> values;
+  private final MongoCursorWrapper cursor;
+
+  /**
+   * @param values the values returned by the distinct command
+   */
+  public DistinctValues( List<?> values ) {
+    this.values = values.iterator();
+    this.cursor = null;
+  }
+
+  /**
+   * @param cursor returns a document per value, with the value as its _id
+   */
+  public DistinctValues( MongoCursorWrapper cursor ) {
+    this.values = null;
+    this.cursor = cursor;
+  }
+
+  /**
+   * @return whether the values are streamed from a cursor rather than held in memory
+   */
+  public boolean isStreaming() {
+    return cursor != null;
+  }
+
+  /**
+   * @return the cursor the values are streamed from, or null if they are held in memory
+   */
+  MongoCursorWrapper getCursor() {
+    return cursor;
+  }
+
+  public boolean hasNext() throws MongoDbException {
+    return cursor == null ? values.hasNext() : cursor.hasNext();
+  }
+
+  /**
+   * @throws NoSuchElementException if there are no more values
+   */
+  public Object next() throws MongoDbException {
+    if ( cursor == null ) {
+      return values.next();
+    }
+    if ( !cursor.hasNext() ) {
+      throw new NoSuchElementException();
+    }
+    return cursor.next().get( "_id" );
+  }
+
+  public void close() throws MongoDbException {
+    if ( cursor != null ) {
+      cursor.close();
+    }
+  }
+}
@@ -0,0 +1,249 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper.collection;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.AggregationOutput;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.WriteResult;
+import com.mongodb.client.model.CountOptions;
+import org.pentaho.mongo.AuthContext;
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.KerberosDelegate;
+import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+
+import java.security.PrivilegedExceptionAction;
+import java.util.List;
+
+/**
+ * MongoCollectionWrapper which runs every call against the wrapped collection within an AuthContext.
+ */
+public class KerberosDelegatingCollectionWrapper extends KerberosDelegate<MongoCollectionWrapper>
+  implements MongoCollectionWrapper {
+
+  public KerberosDelegatingCollectionWrapper( AuthContext authContext, MongoCollectionWrapper delegate ) {
+    super( authContext, delegate );
+  }
+
+  @Override
+  public MongoCursorWrapper find( final DBObject dbObject, final DBObject dbObject2 ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper run() throws MongoDbException {
+        return delegate.find( dbObject, dbObject2 );
+      }
+    } );
+  }
+
+  @Override
+  public AggregationOutput aggregate( final DBObject firstP, final DBObject[] remainder ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<AggregationOutput>() {
+      @Override public AggregationOutput run() throws MongoDbException {
+        return delegate.aggregate( firstP, remainder );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper aggregate( final List<DBObject> pipeline, final AggregationOptions options )
+    throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper run() throws MongoDbException {
+        return delegate.aggregate( pipeline, options );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper find() throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper run() throws MongoDbException {
+        return delegate.find();
+      }
+    } );
+  }
+
+  @Override
+  public void drop() throws MongoDbException {
+    doAs( new PrivilegedExceptionAction<Void>() {
+      @Override public Void run() throws MongoDbException {
+        delegate.drop();
+        return null;
+      }
+    } );
+  }
+
+  @Override
+  public WriteResult update( final DBObject updateQuery, final DBObject insertUpdate, final boolean upsert,
+                             final boolean multi ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<WriteResult>() {
+      @Override public WriteResult run() throws MongoDbException {
+        return delegate.update( updateQuery, insertUpdate, upsert, multi );
+      }
+    } );
+  }
+
+  @Override
+  public WriteResult insert( final List<DBObject> m_batch ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<WriteResult>() {
+      @Override public WriteResult run() throws MongoDbException {
+        return delegate.insert( m_batch );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper find( final DBObject query ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper run() throws MongoDbException {
+        return delegate.find( query );
+      }
+    } );
+  }
+
+  @Override
+  public void dropIndex( final BasicDBObject mongoIndex ) throws MongoDbException {
+    doAs( new PrivilegedExceptionAction<Void>() {
+      @Override public Void run() throws MongoDbException {
+        delegate.dropIndex( mongoIndex );
+        return null;
+      }
+    } );
+  }
+
+  @Override
+  public void createIndex( final BasicDBObject mongoIndex ) throws MongoDbException {
+    doAs( new PrivilegedExceptionAction<Void>() {
+      @Override public Void run() throws MongoDbException {
+        delegate.createIndex( mongoIndex );
+        return null;
+      }
+    } );
+  }
+
+  @Override
+  public void createIndex( final BasicDBObject mongoIndex, final BasicDBObject options ) throws MongoDbException {
+    doAs( new PrivilegedExceptionAction<Void>() {
+      @Override public Void run() throws MongoDbException {
+        delegate.createIndex( mongoIndex, options );
+        return null;
+      }
+    } );
+  }
+
+  @Override
+  public WriteResult remove() throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<WriteResult>() {
+      @Override public WriteResult run() throws MongoDbException {
+        return delegate.remove();
+      }
+    } );
+  }
+
+  @Override
+  public WriteResult remove( final DBObject query ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<WriteResult>() {
+      @Override public WriteResult run() throws MongoDbException {
+        return delegate.remove( query );
+      }
+    } );
+  }
+
+  @Override
+  public WriteResult save( final DBObject toTry ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<WriteResult>() {
+      @Override public WriteResult run() throws MongoDbException {
+        return delegate.save( toTry );
+      }
+    } );
+  }
+
+  @Override
+  public long count() throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<Long>() {
+      @Override public Long run() throws MongoDbException {
+        return delegate.count();
+      }
+    } );
+  }
+
+  @Override
+  public long count( final DBObject query, final CountOptions options ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<Long>() {
+      @Override public Long run() throws MongoDbException {
+        return delegate.count( query, options );
+      }
+    } );
+  }
+
+  @Override
+  public long estimatedCount() throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<Long>() {
+      @Override public Long run() throws MongoDbException {
+        return delegate.estimatedCount();
+      }
+    } );
+  }
+
+  @Override
+  public List distinct( final String key ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<List>() {
+      @Override public List run() throws MongoDbException {
+        return delegate.distinct( key );
+      }
+    } );
+  }
+  @Override
+  public DistinctValues distinct( final String key, final DBObject query ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<DistinctValues>() {
+      @Override public DistinctValues run() throws MongoDbException {
+        return delegate.distinct( key, query );
+      }
+    } );
+  }
+
+
+  @Override
+  public List<MongoCursorWrapper> parallelScan( final int numCursors, final int batchSize ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<List<MongoCursorWrapper>>() {
+      @Override public List<MongoCursorWrapper> run() throws MongoDbException {
+        return delegate.parallelScan( numCursors, batchSize );
+      }
+    } );
+  }
+
+  @Override
+  public BulkWriteSummary bulkWrite( final List<BulkWriteRequest> requests, final boolean ordered )
+    throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<BulkWriteSummary>() {
+      @Override public BulkWriteSummary run() throws MongoDbException {
+        return delegate.bulkWrite( requests, ordered );
+      }
+    } );
+  }
+
+  @Override
+  public BulkWriteSummary bulkWrite( final List<BulkWriteRequest> requests, final boolean ordered,
+                                     final int maxBatchCount, final int maxBatchBytes ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<BulkWriteSummary>() {
+      @Override public BulkWriteSummary run() throws MongoDbException {
+        return delegate.bulkWrite( requests, ordered, maxBatchCount, maxBatchBytes );
+      }
+    } );
+  }
+}
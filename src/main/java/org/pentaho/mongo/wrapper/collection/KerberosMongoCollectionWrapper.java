@@ -18,24 +18,54 @@
 package org.pentaho.mongo.wrapper.collection;
 
 import org.pentaho.mongo.AuthContext;
-import org.pentaho.mongo.wrapper.KerberosInvocationHandler;
+import org.pentaho.mongo.wrapper.cursor.CommandCursorWrapper;
+import org.pentaho.mongo.wrapper.cursor.KerberosDelegatingCursorWrapper;
 import org.pentaho.mongo.wrapper.cursor.KerberosMongoCursorWrapper;
 import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
 
+import com.mongodb.Cursor;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 
 public class KerberosMongoCollectionWrapper extends DefaultMongoCollectionWrapper {
   private final AuthContext authContext;
+  private final int cursorPrefetch;
 
   public KerberosMongoCollectionWrapper( DBCollection collection, AuthContext authContext ) {
-    super( collection );
+    this( collection, authContext, 0 );
+  }
+
+  /**
+   * @param cursorPrefetch the number of documents cursors read ahead per privileged call, see
+   *                       {@link KerberosDelegatingCursorWrapper}
+   */
+  public KerberosMongoCollectionWrapper( DBCollection collection, AuthContext authContext, int cursorPrefetch ) {
+    this( collection, authContext, cursorPrefetch, null, null, null );
+  }
+
+  /**
+   * @param cursorPrefetch    the number of documents cursors read ahead per privileged call, see
+   *                          {@link KerberosDelegatingCursorWrapper}
+   * @param pipelineOptimizer rewrites the pipelines passed to aggregate, or null to send them as given
+   * @param countCache        keeps the results of estimatedCount, or null to read them every time
+   * @param listener          notified when the collection or its indexes are dropped or created, may be null
+   */
+  public KerberosMongoCollectionWrapper( DBCollection collection, AuthContext authContext, int cursorPrefetch,
+                                         PipelineOptimizer pipelineOptimizer, CountCache countCache,
+                                         CollectionChangeListener listener ) {
+    super( collection, pipelineOptimizer, countCache, listener );
     this.authContext = authContext;
+    this.cursorPrefetch = cursorPrefetch;
   }
 
   @Override
   protected MongoCursorWrapper wrap( DBCursor cursor ) {
-    return KerberosInvocationHandler.wrap( MongoCursorWrapper.class, authContext, new KerberosMongoCursorWrapper(
-        cursor, authContext ) );
+    return new KerberosDelegatingCursorWrapper( authContext, new KerberosMongoCursorWrapper(
+        cursor, authContext, cursorPrefetch ), cursorPrefetch );
+  }
+
+  @Override
+  protected MongoCursorWrapper wrap( Cursor cursor ) {
+    return new KerberosDelegatingCursorWrapper( authContext, new CommandCursorWrapper( cursor ), cursorPrefetch );
   }
 }
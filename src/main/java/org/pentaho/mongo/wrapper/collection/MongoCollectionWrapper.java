@@ -22,10 +22,12 @@ import java.util.List;
 import org.pentaho.mongo.MongoDbException;
 import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
 
+import com.mongodb.AggregationOptions;
 import com.mongodb.AggregationOutput;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.WriteResult;
+import com.mongodb.client.model.CountOptions;
 
 /**
  * Defines the wrapper interface for all interactions with a MongoCollection via
@@ -39,6 +41,19 @@ public interface MongoCollectionWrapper {
 
   AggregationOutput aggregate( DBObject firstP, DBObject[] remainder ) throws MongoDbException;
 
+  /**
+   * Runs the aggregation pipeline, returning its results through a server cursor.  The results are streamed
+   * in batches of the options' batchSize and are not limited to 16MB, whatever the options' outputMode;
+   * allowDiskUse and maxTime are passed to the server as well.
+   *
+   * @param pipeline the pipeline stages
+   * @param options  the aggregation options
+   * @return a cursor over the results, which must be closed.  Its cursor options are fixed by the
+   * AggregationOptions, so methods such as batchSize() are not supported.
+   * @throws MongoDbException
+   */
+  MongoCursorWrapper aggregate( List<DBObject> pipeline, AggregationOptions options ) throws MongoDbException;
+
   MongoCursorWrapper find() throws MongoDbException;
 
   void drop() throws MongoDbException;
@@ -64,5 +79,79 @@ public interface MongoCollectionWrapper {
 
   long count() throws MongoDbException;
 
+  /**
+   * Counts the documents matching the query with the count command.
+   *
+   * @param query   the query, or null for all documents
+   * @param options the limit, skip, hint and maxTime of the count, or null for none
+   * @return the number of matching documents
+   * @throws MongoDbException
+   */
+  long count( DBObject query, CountOptions options ) throws MongoDbException;
+
+  /**
+   * Estimates the number of documents in the collection from its collStats metadata, without scanning
+   * it, so it returns in constant time.  The count may be inaccurate, e.g. after an unclean shutdown or
+   * with orphaned documents on a sharded cluster, and may be cached by the client for ESTIMATED_COUNT_TTL.
+   *
+   * @return the estimated number of documents
+   * @throws MongoDbException
+   */
+  long estimatedCount() throws MongoDbException;
+
   List distinct( String key ) throws MongoDbException;
+
+  /**
+   * Returns the distinct values of the key among the documents matching the query.  For collections of
+   * up to {@link DefaultMongoCollectionWrapper#DISTINCT_COMMAND_MAX_DOCUMENTS} documents the distinct
+   * command is used; for larger collections, or if the command's reply would exceed 16MB, the values are
+   * streamed from an aggregation grouping on the key instead, which unwinds the arrays along the key's path so
+   * that it returns the same values as the distinct command: the elements of array values are returned
+   * separately, and the values of the documents in an array a are returned for key a.b.
+   *
+   * @param key   the key, e.g. a.b
+   * @param query the query, or null for all documents
+   * @return the values, which must be closed
+   * @throws MongoDbException
+   */
+  DistinctValues distinct( String key, DBObject query ) throws MongoDbException;
+
+  /**
+   * Runs parallelCollectionScan, which returns up to numCursors cursors that together cover the
+   * collection.  The server may return fewer cursors than requested, and the command is not supported
+   * by sharded collections.
+   *
+   * @param numCursors the maximum number of cursors to return
+   * @param batchSize  the batch size of the cursors, or 0 for the server default
+   * @return the cursors, which can be read concurrently and must each be closed
+   * @throws MongoDbException
+   */
+  List<MongoCursorWrapper> parallelScan( int numCursors, int batchSize ) throws MongoDbException;
+
+  /**
+   * Runs the requests as bulk write operations, split into batches of at most
+   * {@link DefaultMongoCollectionWrapper#DEFAULT_MAX_BATCH_COUNT} requests.  The documents are not sized; the
+   * driver splits write commands larger than the server accepts.
+   *
+   * @see #bulkWrite(List, boolean, int, int)
+   */
+  BulkWriteSummary bulkWrite( List<BulkWriteRequest> requests, boolean ordered ) throws MongoDbException;
+
+  /**
+   * Runs the requests as bulk write operations, one per batch.  Write errors of individual requests are
+   * collected in the returned summary rather than thrown.  Ordered writes stop at the first batch with a
+   * write error, as a single ordered bulk write would; unordered writes run every batch.
+   *
+   * @param requests      the writes to run
+   * @param ordered       whether to run the requests in order, stopping at the first error
+   * @param maxBatchCount the maximum number of requests per batch
+   * @param maxBatchBytes the approximate maximum size in bytes of the documents of a batch, or 0 for no limit.
+   *                      Sizing requires encoding each document which is not lazily decoded, so with no limit
+   *                      documents are only encoded once by the driver.  A single larger request is sent
+   *                      as a batch of its own.
+   * @return the combined results of the batches
+   * @throws MongoDbException
+   */
+  BulkWriteSummary bulkWrite( List<BulkWriteRequest> requests, boolean ordered, int maxBatchCount,
+                              int maxBatchBytes ) throws MongoDbException;
 }
@@ -0,0 +1,442 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.collection;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.pentaho.mongo.MongoProp;
+import org.pentaho.mongo.MongoProperties;
+import org.pentaho.mongo.MongoUtilLogger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Rewrites aggregation pipelines so that less data flows through the server pipeline, without changing
+ * their results:
+ * <ul>
+ * <li>$match stages are moved ahead of preceding $sort, $project, $addFields, $unwind and $lookup
+ * stages that do not change the fields they filter on</li>
+ * <li>adjacent $match stages are merged, as are adjacent $project stages that only include or only
+ * exclude fields</li>
+ * <li>a $project of the fields referenced by the first $group is inserted ahead of it</li>
+ * </ul>
+ * Stages that are not understood are left in place, as are stages around them where a rewrite could depend
+ * on them.  The stages of the given pipeline are not modified.
+ */
+public class PipelineOptimizer {
+  private static final String MATCH = "$match";
+  private static final String PROJECT = "$project";
+  private static final String GROUP = "$group";
+
+  private final MongoUtilLogger log;
+
+  /**
+   * @param log logs rewritten pipelines at debug level, may be null
+   */
+  public PipelineOptimizer( MongoUtilLogger log ) {
+    this.log = log;
+  }
+
+  /**
+   * @return an optimizer if OPTIMIZE_AGGREGATION_PIPELINE is set to true, otherwise null
+   */
+  public static PipelineOptimizer forProperties( MongoProperties props, MongoUtilLogger log ) {
+    if ( props == null || !Boolean.parseBoolean( props.get( MongoProp.OPTIMIZE_AGGREGATION_PIPELINE ) ) ) {
+      return null;
+    }
+    return new PipelineOptimizer( log );
+  }
+
+  /**
+   * @return the rewritten pipeline, or the given pipeline if it could not be improved
+   */
+  public List<DBObject> optimize( List<DBObject> pipeline ) {
+    List<DBObject> stages = new ArrayList<DBObject>( pipeline );
+    boolean changed = moveMatches( stages );
+    changed |= projectGroupFields( stages );
+    changed |= mergeAdjacent( stages );
+    if ( !changed ) {
+      return pipeline;
+    }
+    if ( log != null && log.isDebugEnabled() ) {
+      log.debug( "Rewrote aggregation pipeline " + pipeline + " to " + stages );
+    }
+    return stages;
+  }
+
+  /**
+   * Moves each $match as far forward as the stages ahead of it allow.
+   */
+  static boolean moveMatches( List<DBObject> stages ) {
+    boolean changed = false;
+    for ( int i = 1; i < stages.size(); i++ ) {
+      DBObject match = operand( stages.get( i ), MATCH );
+      if ( match == null ) {
+        continue;
+      }
+      Set<String> fields = queryFields( match );
+      int position = i;
+      while ( position > 0 && commutes( fields, stages.get( position - 1 ) ) ) {
+        position--;
+      }
+      if ( position < i ) {
+        stages.add( position, stages.remove( i ) );
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * @param fields the top level fields a $match filters on, or null if they are not known
+   * @return whether the $match gives the same results ahead of stage
+   */
+  static boolean commutes( Set<String> fields, DBObject stage ) {
+    if ( stage.keySet().size() != 1 ) {
+      return false;
+    }
+    String name = stage.keySet().iterator().next();
+    Object operand = stage.get( name );
+    if ( "$sort".equals( name ) ) {
+      return true;
+    }
+    if ( fields == null || !( operand instanceof DBObject )
+      && !( operand instanceof String && "$unwind".equals( name ) ) ) {
+      // only $unwind takes a string operand, other malformed stages are left for the server to reject
+      return false;
+    }
+    if ( PROJECT.equals( name ) ) {
+      return keepsFields( (DBObject) operand, fields );
+    } else if ( "$addFields".equals( name ) ) {
+      return disjoint( fields, roots( ( (DBObject) operand ).keySet() ) );
+    } else if ( "$unwind".equals( name ) ) {
+      Set<String> changes = new HashSet<String>();
+      if ( operand instanceof String ) {
+        changes.add( root( ( (String) operand ).substring( 1 ) ) );
+      } else {
+        Object path = ( (DBObject) operand ).get( "path" );
+        Object index = ( (DBObject) operand ).get( "includeArrayIndex" );
+        if ( !( path instanceof String ) ) {
+          return false;
+        }
+        changes.add( root( ( (String) path ).substring( 1 ) ) );
+        if ( index instanceof String ) {
+          changes.add( root( (String) index ) );
+        }
+      }
+      return disjoint( fields, changes );
+    } else if ( "$lookup".equals( name ) ) {
+      Object as = ( (DBObject) operand ).get( "as" );
+      return as instanceof String && !fields.contains( root( (String) as ) );
+    }
+    return false;
+  }
+
+  /**
+   * @return whether the projection passes each of the top level fields through unchanged
+   */
+  private static boolean keepsFields( DBObject projection, Set<String> fields ) {
+    boolean exclusion = isExclusion( projection );
+    for ( String field : fields ) {
+      if ( "_id".equals( field ) ) {
+        if ( projection.containsField( "_id" ) && !isTrue( projection.get( "_id" ) ) ) {
+          return false;
+        }
+      } else if ( exclusion ) {
+        if ( roots( projection.keySet() ).contains( field ) ) {
+          return false;
+        }
+      } else if ( !isTrue( projection.get( field ) ) ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Inserts a $project of the referenced fields ahead of the first $group, unless it already follows a
+   * $project or its fields can not all be determined.
+   */
+  static boolean projectGroupFields( List<DBObject> stages ) {
+    for ( int i = 0; i < stages.size(); i++ ) {
+      DBObject group = operand( stages.get( i ), GROUP );
+      if ( group == null ) {
+        continue;
+      }
+      if ( i > 0 && operand( stages.get( i - 1 ), PROJECT ) != null ) {
+        return false;
+      }
+      Set<String> paths = new LinkedHashSet<String>();
+      if ( !collectPaths( group, paths ) ) {
+        return false;
+      }
+      BasicDBObject projection = new BasicDBObject();
+      for ( String path : prune( paths ) ) {
+        projection.append( path, 1 );
+      }
+      if ( !roots( paths ).contains( "_id" ) && !projection.isEmpty() ) {
+        projection.append( "_id", 0 );
+      } else if ( projection.isEmpty() ) {
+        projection.append( "_id", 1 );
+      }
+      stages.add( i, new BasicDBObject( PROJECT, projection ) );
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Adds the field paths referenced by an expression.
+   *
+   * @return false if the expression refers to whole documents or to variables, so its fields are not known
+   */
+  static boolean collectPaths( Object expression, Set<String> paths ) {
+    if ( expression instanceof String ) {
+      String value = (String) expression;
+      if ( value.startsWith( "$$" ) ) {
+        return false;
+      }
+      if ( value.startsWith( "$" ) ) {
+        paths.add( value.substring( 1 ) );
+      }
+      return true;
+    }
+    if ( expression instanceof DBObject ) {
+      DBObject document = (DBObject) expression;
+      if ( document.containsField( "$literal" ) ) {
+        return document.keySet().size() == 1;
+      }
+      Collection<?> values = expression instanceof List ? (List<?>) expression : document.toMap().values();
+      for ( Object value : values ) {
+        if ( !collectPaths( value, paths ) ) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the paths without those inside another of the paths, which a $project rejects
+   */
+  private static Set<String> prune( Set<String> paths ) {
+    Set<String> pruned = new LinkedHashSet<String>();
+    for ( String path : paths ) {
+      boolean covered = false;
+      for ( String other : paths ) {
+        covered |= path.startsWith( other + "." );
+      }
+      if ( !covered ) {
+        pruned.add( path );
+      }
+    }
+    return pruned;
+  }
+
+  /**
+   * Merges runs of adjacent $match stages, and of adjacent $project stages where possible.
+   */
+  static boolean mergeAdjacent( List<DBObject> stages ) {
+    boolean changed = false;
+    for ( int i = stages.size() - 1; i > 0; i-- ) {
+      DBObject merged = null;
+      DBObject previous = stages.get( i - 1 );
+      DBObject stage = stages.get( i );
+      if ( operand( previous, MATCH ) != null && operand( stage, MATCH ) != null ) {
+        merged = new BasicDBObject( MATCH, and( operand( previous, MATCH ), operand( stage, MATCH ) ) );
+      } else if ( operand( previous, PROJECT ) != null && operand( stage, PROJECT ) != null ) {
+        DBObject projection = mergeProjections( operand( previous, PROJECT ), operand( stage, PROJECT ) );
+        merged = projection == null ? null : new BasicDBObject( PROJECT, projection );
+      }
+      if ( merged != null ) {
+        stages.set( i - 1, merged );
+        stages.remove( i );
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  private static DBObject and( DBObject first, DBObject second ) {
+    if ( disjoint( first.keySet(), second.keySet() ) && !hasOperator( first ) && !hasOperator( second ) ) {
+      BasicDBObject query = new BasicDBObject( first.toMap() );
+      query.putAll( second );
+      return query;
+    }
+    List<DBObject> clauses = new ArrayList<DBObject>( 2 );
+    clauses.add( first );
+    clauses.add( second );
+    return new BasicDBObject( "$and", clauses );
+  }
+
+  /**
+   * @return the projection applying first and then second, or null if it is not a simple combination
+   */
+  static DBObject mergeProjections( DBObject first, DBObject second ) {
+    if ( !isSimple( first ) || !isSimple( second ) ) {
+      return null;
+    }
+    boolean firstExcludes = isExclusion( first );
+    if ( firstExcludes != isExclusion( second ) ) {
+      return null;
+    }
+    BasicDBObject merged = new BasicDBObject();
+    if ( firstExcludes ) {
+      if ( overlaps( first.keySet(), second.keySet() ) ) {
+        // e.g. { a: 0 } and { "a.b": 0 } collide in a single $project
+        return null;
+      }
+      merged.putAll( first );
+      merged.putAll( second );
+      return merged;
+    }
+    for ( String field : second.keySet() ) {
+      if ( field.contains( "." ) ) {
+        return null;
+      }
+    }
+    for ( String field : first.keySet() ) {
+      if ( field.contains( "." ) ) {
+        return null;
+      }
+      if ( !"_id".equals( field ) && isTrue( second.get( field ) ) ) {
+        merged.append( field, 1 );
+      }
+    }
+    boolean firstKeepsId = !first.containsField( "_id" ) || isTrue( first.get( "_id" ) );
+    boolean secondKeepsId = !second.containsField( "_id" ) || isTrue( second.get( "_id" ) );
+    if ( !( firstKeepsId && secondKeepsId ) ) {
+      merged.append( "_id", 0 );
+    }
+    return merged.isEmpty() ? null : merged;
+  }
+
+  /**
+   * @return whether a path of one set is a parent of a path of the other
+   */
+  private static boolean overlaps( Set<String> first, Set<String> second ) {
+    for ( String a : first ) {
+      for ( String b : second ) {
+        if ( b.startsWith( a + "." ) || a.startsWith( b + "." ) ) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return whether the projection only includes or excludes fields, without computing any
+   */
+  private static boolean isSimple( DBObject projection ) {
+    for ( String field : projection.keySet() ) {
+      Object value = projection.get( field );
+      if ( !( value instanceof Boolean ) && !( value instanceof Number ) ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isExclusion( DBObject projection ) {
+    boolean excludes = false;
+    for ( String field : projection.keySet() ) {
+      if ( !"_id".equals( field ) ) {
+        if ( isTrue( projection.get( field ) ) || !( projection.get( field ) instanceof Boolean
+          || projection.get( field ) instanceof Number ) ) {
+          return false;
+        }
+        excludes = true;
+      }
+    }
+    return excludes || projection.containsField( "_id" ) && !isTrue( projection.get( "_id" ) );
+  }
+
+  private static boolean isTrue( Object value ) {
+    return Boolean.TRUE.equals( value ) || value instanceof Number && ( (Number) value ).doubleValue() != 0;
+  }
+
+  /**
+   * @return the top level fields the query filters on, or null if it uses operators such as $where whose
+   * fields are not known
+   */
+  static Set<String> queryFields( DBObject query ) {
+    Set<String> fields = new HashSet<String>();
+    for ( String key : query.keySet() ) {
+      if ( "$and".equals( key ) || "$or".equals( key ) || "$nor".equals( key ) ) {
+        if ( !( query.get( key ) instanceof List ) ) {
+          return null;
+        }
+        for ( Object clause : (List<?>) query.get( key ) ) {
+          Set<String> clauseFields = clause instanceof DBObject ? queryFields( (DBObject) clause ) : null;
+          if ( clauseFields == null ) {
+            return null;
+          }
+          fields.addAll( clauseFields );
+        }
+      } else if ( key.startsWith( "$" ) ) {
+        return null;
+      } else {
+        fields.add( root( key ) );
+      }
+    }
+    return fields;
+  }
+
+  private static boolean hasOperator( DBObject query ) {
+    for ( String key : query.keySet() ) {
+      if ( key.startsWith( "$" ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static DBObject operand( DBObject stage, String name ) {
+    if ( stage.keySet().size() != 1 || !( stage.get( name ) instanceof DBObject ) ) {
+      return null;
+    }
+    return (DBObject) stage.get( name );
+  }
+
+  private static Set<String> roots( Set<String> paths ) {
+    Set<String> roots = new HashSet<String>();
+    for ( String path : paths ) {
+      roots.add( root( path ) );
+    }
+    return roots;
+  }
+
+  private static String root( String path ) {
+    int dot = path.indexOf( '.' );
+    return dot < 0 ? path : path.substring( 0, dot );
+  }
+
+  private static boolean disjoint( Set<String> first, Set<String> second ) {
+    for ( String value : first ) {
+      if ( second.contains( value ) ) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
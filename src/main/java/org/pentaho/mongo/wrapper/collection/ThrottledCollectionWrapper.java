@@ -0,0 +1,221 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.collection;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.AggregationOutput;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.WriteResult;
+import com.mongodb.client.model.CountOptions;
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.Throttle;
+import org.pentaho.mongo.wrapper.cursor.BsonBytes;
+import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+import org.pentaho.mongo.wrapper.cursor.ThrottledCursorWrapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MongoCollectionWrapper which paces reads and writes with {@link Throttle}s.
+ * <p/>
+ * Inserts, updates, saves, removes and bulk writes wait for the write throttle before they are sent, counting
+ * one document per update or remove.  Cursors returned by find() wait for the read throttle as their
+ * documents are consumed.  Either throttle may be null to leave that kind of operation unchanged.  A single
+ * large insert or bulk write waits for all its documents at once, so smooth pacing also relies on
+ * reasonably sized batches.
+ */
+public class ThrottledCollectionWrapper implements MongoCollectionWrapper {
+  private final MongoCollectionWrapper delegate;
+  private final Throttle reads;
+  private final Throttle writes;
+
+  /**
+   * @param delegate the collection to read and write
+   * @param reads    paces the documents read from cursors, or null
+   * @param writes   paces the documents written, or null
+   */
+  public ThrottledCollectionWrapper( MongoCollectionWrapper delegate, Throttle reads, Throttle writes ) {
+    this.delegate = delegate;
+    this.reads = reads;
+    this.writes = writes;
+  }
+
+  @Override
+  public MongoCursorWrapper find( DBObject dbObject, DBObject dbObject2 ) throws MongoDbException {
+    return wrap( delegate.find( dbObject, dbObject2 ) );
+  }
+
+  @Override
+  public AggregationOutput aggregate( DBObject firstP, DBObject[] remainder ) throws MongoDbException {
+    return delegate.aggregate( firstP, remainder );
+  }
+
+  @Override
+  public MongoCursorWrapper aggregate( List<DBObject> pipeline, AggregationOptions options )
+    throws MongoDbException {
+    MongoCursorWrapper cursor = delegate.aggregate( pipeline, options );
+    return reads == null ? cursor : new ThrottledCursorWrapper( cursor, reads );
+  }
+
+  @Override
+  public MongoCursorWrapper find() throws MongoDbException {
+    return wrap( delegate.find() );
+  }
+
+  @Override
+  public void drop() throws MongoDbException {
+    delegate.drop();
+  }
+
+  @Override
+  public WriteResult update( DBObject updateQuery, DBObject insertUpdate, boolean upsert, boolean multi )
+    throws MongoDbException {
+    acquire( 1, updateQuery, insertUpdate );
+    return delegate.update( updateQuery, insertUpdate, upsert, multi );
+  }
+
+  @Override
+  public WriteResult insert( List<DBObject> m_batch ) throws MongoDbException {
+    if ( writes != null ) {
+      long bytes = 0;
+      if ( writes.limitsBytes() ) {
+        for ( DBObject document : m_batch ) {
+          bytes += BsonBytes.size( document );
+        }
+      }
+      writes.acquire( m_batch.size(), bytes );
+    }
+    return delegate.insert( m_batch );
+  }
+
+  @Override
+  public MongoCursorWrapper find( DBObject query ) throws MongoDbException {
+    return wrap( delegate.find( query ) );
+  }
+
+  @Override
+  public void dropIndex( BasicDBObject mongoIndex ) throws MongoDbException {
+    delegate.dropIndex( mongoIndex );
+  }
+
+  @Override
+  public void createIndex( BasicDBObject mongoIndex ) throws MongoDbException {
+    delegate.createIndex( mongoIndex );
+  }
+
+  @Override
+  public void createIndex( BasicDBObject mongoIndex, BasicDBObject options ) throws MongoDbException {
+    delegate.createIndex( mongoIndex, options );
+  }
+
+  @Override
+  public WriteResult remove() throws MongoDbException {
+    acquire( 1 );
+    return delegate.remove();
+  }
+
+  @Override
+  public WriteResult remove( DBObject query ) throws MongoDbException {
+    acquire( 1, query );
+    return delegate.remove( query );
+  }
+
+  @Override
+  public WriteResult save( DBObject toTry ) throws MongoDbException {
+    acquire( 1, toTry );
+    return delegate.save( toTry );
+  }
+
+  @Override
+  public long count() throws MongoDbException {
+    return delegate.count();
+  }
+
+  @Override
+  public long count( DBObject query, CountOptions options ) throws MongoDbException {
+    return delegate.count( query, options );
+  }
+
+  @Override
+  public long estimatedCount() throws MongoDbException {
+    return delegate.estimatedCount();
+  }
+
+  @Override
+  public List distinct( String key ) throws MongoDbException {
+    return delegate.distinct( key );
+  }
+
+  @Override
+  public DistinctValues distinct( String key, DBObject query ) throws MongoDbException {
+    DistinctValues values = delegate.distinct( key, query );
+    return reads == null || !values.isStreaming() ? values
+      : new DistinctValues( new ThrottledCursorWrapper( values.getCursor(), reads ) );
+  }
+
+  @Override
+  public List<MongoCursorWrapper> parallelScan( int numCursors, int batchSize ) throws MongoDbException {
+    List<MongoCursorWrapper> cursors = new ArrayList<MongoCursorWrapper>();
+    for ( MongoCursorWrapper cursor : delegate.parallelScan( numCursors, batchSize ) ) {
+      cursors.add( wrap( cursor ) );
+    }
+    return cursors;
+  }
+
+  @Override
+  public BulkWriteSummary bulkWrite( List<BulkWriteRequest> requests, boolean ordered ) throws MongoDbException {
+    acquire( requests );
+    return delegate.bulkWrite( requests, ordered );
+  }
+
+  @Override
+  public BulkWriteSummary bulkWrite( List<BulkWriteRequest> requests, boolean ordered, int maxBatchCount,
+                                     int maxBatchBytes ) throws MongoDbException {
+    acquire( requests );
+    return delegate.bulkWrite( requests, ordered, maxBatchCount, maxBatchBytes );
+  }
+
+  private void acquire( List<BulkWriteRequest> requests ) throws MongoDbException {
+    if ( writes != null ) {
+      long bytes = 0;
+      if ( writes.limitsBytes() ) {
+        for ( BulkWriteRequest request : requests ) {
+          bytes += request.size();
+        }
+      }
+      writes.acquire( requests.size(), bytes );
+    }
+  }
+
+  private void acquire( int documents, DBObject... sent ) throws MongoDbException {
+    if ( writes != null ) {
+      long bytes = 0;
+      if ( writes.limitsBytes() ) {
+        for ( DBObject document : sent ) {
+          bytes += BsonBytes.size( document );
+        }
+      }
+      writes.acquire( documents, bytes );
+    }
+  }
+
+  private MongoCursorWrapper wrap( MongoCursorWrapper cursor ) {
+    return reads == null ? cursor : new ThrottledCursorWrapper( cursor, reads );
+  }
+}
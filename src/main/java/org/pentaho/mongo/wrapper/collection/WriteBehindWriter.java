@@ -0,0 +1,429 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.collection;
+
+import com.mongodb.DBObject;
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.AdaptiveBatchSize;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writes documents to a collection in the background, so that producing documents overlaps with writing
+ * them.
+ * <p/>
+ * Writes are collected into a batch which is sent with {@link MongoCollectionWrapper#bulkWrite(List, boolean)}
+ * on a worker pool once it holds batchSize requests, or once its first request has waited flushInterval.  At
+ * most maxInFlight batches are written at a time; when that many are in flight and the current batch is full,
+ * {@link #write(BulkWriteRequest)} blocks until one completes.  Batches in flight concurrently may be written
+ * in any order, so writes are only applied in order with a maxInFlight of 1.  With an
+ * {@link AdaptiveBatchSize} the batch size follows the time the bulk writes take.
+ * <p/>
+ * A failed batch, or one with write errors, fails the writer: the failure is thrown by the next call to
+ * write(), {@link #flush()} or {@link #close()}.  Batches already in flight still complete; batches not yet
+ * sent are dropped.  Being interrupted while waiting to send a batch also fails the writer, as later batches
+ * would otherwise be written ahead of it.
+ * <pre>
+ *   WriteBehindWriter writer = new WriteBehindWriter.Builder( collection ).batchSize( 1000 )
+ *     .flushInterval( 1, TimeUnit.SECONDS ).maxInFlight( 4 ).build();
+ *   try {
+ *     for ( DBObject document : documents ) {
+ *       writer.insert( document );
+ *     }
+ *   } finally {
+ *     writer.close();
+ *   }
+ * </pre>
+ * Writers are thread safe.
+ */
+public class WriteBehindWriter {
+  private final MongoCollectionWrapper collection;
+  private final int batchSize;
+  private final long flushIntervalNanos;
+  private final int maxInFlight;
+  private final boolean ordered;
+  private final ExecutorService pool;
+  private final boolean shutdownPool;
+  private final ScheduledExecutorService timer;
+  private final AdaptiveBatchSize adaptiveBatchSize;
+  private final Semaphore inFlight;
+  private final AtomicReference<MongoDbException> failure = new AtomicReference<MongoDbException>();
+  private final AtomicLong written = new AtomicLong();
+  /**
+   * The number of batches sent to the pool, or dropped, in the order they were taken.  Also the lock held
+   * while sending a batch.
+   */
+  private final AtomicLong sent = new AtomicLong();
+  private List<BulkWriteRequest> batch;
+  private long batchStarted;
+  private long taken;
+  private boolean closed;
+
+  public static class Builder {
+    private final MongoCollectionWrapper collection;
+    private int batchSize = 1000;
+    private long flushIntervalNanos = TimeUnit.SECONDS.toNanos( 1 );
+    private int maxInFlight = 2;
+    private boolean ordered;
+    private ExecutorService pool;
+    private AdaptiveBatchSize adaptiveBatchSize;
+
+    public Builder( MongoCollectionWrapper collection ) {
+      this.collection = collection;
+    }
+
+    /**
+     * @param batchSize the number of requests per bulk write, 1000 by default
+     */
+    public Builder batchSize( int batchSize ) {
+      if ( batchSize <= 0 ) {
+        throw new IllegalArgumentException( "batchSize must be positive" );
+      }
+      this.batchSize = batchSize;
+      return this;
+    }
+
+    /**
+     * @param flushInterval the longest time a request waits for its batch to fill up, 1 second by default, or
+     *                      0 to only write full batches and on {@link WriteBehindWriter#flush()}
+     */
+    public Builder flushInterval( long flushInterval, TimeUnit unit ) {
+      if ( flushInterval < 0 ) {
+        throw new IllegalArgumentException( "flushInterval must not be negative" );
+      }
+      this.flushIntervalNanos = unit.toNanos( flushInterval );
+      return this;
+    }
+
+    /**
+     * @param maxInFlight the maximum number of batches being written at a time, 2 by default
+     */
+    public Builder maxInFlight( int maxInFlight ) {
+      if ( maxInFlight <= 0 ) {
+        throw new IllegalArgumentException( "maxInFlight must be positive" );
+      }
+      this.maxInFlight = maxInFlight;
+      return this;
+    }
+
+    /**
+     * @param ordered whether each batch is written as an ordered bulk write, false by default
+     */
+    public Builder ordered( boolean ordered ) {
+      this.ordered = ordered;
+      return this;
+    }
+
+    /**
+     * @param pool the pool writing the batches, which is not shut down by the writer.  By default the writer
+     *             uses a pool of maxInFlight daemon threads.
+     */
+    public Builder executor( ExecutorService pool ) {
+      this.pool = pool;
+      return this;
+    }
+
+    /**
+     * @param adaptiveBatchSize chooses the number of requests per bulk write from the time earlier ones took,
+     *                          in place of a fixed batchSize
+     */
+    public Builder adaptiveBatchSize( AdaptiveBatchSize adaptiveBatchSize ) {
+      this.adaptiveBatchSize = adaptiveBatchSize;
+      return this;
+    }
+
+    public WriteBehindWriter build() {
+      return new WriteBehindWriter( this );
+    }
+  }
+
+  private WriteBehindWriter( Builder builder ) {
+    collection = builder.collection;
+    batchSize = builder.batchSize;
+    flushIntervalNanos = builder.flushIntervalNanos;
+    maxInFlight = builder.maxInFlight;
+    ordered = builder.ordered;
+    adaptiveBatchSize = builder.adaptiveBatchSize;
+    inFlight = new Semaphore( maxInFlight );
+    batch = new ArrayList<BulkWriteRequest>( batchSize );
+    shutdownPool = builder.pool == null;
+    pool = shutdownPool ? Executors.newFixedThreadPool( maxInFlight, daemonThreads( "writer" ) ) : builder.pool;
+    if ( flushIntervalNanos > 0 ) {
+      timer = Executors.newSingleThreadScheduledExecutor( daemonThreads( "flusher" ) );
+      long period = Math.max( 1, flushIntervalNanos / 4 );
+      timer.scheduleWithFixedDelay( new Runnable() {
+        @Override public void run() {
+          flushExpired();
+        }
+      }, period, period, TimeUnit.NANOSECONDS );
+    } else {
+      timer = null;
+    }
+  }
+
+  /**
+   * Queues an insert of the document.
+   *
+   * @throws MongoDbException if an earlier batch failed, or the writer was interrupted waiting for a batch
+   *                          to complete
+   */
+  public void insert( DBObject document ) throws MongoDbException {
+    write( BulkWriteRequest.insert( document ) );
+  }
+
+  /**
+   * Queues the request, blocking if its batch is full and maxInFlight batches are being written.
+   *
+   * @throws MongoDbException if an earlier batch failed, or the writer was interrupted waiting for a batch
+   *                          to complete
+   */
+  public void write( BulkWriteRequest request ) throws MongoDbException {
+    List<BulkWriteRequest> full = null;
+    long ticket = 0;
+    synchronized ( this ) {
+      if ( closed ) {
+        throw new MongoDbException( "Writer is closed" );
+      }
+      checkFailure();
+      if ( batch.isEmpty() ) {
+        batchStarted = System.nanoTime();
+      }
+      batch.add( request );
+      if ( batch.size() >= ( adaptiveBatchSize == null ? batchSize : adaptiveBatchSize.getBatchSize() ) ) {
+        full = takeBatch();
+        ticket = taken;
+      }
+    }
+    if ( full != null ) {
+      submit( full, ticket );
+    }
+  }
+
+  /**
+   * Writes the current batch and waits for every batch in flight to complete.
+   *
+   * @throws MongoDbException if a batch failed, or the writer was interrupted
+   */
+  public void flush() throws MongoDbException {
+    drain( false );
+  }
+
+  /**
+   * Flushes the writer and stops its threads.
+   *
+   * @throws MongoDbException if a batch failed, or the writer was interrupted
+   */
+  public void close() throws MongoDbException {
+    synchronized ( this ) {
+      if ( closed ) {
+        return;
+      }
+    }
+    try {
+      drain( true );
+    } finally {
+      if ( timer != null ) {
+        timer.shutdownNow();
+      }
+      if ( shutdownPool ) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  /**
+   * @return the number of requests in completed batches, whether or not they succeeded
+   */
+  public long getWrittenCount() {
+    return written.get();
+  }
+
+  /**
+   * @return the number of requests waiting for their batch to be sent
+   */
+  public synchronized int getPendingCount() {
+    return batch.size();
+  }
+
+  private void flushExpired() {
+    List<BulkWriteRequest> expired;
+    long ticket;
+    synchronized ( this ) {
+      if ( closed || batch.isEmpty() || failure.get() != null
+        || System.nanoTime() - batchStarted < flushIntervalNanos ) {
+        return;
+      }
+      expired = takeBatch();
+      ticket = taken;
+    }
+    try {
+      submit( expired, ticket );
+    } catch ( MongoDbException e ) {
+      // thrown to the next call to write, flush or close
+    }
+  }
+
+  /**
+   * Sends the current batch, if any, and waits for it and every batch before it to complete.
+   */
+  private void drain( boolean close ) throws MongoDbException {
+    List<BulkWriteRequest> pending = null;
+    long ticket;
+    synchronized ( this ) {
+      if ( close ) {
+        closed = true;
+      }
+      if ( failure.get() != null ) {
+        // writes queued after a failed batch are not applied
+        batch.clear();
+      } else if ( !batch.isEmpty() ) {
+        pending = takeBatch();
+      }
+      ticket = taken;
+    }
+    if ( pending != null ) {
+      submit( pending, ticket );
+    }
+    try {
+      synchronized ( sent ) {
+        while ( sent.get() < ticket ) {
+          sent.wait();
+        }
+      }
+      inFlight.acquire( maxInFlight );
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new MongoDbException( "Interrupted waiting for writes to complete", e );
+    }
+    inFlight.release( maxInFlight );
+    checkFailure();
+  }
+
+  /**
+   * Swaps in a new batch and numbers the current one.  Must hold the writer's lock.
+   */
+  private List<BulkWriteRequest> takeBatch() {
+    List<BulkWriteRequest> requests = batch;
+    batch = new ArrayList<BulkWriteRequest>( batchSize );
+    taken++;
+    return requests;
+  }
+
+  /**
+   * Sends the batch numbered ticket once the batches before it have been sent and a batch slot is free.  This
+   * runs outside the writer's lock, so that a full pipeline only blocks the threads sending batches.
+   */
+  private void submit( final List<BulkWriteRequest> requests, long ticket ) throws MongoDbException {
+    synchronized ( sent ) {
+      try {
+        while ( sent.get() < ticket - 1 ) {
+          sent.wait();
+        }
+        inFlight.acquire();
+      } catch ( InterruptedException e ) {
+        // later batches must not be written ahead of this one
+        MongoDbException interrupted = new MongoDbException( "Interrupted waiting for a batch to complete", e );
+        fail( interrupted );
+        advance();
+        Thread.currentThread().interrupt();
+        throw interrupted;
+      }
+      try {
+        if ( failure.get() != null ) {
+          // an earlier batch failed while this one waited
+          inFlight.release();
+          checkFailure();
+        }
+        execute( requests );
+      } finally {
+        advance();
+      }
+    }
+  }
+
+  private void advance() {
+    sent.incrementAndGet();
+    sent.notifyAll();
+  }
+
+  private void execute( final List<BulkWriteRequest> requests ) throws MongoDbException {
+    try {
+      pool.execute( new Runnable() {
+        @Override public void run() {
+          long started = System.nanoTime();
+          boolean failed = true;
+          try {
+            BulkWriteSummary summary = collection.bulkWrite( requests, ordered );
+            failed = !summary.isSuccessful();
+            if ( failed ) {
+              fail( new MongoDbException( "Bulk write failed: " + summary ) );
+            }
+          } catch ( MongoDbException e ) {
+            fail( e );
+          } catch ( RuntimeException e ) {
+            fail( new MongoDbException( e ) );
+          } finally {
+            if ( adaptiveBatchSize != null ) {
+              adaptiveBatchSize.record( requests.size(), (long) requests.get( 0 ).size() * requests.size(),
+                System.nanoTime() - started, failed );
+            }
+            written.addAndGet( requests.size() );
+            inFlight.release();
+          }
+        }
+      } );
+    } catch ( RejectedExecutionException e ) {
+      inFlight.release();
+      MongoDbException rejected = new MongoDbException( "Batch was rejected by the writer pool", e );
+      fail( rejected );
+      throw rejected;
+    }
+  }
+
+  private void fail( MongoDbException e ) {
+    failure.compareAndSet( null, e );
+  }
+
+  private void checkFailure() throws MongoDbException {
+    MongoDbException e = failure.get();
+    if ( e != null ) {
+      throw new MongoDbException( e.getMessage(), e );
+    }
+  }
+
+  private static ThreadFactory daemonThreads( final String name ) {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      @Override public Thread newThread( Runnable r ) {
+        Thread thread = new Thread( r, "pentaho-mongo-write-behind-" + name + "-" + count.incrementAndGet() );
+        thread.setDaemon( true );
+        return thread;
+      }
+    };
+  }
+}
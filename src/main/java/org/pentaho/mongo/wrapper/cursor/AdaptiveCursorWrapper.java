@@ -0,0 +1,237 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.cursor;
+
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.AdaptiveBatchSize;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MongoCursorWrapper which sets the batchSize of the wrapped cursor from an {@link AdaptiveBatchSize} when it
+ * is first read, and reports the time spent waiting for each batch back to it so that later cursors use a
+ * better size.  The driver fixes the batch size when the query is sent, so a cursor keeps the size it
+ * started with.
+ * <p/>
+ * The time of a batch is the time spent in the wrapped cursor while reading its documents, which is
+ * dominated by the getMore round trip; the document size is sampled from the first document of each batch.
+ * A batchSize set explicitly on this cursor is kept, and its batches are still reported.  Only server and
+ * network errors are reported as failures; e.g. reading past the end of the cursor is not.
+ */
+public class AdaptiveCursorWrapper implements MongoCursorWrapper {
+  private final MongoCursorWrapper delegate;
+  private final AdaptiveBatchSize controller;
+  private final Integer explicitBatchSize;
+  private MongoCursorWrapper cursor;
+  private int batchSize;
+  private int documents;
+  private long nanos;
+  private long sampledBytes;
+
+  public AdaptiveCursorWrapper( MongoCursorWrapper delegate, AdaptiveBatchSize controller ) {
+    this( delegate, controller, null );
+  }
+
+  private AdaptiveCursorWrapper( MongoCursorWrapper delegate, AdaptiveBatchSize controller, Integer batchSize ) {
+    this.delegate = delegate;
+    this.controller = controller;
+    this.explicitBatchSize = batchSize;
+  }
+
+  @Override
+  public boolean hasNext() throws MongoDbException {
+    MongoCursorWrapper started = start();
+    long start = System.nanoTime();
+    try {
+      boolean hasNext = started.hasNext();
+      nanos += System.nanoTime() - start;
+      return hasNext;
+    } catch ( MongoDbException e ) {
+      throw failed( start, e );
+    } catch ( MongoException e ) {
+      throw failed( start, e );
+    }
+  }
+
+  @Override
+  public DBObject next() throws MongoDbException {
+    MongoCursorWrapper started = start();
+    long start = System.nanoTime();
+    DBObject next;
+    try {
+      next = started.next();
+      nanos += System.nanoTime() - start;
+    } catch ( MongoDbException e ) {
+      throw failed( start, e );
+    } catch ( MongoException e ) {
+      throw failed( start, e );
+    }
+    if ( documents++ == 0 ) {
+      sampledBytes = BsonBytes.size( next );
+    }
+    if ( documents >= batchSize ) {
+      recordBatch();
+    }
+    return next;
+  }
+
+  @Override
+  public int nextBatch( List<DBObject> target, int max ) throws MongoDbException {
+    MongoCursorWrapper started = start();
+    int first = target.size();
+    long start = System.nanoTime();
+    int read;
+    try {
+      read = started.nextBatch( target, max );
+      nanos += System.nanoTime() - start;
+    } catch ( MongoDbException e ) {
+      throw failed( start, e );
+    } catch ( MongoException e ) {
+      throw failed( start, e );
+    }
+    if ( read > 0 && documents == 0 ) {
+      sampledBytes = BsonBytes.size( target.get( first ) );
+    }
+    documents += read;
+    if ( documents >= batchSize ) {
+      recordBatch();
+    }
+    return read;
+  }
+
+  @Override
+  public ServerAddress getServerAddress() throws MongoDbException {
+    return ( cursor == null ? delegate : cursor ).getServerAddress();
+  }
+
+  @Override
+  public void close() throws MongoDbException {
+    if ( documents > 0 ) {
+      recordBatch();
+    }
+    ( cursor == null ? delegate : cursor ).close();
+  }
+
+  @Override
+  public MongoCursorWrapper limit( int i ) throws MongoDbException {
+    return rewrap( delegate.limit( i ) );
+  }
+
+  @Override
+  public MongoCursorWrapper batchSize( int n ) throws MongoDbException {
+    return new AdaptiveCursorWrapper( delegate.batchSize( n ), controller, n );
+  }
+
+  @Override
+  public MongoCursorWrapper sort( DBObject orderBy ) throws MongoDbException {
+    return rewrap( delegate.sort( orderBy ) );
+  }
+
+  @Override
+  public MongoCursorWrapper skip( int n ) throws MongoDbException {
+    return rewrap( delegate.skip( n ) );
+  }
+
+  @Override
+  public MongoCursorWrapper hint( DBObject indexKeys ) throws MongoDbException {
+    return rewrap( delegate.hint( indexKeys ) );
+  }
+
+  @Override
+  public MongoCursorWrapper hint( String indexName ) throws MongoDbException {
+    return rewrap( delegate.hint( indexName ) );
+  }
+
+  @Override
+  public MongoCursorWrapper min( DBObject min ) throws MongoDbException {
+    return rewrap( delegate.min( min ) );
+  }
+
+  @Override
+  public MongoCursorWrapper max( DBObject max ) throws MongoDbException {
+    return rewrap( delegate.max( max ) );
+  }
+
+  @Override
+  public MongoCursorWrapper decoderFactory( DBDecoderFactory factory ) throws MongoDbException {
+    return rewrap( delegate.decoderFactory( factory ) );
+  }
+
+  @Override
+  public MongoCursorWrapper maxTime( long maxTime, TimeUnit timeUnit ) throws MongoDbException {
+    return rewrap( delegate.maxTime( maxTime, timeUnit ) );
+  }
+
+  @Override
+  public MongoCursorWrapper noCursorTimeout() throws MongoDbException {
+    return rewrap( delegate.noCursorTimeout() );
+  }
+
+  @Override
+  public MongoCursorWrapper comment( String comment ) throws MongoDbException {
+    return rewrap( delegate.comment( comment ) );
+  }
+
+  @Override
+  public MongoCursorWrapper readPreference( ReadPreference readPreference ) throws MongoDbException {
+    return rewrap( delegate.readPreference( readPreference ) );
+  }
+
+  /**
+   * @return the batch size the cursor was started with, or 0 if it has not been read yet
+   */
+  int getStartedBatchSize() {
+    return cursor == null ? 0 : batchSize;
+  }
+
+  private MongoCursorWrapper rewrap( MongoCursorWrapper cursor ) {
+    return new AdaptiveCursorWrapper( cursor, controller, explicitBatchSize );
+  }
+
+  private MongoCursorWrapper start() throws MongoDbException {
+    if ( cursor == null ) {
+      if ( explicitBatchSize != null ) {
+        // negative sizes close the cursor after a single batch of that many documents
+        batchSize = explicitBatchSize == 0 ? Integer.MAX_VALUE : Math.abs( explicitBatchSize );
+        cursor = delegate;
+      } else {
+        batchSize = controller.getBatchSize();
+        cursor = delegate.batchSize( batchSize );
+      }
+    }
+    return cursor;
+  }
+
+  private void recordBatch() {
+    controller.record( documents, sampledBytes * documents, nanos, false );
+    documents = 0;
+    nanos = 0;
+  }
+
+  private <T extends Exception> T failed( long start, T e ) {
+    controller.record( documents, sampledBytes * documents, nanos + System.nanoTime() - start, true );
+    documents = 0;
+    nanos = 0;
+    return e;
+  }
+}
@@ -0,0 +1,177 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper.cursor;
+
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import org.bson.LazyBSONObject;
+import org.bson.io.BasicOutputBuffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Access to the raw BSON of documents, for cursors read with
+ * {@link MongoCursorWrapper#decoderFactory(com.mongodb.DBDecoderFactory)} set to
+ * {@link com.mongodb.LazyDBDecoder#FACTORY}.  Lazily decoded documents are copied as they were received
+ * without decoding any of their fields; other documents are encoded.
+ * <p/>
+ * Also provides the primitives for scanning BSON in place, e.g. the buffer of a {@link RawDBObject}.
+ */
+public class BsonBytes {
+  private static final byte DOUBLE = 0x01;
+  private static final byte STRING = 0x02;
+  private static final byte DOCUMENT = 0x03;
+  private static final byte ARRAY = 0x04;
+  private static final byte BINARY = 0x05;
+  private static final byte UNDEFINED = 0x06;
+  private static final byte OBJECT_ID = 0x07;
+  private static final byte BOOLEAN = 0x08;
+  private static final byte DATE_TIME = 0x09;
+  private static final byte NULL = 0x0A;
+  private static final byte REGEX = 0x0B;
+  private static final byte DB_POINTER = 0x0C;
+  private static final byte JAVASCRIPT = 0x0D;
+  private static final byte SYMBOL = 0x0E;
+  private static final byte JAVASCRIPT_WITH_SCOPE = 0x0F;
+  private static final byte INT32 = 0x10;
+  private static final byte TIMESTAMP = 0x11;
+  private static final byte INT64 = 0x12;
+  private static final byte DECIMAL128 = 0x13;
+  private static final byte MIN_KEY = (byte) 0xFF;
+  private static final byte MAX_KEY = 0x7F;
+
+  private BsonBytes() {
+  }
+
+  /**
+   * @return the size of the document's BSON encoding
+   */
+  public static int size( DBObject document ) {
+    if ( document instanceof LazyBSONObject ) {
+      return ( (LazyBSONObject) document ).getBSONSize();
+    }
+    return encode( document ).size();
+  }
+
+  /**
+   * @return the document's BSON encoding
+   */
+  public static byte[] toByteArray( DBObject document ) {
+    if ( document instanceof LazyBSONObject ) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream( ( (LazyBSONObject) document ).getBSONSize() );
+      try {
+        ( (LazyBSONObject) document ).pipe( out );
+      } catch ( IOException e ) {
+        // not thrown by ByteArrayOutputStream
+        throw new IllegalStateException( e );
+      }
+      return out.toByteArray();
+    }
+    return encode( document ).toByteArray();
+  }
+
+  /**
+   * Writes the document's BSON encoding to out.
+   *
+   * @return the number of bytes written
+   * @throws IOException if out could not be written to
+   */
+  public static int writeTo( DBObject document, OutputStream out ) throws IOException {
+    if ( document instanceof LazyBSONObject ) {
+      return ( (LazyBSONObject) document ).pipe( out );
+    }
+    return encode( document ).pipe( out );
+  }
+
+  private static BasicOutputBuffer encode( DBObject document ) {
+    BasicOutputBuffer buffer = new BasicOutputBuffer();
+    new DefaultDBEncoder().writeObject( buffer, document );
+    return buffer;
+  }
+
+  /**
+   * @return the position after the value of the given BSON type starting at position
+   * @throws IllegalArgumentException if the type is unknown
+   */
+  public static int skipValue( byte[] bson, int position, byte type ) {
+    switch ( type ) {
+      case DOUBLE:
+      case DATE_TIME:
+      case TIMESTAMP:
+      case INT64:
+        return position + 8;
+      case STRING:
+      case JAVASCRIPT:
+      case SYMBOL:
+        return position + 4 + readInt( bson, position );
+      case DOCUMENT:
+      case ARRAY:
+      case JAVASCRIPT_WITH_SCOPE:
+        return position + readInt( bson, position );
+      case BINARY:
+        return position + 5 + readInt( bson, position );
+      case UNDEFINED:
+      case NULL:
+      case MIN_KEY:
+      case MAX_KEY:
+        return position;
+      case OBJECT_ID:
+        return position + 12;
+      case BOOLEAN:
+        return position + 1;
+      case REGEX:
+        return skipCString( bson, skipCString( bson, position ) );
+      case DB_POINTER:
+        return position + 4 + readInt( bson, position ) + 12;
+      case INT32:
+        return position + 4;
+      case DECIMAL128:
+        return position + 16;
+      default:
+        throw new IllegalArgumentException( "Unknown BSON type " + type );
+    }
+  }
+
+  /**
+   * @return the position after the 0 terminated string starting at position, e.g. the value of an element
+   * whose name starts at position
+   */
+  public static int skipCString( byte[] bson, int position ) {
+    while ( bson[ position ] != 0 ) {
+      position++;
+    }
+    return position + 1;
+  }
+
+  /**
+   * @return the little endian int32 at position
+   */
+  public static int readInt( byte[] bson, int position ) {
+    return ( bson[ position ] & 0xFF ) | ( bson[ position + 1 ] & 0xFF ) << 8
+      | ( bson[ position + 2 ] & 0xFF ) << 16 | ( bson[ position + 3 ] & 0xFF ) << 24;
+  }
+
+  /**
+   * @return the little endian int64 at position
+   */
+  public static long readLong( byte[] bson, int position ) {
+    return ( readInt( bson, position ) & 0xFFFFFFFFL ) | ( (long) readInt( bson, position + 4 ) ) << 32;
+  }
+}
@@ -0,0 +1,140 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper.cursor;
+
+import com.mongodb.Cursor;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import org.pentaho.mongo.MongoDbException;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MongoCursorWrapper for the cursors returned by commands such as parallelCollectionScan, which are
+ * already running on the server when they are returned.  Their options were fixed when the command was
+ * sent, so the cursor option methods are not supported.
+ */
+public class CommandCursorWrapper implements MongoCursorWrapper {
+  private final Cursor cursor;
+
+  public CommandCursorWrapper( Cursor cursor ) {
+    this.cursor = cursor;
+  }
+
+  @Override
+  public boolean hasNext() throws MongoDbException {
+    return cursor.hasNext();
+  }
+
+  @Override
+  public DBObject next() throws MongoDbException {
+    return cursor.next();
+  }
+
+  @Override
+  public int nextBatch( List<DBObject> target, int max ) throws MongoDbException {
+    int added = 0;
+    while ( added < max && cursor.hasNext() ) {
+      target.add( cursor.next() );
+      added++;
+    }
+    return added;
+  }
+
+  @Override
+  public ServerAddress getServerAddress() throws MongoDbException {
+    return cursor.getServerAddress();
+  }
+
+  @Override
+  public void close() throws MongoDbException {
+    cursor.close();
+  }
+
+  @Override
+  public MongoCursorWrapper limit( int i ) throws MongoDbException {
+    throw unsupported( "limit" );
+  }
+
+  @Override
+  public MongoCursorWrapper batchSize( int n ) throws MongoDbException {
+    throw unsupported( "batchSize" );
+  }
+
+  @Override
+  public MongoCursorWrapper sort( DBObject orderBy ) throws MongoDbException {
+    throw unsupported( "sort" );
+  }
+
+  @Override
+  public MongoCursorWrapper skip( int n ) throws MongoDbException {
+    throw unsupported( "skip" );
+  }
+
+  @Override
+  public MongoCursorWrapper hint( DBObject indexKeys ) throws MongoDbException {
+    throw unsupported( "hint" );
+  }
+
+  @Override
+  public MongoCursorWrapper hint( String indexName ) throws MongoDbException {
+    throw unsupported( "hint" );
+  }
+
+  @Override
+  public MongoCursorWrapper min( DBObject min ) throws MongoDbException {
+    throw unsupported( "min" );
+  }
+
+  @Override
+  public MongoCursorWrapper max( DBObject max ) throws MongoDbException {
+    throw unsupported( "max" );
+  }
+
+  @Override
+  public MongoCursorWrapper decoderFactory( DBDecoderFactory factory ) throws MongoDbException {
+    throw unsupported( "decoderFactory" );
+  }
+
+  @Override
+  public MongoCursorWrapper maxTime( long maxTime, TimeUnit timeUnit ) throws MongoDbException {
+    throw unsupported( "maxTime" );
+  }
+
+  @Override
+  public MongoCursorWrapper noCursorTimeout() throws MongoDbException {
+    throw unsupported( "noCursorTimeout" );
+  }
+
+  @Override
+  public MongoCursorWrapper comment( String comment ) throws MongoDbException {
+    throw unsupported( "comment" );
+  }
+
+  @Override
+  public MongoCursorWrapper readPreference( ReadPreference readPreference ) throws MongoDbException {
+    throw unsupported( "readPreference" );
+  }
+
+  private static MongoDbException unsupported( String option ) {
+    return new MongoDbException( option + " is not supported on a command cursor" );
+  }
+}
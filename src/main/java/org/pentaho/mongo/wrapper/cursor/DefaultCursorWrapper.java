@@ -17,11 +17,17 @@
 
 package org.pentaho.mongo.wrapper.cursor;
 
+import com.mongodb.Bytes;
 import com.mongodb.DBCursor;
+import com.mongodb.DBDecoderFactory;
 import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
 import org.pentaho.mongo.MongoDbException;
 
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 public class DefaultCursorWrapper implements MongoCursorWrapper {
   private final DBCursor cursor;
 
@@ -39,6 +45,16 @@ public class DefaultCursorWrapper implements MongoCursorWrapper {
     return cursor.next();
   }
 
+  @Override
+  public int nextBatch( List<DBObject> target, int max ) throws MongoDbException {
+    int added = 0;
+    while ( added < max && cursor.hasNext() ) {
+      target.add( cursor.next() );
+      added++;
+    }
+    return added;
+  }
+
   @Override
   public ServerAddress getServerAddress() throws MongoDbException {
     return cursor.getServerAddress();
@@ -54,6 +70,66 @@ public class DefaultCursorWrapper implements MongoCursorWrapper {
     return wrap( cursor.limit( i ) );
   }
 
+  @Override
+  public MongoCursorWrapper batchSize( int n ) throws MongoDbException {
+    return wrap( cursor.batchSize( n ) );
+  }
+
+  @Override
+  public MongoCursorWrapper sort( DBObject orderBy ) throws MongoDbException {
+    return wrap( cursor.sort( orderBy ) );
+  }
+
+  @Override
+  public MongoCursorWrapper skip( int n ) throws MongoDbException {
+    return wrap( cursor.skip( n ) );
+  }
+
+  @Override
+  public MongoCursorWrapper hint( DBObject indexKeys ) throws MongoDbException {
+    return wrap( cursor.hint( indexKeys ) );
+  }
+
+  @Override
+  public MongoCursorWrapper hint( String indexName ) throws MongoDbException {
+    return wrap( cursor.hint( indexName ) );
+  }
+
+  @Override
+  public MongoCursorWrapper min( DBObject min ) throws MongoDbException {
+    return wrap( cursor.min( min ) );
+  }
+
+  @Override
+  public MongoCursorWrapper max( DBObject max ) throws MongoDbException {
+    return wrap( cursor.max( max ) );
+  }
+
+  @Override
+  public MongoCursorWrapper decoderFactory( DBDecoderFactory factory ) throws MongoDbException {
+    return wrap( cursor.setDecoderFactory( factory ) );
+  }
+
+  @Override
+  public MongoCursorWrapper maxTime( long maxTime, TimeUnit timeUnit ) throws MongoDbException {
+    return wrap( cursor.maxTime( maxTime, timeUnit ) );
+  }
+
+  @Override
+  public MongoCursorWrapper noCursorTimeout() throws MongoDbException {
+    return wrap( cursor.addOption( Bytes.QUERYOPTION_NOTIMEOUT ) );
+  }
+
+  @Override
+  public MongoCursorWrapper comment( String comment ) throws MongoDbException {
+    return wrap( cursor.comment( comment ) );
+  }
+
+  @Override
+  public MongoCursorWrapper readPreference( ReadPreference readPreference ) throws MongoDbException {
+    return wrap( cursor.setReadPreference( readPreference ) );
+  }
+
   protected MongoCursorWrapper wrap( DBCursor cursor ) {
     return new DefaultCursorWrapper( cursor );
   }
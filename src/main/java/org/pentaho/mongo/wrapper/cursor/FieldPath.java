@@ -0,0 +1,279 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.cursor;
+
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.pentaho.mongo.wrapper.cursor.BsonBytes.readInt;
+import static org.pentaho.mongo.wrapper.cursor.BsonBytes.readLong;
+
+/**
+ * A compiled path to a field of a document, such as <code>a.b[3].c</code>.
+ * <p/>
+ * Fields are separated by dots and array elements are selected with <code>[index]</code> or, as in MongoDB's
+ * dot notation, a numeric field (<code>a.b.3.c</code>).  A leading <code>$.</code> is ignored.  The path is
+ * parsed once by {@link #compile(String)}; getting a field from a document then walks the precomputed steps
+ * without splitting strings or allocating.  {@link RawDBObject}s are scanned in their BSON buffer and only the
+ * selected value is decoded.
+ * <p/>
+ * FieldPaths are immutable and thread safe.
+ */
+public final class FieldPath {
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+  private static final byte DOUBLE = 0x01;
+  private static final byte STRING = 0x02;
+  private static final byte DOCUMENT = 0x03;
+  private static final byte ARRAY = 0x04;
+  private static final byte OBJECT_ID = 0x07;
+  private static final byte BOOLEAN = 0x08;
+  private static final byte DATE_TIME = 0x09;
+  private static final byte NULL = 0x0A;
+  private static final byte INT32 = 0x10;
+  private static final byte INT64 = 0x12;
+
+  private final String path;
+  private final String[] names;
+  private final byte[][] utf8Names;
+  /**
+   * The array index of each step, or -1 if the step is not numeric.
+   */
+  private final int[] indexes;
+
+  private FieldPath( String path, List<String> steps ) {
+    this.path = path;
+    int length = steps.size();
+    names = steps.toArray( new String[ length ] );
+    utf8Names = new byte[ length ][];
+    indexes = new int[ length ];
+    for ( int i = 0; i < length; i++ ) {
+      utf8Names[ i ] = names[ i ].getBytes( UTF8 );
+      indexes[ i ] = parseIndex( names[ i ] );
+    }
+  }
+
+  /**
+   * @param path the path, e.g. <code>a.b[3].c</code>
+   * @return the compiled path
+   * @throws IllegalArgumentException if the path is empty or malformed
+   */
+  public static FieldPath compile( String path ) {
+    String remaining = path.startsWith( "$." ) ? path.substring( 2 ) : path;
+    List<String> steps = new ArrayList<String>();
+    int position = 0;
+    int length = remaining.length();
+    while ( position < length ) {
+      int end = position;
+      while ( end < length && remaining.charAt( end ) != '.' && remaining.charAt( end ) != '[' ) {
+        end++;
+      }
+      if ( end == position ) {
+        throw malformed( path );
+      }
+      steps.add( remaining.substring( position, end ) );
+      while ( end < length && remaining.charAt( end ) == '[' ) {
+        int close = remaining.indexOf( ']', end );
+        if ( close < 0 || parseIndex( remaining.substring( end + 1, close ) ) < 0 ) {
+          throw malformed( path );
+        }
+        steps.add( remaining.substring( end + 1, close ) );
+        end = close + 1;
+      }
+      if ( end < length ) {
+        if ( remaining.charAt( end ) != '.' || end == length - 1 ) {
+          throw malformed( path );
+        }
+        end++;
+      }
+      position = end;
+    }
+    if ( steps.isEmpty() ) {
+      throw malformed( path );
+    }
+    return new FieldPath( path, steps );
+  }
+
+  /**
+   * @return the number of fields and array elements in the path
+   */
+  public int length() {
+    return names.length;
+  }
+
+  /**
+   * @return the name of a step; array indexes are returned as numbers, e.g. "3"
+   */
+  public String getStep( int step ) {
+    return names[ step ];
+  }
+
+  /**
+   * @return the value at this path, or null if the document does not contain it
+   */
+  public Object get( DBObject document ) {
+    if ( document instanceof RawDBObject ) {
+      return get( (RawDBObject) document );
+    }
+    Object value = document;
+    for ( int i = 0; i < names.length && value != null; i++ ) {
+      int index = indexes[ i ];
+      if ( value instanceof List ) {
+        List<?> list = (List<?>) value;
+        value = index >= 0 && index < list.size() ? list.get( index ) : null;
+      } else if ( value instanceof DBObject ) {
+        value = ( (DBObject) value ).get( names[ i ] );
+      } else {
+        value = null;
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Finds the value at this path in a BSON document without decoding it.
+   *
+   * @param bson   the buffer holding the document
+   * @param offset the position of the document in bson
+   * @return the position of the type byte of the element holding the value, or -1 if the document does not
+   * contain it
+   */
+  public int find( byte[] bson, int offset ) {
+    int document = offset;
+    for ( int i = 0; ; i++ ) {
+      int element = findElement( bson, document, utf8Names[ i ] );
+      if ( element < 0 || i == names.length - 1 ) {
+        return element;
+      }
+      byte type = bson[ element ];
+      if ( type != DOCUMENT && type != ARRAY ) {
+        return -1;
+      }
+      document = element + 1 + utf8Names[ i ].length + 1;
+    }
+  }
+
+  private Object get( RawDBObject document ) {
+    byte[] bson = document.getBytes();
+    int element = find( bson, document.getOffset() );
+    if ( element < 0 ) {
+      return null;
+    }
+    byte type = bson[ element ];
+    int value = element + 1 + utf8Names[ names.length - 1 ].length + 1;
+    switch ( type ) {
+      case DOUBLE:
+        return Double.longBitsToDouble( readLong( bson, value ) );
+      case STRING:
+        return new String( bson, value + 4, readInt( bson, value ) - 1, UTF8 );
+      case DOCUMENT:
+        return document.getCallback().createObject( bson, value );
+      case ARRAY:
+        return document.getCallback().createArray( bson, value );
+      case OBJECT_ID:
+        return new ObjectId( Arrays.copyOfRange( bson, value, value + 12 ) );
+      case BOOLEAN:
+        return bson[ value ] != 0;
+      case DATE_TIME:
+        return new Date( readLong( bson, value ) );
+      case NULL:
+        return null;
+      case INT32:
+        return readInt( bson, value );
+      case INT64:
+        return readLong( bson, value );
+      default:
+        // rarely used types are decoded by the enclosing document
+        return getFromParent( document, bson );
+    }
+  }
+
+  private Object getFromParent( RawDBObject document, byte[] bson ) {
+    int parent = document.getOffset();
+    for ( int i = 0; i < names.length - 1; i++ ) {
+      parent = findElement( bson, parent, utf8Names[ i ] ) + 1 + utf8Names[ i ].length + 1;
+    }
+    return new RawDBObject( bson, parent, document.getCallback() ).get( names[ names.length - 1 ] );
+  }
+
+  /**
+   * @return the position of the element with the given name in the document at offset, or -1
+   */
+  private static int findElement( byte[] bson, int offset, byte[] name ) {
+    int end = offset + readInt( bson, offset ) - 1;
+    int position = offset + 4;
+    while ( position < end ) {
+      int element = position;
+      byte type = bson[ position++ ];
+      boolean matches = true;
+      for ( int i = 0; i < name.length; i++ ) {
+        if ( bson[ position + i ] != name[ i ] ) {
+          matches = false;
+          break;
+        }
+      }
+      if ( matches && bson[ position + name.length ] == 0 ) {
+        return element;
+      }
+      position = BsonBytes.skipValue( bson, BsonBytes.skipCString( bson, position ), type );
+    }
+    return -1;
+  }
+
+  /**
+   * @return the non-negative int in name, or -1 if name is not a plain decimal number.  Leading zeros are
+   * rejected: BSON arrays name their elements "0", "1", ..., so "03" could only match a document field.
+   */
+  private static int parseIndex( String name ) {
+    if ( name.isEmpty() || name.length() > 9 || name.length() > 1 && name.charAt( 0 ) == '0' ) {
+      return -1;
+    }
+    int index = 0;
+    for ( int i = 0; i < name.length(); i++ ) {
+      char c = name.charAt( i );
+      if ( c < '0' || c > '9' ) {
+        return -1;
+      }
+      index = index * 10 + c - '0';
+    }
+    return index;
+  }
+
+  private static IllegalArgumentException malformed( String path ) {
+    return new IllegalArgumentException( "Malformed field path: " + path );
+  }
+
+  @Override
+  public boolean equals( Object o ) {
+    return o instanceof FieldPath && Arrays.equals( names, ( (FieldPath) o ).names );
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode( names );
+  }
+
+  @Override
+  public String toString() {
+    return path;
+  }
+}
@@ -0,0 +1,271 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper.cursor;
+
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import org.pentaho.mongo.AuthContext;
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.KerberosDelegate;
+
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MongoCursorWrapper which runs every call against the wrapped cursor within an AuthContext.
+ * The actions for hasNext() and next(), which are called once per document, are allocated once
+ * per cursor rather than once per call.
+ * <p/>
+ * If a prefetch size is given, hasNext() reads up to that many documents into a local buffer within
+ * a single privileged call, and hasNext()/next() are served from the buffer until it is empty.
+ * nextBatch() drains the buffer first and reads the rest of the batch in one privileged call.
+ */
+public class KerberosDelegatingCursorWrapper extends KerberosDelegate<MongoCursorWrapper>
+  implements MongoCursorWrapper {
+
+  private final PrivilegedExceptionAction<Boolean> hasNextAction = new PrivilegedExceptionAction<Boolean>() {
+    @Override public Boolean run() throws MongoDbException {
+      return delegate.hasNext();
+    }
+  };
+
+  private final PrivilegedExceptionAction<DBObject> nextAction = new PrivilegedExceptionAction<DBObject>() {
+    @Override public DBObject run() throws MongoDbException {
+      return delegate.next();
+    }
+  };
+
+  private final PrivilegedExceptionAction<Boolean> fillAction = new PrivilegedExceptionAction<Boolean>() {
+    @Override public Boolean run() throws MongoDbException {
+      while ( buffer.size() < prefetch && delegate.hasNext() ) {
+        buffer.add( delegate.next() );
+      }
+      return buffer.size() == prefetch;
+    }
+  };
+
+  private final int prefetch;
+  private final Deque<DBObject> buffer;
+  private boolean exhausted;
+
+  public KerberosDelegatingCursorWrapper( AuthContext authContext, MongoCursorWrapper delegate ) {
+    this( authContext, delegate, 0 );
+  }
+
+  /**
+   * @param prefetch the number of documents to read ahead per privileged call, 0 or less to disable
+   */
+  public KerberosDelegatingCursorWrapper( AuthContext authContext, MongoCursorWrapper delegate, int prefetch ) {
+    super( authContext, delegate );
+    this.prefetch = prefetch;
+    this.buffer = prefetch > 0 ? new ArrayDeque<DBObject>( prefetch ) : null;
+  }
+
+  @Override
+  public boolean hasNext() throws MongoDbException {
+    if ( buffer == null ) {
+      return doAs( hasNextAction );
+    }
+    if ( buffer.isEmpty() && !exhausted ) {
+      // a short read means the underlying cursor has no more documents
+      exhausted = !doAs( fillAction );
+    }
+    return !buffer.isEmpty();
+  }
+
+  @Override
+  public DBObject next() throws MongoDbException {
+    if ( buffer == null ) {
+      return doAs( nextAction );
+    }
+    if ( !hasNext() ) {
+      throw new NoSuchElementException();
+    }
+    return buffer.poll();
+  }
+
+  @Override
+  public int nextBatch( final List<DBObject> target, final int max ) throws MongoDbException {
+    int added = 0;
+    if ( buffer != null ) {
+      while ( added < max && !buffer.isEmpty() ) {
+        target.add( buffer.poll() );
+        added++;
+      }
+      if ( added == max || exhausted ) {
+        return added;
+      }
+    }
+    final int remaining = max - added;
+    int read = doAs( new PrivilegedExceptionAction<Integer>() {
+      @Override public Integer run() throws MongoDbException {
+        return delegate.nextBatch( target, remaining );
+      }
+    } );
+    if ( buffer != null && read < remaining ) {
+      exhausted = true;
+    }
+    return added + read;
+  }
+
+  @Override
+  public ServerAddress getServerAddress() throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<ServerAddress>() {
+      @Override public ServerAddress run() throws MongoDbException {
+        return delegate.getServerAddress();
+      }
+    } );
+  }
+
+  @Override
+  public void close() throws MongoDbException {
+    if ( buffer != null ) {
+      buffer.clear();
+      exhausted = true;
+    }
+    doAs( new PrivilegedExceptionAction<Void>() {
+      @Override public Void run() throws MongoDbException {
+        delegate.close();
+        return null;
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper limit( final int i ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper run() throws MongoDbException {
+        return delegate.limit( i );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper batchSize( final int n ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper run() throws MongoDbException {
+        return delegate.batchSize( n );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper sort( final DBObject orderBy ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper run() throws MongoDbException {
+        return delegate.sort( orderBy );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper skip( final int n ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper run() throws MongoDbException {
+        return delegate.skip( n );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper hint( final DBObject indexKeys ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper run() throws MongoDbException {
+        return delegate.hint( indexKeys );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper hint( final String indexName ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper run() throws MongoDbException {
+        return delegate.hint( indexName );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper min( final DBObject min ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper run() throws MongoDbException {
+        return delegate.min( min );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper max( final DBObject max ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper run() throws MongoDbException {
+        return delegate.max( max );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper decoderFactory( final DBDecoderFactory factory ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper run() throws MongoDbException {
+        return delegate.decoderFactory( factory );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper maxTime( final long maxTime, final TimeUnit timeUnit ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper run() throws MongoDbException {
+        return delegate.maxTime( maxTime, timeUnit );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper noCursorTimeout() throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper run() throws MongoDbException {
+        return delegate.noCursorTimeout();
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper comment( final String comment ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper run() throws MongoDbException {
+        return delegate.comment( comment );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper readPreference( final ReadPreference readPreference ) throws MongoDbException {
+    return doAs( new PrivilegedExceptionAction<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper run() throws MongoDbException {
+        return delegate.readPreference( readPreference );
+      }
+    } );
+  }
+}
@@ -18,22 +18,31 @@
 package org.pentaho.mongo.wrapper.cursor;
 
 import org.pentaho.mongo.AuthContext;
-import org.pentaho.mongo.wrapper.KerberosInvocationHandler;
 
 import com.mongodb.DBCursor;
 
 public class KerberosMongoCursorWrapper extends DefaultCursorWrapper {
   private final AuthContext authContext;
+  private final int prefetch;
 
   public KerberosMongoCursorWrapper( DBCursor cursor, AuthContext authContext ) {
+    this( cursor, authContext, 0 );
+  }
+
+  /**
+   * @param prefetch the number of documents cursors derived from this one read ahead per privileged
+   *                 call, see {@link KerberosDelegatingCursorWrapper}
+   */
+  public KerberosMongoCursorWrapper( DBCursor cursor, AuthContext authContext, int prefetch ) {
     super( cursor );
     this.authContext = authContext;
+    this.prefetch = prefetch;
   }
 
   @Override
   protected MongoCursorWrapper wrap( DBCursor cursor ) {
-    return KerberosInvocationHandler.wrap( MongoCursorWrapper.class, authContext, new KerberosMongoCursorWrapper(
-        cursor, authContext ) );
+    return new KerberosDelegatingCursorWrapper( authContext, new KerberosMongoCursorWrapper(
+        cursor, authContext, prefetch ), prefetch );
   }
 
 }
@@ -0,0 +1,375 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper.cursor;
+
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import org.pentaho.mongo.MongoDbException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MongoCursorWrapper which reads several cursors concurrently on an ExecutorService and returns their
+ * documents as a single stream, in no particular order.
+ * <p/>
+ * Each cursor is drained by its own task into a shared queue holding up to about maxDocuments documents.
+ * The first error raised by any of the cursors is thrown to the consumer.  {@link #close()} stops the
+ * tasks, waits for reads in progress, and closes every cursor.  Cursor options are applied to each of the
+ * cursors and must be set before the first read; limit, skip, min and max are not supported since they
+ * have no single meaning across the cursors.
+ */
+public class MergingCursorWrapper implements MongoCursorWrapper {
+  private static final long POLL_MILLIS = 100;
+
+  private final List<MongoCursorWrapper> cursors;
+  private final ExecutorService executor;
+  private final boolean shutdownExecutor;
+  private final int maxDocuments;
+  private final int readSize;
+  private final BlockingQueue<List<DBObject>> queue;
+  private final List<Future<?>> tasks = new ArrayList<Future<?>>();
+  private final AtomicInteger finished = new AtomicInteger();
+
+  private List<DBObject> current = Collections.emptyList();
+  private int position;
+  private volatile Throwable failure;
+  private volatile boolean closed;
+
+  /**
+   * @param cursors          the cursors to read from
+   * @param executor         runs one task per cursor
+   * @param shutdownExecutor whether {@link #close()} shuts the executor down
+   * @param maxDocuments     the approximate maximum number of documents to read ahead
+   */
+  public MergingCursorWrapper( List<MongoCursorWrapper> cursors, ExecutorService executor,
+                               boolean shutdownExecutor, int maxDocuments ) {
+    if ( maxDocuments <= 0 ) {
+      throw new IllegalArgumentException( "maxDocuments must be positive" );
+    }
+    this.cursors = new ArrayList<MongoCursorWrapper>( cursors );
+    this.executor = executor;
+    this.shutdownExecutor = shutdownExecutor;
+    this.maxDocuments = maxDocuments;
+    this.readSize = Math.min( maxDocuments, PrefetchingCursorWrapper.MAX_READ_SIZE );
+    this.queue = new ArrayBlockingQueue<List<DBObject>>( Math.max( 1, maxDocuments / readSize ) );
+  }
+
+  /**
+   * Reads the cursors concurrently on a pool with one daemon thread per cursor, which is shut down when the
+   * returned cursor is closed.  Use it e.g. to drain the cursors of
+   * {@link org.pentaho.mongo.wrapper.collection.MongoCollectionWrapper#parallelScan(int, int)}.
+   *
+   * @param cursors      the cursors to read from
+   * @param maxDocuments the approximate maximum number of documents to read ahead
+   * @return a cursor returning the documents of all cursors, in no particular order
+   */
+  public static MergingCursorWrapper merge( List<MongoCursorWrapper> cursors, int maxDocuments ) {
+    final AtomicInteger count = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool( Math.max( 1, cursors.size() ), new ThreadFactory() {
+      @Override public Thread newThread( Runnable r ) {
+        Thread thread = new Thread( r, "pentaho-mongo-merging-cursor-" + count.incrementAndGet() );
+        thread.setDaemon( true );
+        return thread;
+      }
+    } );
+    return new MergingCursorWrapper( cursors, pool, true, maxDocuments );
+  }
+
+  @Override
+  public boolean hasNext() throws MongoDbException {
+    return awaitDocuments();
+  }
+
+  @Override
+  public DBObject next() throws MongoDbException {
+    if ( !awaitDocuments() ) {
+      throw new NoSuchElementException();
+    }
+    return current.get( position++ );
+  }
+
+  @Override
+  public int nextBatch( List<DBObject> target, int max ) throws MongoDbException {
+    int added = 0;
+    while ( added < max && awaitDocuments() ) {
+      int n = Math.min( max - added, current.size() - position );
+      target.addAll( current.subList( position, position + n ) );
+      position += n;
+      added += n;
+    }
+    return added;
+  }
+
+  /**
+   * @return the server address of the first cursor
+   */
+  @Override
+  public ServerAddress getServerAddress() throws MongoDbException {
+    return cursors.isEmpty() ? null : cursors.get( 0 ).getServerAddress();
+  }
+
+  @Override
+  public void close() throws MongoDbException {
+    closed = true;
+    queue.clear();
+    MongoDbException closeFailure = null;
+    for ( int i = 0; i < tasks.size(); i++ ) {
+      Future<?> task = tasks.get( i );
+      if ( task.cancel( false ) ) {
+        // never started, so its cursor is still open
+        closeFailure = close( cursors.get( i ), closeFailure );
+      } else {
+        try {
+          task.get();
+        } catch ( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+          break;
+        } catch ( ExecutionException e ) {
+          // tasks record their failures themselves
+        }
+      }
+    }
+    if ( tasks.isEmpty() ) {
+      for ( MongoCursorWrapper cursor : cursors ) {
+        closeFailure = close( cursor, closeFailure );
+      }
+    }
+    if ( shutdownExecutor ) {
+      executor.shutdown();
+    }
+    if ( closeFailure != null ) {
+      throw closeFailure;
+    }
+  }
+
+  @Override
+  public MongoCursorWrapper limit( int i ) throws MongoDbException {
+    throw new MongoDbException( "limit is not supported on a merged cursor" );
+  }
+
+  @Override
+  public MongoCursorWrapper batchSize( final int n ) throws MongoDbException {
+    return apply( new Option() {
+      @Override public MongoCursorWrapper apply( MongoCursorWrapper cursor ) throws MongoDbException {
+        return cursor.batchSize( n );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper sort( final DBObject orderBy ) throws MongoDbException {
+    return apply( new Option() {
+      @Override public MongoCursorWrapper apply( MongoCursorWrapper cursor ) throws MongoDbException {
+        return cursor.sort( orderBy );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper skip( int n ) throws MongoDbException {
+    throw new MongoDbException( "skip is not supported on a merged cursor" );
+  }
+
+  @Override
+  public MongoCursorWrapper hint( final DBObject indexKeys ) throws MongoDbException {
+    return apply( new Option() {
+      @Override public MongoCursorWrapper apply( MongoCursorWrapper cursor ) throws MongoDbException {
+        return cursor.hint( indexKeys );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper hint( final String indexName ) throws MongoDbException {
+    return apply( new Option() {
+      @Override public MongoCursorWrapper apply( MongoCursorWrapper cursor ) throws MongoDbException {
+        return cursor.hint( indexName );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper min( DBObject min ) throws MongoDbException {
+    throw new MongoDbException( "min is not supported on a merged cursor" );
+  }
+
+  @Override
+  public MongoCursorWrapper max( DBObject max ) throws MongoDbException {
+    throw new MongoDbException( "max is not supported on a merged cursor" );
+  }
+
+  @Override
+  public MongoCursorWrapper decoderFactory( final DBDecoderFactory factory ) throws MongoDbException {
+    return apply( new Option() {
+      @Override public MongoCursorWrapper apply( MongoCursorWrapper cursor ) throws MongoDbException {
+        return cursor.decoderFactory( factory );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper maxTime( final long maxTime, final TimeUnit timeUnit ) throws MongoDbException {
+    return apply( new Option() {
+      @Override public MongoCursorWrapper apply( MongoCursorWrapper cursor ) throws MongoDbException {
+        return cursor.maxTime( maxTime, timeUnit );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper noCursorTimeout() throws MongoDbException {
+    return apply( new Option() {
+      @Override public MongoCursorWrapper apply( MongoCursorWrapper cursor ) throws MongoDbException {
+        return cursor.noCursorTimeout();
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper comment( final String comment ) throws MongoDbException {
+    return apply( new Option() {
+      @Override public MongoCursorWrapper apply( MongoCursorWrapper cursor ) throws MongoDbException {
+        return cursor.comment( comment );
+      }
+    } );
+  }
+
+  @Override
+  public MongoCursorWrapper readPreference( final ReadPreference readPreference ) throws MongoDbException {
+    return apply( new Option() {
+      @Override public MongoCursorWrapper apply( MongoCursorWrapper cursor ) throws MongoDbException {
+        return cursor.readPreference( readPreference );
+      }
+    } );
+  }
+
+  private interface Option {
+    MongoCursorWrapper apply( MongoCursorWrapper cursor ) throws MongoDbException;
+  }
+
+  private MongoCursorWrapper apply( Option option ) throws MongoDbException {
+    if ( !tasks.isEmpty() ) {
+      throw new MongoDbException( "Cursor options must be set before the cursor is read" );
+    }
+    List<MongoCursorWrapper> applied = new ArrayList<MongoCursorWrapper>( cursors.size() );
+    for ( MongoCursorWrapper cursor : cursors ) {
+      applied.add( option.apply( cursor ) );
+    }
+    return new MergingCursorWrapper( applied, executor, shutdownExecutor, maxDocuments );
+  }
+
+  private boolean awaitDocuments() throws MongoDbException {
+    if ( tasks.isEmpty() && !closed ) {
+      start();
+    }
+    while ( position == current.size() ) {
+      if ( failure != null ) {
+        throw failure instanceof MongoDbException ? (MongoDbException) failure : new MongoDbException( failure );
+      }
+      if ( closed ) {
+        return false;
+      }
+      // tasks queue all their documents before counting themselves as finished
+      boolean allFinished = finished.get() == cursors.size();
+      List<DBObject> next;
+      try {
+        next = allFinished ? queue.poll() : queue.poll( POLL_MILLIS, TimeUnit.MILLISECONDS );
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        throw new MongoDbException( e );
+      }
+      if ( next != null ) {
+        current = next;
+        position = 0;
+      } else if ( allFinished ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void start() {
+    for ( final MongoCursorWrapper cursor : cursors ) {
+      tasks.add( executor.submit( new Runnable() {
+        @Override public void run() {
+          read( cursor );
+        }
+      } ) );
+    }
+  }
+
+  private void read( MongoCursorWrapper cursor ) {
+    try {
+      int read;
+      do {
+        List<DBObject> chunk = new ArrayList<DBObject>( readSize );
+        read = cursor.nextBatch( chunk, readSize );
+        if ( read > 0 && !put( chunk ) ) {
+          return;
+        }
+      } while ( read == readSize && !closed && failure == null );
+    } catch ( Throwable t ) {
+      if ( failure == null ) {
+        failure = t;
+      }
+    } finally {
+      try {
+        cursor.close();
+      } catch ( Throwable t ) {
+        // the documents have been read, nothing to recover
+      }
+      finished.incrementAndGet();
+    }
+  }
+
+  private boolean put( List<DBObject> chunk ) {
+    try {
+      while ( !closed ) {
+        if ( queue.offer( chunk, POLL_MILLIS, TimeUnit.MILLISECONDS ) ) {
+          return true;
+        }
+      }
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  private static MongoDbException close( MongoCursorWrapper cursor, MongoDbException previous ) {
+    try {
+      cursor.close();
+    } catch ( MongoDbException e ) {
+      return previous != null ? previous : e;
+    }
+    return previous;
+  }
+}
@@ -17,10 +17,15 @@
 
 package org.pentaho.mongo.wrapper.cursor;
 
+import com.mongodb.DBDecoderFactory;
 import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
 import org.pentaho.mongo.MongoDbException;
 
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Defines the wrapper interface for all interactions with a MongoCursor via
  * a MongoClientWrapper.  All method calls should correspond directly to the
@@ -43,6 +48,18 @@ public interface MongoCursorWrapper {
   DBObject next() throws MongoDbException;
 
 
+  /**
+   * Moves up to max documents from the cursor into target in a single call, so that consumers can
+   * work on arrays of documents and wrappers only pay their per call overhead once per batch.
+   *
+   * @param target the list the documents are appended to
+   * @param max    the maximum number of documents to add.  Matching it to the cursor's batchSize
+   *               keeps each call within one driver batch.
+   * @return the number of documents added, fewer than max only once the cursor is exhausted
+   * @throws MongoDbException
+   */
+  int nextBatch( List<DBObject> target, int max ) throws MongoDbException;
+
   /**
    * @return the server address the cursor is retrieving data from.
    * @throws MongoDbException
@@ -63,4 +80,94 @@ public interface MongoCursorWrapper {
    */
   MongoCursorWrapper limit( int i ) throws MongoDbException;
 
+  /**
+   * @param n the number of documents the server returns per round trip.  A negative value returns
+   *          at most -n documents in a single batch and closes the cursor.
+   * @return a cursor which fetches documents in batches of n
+   * @throws MongoDbException
+   */
+  MongoCursorWrapper batchSize( int n ) throws MongoDbException;
+
+  /**
+   * @param orderBy the fields to sort by, e.g. { "date": -1 }
+   * @return a cursor which returns documents in the given order
+   * @throws MongoDbException
+   */
+  MongoCursorWrapper sort( DBObject orderBy ) throws MongoDbException;
+
+  /**
+   * @param n the number of documents to skip
+   * @return a cursor which starts after the first n documents
+   * @throws MongoDbException
+   */
+  MongoCursorWrapper skip( int n ) throws MongoDbException;
+
+  /**
+   * @param indexKeys the key pattern of the index the query should use
+   * @return a cursor which forces the use of the given index
+   * @throws MongoDbException
+   */
+  MongoCursorWrapper hint( DBObject indexKeys ) throws MongoDbException;
+
+  /**
+   * @param indexName the name of the index the query should use
+   * @return a cursor which forces the use of the given index
+   * @throws MongoDbException
+   */
+  MongoCursorWrapper hint( String indexName ) throws MongoDbException;
+
+  /**
+   * @param min the inclusive lower bound of the index keys to scan, e.g. { "_id": 1000 }.  Must match
+   *            the key pattern of the index given to {@link #hint(DBObject)}.
+   * @return a cursor which only scans index keys from min on
+   * @throws MongoDbException
+   */
+  MongoCursorWrapper min( DBObject min ) throws MongoDbException;
+
+  /**
+   * @param max the exclusive upper bound of the index keys to scan.  Must match the key pattern of the
+   *            index given to {@link #hint(DBObject)}.
+   * @return a cursor which only scans index keys below max
+   * @throws MongoDbException
+   */
+  MongoCursorWrapper max( DBObject max ) throws MongoDbException;
+
+  /**
+   * @param factory creates the decoders turning the BSON returned by the server into DBObjects.  With
+   *                {@link com.mongodb.LazyDBDecoder#FACTORY} documents are returned as LazyDBObjects, which
+   *                keep the raw BSON and only decode the fields that are read; see {@link BsonBytes}.
+   * @return a cursor which decodes documents with decoders from factory
+   * @throws MongoDbException
+   */
+  MongoCursorWrapper decoderFactory( DBDecoderFactory factory ) throws MongoDbException;
+
+  /**
+   * @param maxTime  the maximum server side execution time of the query
+   * @param timeUnit the unit of maxTime
+   * @return a cursor which the server aborts once maxTime has elapsed
+   * @throws MongoDbException
+   */
+  MongoCursorWrapper maxTime( long maxTime, TimeUnit timeUnit ) throws MongoDbException;
+
+  /**
+   * @return a cursor which the server does not time out after a period of inactivity.  Such cursors
+   * must be closed.
+   * @throws MongoDbException
+   */
+  MongoCursorWrapper noCursorTimeout() throws MongoDbException;
+
+  /**
+   * @param comment a comment to attach to the query, visible in the profiler and server logs
+   * @return a cursor with the comment attached
+   * @throws MongoDbException
+   */
+  MongoCursorWrapper comment( String comment ) throws MongoDbException;
+
+  /**
+   * @param readPreference the read preference for this query, overriding the collection's
+   * @return a cursor which reads from members matching readPreference
+   * @throws MongoDbException
+   */
+  MongoCursorWrapper readPreference( ReadPreference readPreference ) throws MongoDbException;
+
 }
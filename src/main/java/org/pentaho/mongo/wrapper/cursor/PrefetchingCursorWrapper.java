@@ -0,0 +1,381 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper.cursor;
+
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import org.pentaho.mongo.MongoDbException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MongoCursorWrapper which reads the wrapped cursor on a background thread into a bounded queue, so that
+ * waiting for getMore round trips overlaps with processing the documents already received.
+ * <p/>
+ * The queue is bounded by a number of documents and, optionally, by their encoded BSON size; documents are
+ * only read from the wrapped cursor when there is room for them, at most one batch at a time.  The
+ * background thread starts on the first read; cursor options such as {@link #batchSize(int)} must be set
+ * before that.  An error raised while reading is thrown to the consumer once the documents queued before
+ * it have been returned.  {@link #close()} stops the background thread, waiting for any read in progress
+ * to finish, and then closes the wrapped cursor; if close is interrupted while waiting, the background thread
+ * closes the wrapped cursor once its read is done.  A consumer interrupted while waiting for documents
+ * gets a MongoDbException and the cursor keeps its interrupted status.
+ */
+public class PrefetchingCursorWrapper implements MongoCursorWrapper {
+  /**
+   * The maximum number of documents read from the wrapped cursor per call to nextBatch.
+   */
+  static final int MAX_READ_SIZE = 1000;
+
+  private final MongoCursorWrapper delegate;
+  private final int maxDocuments;
+  private final long maxBytes;
+  private final int readSize;
+  private final int batchSize;
+
+  private final Deque<DBObject> queue = new ArrayDeque<DBObject>();
+  private final Deque<Integer> queuedSizes;
+  private long queuedBytes;
+  private boolean done;
+  private Throwable failure;
+  private volatile boolean closed;
+  private Thread reader;
+  private boolean reading;
+  private boolean closeOnExit;
+
+  /**
+   * @param delegate     the cursor to read from
+   * @param maxDocuments the maximum number of documents to read ahead
+   */
+  public PrefetchingCursorWrapper( MongoCursorWrapper delegate, int maxDocuments ) {
+    this( delegate, maxDocuments, 0 );
+  }
+
+  /**
+   * @param delegate     the cursor to read from
+   * @param maxDocuments the maximum number of documents to read ahead
+   * @param maxBytes     the maximum encoded size of the documents read ahead, 0 or less for no limit.  A
+   *                     single document larger than this is still read.
+   */
+  public PrefetchingCursorWrapper( MongoCursorWrapper delegate, int maxDocuments, long maxBytes ) {
+    this( delegate, maxDocuments, maxBytes, 0 );
+  }
+
+  /**
+   * @param batchSize the batch size set on the wrapped cursor, or 0 if it was not set
+   */
+  private PrefetchingCursorWrapper( MongoCursorWrapper delegate, int maxDocuments, long maxBytes,
+                                    int batchSize ) {
+    if ( maxDocuments <= 0 ) {
+      throw new IllegalArgumentException( "maxDocuments must be positive" );
+    }
+    this.delegate = delegate;
+    this.maxDocuments = maxDocuments;
+    this.maxBytes = maxBytes;
+    // each read stays within one driver batch, so close does not wait for several getMores
+    this.readSize = Math.min( maxDocuments, batchSize > 0 ? Math.min( batchSize, MAX_READ_SIZE ) : MAX_READ_SIZE );
+    this.batchSize = batchSize;
+    this.queuedSizes = maxBytes > 0 ? new ArrayDeque<Integer>() : null;
+  }
+
+  @Override
+  public boolean hasNext() throws MongoDbException {
+    synchronized ( queue ) {
+      return awaitDocuments();
+    }
+  }
+
+  @Override
+  public DBObject next() throws MongoDbException {
+    synchronized ( queue ) {
+      if ( !awaitDocuments() ) {
+        throw new NoSuchElementException();
+      }
+      return poll();
+    }
+  }
+
+  @Override
+  public int nextBatch( List<DBObject> target, int max ) throws MongoDbException {
+    synchronized ( queue ) {
+      int added = 0;
+      while ( added < max && awaitDocuments() ) {
+        while ( added < max && !queue.isEmpty() ) {
+          target.add( poll() );
+          added++;
+        }
+      }
+      return added;
+    }
+  }
+
+  @Override
+  public ServerAddress getServerAddress() throws MongoDbException {
+    return delegate.getServerAddress();
+  }
+
+  @Override
+  public void close() throws MongoDbException {
+    Thread started;
+    synchronized ( queue ) {
+      closed = true;
+      queue.clear();
+      queue.notifyAll();
+      started = reader;
+    }
+    if ( started != null && started != Thread.currentThread() ) {
+      try {
+        // the wrapped cursor must not be closed while the reader is still using it
+        started.join();
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized ( queue ) {
+      if ( reading ) {
+        // interrupted before the reader finished, it closes the wrapped cursor on its way out
+        closeOnExit = true;
+        return;
+      }
+    }
+    delegate.close();
+  }
+
+  @Override
+  public MongoCursorWrapper limit( int i ) throws MongoDbException {
+    return rewrap( beforeStart().limit( i ) );
+  }
+
+  @Override
+  public MongoCursorWrapper batchSize( int n ) throws MongoDbException {
+    return new PrefetchingCursorWrapper( beforeStart().batchSize( n ), maxDocuments, maxBytes, Math.abs( n ) );
+  }
+
+  @Override
+  public MongoCursorWrapper sort( DBObject orderBy ) throws MongoDbException {
+    return rewrap( beforeStart().sort( orderBy ) );
+  }
+
+  @Override
+  public MongoCursorWrapper skip( int n ) throws MongoDbException {
+    return rewrap( beforeStart().skip( n ) );
+  }
+
+  @Override
+  public MongoCursorWrapper hint( DBObject indexKeys ) throws MongoDbException {
+    return rewrap( beforeStart().hint( indexKeys ) );
+  }
+
+  @Override
+  public MongoCursorWrapper hint( String indexName ) throws MongoDbException {
+    return rewrap( beforeStart().hint( indexName ) );
+  }
+
+  @Override
+  public MongoCursorWrapper min( DBObject min ) throws MongoDbException {
+    return rewrap( beforeStart().min( min ) );
+  }
+
+  @Override
+  public MongoCursorWrapper max( DBObject max ) throws MongoDbException {
+    return rewrap( beforeStart().max( max ) );
+  }
+
+  @Override
+  public MongoCursorWrapper decoderFactory( DBDecoderFactory factory ) throws MongoDbException {
+    return rewrap( beforeStart().decoderFactory( factory ) );
+  }
+
+  @Override
+  public MongoCursorWrapper maxTime( long maxTime, TimeUnit timeUnit ) throws MongoDbException {
+    return rewrap( beforeStart().maxTime( maxTime, timeUnit ) );
+  }
+
+  @Override
+  public MongoCursorWrapper noCursorTimeout() throws MongoDbException {
+    return rewrap( beforeStart().noCursorTimeout() );
+  }
+
+  @Override
+  public MongoCursorWrapper comment( String comment ) throws MongoDbException {
+    return rewrap( beforeStart().comment( comment ) );
+  }
+
+  @Override
+  public MongoCursorWrapper readPreference( ReadPreference readPreference ) throws MongoDbException {
+    return rewrap( beforeStart().readPreference( readPreference ) );
+  }
+
+  private MongoCursorWrapper beforeStart() throws MongoDbException {
+    synchronized ( queue ) {
+      if ( reader != null ) {
+        throw new MongoDbException( "Cursor options must be set before the cursor is read" );
+      }
+    }
+    return delegate;
+  }
+
+  private MongoCursorWrapper rewrap( MongoCursorWrapper cursor ) {
+    return new PrefetchingCursorWrapper( cursor, maxDocuments, maxBytes, batchSize );
+  }
+
+  /**
+   * Waits until a document is queued or the wrapped cursor is exhausted.  Must hold the queue lock.
+   *
+   * @return true if a document is queued
+   */
+  private boolean awaitDocuments() throws MongoDbException {
+    if ( reader == null && !closed ) {
+      start();
+    }
+    while ( queue.isEmpty() && !done && !closed ) {
+      try {
+        queue.wait();
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+        throw new MongoDbException( e );
+      }
+    }
+    if ( !queue.isEmpty() ) {
+      return true;
+    }
+    if ( failure instanceof MongoDbException ) {
+      throw (MongoDbException) failure;
+    } else if ( failure != null ) {
+      throw new MongoDbException( failure );
+    }
+    return false;
+  }
+
+  private DBObject poll() {
+    if ( queuedSizes != null ) {
+      queuedBytes -= queuedSizes.poll();
+    }
+    DBObject document = queue.poll();
+    // wake the reader if it was waiting for room
+    queue.notifyAll();
+    return document;
+  }
+
+  private void start() {
+    reading = true;
+    reader = new Thread( new Runnable() {
+      @Override public void run() {
+        read();
+      }
+    }, "pentaho-mongo-cursor-prefetch" );
+    reader.setDaemon( true );
+    reader.start();
+  }
+
+  private void read() {
+    List<DBObject> chunk = new ArrayList<DBObject>( readSize );
+    try {
+      while ( true ) {
+        int max;
+        synchronized ( queue ) {
+          // only read what there is room for, so at most maxDocuments documents are held
+          while ( !closed && !hasRoomToRead() ) {
+            queue.wait();
+          }
+          if ( closed ) {
+            return;
+          }
+          // with a byte bound the size of the next document is unknown, so read one at a time
+          max = maxBytes > 0 ? 1 : Math.min( readSize, maxDocuments - queue.size() );
+        }
+        chunk.clear();
+        int read = delegate.nextBatch( chunk, max );
+        for ( DBObject document : chunk ) {
+          int size = queuedSizes != null ? BsonBytes.size( document ) : 0;
+          synchronized ( queue ) {
+            while ( !closed && !queue.isEmpty() && !hasRoom( size ) ) {
+              queue.wait();
+            }
+            if ( closed ) {
+              return;
+            }
+            queue.add( document );
+            if ( queuedSizes != null ) {
+              queuedSizes.add( size );
+              queuedBytes += size;
+            }
+            queue.notifyAll();
+          }
+        }
+        if ( read < max ) {
+          synchronized ( queue ) {
+            done = true;
+            queue.notifyAll();
+          }
+          return;
+        }
+      }
+    } catch ( Throwable t ) {
+      synchronized ( queue ) {
+        failure = t;
+        done = true;
+        queue.notifyAll();
+      }
+    } finally {
+      exit();
+    }
+  }
+
+  private void exit() {
+    boolean close;
+    synchronized ( queue ) {
+      reading = false;
+      close = closeOnExit;
+    }
+    if ( close ) {
+      try {
+        delegate.close();
+      } catch ( MongoDbException e ) {
+        // nobody left to report it to
+      }
+    }
+  }
+
+  private boolean hasRoomToRead() {
+    return queue.size() < maxDocuments && ( maxBytes <= 0 || queuedBytes < maxBytes );
+  }
+
+  private boolean hasRoom( int bytes ) {
+    return queue.size() < maxDocuments && ( maxBytes <= 0 || queuedBytes + bytes <= maxBytes );
+  }
+
+  int queuedDocuments() {
+    synchronized ( queue ) {
+      return queue.size();
+    }
+  }
+
+  long queuedBytes() {
+    synchronized ( queue ) {
+      return queuedBytes;
+    }
+  }
+}
@@ -0,0 +1,45 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.cursor;
+
+import com.mongodb.DBCallback;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.LazyDBCallback;
+import com.mongodb.LazyDBDecoder;
+
+/**
+ * LazyDBDecoder which returns {@link RawDBObject}s, giving direct access to the BSON of each document.
+ */
+public class RawDBDecoder extends LazyDBDecoder {
+
+  public static final DBDecoderFactory FACTORY = new DBDecoderFactory() {
+    @Override public DBDecoder create() {
+      return new RawDBDecoder();
+    }
+  };
+
+  @Override
+  public DBCallback getDBCallback( DBCollection collection ) {
+    return new LazyDBCallback( collection ) {
+      @Override public Object createObject( byte[] bytes, int offset ) {
+        return new RawDBObject( bytes, offset, this );
+      }
+    };
+  }
+}
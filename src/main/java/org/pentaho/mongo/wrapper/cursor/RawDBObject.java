@@ -0,0 +1,56 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.cursor;
+
+import com.mongodb.LazyDBObject;
+import org.bson.LazyBSONCallback;
+
+/**
+ * LazyDBObject which exposes the buffer holding its BSON, so it can be scanned without copying.  Returned by
+ * cursors read with {@link RawDBDecoder#FACTORY}.
+ */
+public class RawDBObject extends LazyDBObject {
+  private final LazyBSONCallback callback;
+
+  public RawDBObject( byte[] bytes, int offset, LazyBSONCallback callback ) {
+    super( bytes, offset, callback );
+    this.callback = callback;
+  }
+
+  /**
+   * @return the buffer holding the document, which must not be modified
+   */
+  @Override
+  public byte[] getBytes() {
+    return super.getBytes();
+  }
+
+  /**
+   * @return the position of the document within {@link #getBytes()}
+   */
+  @Override
+  public int getOffset() {
+    return super.getOffset();
+  }
+
+  /**
+   * @return the callback creating the embedded documents and arrays of this document
+   */
+  LazyBSONCallback getCallback() {
+    return callback;
+  }
+}
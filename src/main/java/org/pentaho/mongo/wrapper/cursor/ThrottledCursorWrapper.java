@@ -0,0 +1,148 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.cursor;
+
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.Throttle;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MongoCursorWrapper which paces the documents returned by the wrapped cursor with a {@link Throttle}.  As
+ * the driver only sends a getMore once the previous batch has been consumed, this also paces the getMores.
+ */
+public class ThrottledCursorWrapper implements MongoCursorWrapper {
+  private final MongoCursorWrapper delegate;
+  private final Throttle throttle;
+
+  public ThrottledCursorWrapper( MongoCursorWrapper delegate, Throttle throttle ) {
+    this.delegate = delegate;
+    this.throttle = throttle;
+  }
+
+  @Override
+  public boolean hasNext() throws MongoDbException {
+    return delegate.hasNext();
+  }
+
+  @Override
+  public DBObject next() throws MongoDbException {
+    DBObject next = delegate.next();
+    throttle.acquire( 1, throttle.limitsBytes() ? BsonBytes.size( next ) : 0 );
+    return next;
+  }
+
+  @Override
+  public int nextBatch( List<DBObject> target, int max ) throws MongoDbException {
+    int first = target.size();
+    int read = delegate.nextBatch( target, max );
+    long bytes = 0;
+    if ( throttle.limitsBytes() ) {
+      for ( int i = first; i < target.size(); i++ ) {
+        bytes += BsonBytes.size( target.get( i ) );
+      }
+    }
+    if ( read > 0 ) {
+      throttle.acquire( read, bytes );
+    }
+    return read;
+  }
+
+  @Override
+  public ServerAddress getServerAddress() throws MongoDbException {
+    return delegate.getServerAddress();
+  }
+
+  @Override
+  public void close() throws MongoDbException {
+    delegate.close();
+  }
+
+  @Override
+  public MongoCursorWrapper limit( int i ) throws MongoDbException {
+    return rewrap( delegate.limit( i ) );
+  }
+
+  @Override
+  public MongoCursorWrapper batchSize( int n ) throws MongoDbException {
+    return rewrap( delegate.batchSize( n ) );
+  }
+
+  @Override
+  public MongoCursorWrapper sort( DBObject orderBy ) throws MongoDbException {
+    return rewrap( delegate.sort( orderBy ) );
+  }
+
+  @Override
+  public MongoCursorWrapper skip( int n ) throws MongoDbException {
+    return rewrap( delegate.skip( n ) );
+  }
+
+  @Override
+  public MongoCursorWrapper hint( DBObject indexKeys ) throws MongoDbException {
+    return rewrap( delegate.hint( indexKeys ) );
+  }
+
+  @Override
+  public MongoCursorWrapper hint( String indexName ) throws MongoDbException {
+    return rewrap( delegate.hint( indexName ) );
+  }
+
+  @Override
+  public MongoCursorWrapper min( DBObject min ) throws MongoDbException {
+    return rewrap( delegate.min( min ) );
+  }
+
+  @Override
+  public MongoCursorWrapper max( DBObject max ) throws MongoDbException {
+    return rewrap( delegate.max( max ) );
+  }
+
+  @Override
+  public MongoCursorWrapper decoderFactory( DBDecoderFactory factory ) throws MongoDbException {
+    return rewrap( delegate.decoderFactory( factory ) );
+  }
+
+  @Override
+  public MongoCursorWrapper maxTime( long maxTime, TimeUnit timeUnit ) throws MongoDbException {
+    return rewrap( delegate.maxTime( maxTime, timeUnit ) );
+  }
+
+  @Override
+  public MongoCursorWrapper noCursorTimeout() throws MongoDbException {
+    return rewrap( delegate.noCursorTimeout() );
+  }
+
+  @Override
+  public MongoCursorWrapper comment( String comment ) throws MongoDbException {
+    return rewrap( delegate.comment( comment ) );
+  }
+
+  @Override
+  public MongoCursorWrapper readPreference( ReadPreference readPreference ) throws MongoDbException {
+    return rewrap( delegate.readPreference( readPreference ) );
+  }
+
+  private MongoCursorWrapper rewrap( MongoCursorWrapper cursor ) {
+    return new ThrottledCursorWrapper( cursor, throttle );
+  }
+}
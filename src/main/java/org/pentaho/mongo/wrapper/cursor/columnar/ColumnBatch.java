@@ -0,0 +1,243 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.cursor.columnar;
+
+import org.bson.types.ObjectId;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A reusable batch of rows stored column by column, filled by {@link ColumnarDecoder}.
+ * <p/>
+ * Each column has a null bitmap and, depending on its {@link ColumnType}, a long[], double[], boolean[] or a
+ * byte table.  A byte table keeps the values of all rows back to back in one byte[], with the offset and length
+ * of each row's value in int[]s.  The arrays are exposed for consumers which process columns directly; they are
+ * reused by the next batch after {@link #clear()}.
+ */
+public class ColumnBatch {
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+  private static final int INITIAL_BYTES_PER_ROW = 16;
+
+  private final ColumnarSchema schema;
+  private final int capacity;
+  private final long[][] nulls;
+  private final long[][] longs;
+  private final double[][] doubles;
+  private final boolean[][] booleans;
+  private final byte[][] bytes;
+  private final int[][] offsets;
+  private final int[][] lengths;
+  private final int[] bytesUsed;
+  private int size;
+
+  public ColumnBatch( ColumnarSchema schema, int capacity ) {
+    if ( capacity <= 0 ) {
+      throw new IllegalArgumentException( "capacity must be positive" );
+    }
+    this.schema = schema;
+    this.capacity = capacity;
+    int columns = schema.size();
+    nulls = new long[ columns ][];
+    longs = new long[ columns ][];
+    doubles = new double[ columns ][];
+    booleans = new boolean[ columns ][];
+    bytes = new byte[ columns ][];
+    offsets = new int[ columns ][];
+    lengths = new int[ columns ][];
+    bytesUsed = new int[ columns ];
+    for ( int c = 0; c < columns; c++ ) {
+      nulls[ c ] = new long[ ( capacity + 63 ) / 64 ];
+      switch ( schema.getType( c ) ) {
+        case INT64:
+        case DATE:
+          longs[ c ] = new long[ capacity ];
+          break;
+        case DOUBLE:
+          doubles[ c ] = new double[ capacity ];
+          break;
+        case BOOLEAN:
+          booleans[ c ] = new boolean[ capacity ];
+          break;
+        default:
+          bytes[ c ] = new byte[ capacity * INITIAL_BYTES_PER_ROW ];
+          offsets[ c ] = new int[ capacity ];
+          lengths[ c ] = new int[ capacity ];
+      }
+    }
+    clear();
+  }
+
+  public ColumnarSchema getSchema() {
+    return schema;
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isFull() {
+    return size == capacity;
+  }
+
+  /**
+   * Empties the batch so it can be filled again.
+   */
+  public void clear() {
+    for ( int c = 0; c < nulls.length; c++ ) {
+      Arrays.fill( nulls[ c ], -1L );
+      bytesUsed[ c ] = 0;
+    }
+    size = 0;
+  }
+
+  public boolean isNull( int column, int row ) {
+    return ( nulls[ column ][ row >>> 6 ] & ( 1L << row ) ) != 0;
+  }
+
+  public long getLong( int column, int row ) {
+    return longs[ column ][ row ];
+  }
+
+  public double getDouble( int column, int row ) {
+    return doubles[ column ][ row ];
+  }
+
+  public boolean getBoolean( int column, int row ) {
+    return booleans[ column ][ row ];
+  }
+
+  /**
+   * @return the value of a STRING column, or the hex string of an OBJECT_ID column, or null
+   */
+  public String getString( int column, int row ) {
+    if ( isNull( column, row ) ) {
+      return null;
+    }
+    if ( schema.getType( column ) == ColumnType.OBJECT_ID ) {
+      return getObjectId( column, row ).toHexString();
+    }
+    return new String( bytes[ column ], offsets[ column ][ row ], lengths[ column ][ row ], UTF8 );
+  }
+
+  /**
+   * @return the value of an OBJECT_ID column, or null
+   */
+  public ObjectId getObjectId( int column, int row ) {
+    if ( isNull( column, row ) ) {
+      return null;
+    }
+    return new ObjectId( Arrays.copyOfRange( bytes[ column ], offsets[ column ][ row ],
+      offsets[ column ][ row ] + lengths[ column ][ row ] ) );
+  }
+
+  /**
+   * @return the null bitmap of the column; bit row % 64 of word row / 64 is set if the row is null
+   */
+  public long[] nulls( int column ) {
+    return nulls[ column ];
+  }
+
+  /**
+   * @return the values of an INT64 or DATE column
+   */
+  public long[] longs( int column ) {
+    return longs[ column ];
+  }
+
+  /**
+   * @return the values of a DOUBLE column
+   */
+  public double[] doubles( int column ) {
+    return doubles[ column ];
+  }
+
+  /**
+   * @return the values of a BOOLEAN column
+   */
+  public boolean[] booleans( int column ) {
+    return booleans[ column ];
+  }
+
+  /**
+   * @return the byte table of a STRING or OBJECT_ID column
+   */
+  public byte[] bytes( int column ) {
+    return bytes[ column ];
+  }
+
+  /**
+   * @return the offsets of each row's value within {@link #bytes(int)}
+   */
+  public int[] offsets( int column ) {
+    return offsets[ column ];
+  }
+
+  /**
+   * @return the lengths of each row's value within {@link #bytes(int)}
+   */
+  public int[] lengths( int column ) {
+    return lengths[ column ];
+  }
+
+  /**
+   * Starts a new row, with every column null.
+   *
+   * @return the index of the row
+   */
+  int addRow() {
+    if ( size == capacity ) {
+      throw new IllegalStateException( "Batch is full" );
+    }
+    return size++;
+  }
+
+  void setLong( int column, int row, long value ) {
+    longs[ column ][ row ] = value;
+    setNotNull( column, row );
+  }
+
+  void setDouble( int column, int row, double value ) {
+    doubles[ column ][ row ] = value;
+    setNotNull( column, row );
+  }
+
+  void setBoolean( int column, int row, boolean value ) {
+    booleans[ column ][ row ] = value;
+    setNotNull( column, row );
+  }
+
+  void setBytes( int column, int row, byte[] source, int offset, int length ) {
+    int used = bytesUsed[ column ];
+    if ( used + length > bytes[ column ].length ) {
+      bytes[ column ] = Arrays.copyOf( bytes[ column ], Math.max( used + length, 2 * bytes[ column ].length ) );
+    }
+    System.arraycopy( source, offset, bytes[ column ], used, length );
+    offsets[ column ][ row ] = used;
+    lengths[ column ][ row ] = length;
+    bytesUsed[ column ] = used + length;
+    setNotNull( column, row );
+  }
+
+  private void setNotNull( int column, int row ) {
+    nulls[ column ][ row >>> 6 ] &= ~( 1L << row );
+  }
+}
@@ -0,0 +1,53 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.cursor.columnar;
+
+/**
+ * The types of the columns of a {@link ColumnBatch}, and the BSON types each accepts.  Values of any other BSON
+ * type are stored as null.
+ */
+public enum ColumnType {
+  /**
+   * 32 and 64 bit integers, stored in a long[].
+   */
+  INT64,
+
+  /**
+   * Doubles, 32 and 64 bit integers, stored in a double[].
+   */
+  DOUBLE,
+
+  /**
+   * Booleans, stored in a boolean[].
+   */
+  BOOLEAN,
+
+  /**
+   * UTC datetimes, stored as milliseconds since the epoch in a long[].
+   */
+  DATE,
+
+  /**
+   * Strings and symbols, stored as UTF-8 in a byte table.
+   */
+  STRING,
+
+  /**
+   * ObjectIds, stored as their 12 bytes in a byte table.
+   */
+  OBJECT_ID
+}
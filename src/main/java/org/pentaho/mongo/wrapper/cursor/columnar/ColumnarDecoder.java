@@ -0,0 +1,173 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.cursor.columnar;
+
+import com.mongodb.DBObject;
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.cursor.BsonBytes;
+import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+import org.pentaho.mongo.wrapper.cursor.RawDBDecoder;
+import org.pentaho.mongo.wrapper.cursor.RawDBObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.pentaho.mongo.wrapper.cursor.BsonBytes.readInt;
+import static org.pentaho.mongo.wrapper.cursor.BsonBytes.readLong;
+
+/**
+ * Decodes BSON documents straight into the columns of a {@link ColumnBatch}, without building DBObjects.
+ * <p/>
+ * Each document is scanned once.  Field names are compared as bytes against the schema, fields outside the
+ * schema are skipped using their encoded sizes, and only embedded documents and arrays containing columns are
+ * descended into.  Cursors should be read with {@link RawDBDecoder#FACTORY} so documents are scanned in the
+ * buffer they were received in; other documents are encoded first.
+ * <p/>
+ * A decoder is not thread safe.
+ */
+public class ColumnarDecoder {
+  private static final byte DOUBLE = 0x01;
+  private static final byte STRING = 0x02;
+  private static final byte DOCUMENT = 0x03;
+  private static final byte ARRAY = 0x04;
+  private static final byte OBJECT_ID = 0x07;
+  private static final byte BOOLEAN = 0x08;
+  private static final byte DATE_TIME = 0x09;
+  private static final byte SYMBOL = 0x0E;
+  private static final byte INT32 = 0x10;
+  private static final byte INT64 = 0x12;
+
+  private final ColumnarSchema schema;
+  private final ColumnType[] types;
+  private final List<DBObject> documents = new ArrayList<DBObject>();
+
+  public ColumnarDecoder( ColumnarSchema schema ) {
+    this.schema = schema;
+    this.types = new ColumnType[ schema.size() ];
+    for ( int i = 0; i < types.length; i++ ) {
+      types[ i ] = schema.getType( i );
+    }
+  }
+
+  /**
+   * Reads documents from the cursor until the batch is full or the cursor is exhausted.
+   *
+   * @return the number of rows added, 0 once the cursor is exhausted
+   * @throws IllegalStateException if the batch is already full, which would otherwise look like the end of the
+   *                               cursor
+   * @throws MongoDbException
+   */
+  public int decode( MongoCursorWrapper cursor, ColumnBatch batch ) throws MongoDbException {
+    if ( batch.isFull() ) {
+      throw new IllegalStateException( "Batch is full" );
+    }
+    documents.clear();
+    int read = cursor.nextBatch( documents, batch.capacity() - batch.size() );
+    for ( int i = 0; i < read; i++ ) {
+      decode( documents.get( i ), batch );
+    }
+    documents.clear();
+    return read;
+  }
+
+  /**
+   * Adds the document to the batch as a new row.
+   */
+  public void decode( DBObject document, ColumnBatch batch ) {
+    if ( document instanceof RawDBObject ) {
+      RawDBObject raw = (RawDBObject) document;
+      decode( raw.getBytes(), raw.getOffset(), batch );
+    } else {
+      decode( BsonBytes.toByteArray( document ), 0, batch );
+    }
+  }
+
+  /**
+   * Adds the BSON document starting at offset to the batch as a new row.
+   */
+  public void decode( byte[] bson, int offset, ColumnBatch batch ) {
+    if ( batch.getSchema() != schema ) {
+      throw new IllegalArgumentException( "Batch was created for a different schema" );
+    }
+    int row = batch.addRow();
+    scan( bson, offset, schema.getRoot(), batch, row );
+  }
+
+  private void scan( byte[] bson, int offset, ColumnarSchema.Node node, ColumnBatch batch, int row ) {
+    int end = offset + readInt( bson, offset ) - 1;
+    int position = offset + 4;
+    while ( position < end ) {
+      byte type = bson[ position++ ];
+      int nameStart = position;
+      position = BsonBytes.skipCString( bson, position );
+      ColumnarSchema.Node child = node.find( bson, nameStart, position - nameStart - 1 );
+      if ( child != null ) {
+        if ( child.column >= 0 ) {
+          store( bson, position, type, child.column, batch, row );
+        }
+        if ( child.hasChildren() && ( type == DOCUMENT || type == ARRAY ) ) {
+          scan( bson, position, child, batch, row );
+        }
+      }
+      position = BsonBytes.skipValue( bson, position, type );
+    }
+  }
+
+  private void store( byte[] bson, int position, byte type, int column, ColumnBatch batch, int row ) {
+    switch ( types[ column ] ) {
+      case INT64:
+        if ( type == INT32 ) {
+          batch.setLong( column, row, readInt( bson, position ) );
+        } else if ( type == INT64 ) {
+          batch.setLong( column, row, readLong( bson, position ) );
+        }
+        break;
+      case DOUBLE:
+        if ( type == DOUBLE ) {
+          batch.setDouble( column, row, Double.longBitsToDouble( readLong( bson, position ) ) );
+        } else if ( type == INT32 ) {
+          batch.setDouble( column, row, readInt( bson, position ) );
+        } else if ( type == INT64 ) {
+          batch.setDouble( column, row, readLong( bson, position ) );
+        }
+        break;
+      case BOOLEAN:
+        if ( type == BOOLEAN ) {
+          batch.setBoolean( column, row, bson[ position ] != 0 );
+        }
+        break;
+      case DATE:
+        if ( type == DATE_TIME ) {
+          batch.setLong( column, row, readLong( bson, position ) );
+        }
+        break;
+      case STRING:
+        if ( type == STRING || type == SYMBOL ) {
+          // the length includes the terminating 0
+          batch.setBytes( column, row, bson, position + 4, readInt( bson, position ) - 1 );
+        }
+        break;
+      case OBJECT_ID:
+        if ( type == OBJECT_ID ) {
+          batch.setBytes( column, row, bson, position, 12 );
+        }
+        break;
+      default:
+        throw new IllegalStateException( "Unsupported column type " + types[ column ] );
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.cursor.columnar;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An ordered list of dotted field paths, e.g. "address.city" or "tags.0", and the {@link ColumnType} each is
+ * decoded into.  The paths are compiled into a tree of UTF-8 field names, so that {@link ColumnarDecoder} can
+ * match BSON field names without decoding them.
+ */
+public class ColumnarSchema {
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  private final List<String> paths;
+  private final List<ColumnType> types;
+  private final Node root;
+
+  private ColumnarSchema( List<String> paths, List<ColumnType> types ) {
+    this.paths = Collections.unmodifiableList( paths );
+    this.types = Collections.unmodifiableList( types );
+    this.root = new Node();
+    for ( int i = 0; i < paths.size(); i++ ) {
+      Node node = root;
+      for ( String name : paths.get( i ).split( "\\." ) ) {
+        node = node.child( name.getBytes( UTF8 ) );
+      }
+      node.column = i;
+    }
+  }
+
+  public int size() {
+    return paths.size();
+  }
+
+  public String getPath( int column ) {
+    return paths.get( column );
+  }
+
+  public ColumnType getType( int column ) {
+    return types.get( column );
+  }
+
+  /**
+   * @return the column of the path, or -1 if it is not part of the schema
+   */
+  public int indexOf( String path ) {
+    return paths.indexOf( path );
+  }
+
+  Node getRoot() {
+    return root;
+  }
+
+  /**
+   * A field name within the schema.  Either a column, a document containing columns, or both.
+   */
+  static class Node {
+    private byte[][] names = new byte[ 0 ][];
+    private Node[] children = new Node[ 0 ];
+    int column = -1;
+
+    /**
+     * @return the child whose name is the bytes from offset to length, or null
+     */
+    Node find( byte[] bson, int offset, int length ) {
+      for ( int i = 0; i < names.length; i++ ) {
+        if ( matches( names[ i ], bson, offset, length ) ) {
+          return children[ i ];
+        }
+      }
+      return null;
+    }
+
+    boolean hasChildren() {
+      return children.length > 0;
+    }
+
+    private Node child( byte[] name ) {
+      Node child = find( name, 0, name.length );
+      if ( child == null ) {
+        child = new Node();
+        int n = names.length;
+        byte[][] newNames = new byte[ n + 1 ][];
+        Node[] newChildren = new Node[ n + 1 ];
+        System.arraycopy( names, 0, newNames, 0, n );
+        System.arraycopy( children, 0, newChildren, 0, n );
+        newNames[ n ] = name;
+        newChildren[ n ] = child;
+        names = newNames;
+        children = newChildren;
+      }
+      return child;
+    }
+
+    private static boolean matches( byte[] name, byte[] bson, int offset, int length ) {
+      if ( name.length != length ) {
+        return false;
+      }
+      for ( int i = 0; i < length; i++ ) {
+        if ( name[ i ] != bson[ offset + i ] ) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  public static class Builder {
+    private final List<String> paths = new ArrayList<String>();
+    private final List<ColumnType> types = new ArrayList<ColumnType>();
+
+    /**
+     * @param path the dotted path of the field
+     * @param type the type to decode it into
+     */
+    public Builder column( String path, ColumnType type ) {
+      if ( paths.contains( path ) ) {
+        throw new IllegalArgumentException( "Duplicate column " + path );
+      }
+      paths.add( path );
+      types.add( type );
+      return this;
+    }
+
+    public ColumnarSchema build() {
+      return new ColumnarSchema( new ArrayList<String>( paths ), new ArrayList<ColumnType>( types ) );
+    }
+  }
+}
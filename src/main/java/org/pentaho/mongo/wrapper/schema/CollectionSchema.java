@@ -0,0 +1,219 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.schema;
+
+import com.mongodb.DBObject;
+import org.bson.BSONObject;
+import org.pentaho.mongo.wrapper.cursor.BsonBytes;
+import org.pentaho.mongo.wrapper.cursor.RawDBObject;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The inferred schema of a collection: the {@link FieldStats} of every path seen in a sample of its documents.
+ * Documents can be added at any time, and the schemas of separate samples merged, to refine the schema
+ * incrementally.  Not thread safe; concurrent samples are built into separate schemas and then merged.
+ */
+public class CollectionSchema {
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+  private static final byte DOCUMENT = 0x03;
+  private static final byte ARRAY = 0x04;
+
+  private final FieldStats root;
+
+  public CollectionSchema() {
+    this( new FieldStats( "", "" ) );
+  }
+
+  private CollectionSchema( FieldStats root ) {
+    this.root = root;
+  }
+
+  /**
+   * @return the number of documents sampled
+   */
+  public long getDocumentCount() {
+    return root.getCount();
+  }
+
+  /**
+   * @return the top level fields, in the order they were first seen
+   */
+  public List<FieldStats> getTopLevelFields() {
+    return new ArrayList<FieldStats>( root.getChildren() );
+  }
+
+  /**
+   * @return every path, depth first, with the fields of a document in the order they were first seen
+   */
+  public List<FieldStats> getFields() {
+    List<FieldStats> fields = new ArrayList<FieldStats>();
+    for ( FieldStats field : root.getChildren() ) {
+      flatten( field, fields );
+    }
+    return fields;
+  }
+
+  private static void flatten( FieldStats field, List<FieldStats> fields ) {
+    fields.add( field );
+    if ( field.getElements() != null ) {
+      flatten( field.getElements(), fields );
+    }
+    for ( FieldStats child : field.getChildren() ) {
+      flatten( child, fields );
+    }
+  }
+
+  /**
+   * @param path e.g. a.b or items[*].price
+   * @return the statistics of the path, or null if it was not seen
+   */
+  public FieldStats getField( String path ) {
+    FieldStats field = root;
+    for ( String segment : path.split( "\\." ) ) {
+      String name = segment;
+      int arrays = 0;
+      while ( name.endsWith( FieldStats.ELEMENTS ) ) {
+        name = name.substring( 0, name.length() - FieldStats.ELEMENTS.length() );
+        arrays++;
+      }
+      field = field.getChild( name );
+      for ( int i = 0; field != null && i < arrays; i++ ) {
+        field = field.getElements();
+      }
+      if ( field == null ) {
+        return null;
+      }
+    }
+    return field;
+  }
+
+  /**
+   * Adds the paths of the document.  The BSON of documents read with
+   * {@link org.pentaho.mongo.wrapper.cursor.RawDBDecoder#FACTORY} is scanned without decoding it.
+   */
+  public void add( DBObject document ) {
+    if ( document instanceof RawDBObject ) {
+      RawDBObject raw = (RawDBObject) document;
+      root.record( FieldType.DOCUMENT );
+      addDocument( root, raw.getBytes(), raw.getOffset() );
+    } else {
+      root.record( FieldType.DOCUMENT );
+      addDocument( root, document );
+    }
+  }
+
+  /**
+   * Adds the documents and paths of another sample of the collection.
+   */
+  public void merge( CollectionSchema other ) {
+    root.merge( other.root );
+  }
+
+  /**
+   * @return the schema as a document for {@link SchemaCache}
+   */
+  DBObject toDBObject() {
+    return root.toDBObject();
+  }
+
+  /**
+   * @return the schema written by {@link #toDBObject()}
+   */
+  static CollectionSchema fromDBObject( DBObject document ) {
+    return new CollectionSchema( FieldStats.fromDBObject( document, "" ) );
+  }
+
+  private static void addDocument( FieldStats parent, BSONObject document ) {
+    if ( document instanceof List ) {
+      addArray( parent, (List<?>) document );
+      return;
+    }
+    for ( String name : document.keySet() ) {
+      addValue( parent.child( name ), document.get( name ) );
+    }
+  }
+
+  private static void addValue( FieldStats field, Object value ) {
+    FieldType type = FieldType.of( value );
+    if ( type == FieldType.ARRAY ) {
+      List<?> array = (List<?>) value;
+      field.recordArray( array.size() );
+      addArray( field.elements(), array );
+    } else {
+      field.record( type );
+      if ( type == FieldType.DOCUMENT ) {
+        if ( value instanceof BSONObject ) {
+          addDocument( field, (BSONObject) value );
+        } else {
+          for ( Map.Entry<?, ?> entry : ( (Map<?, ?>) value ).entrySet() ) {
+            addValue( field.child( String.valueOf( entry.getKey() ) ), entry.getValue() );
+          }
+        }
+      }
+    }
+  }
+
+  private static void addArray( FieldStats elements, List<?> array ) {
+    for ( Object element : array ) {
+      addValue( elements, element );
+    }
+  }
+
+  /**
+   * Adds the elements of the BSON document at offset to parent.
+   */
+  private static void addDocument( FieldStats parent, byte[] bson, int offset ) {
+    int position = offset + 4;
+    int end = offset + BsonBytes.readInt( bson, offset ) - 1;
+    while ( position < end ) {
+      byte type = bson[ position++ ];
+      int nameEnd = BsonBytes.skipCString( bson, position );
+      FieldStats field = parent.child( new String( bson, position, nameEnd - 1 - position, UTF8 ) );
+      position = addValue( field, type, bson, nameEnd );
+    }
+  }
+
+  /**
+   * Records the value of the given BSON type at position.
+   *
+   * @return the position after the value
+   */
+  private static int addValue( FieldStats field, byte type, byte[] bson, int position ) {
+    if ( type == ARRAY ) {
+      FieldStats elements = field.elements();
+      int length = 0;
+      int element = position + 4;
+      int end = position + BsonBytes.readInt( bson, position ) - 1;
+      while ( element < end ) {
+        byte elementType = bson[ element++ ];
+        element = addValue( elements, elementType, bson, BsonBytes.skipCString( bson, element ) );
+        length++;
+      }
+      field.recordArray( length );
+      return end + 1;
+    }
+    field.record( FieldType.forBsonType( type ) );
+    if ( type == DOCUMENT ) {
+      addDocument( field, bson, position );
+    }
+    return BsonBytes.skipValue( bson, position, type );
+  }
+}
@@ -0,0 +1,271 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.schema;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The statistics of one path of a {@link CollectionSchema}: how often it occurred, a histogram of the types of
+ * its values and, where they were arrays, their lengths.  Fields of embedded documents are children of the
+ * document's path, e.g. a.b, and the elements of arrays are recorded under the array's path followed by [*],
+ * e.g. tags[*] or items[*].price.
+ */
+public class FieldStats {
+  /**
+   * The path suffix of array elements.
+   */
+  public static final String ELEMENTS = "[*]";
+
+  private static final FieldType[] TYPES = FieldType.values();
+
+  private final String path;
+  private final String name;
+  private long count;
+  private final long[] typeCounts = new long[ TYPES.length ];
+  private long minArrayLength = Long.MAX_VALUE;
+  private long maxArrayLength;
+  private long totalArrayLength;
+  private Map<String, FieldStats> children;
+  private FieldStats elements;
+
+  FieldStats( String path, String name ) {
+    this.path = path;
+    this.name = name;
+  }
+
+  /**
+   * @return the path, e.g. items[*].price, or "" for the root of a schema
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * @return the field name, or [*] for array elements
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the number of values seen: per document for top level fields, per occurrence of the parent
+   * document or array otherwise
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @return the number of values of the type
+   */
+  public long getCount( FieldType type ) {
+    return typeCounts[ type.ordinal() ];
+  }
+
+  /**
+   * @return the types seen
+   */
+  public Set<FieldType> getTypes() {
+    Set<FieldType> types = EnumSet.noneOf( FieldType.class );
+    for ( FieldType type : TYPES ) {
+      if ( typeCounts[ type.ordinal() ] > 0 ) {
+        types.add( type );
+      }
+    }
+    return types;
+  }
+
+  /**
+   * @return the most frequent type other than NULL, NULL if only nulls were seen, or null if nothing was
+   */
+  public FieldType getDominantType() {
+    FieldType dominant = null;
+    for ( FieldType type : TYPES ) {
+      if ( type != FieldType.NULL && typeCounts[ type.ordinal() ] > 0
+        && ( dominant == null || typeCounts[ type.ordinal() ] > typeCounts[ dominant.ordinal() ] ) ) {
+        dominant = type;
+      }
+    }
+    return dominant == null && typeCounts[ FieldType.NULL.ordinal() ] > 0 ? FieldType.NULL : dominant;
+  }
+
+  /**
+   * @return the shortest array seen, or 0 if there were no arrays
+   */
+  public long getMinArrayLength() {
+    return getCount( FieldType.ARRAY ) == 0 ? 0 : minArrayLength;
+  }
+
+  /**
+   * @return the longest array seen, or 0 if there were no arrays
+   */
+  public long getMaxArrayLength() {
+    return maxArrayLength;
+  }
+
+  /**
+   * @return the mean length of the arrays seen, or 0 if there were none
+   */
+  public double getAverageArrayLength() {
+    long arrays = getCount( FieldType.ARRAY );
+    return arrays == 0 ? 0 : (double) totalArrayLength / arrays;
+  }
+
+  /**
+   * @return the fields seen in documents at this path, in the order they were first seen
+   */
+  public Collection<FieldStats> getChildren() {
+    return children == null ? Collections.<FieldStats>emptyList()
+      : Collections.unmodifiableCollection( children.values() );
+  }
+
+  /**
+   * @return the field of documents at this path, or null if it was not seen
+   */
+  public FieldStats getChild( String name ) {
+    return children == null ? null : children.get( name );
+  }
+
+  /**
+   * @return the statistics of the elements of arrays at this path, or null if there were none
+   */
+  public FieldStats getElements() {
+    return elements;
+  }
+
+  void record( FieldType type ) {
+    count++;
+    typeCounts[ type.ordinal() ]++;
+  }
+
+  void recordArray( long length ) {
+    record( FieldType.ARRAY );
+    minArrayLength = Math.min( minArrayLength, length );
+    maxArrayLength = Math.max( maxArrayLength, length );
+    totalArrayLength += length;
+  }
+
+  FieldStats child( String name ) {
+    if ( children == null ) {
+      children = new LinkedHashMap<String, FieldStats>();
+    }
+    FieldStats child = children.get( name );
+    if ( child == null ) {
+      child = new FieldStats( path.isEmpty() ? name : path + "." + name, name );
+      children.put( name, child );
+    }
+    return child;
+  }
+
+  FieldStats elements() {
+    if ( elements == null ) {
+      elements = new FieldStats( path + ELEMENTS, ELEMENTS );
+    }
+    return elements;
+  }
+
+  /**
+   * Adds the statistics of other, which has the same path, to these.
+   */
+  void merge( FieldStats other ) {
+    count += other.count;
+    for ( int i = 0; i < typeCounts.length; i++ ) {
+      typeCounts[ i ] += other.typeCounts[ i ];
+    }
+    minArrayLength = Math.min( minArrayLength, other.minArrayLength );
+    maxArrayLength = Math.max( maxArrayLength, other.maxArrayLength );
+    totalArrayLength += other.totalArrayLength;
+    for ( FieldStats otherChild : other.getChildren() ) {
+      child( otherChild.name ).merge( otherChild );
+    }
+    if ( other.elements != null ) {
+      elements().merge( other.elements );
+    }
+  }
+
+  /**
+   * @return the statistics, without the path, as a document for {@link SchemaCache}
+   */
+  DBObject toDBObject() {
+    BasicDBObject document = new BasicDBObject( "n", name ).append( "c", count );
+    BasicDBList types = new BasicDBList();
+    for ( FieldType type : getTypes() ) {
+      types.add( new BasicDBObject( "t", type.name() ).append( "c", typeCounts[ type.ordinal() ] ) );
+    }
+    document.append( "t", types );
+    if ( getCount( FieldType.ARRAY ) > 0 ) {
+      document.append( "a", Arrays.asList( minArrayLength, maxArrayLength, totalArrayLength ) );
+    }
+    if ( children != null ) {
+      BasicDBList fields = new BasicDBList();
+      for ( FieldStats child : children.values() ) {
+        fields.add( child.toDBObject() );
+      }
+      document.append( "f", fields );
+    }
+    if ( elements != null ) {
+      document.append( "e", elements.toDBObject() );
+    }
+    return document;
+  }
+
+  /**
+   * @return the statistics written by {@link #toDBObject()} for the given path
+   */
+  static FieldStats fromDBObject( DBObject document, String path ) {
+    FieldStats field = new FieldStats( path, (String) document.get( "n" ) );
+    field.count = ( (Number) document.get( "c" ) ).longValue();
+    for ( Object type : (List<?>) document.get( "t" ) ) {
+      field.typeCounts[ FieldType.valueOf( (String) ( (DBObject) type ).get( "t" ) ).ordinal() ] =
+        ( (Number) ( (DBObject) type ).get( "c" ) ).longValue();
+    }
+    List<?> arrays = (List<?>) document.get( "a" );
+    if ( arrays != null ) {
+      field.minArrayLength = ( (Number) arrays.get( 0 ) ).longValue();
+      field.maxArrayLength = ( (Number) arrays.get( 1 ) ).longValue();
+      field.totalArrayLength = ( (Number) arrays.get( 2 ) ).longValue();
+    }
+    List<?> fields = (List<?>) document.get( "f" );
+    if ( fields != null ) {
+      field.children = new LinkedHashMap<String, FieldStats>();
+      for ( Object child : fields ) {
+        String name = (String) ( (DBObject) child ).get( "n" );
+        field.children.put( name, fromDBObject( (DBObject) child, path.isEmpty() ? name : path + "." + name ) );
+      }
+    }
+    if ( document.get( "e" ) != null ) {
+      field.elements = fromDBObject( (DBObject) document.get( "e" ), path + ELEMENTS );
+    }
+    return field;
+  }
+
+  @Override
+  public String toString() {
+    return path + " " + count + " " + getTypes();
+  }
+}
@@ -0,0 +1,109 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.schema;
+
+import com.mongodb.DBObject;
+import org.bson.BSONObject;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.Code;
+import org.bson.types.ObjectId;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * The BSON types recorded by {@link FieldStats}.  Closely related types, e.g. JavaScript with and without
+ * scope, are recorded as one.
+ */
+public enum FieldType {
+  DOUBLE, STRING, DOCUMENT, ARRAY, BINARY, OBJECT_ID, BOOLEAN, DATE, NULL, REGEX, JAVASCRIPT, INT32, TIMESTAMP,
+  INT64, DECIMAL128, OTHER;
+
+  private static final FieldType[] BY_BSON_TYPE = new FieldType[ 256 ];
+
+  static {
+    Arrays.fill( BY_BSON_TYPE, OTHER );
+    BY_BSON_TYPE[ 0x01 ] = DOUBLE;
+    BY_BSON_TYPE[ 0x02 ] = STRING;
+    BY_BSON_TYPE[ 0x03 ] = DOCUMENT;
+    BY_BSON_TYPE[ 0x04 ] = ARRAY;
+    BY_BSON_TYPE[ 0x05 ] = BINARY;
+    BY_BSON_TYPE[ 0x06 ] = NULL;
+    BY_BSON_TYPE[ 0x07 ] = OBJECT_ID;
+    BY_BSON_TYPE[ 0x08 ] = BOOLEAN;
+    BY_BSON_TYPE[ 0x09 ] = DATE;
+    BY_BSON_TYPE[ 0x0A ] = NULL;
+    BY_BSON_TYPE[ 0x0B ] = REGEX;
+    BY_BSON_TYPE[ 0x0D ] = JAVASCRIPT;
+    BY_BSON_TYPE[ 0x0E ] = STRING;
+    BY_BSON_TYPE[ 0x0F ] = JAVASCRIPT;
+    BY_BSON_TYPE[ 0x10 ] = INT32;
+    BY_BSON_TYPE[ 0x11 ] = TIMESTAMP;
+    BY_BSON_TYPE[ 0x12 ] = INT64;
+    BY_BSON_TYPE[ 0x13 ] = DECIMAL128;
+  }
+
+  /**
+   * @return the type of a BSON element type byte
+   */
+  public static FieldType forBsonType( byte type ) {
+    return BY_BSON_TYPE[ type & 0xFF ];
+  }
+
+  /**
+   * @return the type of a value decoded by the driver
+   */
+  public static FieldType of( Object value ) {
+    if ( value == null ) {
+      return NULL;
+    } else if ( value instanceof String ) {
+      return STRING;
+    } else if ( value instanceof Integer || value instanceof Short || value instanceof Byte ) {
+      return INT32;
+    } else if ( value instanceof Long ) {
+      return INT64;
+    } else if ( value instanceof Double || value instanceof Float ) {
+      return DOUBLE;
+    } else if ( value instanceof Boolean ) {
+      return BOOLEAN;
+    } else if ( value instanceof Date ) {
+      return DATE;
+    } else if ( value instanceof ObjectId ) {
+      return OBJECT_ID;
+    } else if ( value instanceof List ) {
+      return ARRAY;
+    } else if ( value instanceof DBObject || value instanceof BSONObject || value instanceof Map ) {
+      return DOCUMENT;
+    } else if ( value instanceof byte[] || value instanceof Binary || value instanceof UUID ) {
+      return BINARY;
+    } else if ( value instanceof Pattern ) {
+      return REGEX;
+    } else if ( value instanceof Code ) {
+      return JAVASCRIPT;
+    } else if ( value instanceof BSONTimestamp ) {
+      return TIMESTAMP;
+    } else if ( "org.bson.types.Decimal128".equals( value.getClass().getName() ) ) {
+      return DECIMAL128;
+    }
+    return OTHER;
+  }
+}
@@ -0,0 +1,308 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.schema;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.MongoClientWrapper;
+import org.pentaho.mongo.wrapper.collection.MongoCollectionWrapper;
+import org.pentaho.mongo.wrapper.cursor.BsonBytes;
+import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+import org.pentaho.mongo.wrapper.cursor.RawDBDecoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps inferred {@link CollectionSchema}s in memory and as BSON files in a local directory, keyed by cluster,
+ * database and collection, so that field discovery does not sample the collection again each time it runs.
+ * <p/>
+ * Along with each schema the cache keeps a watermark: the greatest _id known when the collection was sampled.
+ * {@link #refresh(MongoClientWrapper, String, String, String)} adds the documents inserted since, i.e. with
+ * greater _id values, to the schema, reading them in _id order through the _id index.  This assumes
+ * increasing _id values, e.g. the default ObjectIds; changes to existing documents are only picked up by
+ * {@link #invalidate(String, String, String)} and sampling again.
+ * <p/>
+ * Collections are sampled and refreshed without holding the cache's lock.  A result is only cached if the
+ * collection's entry has not been refreshed or invalidated in the meantime.
+ * <pre>
+ *   SchemaCache cache = new SchemaCache( directory,
+ *     new SchemaInferrer.Builder( null, null, null ).sampleSize( 10000 ), 10000 );
+ *   CollectionSchema schema = cache.getSchema( client, props.get( MongoProp.HOST ), "db", "orders" );
+ * </pre>
+ */
+public class SchemaCache {
+  private static final String FILE_SUFFIX = ".schema.bson";
+  private static final DBObject ID_ASCENDING = new BasicDBObject( "_id", 1 );
+  private static final DBObject ID_DESCENDING = new BasicDBObject( "_id", -1 );
+
+  private final File directory;
+  private final SchemaInferrer.Builder inferrer;
+  private final int refreshSize;
+  private final Map<String, Slot> slots = new HashMap<String, Slot>();
+
+  /**
+   * @param directory   where schemas are stored, created if necessary
+   * @param inferrer    samples collections not in the cache, with its client, database and collection
+   *                    replaced by those of the collection
+   * @param refreshSize the maximum number of new documents read by a refresh
+   */
+  public SchemaCache( File directory, SchemaInferrer.Builder inferrer, int refreshSize ) {
+    if ( refreshSize <= 0 ) {
+      throw new IllegalArgumentException( "refreshSize must be positive" );
+    }
+    this.directory = directory;
+    this.inferrer = inferrer;
+    this.refreshSize = refreshSize;
+  }
+
+  /**
+   * @param cluster identifies the cluster, e.g. its HOST property
+   * @return the cached schema, from memory or disk, or null if there is none
+   * @throws MongoDbException if the stored schema could not be read
+   */
+  public CollectionSchema get( String cluster, String db, String collection ) throws MongoDbException {
+    String key = key( cluster, db, collection );
+    Entry entry = load( key, slot( key ) );
+    return entry == null ? null : entry.schema;
+  }
+
+  /**
+   * @return the cached schema, or if there is none the schema of a new sample of the collection, which is
+   * cached
+   * @throws MongoDbException if the collection or stored schema could not be read, or the schema not stored
+   */
+  public CollectionSchema getSchema( MongoClientWrapper client, String cluster, String db, String collection )
+    throws MongoDbException {
+    String key = key( cluster, db, collection );
+    Slot slot = slot( key );
+    long generation = generation( slot );
+    Entry entry = load( key, slot );
+    if ( entry == null ) {
+      entry = publish( key, slot, generation, infer( client, db, collection ) );
+    }
+    return entry.schema;
+  }
+
+  /**
+   * Adds up to refreshSize documents inserted since the schema was cached, or samples the collection if it is
+   * not cached.
+   *
+   * @return the refreshed schema
+   * @throws MongoDbException if the collection or stored schema could not be read, or the schema not stored
+   */
+  public CollectionSchema refresh( MongoClientWrapper client, String cluster, String db, String collection )
+    throws MongoDbException {
+    String key = key( cluster, db, collection );
+    Slot slot = slot( key );
+    long generation = generation( slot );
+    Entry entry = load( key, slot );
+    if ( entry == null ) {
+      entry = infer( client, db, collection );
+    } else {
+      MongoCollectionWrapper wrapper = client.getCollection( db, collection );
+      DBObject query = entry.watermark == null ? new BasicDBObject()
+        : new BasicDBObject( "_id", new BasicDBObject( "$gt", entry.watermark ) );
+      MongoCursorWrapper cursor = wrapper.find( query ).sort( ID_ASCENDING ).limit( refreshSize )
+        .decoderFactory( RawDBDecoder.FACTORY );
+      List<DBObject> batch = new ArrayList<DBObject>( SchemaInferrer.BATCH_SIZE );
+      Object watermark = entry.watermark;
+      // the cached schema may be in use and must keep matching its watermark if the read fails
+      CollectionSchema schema = new CollectionSchema();
+      schema.merge( entry.schema );
+      try {
+        while ( cursor.nextBatch( batch, SchemaInferrer.BATCH_SIZE ) > 0 ) {
+          for ( DBObject document : batch ) {
+            schema.add( document );
+          }
+          watermark = batch.get( batch.size() - 1 ).get( "_id" );
+          batch.clear();
+        }
+      } finally {
+        cursor.close();
+      }
+      entry = new Entry( schema, watermark );
+    }
+    return publish( key, slot, generation, entry ).schema;
+  }
+
+  /**
+   * Discards the cached schema of the collection.
+   *
+   * @throws MongoDbException if the stored schema could not be deleted
+   */
+  public void invalidate( String cluster, String db, String collection ) throws MongoDbException {
+    String key = key( cluster, db, collection );
+    Slot slot = slot( key );
+    synchronized ( slot ) {
+      synchronized ( this ) {
+        slot.entry = null;
+        slot.generation++;
+      }
+      try {
+        Files.deleteIfExists( file( key ).toPath() );
+      } catch ( IOException e ) {
+        throw new MongoDbException( e );
+      }
+    }
+  }
+
+  private Entry infer( MongoClientWrapper client, String db, String collection ) throws MongoDbException {
+    // read first so that documents inserted while sampling are added by the next refresh
+    Object watermark = null;
+    MongoCursorWrapper last = client.getCollection( db, collection )
+      .find( new BasicDBObject(), new BasicDBObject( "_id", 1 ) ).sort( ID_DESCENDING ).limit( 1 );
+    try {
+      if ( last.hasNext() ) {
+        watermark = last.next().get( "_id" );
+      }
+    } finally {
+      last.close();
+    }
+    return new Entry( inferrer.forCollection( client, db, collection ).build().infer(), watermark );
+  }
+
+  private synchronized Slot slot( String key ) {
+    Slot slot = slots.get( key );
+    if ( slot == null ) {
+      slot = new Slot();
+      slots.put( key, slot );
+    }
+    return slot;
+  }
+
+  private synchronized long generation( Slot slot ) {
+    return slot.generation;
+  }
+
+  private synchronized Entry cached( Slot slot ) {
+    return slot.entry;
+  }
+
+  private Entry load( String key, Slot slot ) throws MongoDbException {
+    Entry entry = cached( slot );
+    if ( entry != null ) {
+      return entry;
+    }
+    // the slot's lock keeps the file from being replaced or deleted while it is read
+    synchronized ( slot ) {
+      entry = cached( slot );
+      File file = file( key );
+      if ( entry != null || !file.exists() ) {
+        return entry;
+      }
+      try {
+        DBObject document = new DefaultDBDecoder().decode( Files.readAllBytes( file.toPath() ),
+          (DBCollection) null );
+        entry = new Entry( CollectionSchema.fromDBObject( (DBObject) document.get( "schema" ) ),
+          document.get( "watermark" ) );
+      } catch ( IOException e ) {
+        throw new MongoDbException( e );
+      } catch ( RuntimeException e ) {
+        throw new MongoDbException( "Could not read schema " + file, e );
+      }
+      synchronized ( this ) {
+        slot.entry = entry;
+      }
+      return entry;
+    }
+  }
+
+  /**
+   * Caches and stores the entry unless the collection was refreshed or invalidated since generation was read.
+   *
+   * @return the entry, or the one cached in the meantime if there is one
+   */
+  private Entry publish( String key, Slot slot, long generation, Entry entry ) throws MongoDbException {
+    // the generation only changes under the slot's lock, so it is still current once the file is written
+    synchronized ( slot ) {
+      synchronized ( this ) {
+        if ( slot.generation != generation ) {
+          return slot.entry == null ? entry : slot.entry;
+        }
+      }
+      store( key, entry );
+      synchronized ( this ) {
+        slot.entry = entry;
+        slot.generation++;
+      }
+      return entry;
+    }
+  }
+
+  private void store( String key, Entry entry ) throws MongoDbException {
+    File file = file( key );
+    File temp = null;
+    try {
+      Files.createDirectories( directory.toPath() );
+      temp = File.createTempFile( "schema", ".tmp", directory );
+      Files.write( temp.toPath(), BsonBytes.toByteArray( new BasicDBObject( "key", key )
+        .append( "watermark", entry.watermark ).append( "schema", entry.schema.toDBObject() ) ) );
+      Files.move( temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+    } catch ( IOException e ) {
+      if ( temp != null ) {
+        temp.delete();
+      }
+      throw new MongoDbException( e );
+    }
+  }
+
+  private File file( String key ) {
+    return new File( directory, key + FILE_SUFFIX );
+  }
+
+  static String key( String cluster, String db, String collection ) {
+    try {
+      // ~ is always encoded, so it separates the parts unambiguously
+      return URLEncoder.encode( cluster, "UTF-8" ) + "~" + URLEncoder.encode( db, "UTF-8" ) + "~"
+        + URLEncoder.encode( collection, "UTF-8" );
+    } catch ( UnsupportedEncodingException e ) {
+      // UTF-8 is always supported
+      throw new IllegalStateException( e );
+    }
+  }
+
+  /**
+   * The cached entry of a collection, if any.  Its lock is held while the collection's file is read or written.
+   */
+  private static class Slot {
+    // guarded by the cache
+    private Entry entry;
+    private long generation;
+  }
+
+  private static class Entry {
+    private final CollectionSchema schema;
+    private final Object watermark;
+
+    Entry( CollectionSchema schema, Object watermark ) {
+      this.schema = schema;
+      this.watermark = watermark;
+    }
+  }
+}
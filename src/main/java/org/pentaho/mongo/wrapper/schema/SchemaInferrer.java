@@ -0,0 +1,361 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.schema;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoCommandException;
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.MongoClientWrapper;
+import org.pentaho.mongo.wrapper.ParallelCollectionReader;
+import org.pentaho.mongo.wrapper.collection.MongoCollectionWrapper;
+import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+import org.pentaho.mongo.wrapper.cursor.RawDBDecoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Infers the {@link CollectionSchema} of a collection from a sample of its documents, read by several
+ * workers in parallel.  Documents are sampled either
+ * <ul>
+ * <li>at random, with a single $sample aggregation whose documents are shared out between the workers, so
+ * that no document is sampled twice, falling back to partitions where $sample is not supported, or</li>
+ * <li>from the start of each _id range of a {@link ParallelCollectionReader}, with documents scanned as raw
+ * BSON rather than decoded.  This reads far less of the collection than a large $sample, which sorts the
+ * collection randomly once its size exceeds 5% of the documents.</li>
+ * </ul>
+ * Each worker builds its own schema, and the schemas are merged once all workers are done.  Calling
+ * {@link #refine(CollectionSchema)} again adds another sample to an existing schema.
+ * <pre>
+ *   CollectionSchema schema = new SchemaInferrer.Builder( client, "db", "orders" ).sampleSize( 100000 )
+ *     .parallelism( 8 ).sampling( SchemaInferrer.Sampling.PARTITIONS ).build().infer();
+ * </pre>
+ */
+public class SchemaInferrer {
+  /**
+   * How documents are sampled.
+   */
+  public enum Sampling {
+    RANDOM, PARTITIONS
+  }
+
+  static final int BATCH_SIZE = 1000;
+  /**
+   * Server error codes for an unrecognized pipeline stage, e.g. $sample before MongoDB 3.2.
+   */
+  private static final int UNRECOGNIZED_STAGE = 16436;
+  private static final int UNRECOGNIZED_STAGE_3_4 = 40324;
+
+  private final MongoClientWrapper client;
+  private final String dbName;
+  private final String collectionName;
+  private final int sampleSize;
+  private final int parallelism;
+  private final Sampling sampling;
+  private final DBObject query;
+  private final ExecutorService pool;
+
+  public static class Builder {
+    private final MongoClientWrapper client;
+    private final String dbName;
+    private final String collectionName;
+    private int sampleSize = 1000;
+    private int parallelism = 4;
+    private Sampling sampling = Sampling.RANDOM;
+    private DBObject query;
+    private ExecutorService pool;
+
+    public Builder( MongoClientWrapper client, String dbName, String collectionName ) {
+      this.client = client;
+      this.dbName = dbName;
+      this.collectionName = collectionName;
+    }
+
+    /**
+     * @param sampleSize the number of documents sampled, 1000 by default
+     */
+    public Builder sampleSize( int sampleSize ) {
+      if ( sampleSize <= 0 ) {
+        throw new IllegalArgumentException( "sampleSize must be positive" );
+      }
+      this.sampleSize = sampleSize;
+      return this;
+    }
+
+    /**
+     * @param parallelism the number of workers reading the sample, 4 by default
+     */
+    public Builder parallelism( int parallelism ) {
+      if ( parallelism <= 0 ) {
+        throw new IllegalArgumentException( "parallelism must be positive" );
+      }
+      this.parallelism = parallelism;
+      return this;
+    }
+
+    /**
+     * @param sampling how documents are sampled, RANDOM by default
+     */
+    public Builder sampling( Sampling sampling ) {
+      this.sampling = sampling;
+      return this;
+    }
+
+    /**
+     * @param query restricts the sample to the matching documents, null by default
+     */
+    public Builder query( DBObject query ) {
+      this.query = query;
+      return this;
+    }
+
+    /**
+     * @param pool runs the workers and is not shut down by the inferrer.  By default each call uses a pool of
+     *             parallelism daemon threads.
+     */
+    public Builder executor( ExecutorService pool ) {
+      this.pool = pool;
+      return this;
+    }
+
+    public SchemaInferrer build() {
+      return new SchemaInferrer( this );
+    }
+
+    /**
+     * @return a builder with these settings for another collection
+     */
+    Builder forCollection( MongoClientWrapper client, String dbName, String collectionName ) {
+      Builder builder = new Builder( client, dbName, collectionName );
+      builder.sampleSize = sampleSize;
+      builder.parallelism = parallelism;
+      builder.sampling = sampling;
+      builder.query = query;
+      builder.pool = pool;
+      return builder;
+    }
+  }
+
+  private SchemaInferrer( Builder builder ) {
+    client = builder.client;
+    dbName = builder.dbName;
+    collectionName = builder.collectionName;
+    sampleSize = builder.sampleSize;
+    parallelism = builder.parallelism;
+    sampling = builder.sampling;
+    query = builder.query;
+    pool = builder.pool;
+  }
+
+  /**
+   * @return the schema of a new sample of the collection
+   * @throws MongoDbException if the collection could not be read
+   */
+  public CollectionSchema infer() throws MongoDbException {
+    return refine( new CollectionSchema() );
+  }
+
+  /**
+   * Adds a new sample of the collection to the schema.
+   *
+   * @return schema
+   * @throws MongoDbException if the collection could not be read, in which case schema is unchanged
+   */
+  public CollectionSchema refine( CollectionSchema schema ) throws MongoDbException {
+    List<CollectionSchema> samples = null;
+    MongoCursorWrapper cursor = sampling == Sampling.RANDOM ? openSample() : null;
+    if ( cursor != null ) {
+      try {
+        samples = run( randomSamples( cursor ) );
+      } finally {
+        // closed here as the workers may not all have started; the lock waits for a read in progress
+        synchronized ( cursor ) {
+          cursor.close();
+        }
+      }
+    }
+    if ( samples == null ) {
+      samples = run( partitionSamples() );
+    }
+    for ( CollectionSchema sample : samples ) {
+      schema.merge( sample );
+    }
+    return schema;
+  }
+
+  /**
+   * @return a cursor over a $sample of the collection, or null if the server does not support $sample
+   */
+  MongoCursorWrapper openSample() throws MongoDbException {
+    MongoCollectionWrapper collection = client.getCollection( dbName, collectionName );
+    AggregationOptions options = AggregationOptions.builder()
+      .outputMode( AggregationOptions.OutputMode.CURSOR ).batchSize( chunk() ).allowDiskUse( true ).build();
+    List<DBObject> pipeline = new ArrayList<DBObject>( 2 );
+    if ( query != null ) {
+      pipeline.add( new BasicDBObject( "$match", query ) );
+    }
+    pipeline.add( new BasicDBObject( "$sample", new BasicDBObject( "size", sampleSize ) ) );
+    try {
+      return collection.aggregate( pipeline, options );
+    } catch ( MongoCommandException e ) {
+      if ( !isUnrecognizedStage( e ) ) {
+        throw e;
+      }
+      return null;
+    } catch ( MongoDbException e ) {
+      if ( !isUnrecognizedStage( e.getCause() ) ) {
+        throw e;
+      }
+      return null;
+    }
+  }
+
+  /**
+   * @return tasks reading the sample, which is left open
+   */
+  List<Callable<CollectionSchema>> randomSamples( final MongoCursorWrapper cursor ) {
+    // one $sample, split between the workers: separate $samples could pick the same documents
+    final int chunk = chunk();
+    List<Callable<CollectionSchema>> tasks = new ArrayList<Callable<CollectionSchema>>( parallelism );
+    for ( int i = 0; i < parallelism; i++ ) {
+      tasks.add( new Callable<CollectionSchema>() {
+        @Override public CollectionSchema call() throws MongoDbException {
+          CollectionSchema schema = new CollectionSchema();
+          List<DBObject> batch = new ArrayList<DBObject>( chunk );
+          while ( true ) {
+            synchronized ( cursor ) {
+              if ( cursor.nextBatch( batch, chunk ) == 0 ) {
+                return schema;
+              }
+            }
+            for ( DBObject document : batch ) {
+              schema.add( document );
+            }
+            batch.clear();
+          }
+        }
+      } );
+    }
+    return tasks;
+  }
+
+  List<Callable<CollectionSchema>> partitionSamples() throws MongoDbException {
+    List<MongoCursorWrapper> cursors =
+      new ParallelCollectionReader( client, dbName, collectionName, parallelism ).openCursors( query, null );
+    List<Callable<CollectionSchema>> tasks = new ArrayList<Callable<CollectionSchema>>( cursors.size() );
+    for ( int i = 0; i < cursors.size(); i++ ) {
+      int size = share( sampleSize, cursors.size(), i );
+      final MongoCursorWrapper cursor = size == 0 ? null
+        : cursors.get( i ).decoderFactory( RawDBDecoder.FACTORY ).batchSize( Math.min( size, BATCH_SIZE ) )
+          .limit( size );
+      if ( cursor == null ) {
+        cursors.get( i ).close();
+        continue;
+      }
+      tasks.add( new Callable<CollectionSchema>() {
+        @Override public CollectionSchema call() throws MongoDbException {
+          return read( cursor );
+        }
+      } );
+    }
+    return tasks;
+  }
+
+  /**
+   * @return the number of sampled documents read at a time by a worker
+   */
+  private int chunk() {
+    return Math.max( 1, Math.min( BATCH_SIZE, share( sampleSize, parallelism, 0 ) ) );
+  }
+
+  private static boolean isUnrecognizedStage( Throwable e ) {
+    return e instanceof MongoCommandException
+      && ( ( (MongoCommandException) e ).getErrorCode() == UNRECOGNIZED_STAGE
+      || ( (MongoCommandException) e ).getErrorCode() == UNRECOGNIZED_STAGE_3_4 );
+  }
+
+  /**
+   * @return the i-th of parts near equal shares of total
+   */
+  static int share( int total, int parts, int i ) {
+    return total / parts + ( i < total % parts ? 1 : 0 );
+  }
+
+  /**
+   * @return the schema of the documents of the cursor, which is closed
+   */
+  static CollectionSchema read( MongoCursorWrapper cursor ) throws MongoDbException {
+    CollectionSchema schema = new CollectionSchema();
+    List<DBObject> batch = new ArrayList<DBObject>( BATCH_SIZE );
+    try {
+      while ( cursor.nextBatch( batch, BATCH_SIZE ) > 0 ) {
+        for ( DBObject document : batch ) {
+          schema.add( document );
+        }
+        batch.clear();
+      }
+    } finally {
+      cursor.close();
+    }
+    return schema;
+  }
+
+  private List<CollectionSchema> run( List<Callable<CollectionSchema>> tasks ) throws MongoDbException {
+    ExecutorService executor = pool == null ? newPool( Math.max( 1, tasks.size() ) ) : pool;
+    try {
+      List<CollectionSchema> samples = new ArrayList<CollectionSchema>( tasks.size() );
+      for ( Future<CollectionSchema> future : executor.invokeAll( tasks ) ) {
+        samples.add( future.get() );
+      }
+      return samples;
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new MongoDbException( e );
+    } catch ( ExecutionException e ) {
+      if ( e.getCause() instanceof MongoDbException ) {
+        throw (MongoDbException) e.getCause();
+      } else if ( e.getCause() instanceof RuntimeException ) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new MongoDbException( e.getCause() );
+    } finally {
+      if ( pool == null ) {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  private static ExecutorService newPool( int threads ) {
+    final AtomicInteger count = new AtomicInteger();
+    return Executors.newFixedThreadPool( threads, new ThreadFactory() {
+      @Override public Thread newThread( Runnable r ) {
+        Thread thread = new Thread( r, "pentaho-mongo-schema-inferrer-" + count.incrementAndGet() );
+        thread.setDaemon( true );
+        return thread;
+      }
+    } );
+  }
+}
@@ -0,0 +1,192 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.pentaho.mongo.KerberosUtil.JaasAuthenticationMode;
+
+import javax.security.auth.Subject;
+import javax.security.auth.kerberos.KerberosPrincipal;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class KerberosLoginCacheTest {
+  private KerberosLoginCache.Login login;
+  private ScheduledExecutorService renewer;
+  private KerberosLoginCache cache;
+
+  @Before
+  public void before() throws Exception {
+    login = mock( KerberosLoginCache.Login.class );
+    renewer = mock( ScheduledExecutorService.class );
+    when( renewer.schedule( any( Runnable.class ), anyLong(), any( TimeUnit.class ) ) )
+      .thenReturn( (ScheduledFuture) mock( ScheduledFuture.class ) );
+    cache = new KerberosLoginCache( login, renewer );
+  }
+
+  @Test
+  public void testLoginsAreSharedPerPrincipalModeAndKeytab() throws Exception {
+    LoginContext loginContext = loginContext( new Subject() );
+    when( login.login( any( JaasAuthenticationMode.class ), anyString(), anyString() ) ).thenReturn( loginContext );
+    MongoProperties keytab = new MongoProperties.Builder()
+      .set( MongoProp.PENTAHO_JAAS_AUTH_MODE, "KERBEROS_KEYTAB" )
+      .set( MongoProp.PENTAHO_JAAS_KEYTAB_FILE, "/etc/user.keytab" ).build();
+    MongoProperties user = new MongoProperties.Builder().build();
+
+    AuthContext first = cache.getAuthContext( "user", keytab );
+    assertSame( first, cache.getAuthContext( "user", keytab ) );
+    assertNotSame( first, cache.getAuthContext( "other", keytab ) );
+    assertNotSame( first, cache.getAuthContext( "user", user ) );
+    verify( login, times( 1 ) ).login( JaasAuthenticationMode.KERBEROS_KEYTAB, "user", "/etc/user.keytab" );
+
+    cache.clear();
+    assertNotSame( first, cache.getAuthContext( "user", keytab ) );
+  }
+
+  @Test
+  public void testRenewalSwapsLoginIntoExistingContext() throws Exception {
+    long now = System.currentTimeMillis();
+    LoginContext original = loginContext( subjectWithTgt( now, now + TimeUnit.HOURS.toMillis( 10 ) ) );
+    LoginContext renewed = loginContext( new Subject() );
+    when( login.login( JaasAuthenticationMode.KERBEROS_USER, "user", null ) ).thenReturn( original, renewed );
+
+    AuthContext context = cache.getAuthContext( "user", new MongoProperties.Builder().build() );
+    ArgumentCaptor<Runnable> renewal = ArgumentCaptor.forClass( Runnable.class );
+    ArgumentCaptor<Long> delay = ArgumentCaptor.forClass( Long.class );
+    verify( renewer ).schedule( renewal.capture(), delay.capture(), eq( TimeUnit.MILLISECONDS ) );
+    assertTrue( Math.abs( TimeUnit.HOURS.toMillis( 8 ) - delay.getValue() ) < TimeUnit.MINUTES.toMillis( 1 ) );
+
+    renewal.getValue().run();
+    assertSame( renewed, context.getLogin() );
+    // a login without a ticket is renewed on the default interval
+    verify( renewer ).schedule( any( Runnable.class ), eq( KerberosLoginCache.DEFAULT_RENEW_INTERVAL ),
+      eq( TimeUnit.MILLISECONDS ) );
+  }
+
+  @Test
+  public void testFailedRenewalIsRetried() throws Exception {
+    LoginContext original = loginContext( new Subject() );
+    when( login.login( JaasAuthenticationMode.KERBEROS_USER, "user", null ) )
+      .thenReturn( original ).thenThrow( new LoginException( "kdc unavailable" ) );
+    AuthContext context = cache.getAuthContext( "user", new MongoProperties.Builder().build() );
+
+    ArgumentCaptor<Runnable> renewal = ArgumentCaptor.forClass( Runnable.class );
+    verify( renewer ).schedule( renewal.capture(), anyLong(), eq( TimeUnit.MILLISECONDS ) );
+    renewal.getValue().run();
+    assertSame( original, context.getLogin() );
+    verify( renewer ).schedule( any( Runnable.class ), eq( KerberosLoginCache.RETRY_DELAY ),
+      eq( TimeUnit.MILLISECONDS ) );
+  }
+
+  @Test
+  public void testExpiredLoginIsRenewedOnLookup() throws Exception {
+    long now = System.currentTimeMillis();
+    LoginContext expired = loginContext( subjectWithTgt( now - 2000, now - 1000 ) );
+    LoginContext renewed = loginContext( new Subject() );
+    when( login.login( JaasAuthenticationMode.KERBEROS_USER, "user", null ) ).thenReturn( expired, renewed );
+
+    MongoProperties props = new MongoProperties.Builder().build();
+    AuthContext context = cache.getAuthContext( "user", props );
+    assertSame( context, cache.getAuthContext( "user", props ) );
+    assertSame( renewed, context.getLogin() );
+  }
+
+  @Test
+  public void testRenewDelay() throws Exception {
+    assertEquals( KerberosLoginCache.DEFAULT_RENEW_INTERVAL, KerberosLoginCache.renewDelay( new Subject(), 0 ) );
+    assertEquals( 800, KerberosLoginCache.renewDelay( subjectWithTgt( 0, 1000 ), 0 ) );
+    assertEquals( 300, KerberosLoginCache.renewDelay( subjectWithTgt( 0, 1000 ), 500 ) );
+    assertEquals( 0, KerberosLoginCache.renewDelay( subjectWithTgt( 0, 1000 ), 900 ) );
+    assertFalse( KerberosLoginCache.isExpired( subjectWithTgt( 0, 1000 ), 999 ) );
+    assertTrue( KerberosLoginCache.isExpired( subjectWithTgt( 0, 1000 ), 1000 ) );
+  }
+
+  @Test
+  public void testSlowLoginDoesNotBlockOtherPrincipals() throws Exception {
+    final CountDownLatch loggingIn = new CountDownLatch( 1 );
+    final CountDownLatch release = new CountDownLatch( 1 );
+    final LoginContext loginContext = loginContext( new Subject() );
+    when( login.login( any( JaasAuthenticationMode.class ), anyString(), anyString() ) ).thenAnswer(
+      new Answer<LoginContext>() {
+        @Override public LoginContext answer( InvocationOnMock invocation ) throws Throwable {
+          if ( "slow".equals( invocation.getArguments()[ 1 ] ) ) {
+            loggingIn.countDown();
+            release.await();
+          }
+          return loginContext;
+        }
+      } );
+    final MongoProperties props = new MongoProperties.Builder().build();
+    Thread slow = new Thread( new Runnable() {
+      @Override public void run() {
+        try {
+          cache.getAuthContext( "slow", props );
+        } catch ( MongoDbException e ) {
+          // ignored
+        }
+      }
+    } );
+    slow.start();
+    assertTrue( loggingIn.await( 5, TimeUnit.SECONDS ) );
+    try {
+      assertSame( loginContext, cache.getAuthContext( "user", props ).getLogin() );
+    } finally {
+      release.countDown();
+    }
+    slow.join( 5000 );
+    assertFalse( slow.isAlive() );
+  }
+
+  private static LoginContext loginContext( Subject subject ) {
+    LoginContext context = mock( LoginContext.class );
+    when( context.getSubject() ).thenReturn( subject );
+    return context;
+  }
+
+  private static Subject subjectWithTgt( long start, long end ) {
+    Subject subject = new Subject();
+    subject.getPrivateCredentials().add( new KerberosTicket( new byte[] { 0 },
+      new KerberosPrincipal( "user@EXAMPLE.COM" ), new KerberosPrincipal( "krbtgt/EXAMPLE.COM@EXAMPLE.COM" ),
+      new byte[ 16 ], 1, new boolean[ 32 ], new Date( start ), new Date( start ), new Date( end ), null, null ) );
+    return subject;
+  }
+}
@@ -0,0 +1,79 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveBatchSizeTest {
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos( 10 );
+  private static final long SLOW = TimeUnit.MILLISECONDS.toNanos( 500 );
+
+  private final AdaptiveBatchSize controller = new AdaptiveBatchSize.Builder().initialSize( 1000 )
+    .range( 100, 1500 ).increment( 200 ).targetLatency( 100, TimeUnit.MILLISECONDS ).build();
+
+  @Test public void testIncreasesAdditivelyUpToMax() throws Exception {
+    controller.record( 1000, 0, FAST, false );
+    assertEquals( 1200, controller.getBatchSize() );
+    controller.record( 1200, 0, FAST, false );
+    controller.record( 1400, 0, FAST, false );
+    assertEquals( 1500, controller.getBatchSize() );
+    assertEquals( 3, controller.getIncreaseCount() );
+  }
+
+  @Test public void testPartialBatchDoesNotIncrease() throws Exception {
+    controller.record( 10, 0, FAST, false );
+    assertEquals( 1000, controller.getBatchSize() );
+  }
+
+  @Test public void testDecreasesMultiplicativelyOnSlowOrFailedBatches() throws Exception {
+    controller.record( 1000, 0, SLOW, false );
+    assertEquals( 500, controller.getBatchSize() );
+    controller.record( 500, 0, FAST, true );
+    assertEquals( 250, controller.getBatchSize() );
+    controller.record( 250, 0, SLOW, false );
+    controller.record( 125, 0, SLOW, false );
+    assertEquals( 100, controller.getBatchSize() );
+    assertEquals( 4, controller.getDecreaseCount() );
+    assertEquals( 4, controller.getBatchCount() );
+  }
+
+  @Test public void testCappedByDocumentSize() throws Exception {
+    AdaptiveBatchSize bytes = new AdaptiveBatchSize.Builder().initialSize( 1000 ).range( 1, 10000 )
+      .maxBatchBytes( 100000 ).build();
+    bytes.record( 1000, 1000 * 1000, FAST, false );
+    assertEquals( 100, bytes.getBatchSize() );
+    assertEquals( 1000, bytes.getAverageDocumentBytes(), 0 );
+  }
+
+  @Test public void testAverages() throws Exception {
+    controller.record( 1000, 0, TimeUnit.MILLISECONDS.toNanos( 50 ), false );
+    assertEquals( 50, controller.getAverageLatencyMillis(), 0.001 );
+    assertEquals( 0, controller.getErrorRate(), 0 );
+    controller.record( 1000, 0, TimeUnit.MILLISECONDS.toNanos( 100 ), true );
+    assertEquals( 50 + AdaptiveBatchSize.SMOOTHING * 50, controller.getAverageLatencyMillis(), 0.001 );
+    assertEquals( AdaptiveBatchSize.SMOOTHING, controller.getErrorRate(), 0.001 );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void testInvalidRange() throws Exception {
+    new AdaptiveBatchSize.Builder().range( 10, 5 );
+  }
+}
@@ -0,0 +1,208 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import org.pentaho.mongo.AuthContext;
+import org.pentaho.mongo.wrapper.cursor.KerberosDelegatingCursorWrapper;
+import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+
+import javax.security.auth.Subject;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.LoginContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per document overhead of iterating a cursor through the reflective
+ * KerberosInvocationHandler proxy and through KerberosDelegatingCursorWrapper, with and without
+ * entering Subject.doAs for every hasNext()/next() call, and with a prefetch buffer or nextBatch(),
+ * both of which enter Subject.doAs once per batch.  Not a unit test; run it directly:
+ * <pre>
+ *   java -cp ... org.pentaho.mongo.wrapper.KerberosDelegateBenchmark [documents] [rounds] [prefetch]
+ * </pre>
+ */
+public class KerberosDelegateBenchmark {
+
+  public static void main( String[] args ) throws Exception {
+    int documents = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 2000000;
+    int rounds = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 10;
+    int prefetch = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 100;
+    AuthContext subjectContext = new AuthContext( subjectOnlyLogin() );
+    // a context without a login skips Subject.doAs, isolating the cost of the dispatch itself
+    AuthContext plainContext = new AuthContext( null );
+
+    for ( int round = 0; round < rounds; round++ ) {
+      System.out.println( String.format( "round %d: Subject.doAs proxy %.1f ns/doc, delegate %.1f ns/doc; "
+          + "no Subject proxy %.1f ns/doc, delegate %.1f ns/doc; "
+          + "Subject.doAs prefetch %d %.1f ns/doc, nextBatch %.1f ns/doc", round,
+        drain( proxy( subjectContext, documents ), documents ),
+        drain( new KerberosDelegatingCursorWrapper( subjectContext, new CountingCursor( documents ) ), documents ),
+        drain( proxy( plainContext, documents ), documents ),
+        drain( new KerberosDelegatingCursorWrapper( plainContext, new CountingCursor( documents ) ), documents ),
+        prefetch, drain( new KerberosDelegatingCursorWrapper( subjectContext, new CountingCursor( documents ),
+          prefetch ), documents ),
+        drainBatches( new KerberosDelegatingCursorWrapper( subjectContext, new CountingCursor( documents ) ),
+          documents, prefetch ) ) );
+    }
+  }
+
+  @SuppressWarnings( "deprecation" )
+  private static MongoCursorWrapper proxy( AuthContext authContext, int documents ) {
+    return KerberosInvocationHandler.wrap( MongoCursorWrapper.class, authContext, new CountingCursor( documents ) );
+  }
+
+  private static double drain( MongoCursorWrapper cursor, int documents ) throws Exception {
+    long start = System.nanoTime();
+    int seen = 0;
+    while ( cursor.hasNext() ) {
+      if ( cursor.next() != null ) {
+        seen++;
+      }
+    }
+    if ( seen != documents ) {
+      throw new IllegalStateException( "expected " + documents + " documents, saw " + seen );
+    }
+    return ( System.nanoTime() - start ) / (double) documents;
+  }
+
+  private static double drainBatches( MongoCursorWrapper cursor, int documents, int batchSize ) throws Exception {
+    long start = System.nanoTime();
+    List<DBObject> batch = new ArrayList<DBObject>( batchSize );
+    int seen = 0;
+    int read;
+    do {
+      batch.clear();
+      read = cursor.nextBatch( batch, batchSize );
+      seen += read;
+    } while ( read == batchSize );
+    if ( seen != documents ) {
+      throw new IllegalStateException( "expected " + documents + " documents, saw " + seen );
+    }
+    return ( System.nanoTime() - start ) / (double) documents;
+  }
+
+  /**
+   * A LoginContext which is never logged in, but carries a Subject so AuthContext enters Subject.doAs
+   * just as it does for a Kerberos login.
+   */
+  private static LoginContext subjectOnlyLogin() throws Exception {
+    final AppConfigurationEntry[] entries = new AppConfigurationEntry[] {
+      new AppConfigurationEntry( "unused", AppConfigurationEntry.LoginModuleControlFlag.OPTIONAL,
+        Collections.<String, Object>emptyMap() ) };
+    return new LoginContext( "benchmark", new Subject(), null, new Configuration() {
+      @Override public AppConfigurationEntry[] getAppConfigurationEntry( String name ) {
+        return entries;
+      }
+    } );
+  }
+
+  private static class CountingCursor implements MongoCursorWrapper {
+    private final DBObject document = new BasicDBObject( "_id", 1 );
+    private final int documents;
+    private int position;
+
+    CountingCursor( int documents ) {
+      this.documents = documents;
+    }
+
+    @Override public boolean hasNext() {
+      return position < documents;
+    }
+
+    @Override public DBObject next() {
+      position++;
+      return document;
+    }
+
+    @Override public int nextBatch( List<DBObject> target, int max ) {
+      int added = 0;
+      while ( added < max && hasNext() ) {
+        target.add( next() );
+        added++;
+      }
+      return added;
+    }
+
+    @Override public ServerAddress getServerAddress() {
+      return null;
+    }
+
+    @Override public void close() {
+    }
+
+    @Override public MongoCursorWrapper limit( int i ) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public MongoCursorWrapper batchSize( int n ) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public MongoCursorWrapper sort( DBObject orderBy ) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public MongoCursorWrapper skip( int n ) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public MongoCursorWrapper hint( DBObject indexKeys ) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public MongoCursorWrapper hint( String indexName ) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public MongoCursorWrapper min( DBObject min ) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public MongoCursorWrapper max( DBObject max ) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public MongoCursorWrapper decoderFactory( DBDecoderFactory factory ) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public MongoCursorWrapper maxTime( long maxTime, TimeUnit timeUnit ) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public MongoCursorWrapper noCursorTimeout() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public MongoCursorWrapper comment( String comment ) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public MongoCursorWrapper readPreference( ReadPreference readPreference ) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
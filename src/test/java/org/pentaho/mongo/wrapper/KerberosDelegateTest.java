@@ -0,0 +1,160 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoCredential;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+import org.hamcrest.CoreMatchers;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.pentaho.mongo.AuthContext;
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.collection.KerberosDelegatingCollectionWrapper;
+import org.pentaho.mongo.wrapper.collection.MongoCollectionWrapper;
+import org.pentaho.mongo.wrapper.cursor.KerberosDelegatingCursorWrapper;
+import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+
+import java.security.PrivilegedExceptionAction;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class KerberosDelegateTest {
+
+  @SuppressWarnings( "unchecked" )
+  @Test
+  public void testCursorCallsRunInAuthContextWithReusedActions() throws Exception {
+    AuthContext authContext = spy( new AuthContext( null ) );
+    MongoCursorWrapper cursor = mock( MongoCursorWrapper.class );
+    DBObject doc = mock( DBObject.class );
+    when( cursor.hasNext() ).thenReturn( true );
+    when( cursor.next() ).thenReturn( doc );
+
+    KerberosDelegatingCursorWrapper delegating = new KerberosDelegatingCursorWrapper( authContext, cursor );
+    for ( int i = 0; i < 3; i++ ) {
+      assertTrue( delegating.hasNext() );
+      assertSame( doc, delegating.next() );
+    }
+
+    ArgumentCaptor<PrivilegedExceptionAction> actions = ArgumentCaptor.forClass( PrivilegedExceptionAction.class );
+    verify( authContext, times( 6 ) ).doAs( actions.capture() );
+    assertSame( actions.getAllValues().get( 0 ), actions.getAllValues().get( 2 ) );
+    assertSame( actions.getAllValues().get( 1 ), actions.getAllValues().get( 3 ) );
+  }
+
+  @SuppressWarnings( "unchecked" )
+  @Test
+  public void testCursorPrefetchBatchesDocumentsPerAuthContextCall() throws Exception {
+    AuthContext authContext = spy( new AuthContext( null ) );
+    MongoCursorWrapper cursor = mock( MongoCursorWrapper.class );
+    DBObject[] docs = new DBObject[ 5 ];
+    for ( int i = 0; i < docs.length; i++ ) {
+      docs[ i ] = mock( DBObject.class );
+    }
+    when( cursor.hasNext() ).thenReturn( true, true, true, true, true, false );
+    when( cursor.next() ).thenReturn( docs[ 0 ], docs[ 1 ], docs[ 2 ], docs[ 3 ], docs[ 4 ] );
+
+    KerberosDelegatingCursorWrapper delegating = new KerberosDelegatingCursorWrapper( authContext, cursor, 3 );
+    for ( DBObject doc : docs ) {
+      assertTrue( delegating.hasNext() );
+      assertSame( doc, delegating.next() );
+    }
+    assertFalse( delegating.hasNext() );
+    assertFalse( delegating.hasNext() );
+    try {
+      delegating.next();
+      fail( "expected exception" );
+    } catch ( NoSuchElementException e ) {
+      // expected
+    }
+
+    // one call per batch of three; the short second batch marks the cursor exhausted
+    verify( authContext, times( 2 ) ).doAs( any( PrivilegedExceptionAction.class ) );
+    verify( cursor, times( 5 ) ).next();
+  }
+
+  @Test
+  public void testMongoDbExceptionPropagates() throws Exception {
+    MongoCollectionWrapper collection = mock( MongoCollectionWrapper.class );
+    MongoDbException failure = new MongoDbException( "failed" );
+    doThrow( failure ).when( collection ).drop();
+    try {
+      new KerberosDelegatingCollectionWrapper( new AuthContext( null ), collection ).drop();
+      fail( "expected exception" );
+    } catch ( MongoDbException e ) {
+      assertSame( failure, e );
+    }
+  }
+
+  @Test
+  public void testOtherExceptionsAreWrapped() throws Exception {
+    MongoClientWrapper client = mock( MongoClientWrapper.class );
+    doThrow( new IllegalStateException() ).when( client ).getDatabaseNames();
+    try {
+      new KerberosDelegatingClientWrapper( new AuthContext( null ), client ).getDatabaseNames();
+      fail( "expected exception" );
+    } catch ( MongoDbException e ) {
+      assertThat( e.getCause(), CoreMatchers.instanceOf( IllegalStateException.class ) );
+    }
+  }
+
+  @SuppressWarnings( "unchecked" )
+  @Test
+  public void testClientFactoryRethrowsRuntimeExceptions() throws Exception {
+    MongoClientFactory factory = mock( MongoClientFactory.class );
+    MongoException failure = new MongoException( "failed" );
+    when( factory.getMongoClient( any( List.class ), any( List.class ),
+      any( MongoClientOptions.class ), any( Boolean.class ) ) ).thenThrow( failure );
+    try {
+      new KerberosDelegatingClientFactory( new AuthContext( null ), factory ).getMongoClient(
+        Collections.<ServerAddress>emptyList(), Collections.<MongoCredential>emptyList(),
+        MongoClientOptions.builder().build(), false );
+      fail( "expected exception" );
+    } catch ( MongoException e ) {
+      assertSame( failure, e );
+    }
+  }
+
+  @Test
+  public void testClientFactoryDelegates() throws Exception {
+    MongoClientFactory factory = mock( MongoClientFactory.class );
+    MongoClient client = mock( MongoClient.class );
+    MongoClientOptions opts = MongoClientOptions.builder().build();
+    when( factory.getMongoClient( Collections.<ServerAddress>emptyList(), Collections.<MongoCredential>emptyList(),
+      opts, true ) ).thenReturn( client );
+    assertSame( client, new KerberosDelegatingClientFactory( new AuthContext( null ), factory ).getMongoClient(
+      Collections.<ServerAddress>emptyList(), Collections.<MongoCredential>emptyList(), opts, true ) );
+  }
+}
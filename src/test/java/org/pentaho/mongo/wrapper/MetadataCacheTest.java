@@ -0,0 +1,138 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper;
+
+import org.junit.Test;
+import org.pentaho.mongo.MongoDbException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetadataCacheTest {
+
+  @Test public void testEntriesExpireAfterTtl() throws Exception {
+    MetadataCache cache = new MetadataCache( 50 );
+    Counter loader = new Counter();
+    assertEquals( Integer.valueOf( 1 ), cache.get( "a", loader ) );
+    assertEquals( Integer.valueOf( 1 ), cache.get( "a", loader ) );
+    Thread.sleep( 60 );
+    assertEquals( Integer.valueOf( 2 ), cache.get( "a", loader ) );
+  }
+
+  @Test public void testCollectionChangesInvalidateListings() throws Exception {
+    MetadataCache cache = new MetadataCache( 60000 );
+    Counter databases = new Counter();
+    Counter collections = new Counter();
+    Counter indexes = new Counter();
+    Counter otherIndexes = new Counter();
+    cache.get( MetadataCache.DATABASES, databases );
+    cache.get( MetadataCache.collectionsKey( "db" ), collections );
+    cache.get( MetadataCache.indexesKey( "db", "a" ), indexes );
+    cache.get( MetadataCache.indexesKey( "db", "b" ), otherIndexes );
+
+    cache.indexesChanged( "db", "a" );
+    assertEquals( Integer.valueOf( 1 ), cache.get( MetadataCache.collectionsKey( "db" ), collections ) );
+    assertEquals( Integer.valueOf( 2 ), cache.get( MetadataCache.indexesKey( "db", "a" ), indexes ) );
+
+    cache.collectionDropped( "db", "a" );
+    assertEquals( Integer.valueOf( 2 ), cache.get( MetadataCache.DATABASES, databases ) );
+    assertEquals( Integer.valueOf( 2 ), cache.get( MetadataCache.collectionsKey( "db" ), collections ) );
+    assertEquals( Integer.valueOf( 3 ), cache.get( MetadataCache.indexesKey( "db", "a" ), indexes ) );
+    assertEquals( Integer.valueOf( 1 ), cache.get( MetadataCache.indexesKey( "db", "b" ), otherIndexes ) );
+  }
+
+  @Test public void testLoadsDoNotBlockOtherLookups() throws Exception {
+    final MetadataCache cache = new MetadataCache( 60000 );
+    final CountDownLatch loading = new CountDownLatch( 1 );
+    final CountDownLatch release = new CountDownLatch( 1 );
+    Counter cached = new Counter();
+    cache.get( "cached", cached );
+    Thread slow = new Thread( new Runnable() {
+      @Override public void run() {
+        try {
+          cache.get( "slow", new MetadataCache.Loader<Integer>() {
+            @Override public Integer load() throws MongoDbException {
+              loading.countDown();
+              try {
+                release.await();
+              } catch ( InterruptedException e ) {
+                throw new MongoDbException( e );
+              }
+              return 1;
+            }
+          } );
+        } catch ( MongoDbException e ) {
+          // ignored
+        }
+      }
+    } );
+    slow.start();
+    assertTrue( loading.await( 5, TimeUnit.SECONDS ) );
+    try {
+      assertEquals( Integer.valueOf( 1 ), cache.get( "cached", cached ) );
+      // invalidated while loading, so the loaded value is not cached
+      cache.invalidate( "slow" );
+    } finally {
+      release.countDown();
+    }
+    slow.join( 5000 );
+    Counter reloaded = new Counter();
+    assertEquals( Integer.valueOf( 1 ), cache.get( "slow", reloaded ) );
+  }
+
+  @Test public void testOnlyCacheableValuesAreCached() throws Exception {
+    MetadataCache cache = new MetadataCache( 60000 );
+    final AtomicInteger loads = new AtomicInteger();
+    MetadataCache.Loader<List<String>> loader = new MetadataCache.Loader<List<String>>() {
+      @Override public List<String> load() throws MongoDbException {
+        return loads.incrementAndGet() < 3 ? Collections.<String>emptyList() : Arrays.asList( "_id_" );
+      }
+    };
+    cache.get( "indexes", loader, MetadataCache.NOT_EMPTY );
+    cache.get( "indexes", loader, MetadataCache.NOT_EMPTY );
+    assertEquals( Arrays.asList( "_id_" ), cache.get( "indexes", loader, MetadataCache.NOT_EMPTY ) );
+    assertEquals( Arrays.asList( "_id_" ), cache.get( "indexes", loader, MetadataCache.NOT_EMPTY ) );
+    assertEquals( 3, loads.get() );
+  }
+
+  @Test public void testWithoutCacheEveryGetLoads() throws Exception {
+    Counter loader = new Counter();
+    MetadataCache.get( null, "a", loader );
+    assertEquals( Integer.valueOf( 2 ), MetadataCache.get( null, "a", loader ) );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void testTtlMustBePositive() {
+    new MetadataCache( 0 );
+  }
+
+  private static class Counter implements MetadataCache.Loader<Integer> {
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Override public Integer load() throws MongoDbException {
+      return loads.incrementAndGet();
+    }
+  }
+}
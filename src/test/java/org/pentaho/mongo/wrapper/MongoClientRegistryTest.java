@@ -0,0 +1,144 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.pentaho.mongo.MongoProp;
+import org.pentaho.mongo.MongoProperties;
+import org.pentaho.mongo.MongoUtilLogger;
+
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyBoolean;
+import static org.mockito.Mockito.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MongoClientRegistryTest {
+
+  @Mock private DefaultMongoClientFactory mongoClientFactory;
+  @Mock private MongoUtilLogger log;
+
+  private MongoClientRegistry registry;
+
+  @Before
+  public void before() {
+    MockitoAnnotations.initMocks( this );
+    registry = new MongoClientRegistry();
+  }
+
+  @Test
+  public void testSameFingerprintSharesClient() throws Exception {
+    MongoClient client = mock( MongoClient.class );
+    Callable<MongoClient> supplier = supplierOf( client );
+
+    MongoClient first = registry.acquire( props( "host1", "secret" ), supplier );
+    MongoClient second = registry.acquire( props( "host1", "secret" ), supplier );
+
+    assertSame( first, second );
+    verify( supplier, times( 1 ) ).call();
+    assertEquals( 2, registry.getReferenceCount( client ) );
+  }
+
+  @Test
+  public void testClientClosedOnLastRelease() throws Exception {
+    MongoClient client = mock( MongoClient.class );
+    Callable<MongoClient> supplier = supplierOf( client );
+    registry.acquire( props( "host1", "secret" ), supplier );
+    registry.acquire( props( "host1", "secret" ), supplier );
+
+    registry.release( client );
+    verify( client, never() ).close();
+    assertTrue( registry.isShared( client ) );
+
+    registry.release( client );
+    verify( client ).close();
+    assertFalse( registry.isShared( client ) );
+  }
+
+  @Test
+  public void testDifferentCredentialsGetDifferentClients() throws Exception {
+    MongoClient first = registry.acquire( props( "host1", "secret" ), supplierOf( mock( MongoClient.class ) ) );
+    MongoClient second = registry.acquire( props( "host1", "other" ), supplierOf( mock( MongoClient.class ) ) );
+    assertNotSame( first, second );
+  }
+
+  @Test
+  public void testUnregisteredClientClosedOnRelease() {
+    MongoClient client = mock( MongoClient.class );
+    registry.release( client );
+    verify( client ).close();
+  }
+
+  @Test
+  public void testFingerprintDoesNotExposePassword() {
+    String fingerprint = MongoClientRegistry.fingerprint( props( "host1", "secret" ) );
+    assertFalse( fingerprint.contains( "secret" ) );
+    assertEquals( fingerprint, MongoClientRegistry.fingerprint( props( "host1", "secret" ) ) );
+  }
+
+  @Test
+  public void testWrappersShareClientUntilLastDispose() throws Exception {
+    MongoClient client = mock( MongoClient.class );
+    when( mongoClientFactory.getMongoClient( anyList(), anyList(), any( MongoClientOptions.class ), anyBoolean() ) )
+      .thenReturn( client );
+    NoAuthMongoClientWrapper.clientFactory = mongoClientFactory;
+    MongoProperties props = new MongoProperties.Builder()
+      .set( MongoProp.HOST, "registryTestHost" )
+      .set( MongoProp.USE_SHARED_CLIENT, "true" ).build();
+
+    MongoClientWrapper first = MongoClientWrapperFactory.createMongoClientWrapper( props, log );
+    MongoClientWrapper second = MongoClientWrapperFactory.createMongoClientWrapper( props, log );
+    verify( mongoClientFactory, times( 1 ) )
+      .getMongoClient( anyList(), anyList(), any( MongoClientOptions.class ), anyBoolean() );
+
+    first.dispose();
+    first.dispose();
+    verify( client, never() ).close();
+    second.dispose();
+    verify( client ).close();
+  }
+
+  @SuppressWarnings( "unchecked" )
+  private Callable<MongoClient> supplierOf( MongoClient client ) throws Exception {
+    Callable<MongoClient> supplier = mock( Callable.class );
+    when( supplier.call() ).thenReturn( client );
+    return supplier;
+  }
+
+  private MongoProperties props( String host, String password ) {
+    return new MongoProperties.Builder()
+      .set( MongoProp.HOST, host )
+      .set( MongoProp.USERNAME, "user" )
+      .set( MongoProp.PASSWORD, password ).build();
+  }
+}
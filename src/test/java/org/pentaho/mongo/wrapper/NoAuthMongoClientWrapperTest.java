@@ -498,6 +498,97 @@ public class NoAuthMongoClientWrapperTest {
 
 
 
+  @Test
+  public void testReplicaSetConfigReadOnceAndClientKeptOpen() throws MongoDbException {
+    setupMockedReplSet();
+    Mockito.when( mongoProperties.getLong( Mockito.eq( MongoProp.REPLICA_SET_CONFIG_TTL ), Mockito.anyLong(),
+      Mockito.any( MongoUtilLogger.class ) ) ).thenReturn( 60000L );
+    NoAuthMongoClientWrapper wrapper =
+      new NoAuthMongoClientWrapper( mockMongoClient, mongoProperties, mockMongoUtilLogger );
+
+    Assert.assertEquals( 4, wrapper.getAllTags().size() );
+    List<DBObject> tagSets = Arrays.asList( (DBObject) JSON.parse( TAG_SET ) );
+    Assert.assertEquals( 2, wrapper.getReplicaSetMembersThatSatisfyTagSets( tagSets ).size() );
+    wrapper.getLastErrorModes();
+
+    Mockito.verify( collection, Mockito.times( 1 ) ).findOne();
+    Mockito.verify( mockMongoClient, Mockito.never() ).close();
+  }
+
+  @Test
+  public void testReplicaSetConfigReloadedWhenPrimaryChanges() throws Exception {
+    setupMockedReplSet();
+    Mockito.when( mongoProperties.getLong( Mockito.eq( MongoProp.REPLICA_SET_CONFIG_TTL ), Mockito.anyLong(),
+      Mockito.any( MongoUtilLogger.class ) ) ).thenReturn( 60000L );
+    NoAuthMongoClientWrapper wrapper =
+      new NoAuthMongoClientWrapper( mockMongoClient, mongoProperties, mockMongoUtilLogger );
+    Mockito.when( mockMongoClient.getAllAddress() ).thenReturn( Arrays.asList( new ServerAddress( "host1", 1010 ) ) );
+    wrapper.getAllTags();
+    wrapper.getAllTags();
+    Mockito.when( mockMongoClient.getAllAddress() ).thenReturn( Arrays.asList( new ServerAddress( "host2", 1010 ) ) );
+    wrapper.getAllTags();
+
+    Mockito.verify( collection, Mockito.times( 2 ) ).findOne();
+  }
+
+  @Test
+  public void testMetadataIsCachedUntilInvalidated() throws MongoDbException {
+    NoAuthMongoClientWrapper wrapper = new NoAuthMongoClientWrapper( mockMongoClient,
+      new MongoProperties.Builder().set( MongoProp.METADATA_CACHE_TTL, "60000" ).build(), mockMongoUtilLogger );
+    Mockito.when( mockMongoClient.getDatabaseNames() ).thenReturn( Arrays.asList( "fakeDb" ) );
+    Mockito.when( mockMongoClient.getDB( "fakeDb" ) ).thenReturn( mockDB );
+    Mockito.when( mockDB.getCollectionNames() ).thenReturn( Collections.singleton( "collection" ) );
+    Mockito.when( mockDB.createCollection( "other", null ) ).thenReturn( collection );
+    Mockito.when( collection.getDB() ).thenReturn( mockDB );
+    Mockito.when( collection.getName() ).thenReturn( "other" );
+    Mockito.when( mockDB.getName() ).thenReturn( "fakeDb" );
+
+    wrapper.getDatabaseNames();
+    wrapper.getDatabaseNames().clear();
+    Assert.assertEquals( Arrays.asList( "fakeDb" ), wrapper.getDatabaseNames() );
+    wrapper.getCollectionsNames( "fakeDb" );
+    wrapper.getCollectionsNames( "fakeDb" );
+    Mockito.verify( mockMongoClient, Mockito.times( 1 ) ).getDatabaseNames();
+    Mockito.verify( mockDB, Mockito.times( 1 ) ).getCollectionNames();
+
+    wrapper.createCollection( "fakeDb", "other" ).drop();
+    wrapper.getDatabaseNames();
+    wrapper.getCollectionsNames( "fakeDb" );
+    Mockito.verify( mockMongoClient, Mockito.times( 2 ) ).getDatabaseNames();
+    Mockito.verify( mockDB, Mockito.times( 2 ) ).getCollectionNames();
+  }
+
+  @Test
+  public void testIndexInfoIsInvalidatedByIndexChanges() throws MongoDbException {
+    NoAuthMongoClientWrapper wrapper = new NoAuthMongoClientWrapper( mockMongoClient,
+      new MongoProperties.Builder().set( MongoProp.METADATA_CACHE_TTL, "60000" ).build(), mockMongoUtilLogger );
+    Mockito.when( mockMongoClient.getDB( "fakeDb" ) ).thenReturn( mockDB );
+    Mockito.when( mockDB.getName() ).thenReturn( "fakeDb" );
+    Mockito.when( mockDB.getCollection( "collection" ) ).thenReturn( collection );
+    Mockito.when( collection.getDB() ).thenReturn( mockDB );
+    Mockito.when( collection.getName() ).thenReturn( "collection" );
+    List<DBObject> indexInfo = Arrays.<DBObject>asList( new BasicDBObject( "name", "_id_" ) );
+    Mockito.when( collection.getIndexInfo() ).thenReturn( indexInfo );
+
+    wrapper.getExistingIndexInfo( "fakeDb", "collection" );
+    wrapper.getIndexInfo( "fakeDb", "collection" );
+    Mockito.verify( collection, Mockito.times( 1 ) ).getIndexInfo();
+
+    wrapper.getCollection( "fakeDb", "collection" ).createIndex( new BasicDBObject( "a", 1 ) );
+    wrapper.getExistingIndexInfo( "fakeDb", "collection" );
+    Mockito.verify( collection, Mockito.times( 2 ) ).getIndexInfo();
+  }
+
+  @Test
+  public void testGetExistingIndexInfoDoesNotCreateCollection() throws MongoDbException {
+    Mockito.when( mockMongoClient.getDB( "fakeDb" ) ).thenReturn( mockDB );
+    Mockito.when( mockDB.getCollection( "collection" ) ).thenReturn( collection );
+    Mockito.when( collection.getIndexInfo() ).thenReturn( Collections.<DBObject>emptyList() );
+
+    Assert.assertTrue( noAuthMongoClientWrapper.getExistingIndexInfo( "fakeDb", "collection" ).isEmpty() );
+    Mockito.verify( mockDB, Mockito.never() ).createCollection( Mockito.anyString(), Mockito.any( DBObject.class ) );
+  }
+
   private void setupMockedReplSet() {
     Mockito.when( mockMongoClient.getDB( NoAuthMongoClientWrapper.LOCAL_DB ) ).thenReturn( mockDB );
     Mockito.when( mockDB.getCollection( NoAuthMongoClientWrapper.REPL_SET_COLLECTION ) )
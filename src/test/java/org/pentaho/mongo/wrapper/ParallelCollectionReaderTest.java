@@ -0,0 +1,157 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper;
+
+import com.mongodb.AggregationOutput;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.pentaho.mongo.wrapper.collection.MongoCollectionWrapper;
+import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ParallelCollectionReaderTest {
+
+  @Test
+  public void testSplitVectorKeysArePickedEvenly() throws Exception {
+    DBCollection collection = collection( 1000 );
+    CommandResult result = commandResult( true );
+    result.put( "splitKeys", keys( 10, 20, 30, 40, 50, 60, 70, 80 ) );
+    when( collection.getDB().command( any( DBObject.class ) ) ).thenReturn( result );
+
+    assertEquals( keys( 30, 50, 70 ), ParallelCollectionReader.computeSplitPoints( collection, 4 ) );
+    verify( collection.getDB() ).command( new BasicDBObject( "splitVector", "db.coll" )
+      .append( "keyPattern", new BasicDBObject( "_id", 1 ) ).append( "maxChunkSizeBytes", 500L ) );
+    verify( collection, never() ).aggregate( anyList() );
+  }
+
+  @Test
+  public void testFallsBackToSample() throws Exception {
+    DBCollection collection = collection( 1000 );
+    CommandResult failed = commandResult( false );
+    when( collection.getDB().command( any( DBObject.class ) ) ).thenReturn( failed );
+    AggregationOutput output = mock( AggregationOutput.class );
+    when( output.results() ).thenReturn( keys( 1, 2, 3, 4, 5, 6 ) );
+    when( collection.aggregate( anyList() ) ).thenReturn( output );
+
+    assertEquals( keys( 4 ), ParallelCollectionReader.computeSplitPoints( collection, 2 ) );
+  }
+
+  @Test
+  public void testNoSplitsWhenNothingIsAvailable() throws Exception {
+    DBCollection collection = collection( 1000 );
+    when( collection.getDB().command( any( DBObject.class ) ) ).thenThrow( new MongoException( "unauthorized" ) );
+    when( collection.aggregate( anyList() ) ).thenThrow( new MongoException( "unrecognized stage $sample" ) );
+
+    assertTrue( ParallelCollectionReader.computeSplitPoints( collection, 4 ).isEmpty() );
+  }
+
+  @Test
+  public void testPickDropsDuplicates() {
+    assertEquals( keys( 1, 2 ), ParallelCollectionReader.pick( keys( 1, 2 ), 8 ) );
+    assertTrue( ParallelCollectionReader.pick( new ArrayList<DBObject>(), 8 ).isEmpty() );
+  }
+
+  @SuppressWarnings( "unchecked" )
+  @Test
+  public void testOpenCursorsBoundsEachRange() throws Exception {
+    MongoClientWrapper client = mock( MongoClientWrapper.class );
+    when( client.perform( anyString(), any( MongoDBAction.class ) ) ).thenReturn( keys( 100, 200 ) );
+    MongoCollectionWrapper collection = mock( MongoCollectionWrapper.class );
+    when( client.getCollection( "db", "coll" ) ).thenReturn( collection );
+    DBObject query = new BasicDBObject( "active", true );
+    final List<MongoCursorWrapper> created = new ArrayList<MongoCursorWrapper>();
+    when( collection.find( query, null ) ).thenAnswer( new Answer<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper answer( InvocationOnMock invocation ) throws Throwable {
+        MongoCursorWrapper cursor = mock( MongoCursorWrapper.class );
+        when( cursor.hint( any( DBObject.class ) ) ).thenReturn( cursor );
+        when( cursor.min( any( DBObject.class ) ) ).thenReturn( cursor );
+        when( cursor.max( any( DBObject.class ) ) ).thenReturn( cursor );
+        created.add( cursor );
+        return cursor;
+      }
+    } );
+
+    List<MongoCursorWrapper> cursors =
+      new ParallelCollectionReader( client, "db", "coll", 3 ).openCursors( query, null );
+
+    assertEquals( created, cursors );
+    verify( cursors.get( 0 ) ).hint( ParallelCollectionReader.ID_INDEX );
+    verify( cursors.get( 0 ), never() ).min( any( DBObject.class ) );
+    verify( cursors.get( 0 ) ).max( keys( 100 ).get( 0 ) );
+    verify( cursors.get( 1 ) ).min( keys( 100 ).get( 0 ) );
+    verify( cursors.get( 1 ) ).max( keys( 200 ).get( 0 ) );
+    verify( cursors.get( 2 ) ).min( keys( 200 ).get( 0 ) );
+    verify( cursors.get( 2 ), never() ).max( any( DBObject.class ) );
+  }
+
+  private static DBCollection collection( long size ) {
+    DBCollection collection = mock( DBCollection.class );
+    DB db = mock( DB.class );
+    when( collection.getDB() ).thenReturn( db );
+    when( collection.getFullName() ).thenReturn( "db.coll" );
+    CommandResult stats = commandResult( true );
+    stats.put( "size", size );
+    when( collection.getStats() ).thenReturn( stats );
+    return collection;
+  }
+
+  private static CommandResult commandResult( boolean ok ) {
+    CommandResult result = mock( CommandResult.class );
+    final BasicDBObject fields = new BasicDBObject();
+    when( result.ok() ).thenReturn( ok );
+    when( result.put( anyString(), any() ) ).thenAnswer( new Answer<Object>() {
+      @Override public Object answer( InvocationOnMock invocation ) throws Throwable {
+        return fields.put( (String) invocation.getArguments()[ 0 ], invocation.getArguments()[ 1 ] );
+      }
+    } );
+    when( result.get( anyString() ) ).thenAnswer( new Answer<Object>() {
+      @Override public Object answer( InvocationOnMock invocation ) throws Throwable {
+        return fields.get( (String) invocation.getArguments()[ 0 ] );
+      }
+    } );
+    return result;
+  }
+
+  private static List<DBObject> keys( Object... ids ) {
+    List<DBObject> keys = new ArrayList<DBObject>();
+    for ( Object id : Arrays.asList( ids ) ) {
+      keys.add( new BasicDBObject( "_id", id ) );
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,85 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReplicaSetTagIndexTest {
+
+  private ReplicaSetTagIndex index;
+
+  @Before
+  public void setUp() {
+    DBObject config = (DBObject) JSON.parse( NoAuthMongoClientWrapperTest.REP_SET_CONFIG );
+    BasicDBList members = (BasicDBList) config.get( NoAuthMongoClientWrapper.REPL_SET_MEMBERS );
+    // a member without tags never satisfies a tag set
+    members.add( new BasicDBObject( "_id", 3 ).append( "host", "palladium.local:27020" ) );
+    index = new ReplicaSetTagIndex( members );
+  }
+
+  @Test
+  public void testAllTagsOfASetMustMatch() {
+    List<DBObject> satisfy = index.match( tagSets( "{\"use\" : \"production\", \"dc.three\" : \"slave2\"}" ) );
+    assertEquals( Arrays.asList( 2 ), ids( satisfy ) );
+  }
+
+  @Test
+  public void testTagSetsAreOredAndDeduplicated() {
+    List<DBObject> satisfy = index.match( tagSets(
+      "{\"use\" : \"production\"}",
+      "{\"dc.two\" : \"slave1\"}",
+      "{\"dc.one\" : \"primary\"}" ) );
+    assertEquals( Arrays.asList( 0, 1, 2 ), ids( satisfy ) );
+  }
+
+  @Test
+  public void testUnknownTagOrValueMatchesNothing() {
+    assertEquals( 0, index.match( tagSets( "{\"use\" : \"ops\"}", "{\"rack\" : \"a\"}" ) ).size() );
+  }
+
+  @Test
+  public void testEmptyTagSetMatchesEveryTaggedMember() {
+    assertEquals( Arrays.asList( 0, 1, 2 ), ids( index.match( tagSets( "{}" ) ) ) );
+  }
+
+  private static List<DBObject> tagSets( String... json ) {
+    DBObject[] tagSets = new DBObject[ json.length ];
+    for ( int i = 0; i < json.length; i++ ) {
+      tagSets[ i ] = (DBObject) JSON.parse( json[ i ] );
+    }
+    return Arrays.asList( tagSets );
+  }
+
+  private static List<Integer> ids( List<DBObject> members ) {
+    Integer[] ids = new Integer[ members.size() ];
+    for ( int i = 0; i < ids.length; i++ ) {
+      ids[ i ] = (Integer) members.get( i ).get( "_id" );
+    }
+    return Arrays.asList( ids );
+  }
+}
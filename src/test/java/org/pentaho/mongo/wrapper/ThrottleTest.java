@@ -0,0 +1,106 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper;
+
+import org.junit.Test;
+import org.pentaho.mongo.MongoProp;
+import org.pentaho.mongo.MongoProperties;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ThrottleTest {
+  private static final long SECOND = TimeUnit.SECONDS.toNanos( 1 );
+
+  private static class FakeClock implements TokenBucket.Clock {
+    long now;
+    final List<Long> sleeps = new ArrayList<Long>();
+
+    @Override public long nanoTime() {
+      return now;
+    }
+
+    @Override public void sleep( long nanos ) {
+      sleeps.add( nanos );
+      now += nanos;
+    }
+  }
+
+  @Test public void testBurstThenPacedAtRate() throws Exception {
+    FakeClock clock = new FakeClock();
+    TokenBucket bucket = new TokenBucket( 100, 100, clock );
+    bucket.acquire( 100 );
+    assertTrue( clock.sleeps.isEmpty() );
+    bucket.acquire( 10 );
+    assertEquals( SECOND / 10, (long) clock.sleeps.get( 0 ) );
+    bucket.acquire( 50 );
+    assertEquals( SECOND / 2, (long) clock.sleeps.get( 1 ) );
+  }
+
+  @Test public void testRequestsLargerThanBurstGoIntoDebt() throws Exception {
+    FakeClock clock = new FakeClock();
+    TokenBucket bucket = new TokenBucket( 100, 10, clock );
+    // the burst is spent and the remaining 190 tokens are owed
+    assertEquals( 19 * SECOND / 10, bucket.reserve( 200 ) );
+    // a second caller queues behind the debt
+    assertEquals( 2 * SECOND, bucket.reserve( 10 ) );
+    clock.now += 10 * SECOND;
+    // idle time refills at most the burst
+    assertEquals( 0, bucket.reserve( 10 ) );
+    assertEquals( SECOND / 100, bucket.reserve( 1 ) );
+  }
+
+  @Test public void testThrottleAcquiresBothRates() throws Exception {
+    FakeClock clock = new FakeClock();
+    Throttle throttle = new Throttle( new TokenBucket( 10, 10, clock ), new TokenBucket( 1000, 1000, clock ) );
+    assertTrue( throttle.limitsBytes() );
+    throttle.acquire( 10, 2000 );
+    assertEquals( 1, clock.sleeps.size() );
+    assertEquals( SECOND, (long) clock.sleeps.get( 0 ) );
+    assertFalse( new Throttle( 10, 0 ).limitsBytes() );
+  }
+
+  @Test public void testForProperties() throws Exception {
+    MongoProperties unset = new MongoProperties.Builder().set( MongoProp.HOST, "localhost" ).build();
+    assertNull( Throttle.forProperties( unset, MongoProp.THROTTLE_WRITE_DOCS_PER_SECOND,
+      MongoProp.THROTTLE_WRITE_BYTES_PER_SECOND, null ) );
+
+    MongoProperties.Builder builder = new MongoProperties.Builder().set( MongoProp.HOST, "localhost" )
+      .set( MongoProp.THROTTLE_WRITE_DOCS_PER_SECOND, "500" );
+    MongoProperties separate = builder.build();
+    assertNotSame( write( separate ), write( separate ) );
+    assertFalse( write( separate ).limitsBytes() );
+
+    MongoProperties shared = builder.set( MongoProp.THROTTLE_SHARED, "true" ).build();
+    assertSame( write( shared ), write( shared ) );
+    MongoProperties otherHost = builder.set( MongoProp.HOST, "otherhost" ).build();
+    assertNotSame( write( shared ), write( otherHost ) );
+  }
+
+  private static Throttle write( MongoProperties props ) {
+    return Throttle.forProperties( props, MongoProp.THROTTLE_WRITE_DOCS_PER_SECOND,
+      MongoProp.THROTTLE_WRITE_BYTES_PER_SECOND, null );
+  }
+}
@@ -0,0 +1,103 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.collection;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.DBObject;
+import com.mongodb.WriteResult;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.pentaho.mongo.wrapper.AdaptiveBatchSize;
+import org.pentaho.mongo.wrapper.cursor.AdaptiveCursorWrapper;
+import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AdaptiveCollectionWrapperTest {
+  private final MongoCollectionWrapper delegate = mock( MongoCollectionWrapper.class );
+  private final AdaptiveBatchSize writes = new AdaptiveBatchSize.Builder().initialSize( 4 ).range( 1, 100 )
+    .increment( 2 ).build();
+
+  @Test public void testFindWrapsCursorsOnlyWithReadController() throws Exception {
+    MongoCursorWrapper cursor = mock( MongoCursorWrapper.class );
+    when( delegate.find() ).thenReturn( cursor );
+    assertTrue( new AdaptiveCollectionWrapper( delegate, writes, null ).find() instanceof AdaptiveCursorWrapper );
+    assertSame( cursor, new AdaptiveCollectionWrapper( delegate, null, writes ).find() );
+  }
+
+  @Test public void testInsertIsSplitByChosenSize() throws Exception {
+    final List<Integer> sizes = new ArrayList<Integer>();
+    when( delegate.insert( anyListOf( DBObject.class ) ) ).thenAnswer( new Answer<WriteResult>() {
+      @Override public WriteResult answer( InvocationOnMock invocation ) throws Throwable {
+        sizes.add( ( (List<?>) invocation.getArguments()[ 0 ] ).size() );
+        return new WriteResult( 0, false, null );
+      }
+    } );
+    List<DBObject> documents = new ArrayList<DBObject>();
+    for ( int i = 0; i < 15; i++ ) {
+      documents.add( new BasicDBObject( "_id", i ) );
+    }
+    new AdaptiveCollectionWrapper( delegate, null, writes ).insert( documents );
+
+    assertEquals( Arrays.asList( 4, 6, 5 ), sizes );
+    assertEquals( 3, writes.getBatchCount() );
+  }
+
+  @Test public void testBulkWriteMergesChunks() throws Exception {
+    final List<BulkWriteRequest> requests = new ArrayList<BulkWriteRequest>();
+    for ( int i = 0; i < 10; i++ ) {
+      requests.add( BulkWriteRequest.insert( new BasicDBObject( "_id", i ) ) );
+    }
+    when( delegate.bulkWrite( anyListOf( BulkWriteRequest.class ), anyBoolean(), anyInt(), anyInt() ) ).thenAnswer(
+      new Answer<BulkWriteSummary>() {
+        @Override public BulkWriteSummary answer( InvocationOnMock invocation ) throws Throwable {
+          List<BulkWriteRequest> chunk = (List<BulkWriteRequest>) invocation.getArguments()[ 0 ];
+          BulkWriteSummary summary = new BulkWriteSummary();
+          if ( chunk.contains( requests.get( 5 ) ) ) {
+            summary.addErrors( 0, chunk, Arrays.asList(
+              new BulkWriteError( 11000, "duplicate key", new BasicDBObject(), chunk.indexOf( requests.get( 5 ) ) ) ),
+              null );
+          }
+          return summary;
+        }
+      } );
+
+    BulkWriteSummary summary = new AdaptiveCollectionWrapper( delegate, null, writes ).bulkWrite( requests, true );
+
+    // 4 requests, then 6 of which the second fails
+    verify( delegate, times( 2 ) ).bulkWrite( anyListOf( BulkWriteRequest.class ), anyBoolean(), anyInt(), anyInt() );
+    assertEquals( 1, summary.getErrors().size() );
+    assertEquals( 5, summary.getErrors().get( 0 ).getIndex() );
+    assertSame( requests.get( 5 ), summary.getErrors().get( 0 ).getRequest() );
+    assertEquals( 3, writes.getBatchSize() );
+  }
+}
@@ -0,0 +1,48 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.collection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CountCacheTest {
+
+  @Test public void testCountsExpireAfterTtl() throws Exception {
+    CountCache cache = new CountCache( 50 );
+    assertNull( cache.get( "db.a" ) );
+    cache.put( "db.a", 10 );
+    cache.put( "db.b", 20 );
+    assertEquals( Long.valueOf( 10 ), cache.get( "db.a" ) );
+    assertEquals( Long.valueOf( 20 ), cache.get( "db.b" ) );
+    Thread.sleep( 60 );
+    assertNull( cache.get( "db.a" ) );
+  }
+
+  @Test public void testInvalidate() {
+    CountCache cache = new CountCache( 60000 );
+    cache.put( "db.a", 10 );
+    cache.invalidate( "db.a" );
+    assertNull( cache.get( "db.a" ) );
+  }
+
+  @Test( expected = IllegalArgumentException.class )
+  public void testTtlMustBePositive() {
+    new CountCache( 0 );
+  }
+}
@@ -17,24 +17,60 @@
 
 package org.pentaho.mongo.wrapper.collection;
 
+import com.mongodb.AggregationOptions;
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkUpdateRequestBuilder;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteRequestBuilder;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.BulkWriteUpsert;
+import com.mongodb.CommandResult;
+import com.mongodb.Cursor;
+import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.MongoCommandException;
+import com.mongodb.ParallelScanOptions;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.model.CountOptions;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
 import org.hamcrest.CoreMatchers;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.pentaho.mongo.AuthContext;
 import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.cursor.BsonBytes;
+import org.pentaho.mongo.wrapper.cursor.KerberosDelegatingCursorWrapper;
 import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
 
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
 
 public class DefaultMongoCollectionWrapperTest {
 
@@ -93,4 +129,339 @@ public class DefaultMongoCollectionWrapperTest {
 
   }
 
+  @Test public void testParallelScanWrapsCursors() throws MongoDbException {
+    Cursor first = mock( Cursor.class );
+    Cursor second = mock( Cursor.class );
+    when( mockDBCollection.parallelScan( any( ParallelScanOptions.class ) ) )
+      .thenReturn( Arrays.asList( first, second ) );
+
+    List<MongoCursorWrapper> cursors = defaultMongoCollectionWrapper.parallelScan( 4, 500 );
+
+    ArgumentCaptor<ParallelScanOptions> options = ArgumentCaptor.forClass( ParallelScanOptions.class );
+    verify( mockDBCollection ).parallelScan( options.capture() );
+    assertEquals( 4, options.getValue().getNumCursors() );
+    assertEquals( 500, options.getValue().getBatchSize() );
+    assertEquals( 2, cursors.size() );
+    when( first.hasNext() ).thenReturn( true );
+    assertTrue( cursors.get( 0 ).hasNext() );
+    cursors.get( 1 ).close();
+    verify( second ).close();
+  }
+
+  @Test public void testKerberosParallelScanCursorsRunInAuthContext() throws Exception {
+    AuthContext authContext = spy( new AuthContext( null ) );
+    Cursor cursor = mock( Cursor.class );
+    when( mockDBCollection.parallelScan( any( ParallelScanOptions.class ) ) )
+      .thenReturn( Arrays.asList( cursor ) );
+
+    List<MongoCursorWrapper> cursors =
+      new KerberosMongoCollectionWrapper( mockDBCollection, authContext ).parallelScan( 1, 0 );
+
+    assertThat( cursors.get( 0 ), CoreMatchers.instanceOf( KerberosDelegatingCursorWrapper.class ) );
+    cursors.get( 0 ).hasNext();
+    verify( authContext ).doAs( any( PrivilegedExceptionAction.class ) );
+    verify( cursor ).hasNext();
+  }
+
+  @Test public void testAggregateStreamsThroughCursor() throws Exception {
+    Cursor cursor = mock( Cursor.class );
+    List<DBObject> pipeline =
+      Arrays.<DBObject>asList( new BasicDBObject( "$group", new BasicDBObject( "_id", "$a" ) ) );
+    when( mockDBCollection.aggregate( eq( pipeline ), any( AggregationOptions.class ) ) ).thenReturn( cursor );
+
+    MongoCursorWrapper results = defaultMongoCollectionWrapper.aggregate( pipeline, AggregationOptions.builder()
+      .allowDiskUse( true ).batchSize( 250 ).maxTime( 30, TimeUnit.SECONDS ).build() );
+
+    ArgumentCaptor<AggregationOptions> options = ArgumentCaptor.forClass( AggregationOptions.class );
+    verify( mockDBCollection ).aggregate( eq( pipeline ), options.capture() );
+    assertEquals( AggregationOptions.OutputMode.CURSOR, options.getValue().getOutputMode() );
+    assertTrue( options.getValue().getAllowDiskUse() );
+    assertEquals( 250, options.getValue().getBatchSize().intValue() );
+    assertEquals( 30000, options.getValue().getMaxTime( TimeUnit.MILLISECONDS ) );
+    when( cursor.hasNext() ).thenReturn( true );
+    assertTrue( results.hasNext() );
+    results.close();
+    verify( cursor ).close();
+  }
+
+  @Test public void testAggregateKeepsCursorOptions() throws Exception {
+    AggregationOptions options = AggregationOptions.builder()
+      .outputMode( AggregationOptions.OutputMode.CURSOR ).batchSize( 10 ).build();
+    assertTrue( options == DefaultMongoCollectionWrapper.streaming( options ) );
+  }
+
+  @Test public void testAggregateAppliesPipelineOptimizer() throws Exception {
+    DBObject sort = new BasicDBObject( "$sort", new BasicDBObject( "a", 1 ) );
+    DBObject match = new BasicDBObject( "$match", new BasicDBObject( "a", 1 ) );
+    new DefaultMongoCollectionWrapper( mockDBCollection, new PipelineOptimizer( null ), null, null )
+      .aggregate( sort, new DBObject[] { match } );
+    verify( mockDBCollection ).aggregate( Arrays.asList( match, sort ) );
+  }
+
+  @Test public void testKerberosAggregateCursorRunsInAuthContext() throws Exception {
+    AuthContext authContext = spy( new AuthContext( null ) );
+    Cursor cursor = mock( Cursor.class );
+    List<DBObject> pipeline = Arrays.<DBObject>asList( new BasicDBObject( "$match", new BasicDBObject() ) );
+    when( mockDBCollection.aggregate( eq( pipeline ), any( AggregationOptions.class ) ) ).thenReturn( cursor );
+
+    MongoCursorWrapper results = new KerberosMongoCollectionWrapper( mockDBCollection, authContext )
+      .aggregate( pipeline, AggregationOptions.builder().build() );
+
+    assertThat( results, CoreMatchers.instanceOf( KerberosDelegatingCursorWrapper.class ) );
+    results.hasNext();
+    verify( authContext ).doAs( any( PrivilegedExceptionAction.class ) );
+    verify( cursor ).hasNext();
+  }
+
+  @Test public void testCountRunsCountCommand() throws Exception {
+    DB db = mock( DB.class );
+    CommandResult result = mock( CommandResult.class );
+    when( result.get( "n" ) ).thenReturn( 42 );
+    when( mockDBCollection.getDB() ).thenReturn( db );
+    when( mockDBCollection.getName() ).thenReturn( "coll" );
+    when( mockDBCollection.getReadPreference() ).thenReturn( ReadPreference.secondary() );
+    when( db.command( any( DBObject.class ), any( ReadPreference.class ) ) ).thenReturn( result );
+
+    DBObject query = new BasicDBObject( "a", 1 );
+    assertEquals( 42, defaultMongoCollectionWrapper.count( query, new CountOptions().limit( 100 ).skip( 5 )
+      .hint( new BasicDBObject( "a", 1 ) ).maxTime( 2, TimeUnit.SECONDS ) ) );
+
+    ArgumentCaptor<DBObject> command = ArgumentCaptor.forClass( DBObject.class );
+    verify( db ).command( command.capture(), eq( ReadPreference.secondary() ) );
+    assertEquals( new BasicDBObject( "count", "coll" ).append( "query", query ).append( "limit", 100 )
+      .append( "skip", 5 ).append( "hint", new BasicDBObject( "a", 1 ) ).append( "maxTimeMS", 2000L ),
+      command.getValue() );
+
+    defaultMongoCollectionWrapper.count( null, new CountOptions().hintString( "a_1" ) );
+    verify( db, times( 2 ) ).command( command.capture(), eq( ReadPreference.secondary() ) );
+    assertEquals( new BasicDBObject( "count", "coll" ).append( "query", new BasicDBObject() )
+      .append( "hint", "a_1" ), command.getValue() );
+  }
+
+  @Test public void testEstimatedCountReadsCollStatsAndCaches() throws Exception {
+    CommandResult stats = mock( CommandResult.class );
+    when( stats.ok() ).thenReturn( true );
+    when( stats.get( "count" ) ).thenReturn( 1000000000L );
+    when( mockDBCollection.getFullName() ).thenReturn( "db.coll" );
+    when( mockDBCollection.getStats() ).thenReturn( stats );
+    DefaultMongoCollectionWrapper cached =
+      new DefaultMongoCollectionWrapper( mockDBCollection, null, new CountCache( 60000 ), null );
+
+    assertEquals( 1000000000L, cached.estimatedCount() );
+    assertEquals( 1000000000L, cached.estimatedCount() );
+    verify( mockDBCollection ).getStats();
+    cached.drop();
+    cached.estimatedCount();
+    verify( mockDBCollection, times( 2 ) ).getStats();
+  }
+
+  @Test public void testEstimatedCountWithoutStatsCountsAll() throws Exception {
+    CommandResult stats = mock( CommandResult.class );
+    when( mockDBCollection.getStats() ).thenReturn( stats );
+    when( mockDBCollection.count() ).thenReturn( 7L );
+    assertEquals( 7, defaultMongoCollectionWrapper.estimatedCount() );
+    assertEquals( 7, defaultMongoCollectionWrapper.estimatedCount() );
+    verify( mockDBCollection, times( 2 ) ).getStats();
+  }
+
+  @Test public void testDistinctUsesCommandForSmallCollections() throws Exception {
+    stubEstimatedCount( 10 );
+    DBObject query = new BasicDBObject( "a", 1 );
+    when( mockDBCollection.distinct( "k", query ) ).thenReturn( Arrays.asList( "x", "y" ) );
+
+    DistinctValues values = defaultMongoCollectionWrapper.distinct( "k", query );
+
+    assertFalse( values.isStreaming() );
+    assertEquals( "x", values.next() );
+    assertEquals( "y", values.next() );
+    assertFalse( values.hasNext() );
+    verify( mockDBCollection, never() ).aggregate( any( List.class ), any( AggregationOptions.class ) );
+  }
+
+  @Test public void testDistinctStreamsGroupForLargeCollections() throws Exception {
+    stubEstimatedCount( DefaultMongoCollectionWrapper.DISTINCT_COMMAND_MAX_DOCUMENTS + 1 );
+    Cursor cursor = mock( Cursor.class );
+    when( mockDBCollection.aggregate( any( List.class ), any( AggregationOptions.class ) ) ).thenReturn( cursor );
+    when( cursor.hasNext() ).thenReturn( true, false );
+    when( cursor.next() ).thenReturn( new BasicDBObject( "_id", "x" ) );
+
+    DistinctValues values = defaultMongoCollectionWrapper.distinct( "k", null );
+
+    assertTrue( values.isStreaming() );
+    assertEquals( "x", values.next() );
+    assertFalse( values.hasNext() );
+    values.close();
+    verify( cursor ).close();
+    ArgumentCaptor<AggregationOptions> options = ArgumentCaptor.forClass( AggregationOptions.class );
+    verify( mockDBCollection ).aggregate( eq( DefaultMongoCollectionWrapper.distinctPipeline( "k", null ) ),
+      options.capture() );
+    assertTrue( options.getValue().getAllowDiskUse() );
+    verify( mockDBCollection, never() ).distinct( any( String.class ), any( DBObject.class ) );
+  }
+
+  @Test public void testDistinctFallsBackWhenReplyIsTooBig() throws Exception {
+    stubEstimatedCount( 10 );
+    MongoCommandException tooBig = new MongoCommandException( new BsonDocument( "ok", new BsonDouble( 0 ) )
+      .append( "code", new BsonInt32( 17217 ) ).append( "errmsg", new BsonString( "distinct too big, 16mb cap" ) ),
+      new ServerAddress() );
+    when( mockDBCollection.distinct( any( String.class ), any( DBObject.class ) ) ).thenThrow( tooBig );
+    Cursor cursor = mock( Cursor.class );
+    when( mockDBCollection.aggregate( any( List.class ), any( AggregationOptions.class ) ) ).thenReturn( cursor );
+
+    assertTrue( defaultMongoCollectionWrapper.distinct( "k", new BasicDBObject( "a", 1 ) ).isStreaming() );
+  }
+
+  @Test public void testDistinctPipeline() {
+    DBObject exists = new BasicDBObject( "a.b", new BasicDBObject( "$exists", true ) );
+    DBObject query = new BasicDBObject( "c", 1 );
+    assertEquals( Arrays.asList(
+      new BasicDBObject( "$match", new BasicDBObject( "$and", Arrays.asList( query, exists ) ) ),
+      new BasicDBObject( "$unwind", "$a" ),
+      new BasicDBObject( "$unwind",
+        new BasicDBObject( "path", "$a.b" ).append( "preserveNullAndEmptyArrays", true ) ),
+      new BasicDBObject( "$match", exists ),
+      new BasicDBObject( "$group", new BasicDBObject( "_id", "$a.b" ) ) ),
+      DefaultMongoCollectionWrapper.distinctPipeline( "a.b", query ) );
+    assertEquals( 4, DefaultMongoCollectionWrapper.distinctPipeline( "a", null ).size() );
+    assertEquals( 6, DefaultMongoCollectionWrapper.distinctPipeline( "a.b.c", null ).size() );
+    assertEquals( new BasicDBObject( "$match", exists ),
+      DefaultMongoCollectionWrapper.distinctPipeline( "a.b", new BasicDBObject() ).get( 0 ) );
+  }
+
+  private void stubEstimatedCount( long count ) {
+    CommandResult stats = mock( CommandResult.class );
+    when( stats.ok() ).thenReturn( true );
+    when( stats.get( "count" ) ).thenReturn( count );
+    when( mockDBCollection.getStats() ).thenReturn( stats );
+  }
+
+  @Test public void testBulkWriteSplitsByCount() throws Exception {
+    BulkWriteOperation first = operation( result( 2, 0 ) );
+    BulkWriteOperation second = operation( result( 2, 0 ) );
+    BulkWriteOperation third = operation( result( 1, 0 ) );
+    when( mockDBCollection.initializeUnorderedBulkOperation() ).thenReturn( first, second, third );
+
+    BulkWriteSummary summary = defaultMongoCollectionWrapper.bulkWrite( inserts( 5 ), false, 2, 0 );
+
+    verify( first, times( 2 ) ).insert( any( DBObject.class ) );
+    verify( third ).insert( any( DBObject.class ) );
+    assertEquals( 3, summary.getBatchResults().size() );
+    assertEquals( 5, summary.getSentCount() );
+    assertEquals( 5, summary.getInsertedCount() );
+    assertTrue( summary.isSuccessful() );
+  }
+
+  @Test public void testBulkWriteSplitsBySize() throws Exception {
+    List<BulkWriteRequest> requests = inserts( 5 );
+    int size = BsonBytes.size( requests.get( 0 ).getDocument() );
+    BulkWriteOperation first = operation( result( 3, 0 ) );
+    BulkWriteOperation second = operation( result( 2, 0 ) );
+    when( mockDBCollection.initializeOrderedBulkOperation() ).thenReturn( first, second );
+
+    BulkWriteSummary summary = defaultMongoCollectionWrapper.bulkWrite( requests, true, 1000, 3 * size + 1 );
+
+    verify( first, times( 3 ) ).insert( any( DBObject.class ) );
+    verify( second, times( 2 ) ).insert( any( DBObject.class ) );
+    assertEquals( 5, summary.getInsertedCount() );
+  }
+
+  @Test public void testBulkWriteDoesNotSizeDocumentsByDefault() throws Exception {
+    DBObject document = mock( DBObject.class );
+    BulkWriteOperation operation = operation( result( 1, 0 ) );
+    when( mockDBCollection.initializeOrderedBulkOperation() ).thenReturn( operation );
+
+    defaultMongoCollectionWrapper.bulkWrite( Arrays.asList( BulkWriteRequest.insert( document ) ), true );
+
+    verify( operation ).insert( document );
+    verifyZeroInteractions( document );
+  }
+
+  @Test public void testBulkWriteMapsRequests() throws Exception {
+    DBObject query = new BasicDBObject( "_id", 1 );
+    DBObject update = new BasicDBObject( "$set", new BasicDBObject( "a", 1 ) );
+    BulkWriteOperation operation = operation( result( 0, 0 ) );
+    BulkWriteRequestBuilder find = mock( BulkWriteRequestBuilder.class );
+    BulkUpdateRequestBuilder upsert = mock( BulkUpdateRequestBuilder.class );
+    when( operation.find( query ) ).thenReturn( find );
+    when( find.upsert() ).thenReturn( upsert );
+    when( mockDBCollection.initializeOrderedBulkOperation() ).thenReturn( operation );
+
+    defaultMongoCollectionWrapper.bulkWrite( Arrays.asList(
+      BulkWriteRequest.updateOne( query, update ), BulkWriteRequest.updateMany( query, update, true ),
+      BulkWriteRequest.replaceOne( query, query, true ), BulkWriteRequest.deleteOne( query ),
+      BulkWriteRequest.deleteMany( query ) ), true );
+
+    verify( find ).updateOne( update );
+    verify( upsert ).update( update );
+    verify( upsert ).replaceOne( query );
+    verify( find ).removeOne();
+    verify( find ).remove();
+  }
+
+  @Test public void testOrderedBulkWriteStopsAtFailingBatch() throws Exception {
+    BulkWriteResult partial = result( 1, 0 );
+    when( partial.getUpserts() ).thenReturn( Arrays.asList( new BulkWriteUpsert( 0, "id" ) ) );
+    BulkWriteException failure = mock( BulkWriteException.class );
+    when( failure.getWriteResult() ).thenReturn( partial );
+    when( failure.getWriteErrors() ).thenReturn(
+      Arrays.asList( new BulkWriteError( 11000, "duplicate key", new BasicDBObject(), 1 ) ) );
+    BulkWriteOperation first = operation( result( 2, 0 ) );
+    BulkWriteOperation second = operation( null );
+    when( second.execute() ).thenThrow( failure );
+    when( mockDBCollection.initializeOrderedBulkOperation() ).thenReturn( first, second );
+    List<BulkWriteRequest> requests = inserts( 6 );
+
+    BulkWriteSummary summary = defaultMongoCollectionWrapper.bulkWrite( requests, true, 2, 0 );
+
+    verify( mockDBCollection, times( 2 ) ).initializeOrderedBulkOperation();
+    assertEquals( 4, summary.getSentCount() );
+    assertEquals( 3, summary.getInsertedCount() );
+    assertEquals( 2, summary.getUpserts().get( 0 ).getIndex() );
+    assertEquals( 1, summary.getErrors().size() );
+    assertEquals( 3, summary.getErrors().get( 0 ).getIndex() );
+    assertEquals( requests.get( 3 ), summary.getErrors().get( 0 ).getRequest() );
+    assertEquals( 11000, summary.getErrors().get( 0 ).getCode() );
+    assertFalse( summary.isSuccessful() );
+  }
+
+  @Test public void testUnorderedBulkWriteRunsEveryBatch() throws Exception {
+    BulkWriteResult partial = result( 1, 0 );
+    BulkWriteException failure = mock( BulkWriteException.class );
+    when( failure.getWriteResult() ).thenReturn( partial );
+    when( failure.getWriteErrors() ).thenReturn(
+      Arrays.asList( new BulkWriteError( 11000, "duplicate key", new BasicDBObject(), 0 ) ) );
+    BulkWriteOperation first = operation( null );
+    when( first.execute() ).thenThrow( failure );
+    BulkWriteOperation second = operation( result( 2, 0 ) );
+    when( mockDBCollection.initializeUnorderedBulkOperation() ).thenReturn( first, second );
+
+    BulkWriteSummary summary = defaultMongoCollectionWrapper.bulkWrite( inserts( 4 ), false, 2, 0 );
+
+    assertEquals( 4, summary.getSentCount() );
+    assertEquals( 3, summary.getInsertedCount() );
+    assertEquals( 0, summary.getErrors().get( 0 ).getIndex() );
+  }
+
+  private static List<BulkWriteRequest> inserts( int count ) {
+    List<BulkWriteRequest> requests = new ArrayList<BulkWriteRequest>();
+    for ( int i = 0; i < count; i++ ) {
+      requests.add( BulkWriteRequest.insert( new BasicDBObject( "_id", i ) ) );
+    }
+    return requests;
+  }
+
+  private static BulkWriteOperation operation( BulkWriteResult result ) {
+    BulkWriteOperation operation = mock( BulkWriteOperation.class );
+    when( operation.execute() ).thenReturn( result );
+    return operation;
+  }
+
+  private static BulkWriteResult result( int inserted, int matched ) {
+    BulkWriteResult result = mock( BulkWriteResult.class );
+    when( result.isAcknowledged() ).thenReturn( true );
+    when( result.isModifiedCountAvailable() ).thenReturn( true );
+    when( result.getInsertedCount() ).thenReturn( inserted );
+    when( result.getMatchedCount() ).thenReturn( matched );
+    return result;
+  }
 }
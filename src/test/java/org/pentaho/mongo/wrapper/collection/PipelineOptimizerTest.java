@@ -0,0 +1,159 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.collection;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.junit.Test;
+import org.pentaho.mongo.MongoProp;
+import org.pentaho.mongo.MongoProperties;
+import org.pentaho.mongo.MongoUtilLogger;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PipelineOptimizerTest {
+  private final PipelineOptimizer optimizer = new PipelineOptimizer( null );
+
+  @Test public void testMatchMovesAheadOfSortAndUnrelatedStages() {
+    assertOptimized(
+      "[ { '$sort' : { 'b' : 1 } }, { '$unwind' : '$tags' }, { '$match' : { 'a' : 1 } } ]",
+      "[ { '$match' : { 'a' : 1 } }, { '$sort' : { 'b' : 1 } }, { '$unwind' : '$tags' } ]" );
+    assertOptimized(
+      "[ { '$project' : { 'a' : 1 } }, { '$match' : { 'a.x' : 1, '_id' : 2 } } ]",
+      "[ { '$match' : { 'a.x' : 1, '_id' : 2 } }, { '$project' : { 'a' : 1 } } ]" );
+    assertOptimized(
+      "[ { '$lookup' : { 'from' : 'c', 'localField' : 'k', 'foreignField' : 'k', 'as' : 'joined' } }, "
+        + "{ '$match' : { 'a' : 1 } } ]",
+      "[ { '$match' : { 'a' : 1 } }, "
+        + "{ '$lookup' : { 'from' : 'c', 'localField' : 'k', 'foreignField' : 'k', 'as' : 'joined' } } ]" );
+  }
+
+  @Test public void testMatchStaysBehindStagesItDependsOn() {
+    assertUnchanged( "[ { '$project' : { 'a' : '$b' } }, { '$match' : { 'a' : 1 } } ]" );
+    assertUnchanged( "[ { '$project' : { 'a' : 0 } }, { '$match' : { 'a' : 1 } } ]" );
+    assertUnchanged( "[ { '$project' : { 'a' : 1, '_id' : 0 } }, { '$match' : { '_id' : 1 } } ]" );
+    assertUnchanged( "[ { '$unwind' : '$a.b' }, { '$match' : { 'a.c' : 1 } } ]" );
+    assertUnchanged( "[ { '$addFields' : { 'a' : 1 } }, { '$match' : { '$or' : [ { 'a' : 1 }, { 'b' : 1 } ] } } ]" );
+    assertUnchanged( "[ { '$limit' : 10 }, { '$match' : { 'a' : 1 } } ]" );
+    assertUnchanged(
+      "[ { '$sort' : { 'a' : 1 } }, { '$group' : { '_id' : '$$ROOT' } }, { '$match' : { '_id' : 1 } } ]" );
+    assertUnchanged( "[ { '$project' : { 'a' : 1 } }, { '$match' : { '$where' : 'this.a > 1' } } ]" );
+    assertUnchanged( "[ { '$addFields' : 'a' }, { '$match' : { 'b' : 1 } } ]" );
+    assertUnchanged( "[ { '$lookup' : 'a' }, { '$match' : { 'b' : 1 } } ]" );
+    assertUnchanged( "[ { '$project' : 'a' }, { '$match' : { 'b' : 1 } } ]" );
+  }
+
+  @Test public void testMatchStillMovesAheadOfSortWithUnknownFields() {
+    assertOptimized( "[ { '$sort' : { 'a' : 1 } }, { '$match' : { '$where' : 'this.a > 1' } } ]",
+      "[ { '$match' : { '$where' : 'this.a > 1' } }, { '$sort' : { 'a' : 1 } } ]" );
+  }
+
+  @Test public void testAdjacentMatchesAreMerged() {
+    assertOptimized( "[ { '$match' : { 'a' : 1 } }, { '$match' : { 'b' : 2 } } ]",
+      "[ { '$match' : { 'a' : 1, 'b' : 2 } } ]" );
+    assertOptimized( "[ { '$match' : { 'a' : 1 } }, { '$match' : { 'a' : { '$gt' : 0 } } } ]",
+      "[ { '$match' : { '$and' : [ { 'a' : 1 }, { 'a' : { '$gt' : 0 } } ] } } ]" );
+    assertOptimized( "[ { '$match' : { 'a' : 1 } }, { '$sort' : { 'a' : 1 } }, { '$match' : { 'b' : 2 } } ]",
+      "[ { '$match' : { 'a' : 1, 'b' : 2 } }, { '$sort' : { 'a' : 1 } } ]" );
+  }
+
+  @Test public void testAdjacentProjectsAreMerged() {
+    assertOptimized( "[ { '$project' : { 'a' : 1, 'b' : 1 } }, { '$project' : { 'a' : 1, 'c' : 1 } } ]",
+      "[ { '$project' : { 'a' : 1 } } ]" );
+    assertOptimized( "[ { '$project' : { 'a' : 1, '_id' : 0 } }, { '$project' : { 'a' : true } } ]",
+      "[ { '$project' : { 'a' : 1, '_id' : 0 } } ]" );
+    assertOptimized( "[ { '$project' : { 'a' : 0 } }, { '$project' : { 'b.c' : 0 } } ]",
+      "[ { '$project' : { 'a' : 0, 'b.c' : 0 } } ]" );
+    assertUnchanged( "[ { '$project' : { 'a' : 1 } }, { '$project' : { 'a' : 0 } } ]" );
+    assertUnchanged( "[ { '$project' : { 'a.b' : 1 } }, { '$project' : { 'a' : 1 } } ]" );
+    assertUnchanged( "[ { '$project' : { 'a' : 0 } }, { '$project' : { 'a.b' : 0 } } ]" );
+    assertUnchanged( "[ { '$project' : { 'a.b' : 0 } }, { '$project' : { 'a' : 0 } } ]" );
+    assertUnchanged( "[ { '$project' : { 'a' : '$b' } }, { '$project' : { 'a' : 1 } } ]" );
+  }
+
+  @Test public void testGroupFieldsAreProjected() {
+    assertOptimized(
+      "[ { '$match' : { 's' : 'x' } }, { '$group' : { '_id' : { 'k' : '$k', 'y' : { '$year' : '$d' } }, "
+        + "'total' : { '$sum' : '$p.amount' }, 'all' : { '$sum' : '$p' }, 'n' : { '$sum' : 1 } } } ]",
+      "[ { '$match' : { 's' : 'x' } }, { '$project' : { 'k' : 1, 'd' : 1, 'p' : 1, '_id' : 0 } }, "
+        + "{ '$group' : { '_id' : { 'k' : '$k', 'y' : { '$year' : '$d' } }, "
+        + "'total' : { '$sum' : '$p.amount' }, 'all' : { '$sum' : '$p' }, 'n' : { '$sum' : 1 } } } ]" );
+    assertOptimized( "[ { '$group' : { '_id' : null, 'n' : { '$sum' : 1 } } } ]",
+      "[ { '$project' : { '_id' : 1 } }, { '$group' : { '_id' : null, 'n' : { '$sum' : 1 } } } ]" );
+    assertOptimized( "[ { '$group' : { '_id' : '$_id.a', 'n' : { '$sum' : 1 } } } ]",
+      "[ { '$project' : { '_id.a' : 1 } }, { '$group' : { '_id' : '$_id.a', 'n' : { '$sum' : 1 } } } ]" );
+  }
+
+  @Test public void testGroupWithUnknownFieldsIsLeftAlone() {
+    assertUnchanged( "[ { '$group' : { '_id' : '$a', 'docs' : { '$push' : '$$ROOT' } } } ]" );
+    assertUnchanged( "[ { '$project' : { 'a' : 1 } }, { '$group' : { '_id' : '$a' } } ]" );
+  }
+
+  @Test public void testLiteralsAreNotFieldReferences() {
+    assertOptimized( "[ { '$group' : { '_id' : '$a', 'v' : { '$first' : { '$literal' : '$b' } } } } ]",
+      "[ { '$project' : { 'a' : 1, '_id' : 0 } }, "
+        + "{ '$group' : { '_id' : '$a', 'v' : { '$first' : { '$literal' : '$b' } } } } ]" );
+  }
+
+  @Test public void testStagesAreNotModified() {
+    List<DBObject> pipeline = parse( "[ { '$match' : { 'a' : 1 } }, { '$match' : { 'b' : 2 } } ]" );
+    String before = pipeline.toString();
+    optimizer.optimize( pipeline );
+    assertEquals( before, pipeline.toString() );
+  }
+
+  @Test public void testRewriteIsLoggedAtDebugLevel() {
+    MongoUtilLogger log = mock( MongoUtilLogger.class );
+    when( log.isDebugEnabled() ).thenReturn( true );
+    PipelineOptimizer logging = new PipelineOptimizer( log );
+    logging.optimize( parse( "[ { '$match' : { 'a' : 1 } } ]" ) );
+    verify( log, never() ).debug( anyString() );
+    logging.optimize( parse( "[ { '$sort' : { 'a' : 1 } }, { '$match' : { 'a' : 1 } } ]" ) );
+    verify( log ).debug( anyString() );
+  }
+
+  @Test public void testForProperties() {
+    assertNull( PipelineOptimizer.forProperties( new MongoProperties.Builder().build(), null ) );
+    assertNotNull( PipelineOptimizer.forProperties( new MongoProperties.Builder()
+      .set( MongoProp.OPTIMIZE_AGGREGATION_PIPELINE, "true" ).build(), null ) );
+  }
+
+  private void assertOptimized( String pipeline, String expected ) {
+    assertEquals( parse( expected ), optimizer.optimize( parse( pipeline ) ) );
+  }
+
+  private void assertUnchanged( String pipeline ) {
+    List<DBObject> stages = parse( pipeline );
+    assertSame( stages, optimizer.optimize( stages ) );
+  }
+
+  @SuppressWarnings( "unchecked" )
+  private static List<DBObject> parse( String json ) {
+    return (List<DBObject>) JSON.parse( json.replace( '\'', '"' ) );
+  }
+}
@@ -0,0 +1,106 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.collection;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.pentaho.mongo.wrapper.Throttle;
+import org.pentaho.mongo.wrapper.cursor.BsonBytes;
+import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ThrottledCollectionWrapperTest {
+  private final MongoCollectionWrapper delegate = mock( MongoCollectionWrapper.class );
+  private final Throttle reads = mock( Throttle.class );
+  private final Throttle writes = mock( Throttle.class );
+  private final ThrottledCollectionWrapper collection = new ThrottledCollectionWrapper( delegate, reads, writes );
+
+  @Test public void testWritesWaitBeforeSending() throws Exception {
+    when( writes.limitsBytes() ).thenReturn( true );
+    DBObject document = new BasicDBObject( "_id", 1 );
+    int size = BsonBytes.size( document );
+    List<DBObject> documents = Arrays.<DBObject>asList( document, document, document );
+
+    collection.insert( documents );
+    collection.update( document, document, false, false );
+    collection.save( document );
+    collection.remove( document );
+    collection.bulkWrite( Arrays.asList( BulkWriteRequest.insert( document ),
+      BulkWriteRequest.updateOne( document, document ) ), false );
+
+    InOrder order = inOrder( writes, delegate );
+    order.verify( writes ).acquire( 3, 3L * size );
+    order.verify( delegate ).insert( documents );
+    order.verify( writes ).acquire( 1, 2L * size );
+    order.verify( delegate ).update( document, document, false, false );
+    order.verify( writes ).acquire( 1, size );
+    order.verify( delegate ).save( document );
+    order.verify( writes ).acquire( 1, size );
+    order.verify( delegate ).remove( document );
+    order.verify( writes ).acquire( 2, 3L * size );
+    verify( reads, never() ).acquire( anyInt(), anyLong() );
+  }
+
+  @Test public void testCursorsWaitForDocumentsRead() throws Exception {
+    MongoCursorWrapper cursor = mock( MongoCursorWrapper.class );
+    DBObject document = new BasicDBObject( "_id", 1 );
+    when( delegate.find() ).thenReturn( cursor );
+    when( cursor.next() ).thenReturn( document );
+    when( cursor.nextBatch( new ArrayList<DBObject>(), 10 ) ).thenReturn( 4 );
+
+    MongoCursorWrapper throttled = collection.find();
+    assertEquals( document, throttled.next() );
+    verify( reads ).acquire( 1, 0 );
+    throttled.nextBatch( new ArrayList<DBObject>(), 10 );
+    verify( reads ).acquire( 4, 0 );
+    verify( writes, never() ).acquire( anyInt(), anyLong() );
+  }
+
+  @Test public void testStreamedDistinctValuesWaitForDocumentsRead() throws Exception {
+    MongoCursorWrapper cursor = mock( MongoCursorWrapper.class );
+    when( cursor.hasNext() ).thenReturn( true );
+    when( cursor.next() ).thenReturn( new BasicDBObject( "_id", "x" ) );
+    DistinctValues streamed = new DistinctValues( cursor );
+    when( delegate.distinct( "k", null ) ).thenReturn( streamed );
+
+    assertEquals( "x", collection.distinct( "k", null ).next() );
+    verify( reads ).acquire( 1, 0 );
+  }
+
+  @Test public void testNullThrottlesPassThrough() throws Exception {
+    MongoCursorWrapper cursor = mock( MongoCursorWrapper.class );
+    when( delegate.find() ).thenReturn( cursor );
+    ThrottledCollectionWrapper unthrottled = new ThrottledCollectionWrapper( delegate, null, null );
+    assertEquals( cursor, unthrottled.find() );
+    unthrottled.insert( new ArrayList<DBObject>() );
+    verify( delegate ).insert( new ArrayList<DBObject>() );
+  }
+}
@@ -0,0 +1,181 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.collection;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.pentaho.mongo.MongoDbException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WriteBehindWriterTest {
+  private MongoCollectionWrapper collection;
+
+  @Before public void setUp() throws Exception {
+    collection = mock( MongoCollectionWrapper.class );
+  }
+
+  @Test public void testWritesFullBatchesAndFlushesRemainder() throws Exception {
+    final AtomicInteger requests = new AtomicInteger();
+    when( collection.bulkWrite( anyListOf( BulkWriteRequest.class ), anyBoolean() ) ).thenAnswer(
+      new Answer<BulkWriteSummary>() {
+        @Override public BulkWriteSummary answer( InvocationOnMock invocation ) throws Throwable {
+          requests.addAndGet( ( (List<?>) invocation.getArguments()[ 0 ] ).size() );
+          return new BulkWriteSummary();
+        }
+      } );
+    WriteBehindWriter writer = new WriteBehindWriter.Builder( collection ).batchSize( 2 )
+      .flushInterval( 0, TimeUnit.SECONDS ).build();
+    for ( int i = 0; i < 5; i++ ) {
+      writer.insert( new BasicDBObject( "_id", i ) );
+    }
+    assertEquals( 1, writer.getPendingCount() );
+    writer.close();
+
+    verify( collection, times( 3 ) ).bulkWrite( anyListOf( BulkWriteRequest.class ), anyBoolean() );
+    assertEquals( 5, requests.get() );
+    assertEquals( 5, writer.getWrittenCount() );
+    assertEquals( 0, writer.getPendingCount() );
+  }
+
+  @Test public void testFlushesAfterInterval() throws Exception {
+    when( collection.bulkWrite( anyListOf( BulkWriteRequest.class ), anyBoolean() ) )
+      .thenReturn( new BulkWriteSummary() );
+    WriteBehindWriter writer = new WriteBehindWriter.Builder( collection ).batchSize( 100 )
+      .flushInterval( 20, TimeUnit.MILLISECONDS ).build();
+    writer.insert( new BasicDBObject() );
+    long deadline = System.currentTimeMillis() + 5000;
+    while ( writer.getWrittenCount() == 0 && System.currentTimeMillis() < deadline ) {
+      Thread.sleep( 10 );
+    }
+    assertEquals( 1, writer.getWrittenCount() );
+    writer.close();
+  }
+
+  @Test public void testBlocksWhenBatchesAreInFlight() throws Exception {
+    final CountDownLatch release = new CountDownLatch( 1 );
+    when( collection.bulkWrite( anyListOf( BulkWriteRequest.class ), anyBoolean() ) ).thenAnswer(
+      new Answer<BulkWriteSummary>() {
+        @Override public BulkWriteSummary answer( InvocationOnMock invocation ) throws Throwable {
+          release.await();
+          return new BulkWriteSummary();
+        }
+      } );
+    final WriteBehindWriter writer = new WriteBehindWriter.Builder( collection ).batchSize( 1 ).maxInFlight( 2 )
+      .flushInterval( 0, TimeUnit.SECONDS ).build();
+    writer.insert( new BasicDBObject() );
+    writer.insert( new BasicDBObject() );
+    Thread producer = new Thread( new Runnable() {
+      @Override public void run() {
+        try {
+          writer.insert( new BasicDBObject() );
+        } catch ( MongoDbException e ) {
+          // ignored
+        }
+      }
+    } );
+    producer.start();
+    producer.join( 100 );
+    assertTrue( producer.isAlive() );
+    // the producer waits outside the writer's lock
+    assertEquals( 0, writer.getPendingCount() );
+    release.countDown();
+    producer.join( 5000 );
+    assertFalse( producer.isAlive() );
+    writer.close();
+    assertEquals( 3, writer.getWrittenCount() );
+  }
+
+  @Test public void testFailureIsThrownOnFlushAndWrite() throws Exception {
+    MongoDbException failure = new MongoDbException( "not master" );
+    when( collection.bulkWrite( anyListOf( BulkWriteRequest.class ), anyBoolean() ) ).thenThrow( failure );
+    WriteBehindWriter writer = new WriteBehindWriter.Builder( collection ).build();
+    writer.insert( new BasicDBObject() );
+    try {
+      writer.flush();
+      fail( "expected exception" );
+    } catch ( MongoDbException e ) {
+      assertEquals( failure, e.getCause() );
+    }
+    try {
+      writer.insert( new BasicDBObject() );
+      fail( "expected exception" );
+    } catch ( MongoDbException e ) {
+      assertEquals( failure, e.getCause() );
+    }
+  }
+
+  @Test public void testWritesAfterFailedBatchAreDropped() throws Exception {
+    final MongoDbException failure = new MongoDbException( "not master" );
+    final CountDownLatch queued = new CountDownLatch( 1 );
+    when( collection.bulkWrite( anyListOf( BulkWriteRequest.class ), anyBoolean() ) ).thenAnswer(
+      new Answer<BulkWriteSummary>() {
+        @Override public BulkWriteSummary answer( InvocationOnMock invocation ) throws Throwable {
+          // fail only once the last write is queued, which would otherwise see the failure
+          queued.await();
+          throw failure;
+        }
+      } );
+    WriteBehindWriter writer = new WriteBehindWriter.Builder( collection ).batchSize( 2 ).maxInFlight( 1 )
+      .ordered( true ).flushInterval( 0, TimeUnit.SECONDS ).build();
+    writer.insert( new BasicDBObject() );
+    writer.insert( new BasicDBObject() );
+    writer.insert( new BasicDBObject() );
+    queued.countDown();
+    while ( writer.getWrittenCount() < 2 ) {
+      Thread.sleep( 1 );
+    }
+    try {
+      writer.close();
+      fail( "expected exception" );
+    } catch ( MongoDbException e ) {
+      assertEquals( failure, e.getCause() );
+    }
+    verify( collection, times( 1 ) ).bulkWrite( anyListOf( BulkWriteRequest.class ), anyBoolean() );
+  }
+
+  @Test( expected = MongoDbException.class )
+  public void testWriteErrorsFailTheWriter() throws Exception {
+    List<BulkWriteRequest> requests = Arrays.asList( BulkWriteRequest.insert( new BasicDBObject( "_id", 1 ) ) );
+    BulkWriteSummary summary = new BulkWriteSummary();
+    summary.addErrors( 0, requests,
+      Arrays.asList( new BulkWriteError( 11000, "duplicate key", new BasicDBObject(), 0 ) ), null );
+    when( collection.bulkWrite( anyListOf( BulkWriteRequest.class ), anyBoolean() ) ).thenReturn( summary );
+    WriteBehindWriter writer = new WriteBehindWriter.Builder( collection ).build();
+    writer.write( requests.get( 0 ) );
+    writer.close();
+  }
+}
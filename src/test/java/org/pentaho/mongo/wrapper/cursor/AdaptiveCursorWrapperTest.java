@@ -0,0 +1,129 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.cursor;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.AdaptiveBatchSize;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AdaptiveCursorWrapperTest {
+  private final AdaptiveBatchSize controller = new AdaptiveBatchSize.Builder().initialSize( 10 ).range( 1, 100 )
+    .increment( 5 ).build();
+
+  @Test public void testStartsWithControllerBatchSizeAndRecordsBatches() throws Exception {
+    MongoCursorWrapper delegate = mock( MongoCursorWrapper.class );
+    when( delegate.batchSize( 10 ) ).thenReturn( delegate );
+    when( delegate.hasNext() ).thenReturn( true );
+    when( delegate.next() ).thenReturn( new BasicDBObject( "_id", 1 ) );
+
+    AdaptiveCursorWrapper cursor = new AdaptiveCursorWrapper( delegate, controller );
+    for ( int i = 0; i < 25; i++ ) {
+      cursor.hasNext();
+      cursor.next();
+    }
+    verify( delegate ).batchSize( 10 );
+    assertEquals( 10, cursor.getStartedBatchSize() );
+    assertEquals( 2, controller.getBatchCount() );
+    // the running cursor keeps its size, so its second batch does not ask for more than the first
+    assertEquals( 15, controller.getBatchSize() );
+    cursor.close();
+    assertEquals( 3, controller.getBatchCount() );
+    verify( delegate ).close();
+  }
+
+  @Test public void testExplicitBatchSizeIsKept() throws Exception {
+    MongoCursorWrapper delegate = mock( MongoCursorWrapper.class );
+    MongoCursorWrapper sized = mock( MongoCursorWrapper.class );
+    when( delegate.batchSize( 3 ) ).thenReturn( sized );
+    when( sized.nextBatch( new ArrayList<DBObject>(), 3 ) ).thenReturn( 0 );
+
+    MongoCursorWrapper cursor = new AdaptiveCursorWrapper( delegate, controller ).batchSize( 3 );
+    cursor.nextBatch( new ArrayList<DBObject>(), 3 );
+    verify( sized, never() ).batchSize( anyInt() );
+    assertEquals( 3, ( (AdaptiveCursorWrapper) cursor ).getStartedBatchSize() );
+  }
+
+  @Test public void testFailureIsRecorded() throws Exception {
+    MongoCursorWrapper delegate = mock( MongoCursorWrapper.class );
+    MongoDbException failure = new MongoDbException( "getMore failed" );
+    when( delegate.batchSize( 10 ) ).thenReturn( delegate );
+    when( delegate.nextBatch( new ArrayList<DBObject>(), 5 ) ).thenThrow( failure );
+
+    try {
+      new AdaptiveCursorWrapper( delegate, controller ).nextBatch( new ArrayList<DBObject>(), 5 );
+      fail( "expected exception" );
+    } catch ( MongoDbException e ) {
+      assertEquals( failure, e );
+    }
+    assertEquals( 5, controller.getBatchSize() );
+    assertEquals( 1, controller.getErrorRate(), 0 );
+  }
+
+  @Test public void testMisuseIsNotRecorded() throws Exception {
+    MongoCursorWrapper delegate = mock( MongoCursorWrapper.class );
+    NoSuchElementException exhausted = new NoSuchElementException();
+    when( delegate.batchSize( 10 ) ).thenReturn( delegate );
+    when( delegate.next() ).thenThrow( exhausted );
+
+    try {
+      new AdaptiveCursorWrapper( delegate, controller ).next();
+      fail( "expected exception" );
+    } catch ( NoSuchElementException e ) {
+      assertEquals( exhausted, e );
+    }
+    assertEquals( 10, controller.getBatchSize() );
+    assertEquals( 0, controller.getBatchCount() );
+  }
+
+  @Test public void testNextBatchRecordsFullBatches() throws Exception {
+    MongoCursorWrapper delegate = mock( MongoCursorWrapper.class );
+    when( delegate.batchSize( 10 ) ).thenReturn( delegate );
+    when( delegate.nextBatch( any( List.class ), anyInt() ) ).thenAnswer( new Answer<Integer>() {
+      @Override public Integer answer( InvocationOnMock invocation ) throws Throwable {
+        int max = (Integer) invocation.getArguments()[ 1 ];
+        for ( int i = 0; i < max; i++ ) {
+          ( (List<DBObject>) invocation.getArguments()[ 0 ] ).add( new BasicDBObject( "_id", i ) );
+        }
+        return max;
+      }
+    } );
+    List<DBObject> target = new ArrayList<DBObject>();
+    AdaptiveCursorWrapper cursor = new AdaptiveCursorWrapper( delegate, controller );
+    assertEquals( 6, cursor.nextBatch( target, 6 ) );
+    assertEquals( 0, controller.getBatchCount() );
+    assertEquals( 6, cursor.nextBatch( target, 6 ) );
+    assertEquals( 1, controller.getBatchCount() );
+    assertEquals( BsonBytes.size( target.get( 0 ) ), controller.getAverageDocumentBytes(), 0 );
+  }
+}
@@ -0,0 +1,71 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper.cursor;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.LazyDBDecoder;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BsonBytesTest {
+
+  @Test public void testLazyDocumentsAreCopiedAsReceived() throws Exception {
+    DBObject document = new BasicDBObject( "_id", 1 ).append( "name", "pentaho" )
+      .append( "tags", Arrays.asList( "a", "b" ) );
+    byte[] bson = BsonBytes.toByteArray( document );
+    DBObject lazy = LazyDBDecoder.FACTORY.create().decode( bson, (DBCollection) null );
+
+    assertEquals( bson.length, BsonBytes.size( document ) );
+    assertEquals( bson.length, BsonBytes.size( lazy ) );
+    assertArrayEquals( bson, BsonBytes.toByteArray( lazy ) );
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals( bson.length, BsonBytes.writeTo( lazy, out ) );
+    assertArrayEquals( bson, out.toByteArray() );
+    assertEquals( "pentaho", lazy.get( "name" ) );
+  }
+
+  @Test public void testSkipsEveryValueType() throws Exception {
+    BasicDBObject document = new BasicDBObject( "a", 1.0 ).append( "b", "s" ).append( "c", new BasicDBObject() )
+      .append( "d", Arrays.asList( 1 ) ).append( "e", new Binary( new byte[ 5 ] ) ).append( "f", new ObjectId() )
+      .append( "g", false ).append( "h", new Date() ).append( "i", null ).append( "j", Pattern.compile( "x" ) )
+      .append( "k", 1 ).append( "l", new BSONTimestamp() ).append( "m", 1L );
+    byte[] bson = BsonBytes.toByteArray( document );
+    int position = 4;
+    int fields = 0;
+    while ( bson[ position ] != 0 ) {
+      byte type = bson[ position++ ];
+      position = BsonBytes.skipCString( bson, position );
+      position = BsonBytes.skipValue( bson, position, type );
+      fields++;
+    }
+    assertEquals( document.size(), fields );
+    assertEquals( bson.length - 1, position );
+  }
+}
@@ -0,0 +1,134 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper.cursor;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DBCursor;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.LazyDBDecoder;
+import com.mongodb.ReadPreference;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.pentaho.mongo.AuthContext;
+
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DefaultCursorWrapperTest {
+
+  @Mock private DBCursor cursor;
+
+  @Before public void setUp() throws Exception {
+    MockitoAnnotations.initMocks( this );
+    when( cursor.batchSize( anyInt() ) ).thenReturn( cursor );
+    when( cursor.sort( any( DBObject.class ) ) ).thenReturn( cursor );
+    when( cursor.skip( anyInt() ) ).thenReturn( cursor );
+    when( cursor.hint( any( DBObject.class ) ) ).thenReturn( cursor );
+    when( cursor.hint( anyString() ) ).thenReturn( cursor );
+    when( cursor.maxTime( anyLong(), any( TimeUnit.class ) ) ).thenReturn( cursor );
+    when( cursor.addOption( anyInt() ) ).thenReturn( cursor );
+    when( cursor.comment( anyString() ) ).thenReturn( cursor );
+    when( cursor.setReadPreference( any( ReadPreference.class ) ) ).thenReturn( cursor );
+    when( cursor.setDecoderFactory( any( DBDecoderFactory.class ) ) ).thenReturn( cursor );
+  }
+
+  @Test public void testCursorOptionsPassThrough() throws Exception {
+    DBObject orderBy = new BasicDBObject( "date", -1 );
+    DBObject indexKeys = new BasicDBObject( "date", 1 );
+    new DefaultCursorWrapper( cursor ).batchSize( 1000 ).sort( orderBy ).skip( 10 ).hint( indexKeys )
+      .hint( "date_1" ).maxTime( 5, TimeUnit.SECONDS ).noCursorTimeout().comment( "extract" )
+      .readPreference( ReadPreference.secondaryPreferred() ).decoderFactory( LazyDBDecoder.FACTORY );
+
+    verify( cursor ).batchSize( 1000 );
+    verify( cursor ).sort( orderBy );
+    verify( cursor ).skip( 10 );
+    verify( cursor ).hint( indexKeys );
+    verify( cursor ).hint( "date_1" );
+    verify( cursor ).maxTime( 5, TimeUnit.SECONDS );
+    verify( cursor ).addOption( Bytes.QUERYOPTION_NOTIMEOUT );
+    verify( cursor ).comment( "extract" );
+    verify( cursor ).setReadPreference( ReadPreference.secondaryPreferred() );
+    verify( cursor ).setDecoderFactory( LazyDBDecoder.FACTORY );
+  }
+
+  @Test public void testNextBatch() throws Exception {
+    DBObject doc = new BasicDBObject();
+    when( cursor.hasNext() ).thenReturn( true, true, true, false );
+    when( cursor.next() ).thenReturn( doc );
+    DefaultCursorWrapper wrapper = new DefaultCursorWrapper( cursor );
+
+    List<DBObject> batch = new ArrayList<DBObject>();
+    assertEquals( 2, wrapper.nextBatch( batch, 2 ) );
+    assertEquals( 1, wrapper.nextBatch( batch, 2 ) );
+    assertEquals( 0, wrapper.nextBatch( batch, 2 ) );
+    assertEquals( 3, batch.size() );
+  }
+
+  @SuppressWarnings( "unchecked" )
+  @Test public void testKerberosNextBatchDrainsPrefetchBufferFirst() throws Exception {
+    AuthContext authContext = spy( new AuthContext( null ) );
+    DBObject[] docs = { new BasicDBObject( "_id", 0 ), new BasicDBObject( "_id", 1 ), new BasicDBObject( "_id", 2 ),
+      new BasicDBObject( "_id", 3 ), new BasicDBObject( "_id", 4 ) };
+    when( cursor.hasNext() ).thenReturn( true, true, true, true, true, false );
+    when( cursor.next() ).thenReturn( docs[ 0 ], docs[ 1 ], docs[ 2 ], docs[ 3 ], docs[ 4 ] );
+    MongoCursorWrapper wrapped = new KerberosDelegatingCursorWrapper( authContext,
+      new KerberosMongoCursorWrapper( cursor, authContext ), 2 );
+
+    assertTrue( wrapped.hasNext() );
+    List<DBObject> batch = new ArrayList<DBObject>();
+    assertEquals( 4, wrapped.nextBatch( batch, 4 ) );
+    assertEquals( 1, wrapped.nextBatch( batch, 4 ) );
+    assertEquals( 0, wrapped.nextBatch( batch, 4 ) );
+    assertEquals( Arrays.asList( docs ), batch );
+    // prefetch fill, one read for the rest of the first batch, one short read
+    verify( authContext, times( 3 ) ).doAs( any( PrivilegedExceptionAction.class ) );
+  }
+
+  @SuppressWarnings( "unchecked" )
+  @Test public void testKerberosCursorOptionsRunInAuthContext() throws Exception {
+    AuthContext authContext = spy( new AuthContext( null ) );
+    MongoCursorWrapper wrapped = new KerberosDelegatingCursorWrapper( authContext,
+      new KerberosMongoCursorWrapper( cursor, authContext ) );
+
+    MongoCursorWrapper tuned = wrapped.batchSize( 500 ).sort( new BasicDBObject( "_id", 1 ) );
+
+    assertThat( tuned, instanceOf( KerberosDelegatingCursorWrapper.class ) );
+    verify( authContext, times( 2 ) ).doAs( any( PrivilegedExceptionAction.class ) );
+    verify( cursor ).batchSize( 500 );
+  }
+}
@@ -0,0 +1,105 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.cursor;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+import java.util.List;
+
+/**
+ * Measures the cost of extracting a nested field, <code>a.b[3].c</code>, by splitting the path for every
+ * document and walking DBObject.get(), against a compiled FieldPath over BasicDBObjects and over
+ * RawDBObjects.  Not a unit test; run it directly:
+ * <pre>
+ *   java -cp ... org.pentaho.mongo.wrapper.cursor.FieldPathBenchmark [lookups] [rounds]
+ * </pre>
+ */
+public class FieldPathBenchmark {
+  private static final String PATH = "a.b[3].c";
+
+  public static void main( String[] args ) throws Exception {
+    int lookups = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 5000000;
+    int rounds = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 10;
+    DBObject document = document();
+    DBObject raw = RawDBDecoder.FACTORY.create().decode( BsonBytes.toByteArray( document ), (DBCollection) null );
+    FieldPath path = FieldPath.compile( PATH );
+
+    for ( int round = 0; round < rounds; round++ ) {
+      System.out.println( String.format( "round %d: split %.1f ns/lookup, FieldPath %.1f ns/lookup, "
+          + "split raw %.1f ns/lookup, FieldPath raw %.1f ns/lookup", round,
+        split( document, lookups ), compiled( path, document, lookups ),
+        split( raw, lookups ), compiled( path, raw, lookups ) ) );
+    }
+  }
+
+  private static double split( DBObject document, int lookups ) {
+    long start = System.nanoTime();
+    long sum = 0;
+    for ( int i = 0; i < lookups; i++ ) {
+      sum += ( (Number) naiveGet( document, PATH ) ).longValue();
+    }
+    return elapsed( start, lookups, sum );
+  }
+
+  private static double compiled( FieldPath path, DBObject document, int lookups ) {
+    long start = System.nanoTime();
+    long sum = 0;
+    for ( int i = 0; i < lookups; i++ ) {
+      sum += ( (Number) path.get( document ) ).longValue();
+    }
+    return elapsed( start, lookups, sum );
+  }
+
+  private static double elapsed( long start, int lookups, long sum ) {
+    if ( sum != 3L * lookups ) {
+      throw new IllegalStateException( "unexpected sum " + sum );
+    }
+    return (double) ( System.nanoTime() - start ) / lookups;
+  }
+
+  /**
+   * The per document splitting this benchmark compares against.
+   */
+  private static Object naiveGet( DBObject document, String path ) {
+    Object value = document;
+    for ( String part : path.replace( "[", "." ).replace( "]", "" ).split( "\\." ) ) {
+      if ( value instanceof List ) {
+        value = ( (List<?>) value ).get( Integer.parseInt( part ) );
+      } else if ( value instanceof DBObject ) {
+        value = ( (DBObject) value ).get( part );
+      } else {
+        return null;
+      }
+    }
+    return value;
+  }
+
+  private static DBObject document() {
+    BasicDBList b = new BasicDBList();
+    for ( int i = 0; i < 5; i++ ) {
+      b.add( new BasicDBObject( "c", i ).append( "d", "value " + i ) );
+    }
+    BasicDBObject document = new BasicDBObject( "_id", 1 );
+    for ( int i = 0; i < 10; i++ ) {
+      document.append( "field" + i, "value " + i );
+    }
+    return document.append( "a", new BasicDBObject( "x", 1 ).append( "b", b ) );
+  }
+}
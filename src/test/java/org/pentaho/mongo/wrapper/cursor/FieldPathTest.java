@@ -0,0 +1,114 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.cursor;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FieldPathTest {
+
+  private final ObjectId id = new ObjectId();
+  private final DBObject document = new BasicDBObject( "_id", id )
+    .append( "a", new BasicDBObject( "b", list(
+      new BasicDBObject( "c", 0 ), new BasicDBObject( "c", 1 ), "two", new BasicDBObject( "c", 3L ) ) ) )
+    .append( "name", "pentaho" )
+    .append( "price", 2.5 )
+    .append( "active", false )
+    .append( "created", new Date( 1000L ) )
+    .append( "ts", new BSONTimestamp( 5, 6 ) )
+    .append( "nothing", null )
+    .append( "3", "numeric key" );
+
+  @Test public void testCompile() throws Exception {
+    FieldPath path = FieldPath.compile( "$.a.b[3][0].c" );
+    assertEquals( 5, path.length() );
+    assertEquals( "b", path.getStep( 1 ) );
+    assertEquals( "3", path.getStep( 2 ) );
+    assertEquals( "0", path.getStep( 3 ) );
+    assertEquals( FieldPath.compile( "a.b.3.0.c" ), path );
+    assertEquals( "$.a.b[3][0].c", path.toString() );
+    for ( String malformed : Arrays.asList( "", "$.", "a..b", "a.", ".a", "a[", "a[x]", "a[1]b", "[1]", "a[03]" ) ) {
+      try {
+        FieldPath.compile( malformed );
+        fail( "expected exception for " + malformed );
+      } catch ( IllegalArgumentException e ) {
+        // expected
+      }
+    }
+  }
+
+  @Test public void testGetFromDBObject() throws Exception {
+    assertGets( document );
+  }
+
+  @Test public void testGetFromRawDBObject() throws Exception {
+    DBObject raw = RawDBDecoder.FACTORY.create().decode( BsonBytes.toByteArray( document ), (DBCollection) null );
+    assertTrue( raw instanceof RawDBObject );
+    assertGets( raw );
+    assertTrue( FieldPath.compile( "a.b[1]" ).get( raw ) instanceof RawDBObject );
+    assertTrue( FieldPath.compile( "a.b" ).get( raw ) instanceof List );
+  }
+
+  @Test public void testFindInBson() throws Exception {
+    byte[] bson = BsonBytes.toByteArray( document );
+    int element = FieldPath.compile( "a.b[3].c" ).find( bson, 0 );
+    assertEquals( 0x12, bson[ element ] );
+    assertEquals( 3L, BsonBytes.readLong( bson, element + 3 ) );
+    assertEquals( -1, FieldPath.compile( "a.b[2].c" ).find( bson, 0 ) );
+    assertEquals( -1, FieldPath.compile( "a.x" ).find( bson, 0 ) );
+  }
+
+  private void assertGets( DBObject document ) {
+    assertEquals( id, FieldPath.compile( "_id" ).get( document ) );
+    assertEquals( 1, FieldPath.compile( "a.b[1].c" ).get( document ) );
+    assertEquals( 3L, FieldPath.compile( "a.b.3.c" ).get( document ) );
+    assertEquals( "two", FieldPath.compile( "$.a.b[2]" ).get( document ) );
+    assertEquals( "pentaho", FieldPath.compile( "name" ).get( document ) );
+    assertEquals( 2.5, FieldPath.compile( "price" ).get( document ) );
+    assertEquals( false, FieldPath.compile( "active" ).get( document ) );
+    assertEquals( new Date( 1000L ), FieldPath.compile( "created" ).get( document ) );
+    assertEquals( new BSONTimestamp( 5, 6 ), FieldPath.compile( "ts" ).get( document ) );
+    assertEquals( "numeric key", FieldPath.compile( "3" ).get( document ) );
+    assertNull( FieldPath.compile( "nothing" ).get( document ) );
+    assertNull( FieldPath.compile( "a.b[2].c" ).get( document ) );
+    assertNull( FieldPath.compile( "a.b[4].c" ).get( document ) );
+    assertNull( FieldPath.compile( "a.b.c" ).get( document ) );
+    assertNull( FieldPath.compile( "a.b.03.c" ).get( document ) );
+    assertNull( FieldPath.compile( "name.first" ).get( document ) );
+    assertNull( FieldPath.compile( "missing.field" ).get( document ) );
+  }
+
+  private static BasicDBList list( Object... values ) {
+    BasicDBList list = new BasicDBList();
+    list.addAll( Arrays.asList( values ) );
+    return list;
+  }
+}
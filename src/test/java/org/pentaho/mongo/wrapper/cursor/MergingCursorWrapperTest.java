@@ -0,0 +1,143 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper.cursor;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.pentaho.mongo.MongoDbException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MergingCursorWrapperTest {
+  private ExecutorService pool;
+
+  @Before public void setUp() {
+    pool = Executors.newFixedThreadPool( 2 );
+  }
+
+  @After public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  @Test public void testReturnsDocumentsOfAllCursors() throws Exception {
+    List<MongoCursorWrapper> cursors = Arrays.asList( source( 0, 3000 ), source( 3000, 10 ), source( 3010, 0 ) );
+    MergingCursorWrapper merged = new MergingCursorWrapper( cursors, pool, false, 100 );
+
+    Set<Object> ids = new HashSet<Object>();
+    while ( merged.hasNext() ) {
+      ids.add( merged.next().get( "_id" ) );
+    }
+    List<DBObject> rest = new ArrayList<DBObject>();
+    assertEquals( 0, merged.nextBatch( rest, 10 ) );
+    assertEquals( 3010, ids.size() );
+    merged.close();
+    for ( MongoCursorWrapper cursor : cursors ) {
+      verify( cursor ).close();
+    }
+  }
+
+  @Test public void testNextBatch() throws Exception {
+    MergingCursorWrapper merged = new MergingCursorWrapper(
+      Arrays.asList( source( 0, 50 ), source( 50, 50 ) ), pool, false, 20 );
+    List<DBObject> batch = new ArrayList<DBObject>();
+    int read;
+    do {
+      read = merged.nextBatch( batch, 30 );
+    } while ( read == 30 );
+    assertEquals( 100, batch.size() );
+  }
+
+  @Test public void testErrorIsPropagated() throws Exception {
+    MongoCursorWrapper failing = mock( MongoCursorWrapper.class );
+    MongoDbException failure = new MongoDbException( "range failed" );
+    when( failing.nextBatch( any( List.class ), anyInt() ) ).thenThrow( failure );
+    MergingCursorWrapper merged = new MergingCursorWrapper(
+      Arrays.asList( source( 0, 10 ), failing ), pool, false, 5 );
+    try {
+      while ( merged.hasNext() ) {
+        merged.next();
+      }
+      fail( "expected exception" );
+    } catch ( MongoDbException e ) {
+      assertSame( failure, e );
+    }
+    merged.close();
+    verify( failing ).close();
+  }
+
+  @Test public void testCloseBeforeReadingClosesCursorsAndPool() throws Exception {
+    MongoCursorWrapper cursor = source( 0, 10 );
+    new MergingCursorWrapper( Arrays.asList( cursor ), pool, true, 5 ).close();
+    verify( cursor ).close();
+    assertTrue( pool.isShutdown() );
+  }
+
+  @Test public void testMergeUsesOwnPool() throws Exception {
+    MergingCursorWrapper merged = MergingCursorWrapper.merge( Arrays.asList( source( 0, 5 ), source( 5, 5 ) ), 10 );
+    List<DBObject> batch = new ArrayList<DBObject>();
+    assertEquals( 10, merged.nextBatch( batch, 20 ) );
+    merged.close();
+  }
+
+  @Test( expected = MongoDbException.class )
+  public void testLimitIsRejected() throws Exception {
+    new MergingCursorWrapper( Arrays.asList( source( 0, 10 ) ), pool, false, 5 ).limit( 5 );
+  }
+
+  private static MongoCursorWrapper source( final int first, final int documents ) throws Exception {
+    MongoCursorWrapper cursor = mock( MongoCursorWrapper.class );
+    when( cursor.nextBatch( any( List.class ), anyInt() ) ).thenAnswer( new Answer<Integer>() {
+      private int position;
+
+      @SuppressWarnings( "unchecked" )
+      @Override public Integer answer( InvocationOnMock invocation ) throws Throwable {
+        List<DBObject> target = (List<DBObject>) invocation.getArguments()[ 0 ];
+        int max = (Integer) invocation.getArguments()[ 1 ];
+        int added = 0;
+        while ( added < max && position < documents ) {
+          target.add( new BasicDBObject( "_id", first + position++ ) );
+          added++;
+        }
+        return added;
+      }
+    } );
+    return cursor;
+  }
+}
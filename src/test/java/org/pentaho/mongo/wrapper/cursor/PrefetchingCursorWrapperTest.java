@@ -0,0 +1,272 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.pentaho.mongo.wrapper.cursor;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.junit.Test;
+import org.mockito.ArgumentMatcher;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.pentaho.mongo.MongoDbException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.intThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PrefetchingCursorWrapperTest {
+
+  @Test public void testReturnsAllDocumentsInOrder() throws Exception {
+    PrefetchingCursorWrapper cursor = new PrefetchingCursorWrapper( source( 2500, null ), 10 );
+    for ( int i = 0; i < 2500; i++ ) {
+      assertTrue( cursor.hasNext() );
+      assertEquals( i, cursor.next().get( "_id" ) );
+    }
+    assertFalse( cursor.hasNext() );
+    cursor.close();
+  }
+
+  @Test public void testReadsStayWithinBatchSize() throws Exception {
+    MongoCursorWrapper source = source( 100, null );
+    when( source.batchSize( 7 ) ).thenReturn( source );
+    MongoCursorWrapper cursor = new PrefetchingCursorWrapper( source, 50 ).batchSize( 7 );
+    List<DBObject> all = new ArrayList<DBObject>();
+    assertEquals( 100, cursor.nextBatch( all, 200 ) );
+    verify( source, never() ).nextBatch( any( List.class ), intThat( new ArgumentMatcher<Integer>() {
+      @Override public boolean matches( Object max ) {
+        return (Integer) max > 7;
+      }
+    } ) );
+    cursor.close();
+  }
+
+  @Test public void testNextBatch() throws Exception {
+    PrefetchingCursorWrapper cursor = new PrefetchingCursorWrapper( source( 25, null ), 10 );
+    List<DBObject> batch = new ArrayList<DBObject>();
+    assertEquals( 20, cursor.nextBatch( batch, 20 ) );
+    assertEquals( 5, cursor.nextBatch( batch, 20 ) );
+    assertEquals( 0, cursor.nextBatch( batch, 20 ) );
+    assertEquals( 24, batch.get( 24 ).get( "_id" ) );
+  }
+
+  @Test public void testQueueIsBoundedByDocuments() throws Exception {
+    final AtomicInteger read = new AtomicInteger();
+    PrefetchingCursorWrapper cursor = new PrefetchingCursorWrapper( source( 1000, read ), 5 );
+    assertTrue( cursor.hasNext() );
+    Thread.sleep( 100 );
+    assertEquals( 5, cursor.queuedDocuments() );
+    // the reader only takes what there is room for
+    assertEquals( 5, read.get() );
+    cursor.next();
+    Thread.sleep( 100 );
+    assertEquals( 6, read.get() );
+    cursor.close();
+  }
+
+  @Test public void testQueueIsBoundedByBytes() throws Exception {
+    final AtomicInteger read = new AtomicInteger();
+    int size = BsonBytes.size( new BasicDBObject( "_id", 0 ) );
+    PrefetchingCursorWrapper cursor = new PrefetchingCursorWrapper( source( 1000, read ), 100, 3 * size );
+    assertTrue( cursor.hasNext() );
+    Thread.sleep( 100 );
+    assertEquals( 3, cursor.queuedDocuments() );
+    assertTrue( cursor.queuedBytes() <= 3 * size );
+    assertEquals( 3, read.get() );
+    cursor.next();
+    Thread.sleep( 100 );
+    assertEquals( 3, cursor.queuedDocuments() );
+    assertTrue( cursor.queuedBytes() <= 3 * size );
+    assertEquals( 4, read.get() );
+    cursor.close();
+  }
+
+  @Test public void testErrorIsThrownAfterQueuedDocuments() throws Exception {
+    MongoCursorWrapper failing = mock( MongoCursorWrapper.class );
+    final MongoDbException failure = new MongoDbException( "getMore failed" );
+    when( failing.nextBatch( any( List.class ), anyInt() ) ).thenAnswer( new Answer<Integer>() {
+      private boolean first = true;
+
+      @Override public Integer answer( InvocationOnMock invocation ) throws Throwable {
+        if ( !first ) {
+          throw failure;
+        }
+        first = false;
+        List<DBObject> target = (List<DBObject>) invocation.getArguments()[ 0 ];
+        target.add( new BasicDBObject() );
+        target.add( new BasicDBObject() );
+        return 2;
+      }
+    } );
+    PrefetchingCursorWrapper cursor = new PrefetchingCursorWrapper( failing, 2 );
+    cursor.next();
+    cursor.next();
+    try {
+      cursor.hasNext();
+      fail( "expected exception" );
+    } catch ( MongoDbException e ) {
+      assertSame( failure, e );
+    }
+  }
+
+  @Test public void testCloseStopsReaderBeforeClosingCursor() throws Exception {
+    final CountDownLatch reading = new CountDownLatch( 1 );
+    final CountDownLatch release = new CountDownLatch( 1 );
+    final AtomicInteger readsAfterClose = new AtomicInteger();
+    MongoCursorWrapper slow = mock( MongoCursorWrapper.class );
+    when( slow.nextBatch( any( List.class ), anyInt() ) ).thenAnswer( new Answer<Integer>() {
+      @Override public Integer answer( InvocationOnMock invocation ) throws Throwable {
+        if ( reading.getCount() == 0 ) {
+          readsAfterClose.incrementAndGet();
+        }
+        reading.countDown();
+        release.await();
+        ( (List<DBObject>) invocation.getArguments()[ 0 ] ).add( new BasicDBObject() );
+        return 1;
+      }
+    } );
+    final PrefetchingCursorWrapper cursor = new PrefetchingCursorWrapper( slow, 1 );
+    Thread consumer = new Thread( new Runnable() {
+      @Override public void run() {
+        try {
+          cursor.hasNext();
+        } catch ( MongoDbException e ) {
+          // ignored
+        }
+      }
+    } );
+    consumer.start();
+    assertTrue( reading.await( 5, TimeUnit.SECONDS ) );
+    Thread closer = new Thread( new Runnable() {
+      @Override public void run() {
+        try {
+          cursor.close();
+        } catch ( MongoDbException e ) {
+          // ignored
+        }
+      }
+    } );
+    closer.start();
+    Thread.sleep( 50 );
+    // close waits for the read in progress
+    assertTrue( closer.isAlive() );
+    release.countDown();
+    closer.join( 5000 );
+    consumer.join( 5000 );
+    assertFalse( closer.isAlive() );
+    assertEquals( 0, readsAfterClose.get() );
+    verify( slow ).close();
+  }
+
+  @Test public void testInterruptedCloseLeavesClosingToReader() throws Exception {
+    final CountDownLatch reading = new CountDownLatch( 1 );
+    final CountDownLatch release = new CountDownLatch( 1 );
+    MongoCursorWrapper slow = mock( MongoCursorWrapper.class );
+    when( slow.nextBatch( any( List.class ), anyInt() ) ).thenAnswer( new Answer<Integer>() {
+      @Override public Integer answer( InvocationOnMock invocation ) throws Throwable {
+        reading.countDown();
+        release.await();
+        return 0;
+      }
+    } );
+    final PrefetchingCursorWrapper cursor = new PrefetchingCursorWrapper( slow, 1 );
+    Thread consumer = new Thread( new Runnable() {
+      @Override public void run() {
+        try {
+          cursor.hasNext();
+        } catch ( MongoDbException e ) {
+          // ignored
+        }
+      }
+    } );
+    consumer.start();
+    assertTrue( reading.await( 5, TimeUnit.SECONDS ) );
+    Thread.currentThread().interrupt();
+    cursor.close();
+    assertTrue( Thread.interrupted() );
+    verify( slow, never() ).close();
+    release.countDown();
+    consumer.join( 5000 );
+    verify( slow, timeout( 5000 ) ).close();
+  }
+
+  @Test public void testInterruptedConsumer() throws Exception {
+    MongoCursorWrapper blocked = mock( MongoCursorWrapper.class );
+    final CountDownLatch never = new CountDownLatch( 1 );
+    when( blocked.nextBatch( any( List.class ), anyInt() ) ).thenAnswer( new Answer<Integer>() {
+      @Override public Integer answer( InvocationOnMock invocation ) throws Throwable {
+        never.await();
+        return 0;
+      }
+    } );
+    PrefetchingCursorWrapper cursor = new PrefetchingCursorWrapper( blocked, 1 );
+    Thread.currentThread().interrupt();
+    try {
+      cursor.hasNext();
+      fail( "expected exception" );
+    } catch ( MongoDbException e ) {
+      assertTrue( Thread.interrupted() );
+    }
+    never.countDown();
+    cursor.close();
+  }
+
+  @Test( expected = MongoDbException.class )
+  public void testOptionsAfterStartAreRejected() throws Exception {
+    PrefetchingCursorWrapper cursor = new PrefetchingCursorWrapper( source( 10, null ), 5 );
+    cursor.hasNext();
+    cursor.batchSize( 100 );
+  }
+
+  private static MongoCursorWrapper source( final int documents, final AtomicInteger read ) throws Exception {
+    MongoCursorWrapper cursor = mock( MongoCursorWrapper.class );
+    when( cursor.nextBatch( any( List.class ), anyInt() ) ).thenAnswer( new Answer<Integer>() {
+      private int position;
+
+      @Override public Integer answer( InvocationOnMock invocation ) throws Throwable {
+        List<DBObject> target = (List<DBObject>) invocation.getArguments()[ 0 ];
+        int max = (Integer) invocation.getArguments()[ 1 ];
+        int added = 0;
+        while ( added < max && position < documents ) {
+          target.add( new BasicDBObject( "_id", position++ ) );
+          added++;
+        }
+        if ( read != null ) {
+          read.addAndGet( added );
+        }
+        return added;
+      }
+    } );
+    return cursor;
+  }
+}
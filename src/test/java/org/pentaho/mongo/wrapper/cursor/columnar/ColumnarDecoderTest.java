@@ -0,0 +1,173 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.cursor.columnar;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.pentaho.mongo.wrapper.cursor.BsonBytes;
+import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+import org.pentaho.mongo.wrapper.cursor.RawDBDecoder;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ColumnarDecoderTest {
+
+  private final ColumnarSchema schema = new ColumnarSchema.Builder()
+    .column( "_id", ColumnType.OBJECT_ID )
+    .column( "name", ColumnType.STRING )
+    .column( "count", ColumnType.INT64 )
+    .column( "price", ColumnType.DOUBLE )
+    .column( "active", ColumnType.BOOLEAN )
+    .column( "created", ColumnType.DATE )
+    .column( "address.city", ColumnType.STRING )
+    .column( "tags.1", ColumnType.STRING )
+    .build();
+
+  @Test public void testDecodesTopLevelAndNestedFields() throws Exception {
+    ObjectId id = new ObjectId();
+    DBObject document = new BasicDBObject( "_id", id )
+      .append( "skipped", new BasicDBObject( "city", "nowhere" ) )
+      .append( "name", "café" )
+      .append( "pattern", Pattern.compile( "a.*b" ) )
+      .append( "count", 42 )
+      .append( "binary", new Binary( new byte[] { 1, 2, 3 } ) )
+      .append( "price", 1.5 )
+      .append( "ts", new BSONTimestamp( 1, 2 ) )
+      .append( "active", true )
+      .append( "created", new Date( 1000L ) )
+      .append( "address", new BasicDBObject( "street", "main" ).append( "city", "Orlando" ) )
+      .append( "tags", list( "a", "b", "c" ) );
+    ColumnBatch batch = new ColumnBatch( schema, 4 );
+    new ColumnarDecoder( schema ).decode( document, batch );
+
+    assertEquals( 1, batch.size() );
+    assertEquals( id.toHexString(), batch.getString( 0, 0 ) );
+    assertEquals( id, batch.getObjectId( 0, 0 ) );
+    assertEquals( "café", batch.getString( 1, 0 ) );
+    assertEquals( 42L, batch.getLong( 2, 0 ) );
+    assertEquals( 1.5, batch.getDouble( 3, 0 ), 0 );
+    assertTrue( batch.getBoolean( 4, 0 ) );
+    assertEquals( 1000L, batch.getLong( 5, 0 ) );
+    assertEquals( "Orlando", batch.getString( 6, 0 ) );
+    assertEquals( "b", batch.getString( 7, 0 ) );
+    for ( int column = 0; column < schema.size(); column++ ) {
+      assertFalse( batch.isNull( column, 0 ) );
+    }
+  }
+
+  @Test public void testMissingAndMismatchedFieldsAreNull() throws Exception {
+    DBObject document = new BasicDBObject( "name", 7 )
+      .append( "count", "seven" )
+      .append( "price", 7L )
+      .append( "address", "not a document" )
+      .append( "tags", list( "only one" ) );
+    ColumnBatch batch = new ColumnBatch( schema, 4 );
+    new ColumnarDecoder( schema ).decode( document, batch );
+
+    assertTrue( batch.isNull( 0, 0 ) );
+    assertTrue( batch.isNull( 1, 0 ) );
+    assertTrue( batch.isNull( 2, 0 ) );
+    assertEquals( 7.0, batch.getDouble( 3, 0 ), 0 );
+    assertFalse( batch.isNull( 3, 0 ) );
+    assertTrue( batch.isNull( 6, 0 ) );
+    assertTrue( batch.isNull( 7, 0 ) );
+    assertEquals( null, batch.getString( 1, 0 ) );
+  }
+
+  @Test public void testDecodesRawDocumentsFromCursorIntoBatches() throws Exception {
+    final DBObject[] documents = new DBObject[ 150 ];
+    for ( int i = 0; i < documents.length; i++ ) {
+      DBObject document = new BasicDBObject( "count", i ).append( "name", "name-" + i );
+      documents[ i ] = RawDBDecoder.FACTORY.create().decode( BsonBytes.toByteArray( document ), (DBCollection) null );
+    }
+    MongoCursorWrapper cursor = mock( MongoCursorWrapper.class );
+    when( cursor.nextBatch( any( List.class ), anyInt() ) ).thenAnswer( new Answer<Integer>() {
+      private int position;
+
+      @Override public Integer answer( InvocationOnMock invocation ) throws Throwable {
+        List<DBObject> target = (List<DBObject>) invocation.getArguments()[ 0 ];
+        int max = (Integer) invocation.getArguments()[ 1 ];
+        int added = 0;
+        while ( added < max && position < documents.length ) {
+          target.add( documents[ position++ ] );
+          added++;
+        }
+        return added;
+      }
+    } );
+
+    ColumnarDecoder decoder = new ColumnarDecoder( schema );
+    ColumnBatch batch = new ColumnBatch( schema, 100 );
+    assertEquals( 100, decoder.decode( cursor, batch ) );
+    assertTrue( batch.isFull() );
+    assertEquals( 99L, batch.getLong( 2, 99 ) );
+    assertEquals( "name-99", batch.getString( 1, 99 ) );
+    assertTrue( batch.isNull( 3, 99 ) );
+    try {
+      decoder.decode( cursor, batch );
+      fail( "expected exception" );
+    } catch ( IllegalStateException e ) {
+      // a full batch is not mistaken for the end of the cursor
+    }
+
+    batch.clear();
+    assertEquals( 50, decoder.decode( cursor, batch ) );
+    assertEquals( 50, batch.size() );
+    assertEquals( 149L, batch.getLong( 2, 49 ) );
+    assertEquals( "name-149", batch.getString( 1, 49 ) );
+    assertEquals( 0, decoder.decode( cursor, batch ) );
+  }
+
+  @Test public void testByteTableGrows() throws Exception {
+    StringBuilder name = new StringBuilder();
+    for ( int i = 0; i < 100; i++ ) {
+      name.append( i );
+    }
+    ColumnBatch batch = new ColumnBatch( schema, 2 );
+    ColumnarDecoder decoder = new ColumnarDecoder( schema );
+    decoder.decode( new BasicDBObject( "name", "short" ), batch );
+    decoder.decode( new BasicDBObject( "name", name.toString() ), batch );
+    assertEquals( "short", batch.getString( 1, 0 ) );
+    assertEquals( name.toString(), batch.getString( 1, 1 ) );
+  }
+
+  private static BasicDBList list( Object... values ) {
+    BasicDBList list = new BasicDBList();
+    list.addAll( Arrays.asList( values ) );
+    return list;
+  }
+}
@@ -0,0 +1,133 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.schema;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+import org.pentaho.mongo.wrapper.cursor.BsonBytes;
+import org.pentaho.mongo.wrapper.cursor.RawDBDecoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CollectionSchemaTest {
+
+  @Test public void testRecordsPathsTypesAndArrays() {
+    CollectionSchema schema = new CollectionSchema();
+    for ( DBObject document : documents() ) {
+      schema.add( document );
+    }
+    assertSchema( schema );
+  }
+
+  @Test public void testRawDocumentsGiveTheSameSchema() {
+    CollectionSchema schema = new CollectionSchema();
+    for ( DBObject document : documents() ) {
+      schema.add( RawDBDecoder.FACTORY.create().decode( BsonBytes.toByteArray( document ), (DBCollection) null ) );
+    }
+    assertSchema( schema );
+  }
+
+  @Test public void testMergeAddsSamples() {
+    List<DBObject> documents = documents();
+    CollectionSchema first = new CollectionSchema();
+    first.add( documents.get( 0 ) );
+    CollectionSchema second = new CollectionSchema();
+    for ( DBObject document : documents.subList( 1, documents.size() ) ) {
+      second.add( document );
+    }
+    first.merge( second );
+    assertSchema( first );
+  }
+
+  @Test public void testFieldOrder() {
+    CollectionSchema schema = new CollectionSchema();
+    schema.add( parse( "{ 'b' : 1, 'a' : { 'y' : 1, 'x' : [ 1 ] } }" ) );
+    List<String> paths = new ArrayList<String>();
+    for ( FieldStats field : schema.getFields() ) {
+      paths.add( field.getPath() );
+    }
+    assertEquals( Arrays.asList( "b", "a", "a.y", "a.x", "a.x[*]" ), paths );
+    assertEquals( 2, schema.getTopLevelFields().size() );
+  }
+
+  @Test public void testDominantType() {
+    CollectionSchema schema = new CollectionSchema();
+    schema.add( new BasicDBObject( "a", null ) );
+    assertEquals( FieldType.NULL, schema.getField( "a" ).getDominantType() );
+    schema.add( new BasicDBObject( "a", null ) );
+    schema.add( new BasicDBObject( "a", "x" ) );
+    assertEquals( FieldType.STRING, schema.getField( "a" ).getDominantType() );
+  }
+
+  private static void assertSchema( CollectionSchema schema ) {
+    assertEquals( 3, schema.getDocumentCount() );
+    assertEquals( 3, schema.getField( "_id" ).getCount( FieldType.OBJECT_ID ) );
+
+    FieldStats value = schema.getField( "value" );
+    assertEquals( 3, value.getCount() );
+    assertEquals( EnumSet.of( FieldType.INT32, FieldType.STRING, FieldType.INT64 ), value.getTypes() );
+
+    FieldStats tags = schema.getField( "tags" );
+    assertEquals( 2, tags.getCount( FieldType.ARRAY ) );
+    assertEquals( 1, tags.getCount( FieldType.NULL ) );
+    assertEquals( 0, tags.getMinArrayLength() );
+    assertEquals( 3, tags.getMaxArrayLength() );
+    assertEquals( 1.5, tags.getAverageArrayLength(), 0 );
+    assertEquals( 3, schema.getField( "tags[*]" ).getCount( FieldType.STRING ) );
+
+    assertEquals( 2, schema.getField( "items" ).getMaxArrayLength() );
+    assertEquals( 3, schema.getField( "items[*]" ).getCount( FieldType.DOCUMENT ) );
+    assertEquals( 3, schema.getField( "items[*].price" ).getCount( FieldType.DOUBLE ) );
+    assertEquals( 1, schema.getField( "items[*].sku" ).getCount() );
+    assertEquals( 2, schema.getField( "m[*][*]" ).getCount( FieldType.INT32 ) );
+    assertEquals( 1, schema.getField( "when" ).getCount( FieldType.DATE ) );
+    assertEquals( 2, schema.getField( "a.b.c" ).getCount( FieldType.BOOLEAN ) );
+    assertNull( schema.getField( "a.b.d" ) );
+    assertNull( schema.getField( "value[*]" ) );
+  }
+
+  private static List<DBObject> documents() {
+    BasicDBList tags = new BasicDBList();
+    tags.addAll( Arrays.asList( "x", "y", "z" ) );
+    return Arrays.<DBObject>asList(
+      new BasicDBObject( "_id", new ObjectId() ).append( "value", 1 ).append( "tags", tags )
+        .append( "a", new BasicDBObject( "b", new BasicDBObject( "c", true ) ) )
+        .append( "m", JSON.parse( "[ [ 1, 2 ] ]" ) ),
+      new BasicDBObject( "_id", new ObjectId() ).append( "value", "one" ).append( "tags", new BasicDBList() )
+        .append( "items", JSON.parse( "[ { 'price' : 1.5, 'sku' : 'a' }, { 'price' : 2.5 } ]" ) )
+        .append( "when", new Date() ),
+      new BasicDBObject( "_id", new ObjectId() ).append( "value", 1L ).append( "tags", null )
+        .append( "items", JSON.parse( "[ { 'price' : 3.0 } ]" ) )
+        .append( "a", new BasicDBObject( "b", new BasicDBObject( "c", false ) ) ) );
+  }
+
+  private static DBObject parse( String json ) {
+    return (DBObject) JSON.parse( json.replace( '\'', '"' ) );
+  }
+}
@@ -0,0 +1,262 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.schema;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.MongoClientWrapper;
+import org.pentaho.mongo.wrapper.collection.MongoCollectionWrapper;
+import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class SchemaCacheTest {
+  private File directory;
+  private MongoClientWrapper client;
+  private MongoCollectionWrapper collection;
+  private SchemaInferrer.Builder inferrer;
+
+  @Before public void setUp() throws Exception {
+    directory = Files.createTempDirectory( "schema-cache" ).toFile();
+    client = mock( MongoClientWrapper.class );
+    collection = mock( MongoCollectionWrapper.class );
+    when( client.getCollection( "db", "coll" ) ).thenReturn( collection );
+    inferrer = new SchemaInferrer.Builder( null, null, null ).sampleSize( 3 ).parallelism( 1 );
+  }
+
+  @After public void tearDown() {
+    for ( File file : directory.listFiles() ) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test public void testSchemaIsInferredOnceAndServedFromDisk() throws Exception {
+    MongoCursorWrapper last = cursor( Arrays.<DBObject>asList( new BasicDBObject( "_id", 2 ) ) );
+    when( collection.find( any( DBObject.class ), any( DBObject.class ) ) ).thenReturn( last );
+    MongoCursorWrapper sample = cursor( documents( 0, 3 ) );
+    when( collection.aggregate( any( List.class ), any( AggregationOptions.class ) ) ).thenReturn( sample );
+
+    SchemaCache cache = new SchemaCache( directory, inferrer, 100 );
+    assertNull( cache.get( "host", "db", "coll" ) );
+    CollectionSchema schema = cache.getSchema( client, "host", "db", "coll" );
+    assertEquals( 3, schema.getDocumentCount() );
+    assertSame( schema, cache.getSchema( client, "host", "db", "coll" ) );
+    verify( last ).sort( new BasicDBObject( "_id", -1 ) );
+
+    MongoClientWrapper unused = mock( MongoClientWrapper.class );
+    CollectionSchema stored = new SchemaCache( directory, inferrer, 100 ).getSchema( unused, "host", "db", "coll" );
+    verifyZeroInteractions( unused );
+    assertSchemasEqual( schema, stored );
+  }
+
+  @Test public void testRefreshAddsDocumentsAfterWatermark() throws Exception {
+    MongoCursorWrapper last = cursor( Arrays.<DBObject>asList( new BasicDBObject( "_id", 2 ) ) );
+    when( collection.find( any( DBObject.class ), any( DBObject.class ) ) ).thenReturn( last );
+    MongoCursorWrapper sample = cursor( documents( 0, 3 ) );
+    when( collection.aggregate( any( List.class ), any( AggregationOptions.class ) ) ).thenReturn( sample );
+    SchemaCache cache = new SchemaCache( directory, inferrer, 2 );
+    cache.getSchema( client, "host", "db", "coll" );
+
+    MongoCursorWrapper inserted = cursor( documents( 3, 5 ) );
+    when( collection.find( new BasicDBObject( "_id", new BasicDBObject( "$gt", 2 ) ) ) ).thenReturn( inserted );
+    CollectionSchema refreshed = cache.refresh( client, "host", "db", "coll" );
+    assertEquals( 5, refreshed.getDocumentCount() );
+    assertEquals( 2, refreshed.getField( "extra" ).getCount() );
+    verify( inserted ).limit( 2 );
+    verify( inserted ).close();
+
+    // the watermark is stored with the schema
+    MongoCursorWrapper none = cursor( new ArrayList<DBObject>() );
+    when( collection.find( new BasicDBObject( "_id", new BasicDBObject( "$gt", 4 ) ) ) ).thenReturn( none );
+    assertEquals( 5, new SchemaCache( directory, inferrer, 2 ).refresh( client, "host", "db", "coll" )
+      .getDocumentCount() );
+  }
+
+  @Test public void testFailedRefreshLeavesCachedSchemaUnchanged() throws Exception {
+    MongoCursorWrapper last = cursor( Arrays.<DBObject>asList( new BasicDBObject( "_id", 2 ) ) );
+    when( collection.find( any( DBObject.class ), any( DBObject.class ) ) ).thenReturn( last );
+    MongoCursorWrapper sample = cursor( documents( 0, 3 ) );
+    when( collection.aggregate( any( List.class ), any( AggregationOptions.class ) ) ).thenReturn( sample );
+    SchemaCache cache = new SchemaCache( directory, inferrer, 100 );
+    CollectionSchema schema = cache.getSchema( client, "host", "db", "coll" );
+
+    final List<DBObject> inserted = documents( 3, 5 );
+    MongoCursorWrapper failing = cursor( inserted );
+    when( failing.nextBatch( any( List.class ), anyInt() ) ).thenAnswer( new Answer<Integer>() {
+      private boolean first = true;
+
+      @Override public Integer answer( InvocationOnMock invocation ) throws Throwable {
+        if ( !first ) {
+          throw new MongoDbException( "getMore failed" );
+        }
+        first = false;
+        ( (List<DBObject>) invocation.getArguments()[ 0 ] ).addAll( inserted );
+        return inserted.size();
+      }
+    } );
+    when( collection.find( new BasicDBObject( "_id", new BasicDBObject( "$gt", 2 ) ) ) ).thenReturn( failing );
+    try {
+      cache.refresh( client, "host", "db", "coll" );
+      fail( "expected exception" );
+    } catch ( MongoDbException e ) {
+      // expected
+    }
+    assertEquals( 3, schema.getDocumentCount() );
+    assertSame( schema, cache.get( "host", "db", "coll" ) );
+
+    MongoCursorWrapper retried = cursor( documents( 3, 5 ) );
+    when( collection.find( new BasicDBObject( "_id", new BasicDBObject( "$gt", 2 ) ) ) ).thenReturn( retried );
+    assertEquals( 5, cache.refresh( client, "host", "db", "coll" ).getDocumentCount() );
+    assertEquals( 3, schema.getDocumentCount() );
+  }
+
+  @Test public void testInvalidate() throws Exception {
+    MongoCursorWrapper empty = cursor( new ArrayList<DBObject>() );
+    MongoCursorWrapper sample = cursor( documents( 0, 1 ) );
+    when( collection.find( any( DBObject.class ), any( DBObject.class ) ) ).thenReturn( empty );
+    when( collection.aggregate( any( List.class ), any( AggregationOptions.class ) ) ).thenReturn( sample );
+    SchemaCache cache = new SchemaCache( directory, inferrer, 100 );
+    cache.getSchema( client, "host", "db", "coll" );
+    cache.invalidate( "host", "db", "coll" );
+    assertNull( cache.get( "host", "db", "coll" ) );
+    assertEquals( 0, directory.listFiles().length );
+  }
+
+  @Test public void testSampleInvalidatedMeanwhileIsNotCached() throws Exception {
+    MongoCursorWrapper empty = cursor( new ArrayList<DBObject>() );
+    final MongoCursorWrapper sample = cursor( documents( 0, 1 ) );
+    when( collection.find( any( DBObject.class ), any( DBObject.class ) ) ).thenReturn( empty );
+    final SchemaCache cache = new SchemaCache( directory, inferrer, 100 );
+    final Exception[] failure = { null };
+    when( collection.aggregate( any( List.class ), any( AggregationOptions.class ) ) ).thenAnswer(
+      new Answer<MongoCursorWrapper>() {
+        @Override public MongoCursorWrapper answer( InvocationOnMock invocation ) throws Throwable {
+          // another thread can use the cache while the collection is sampled
+          Thread other = new Thread() {
+            @Override public void run() {
+              try {
+                cache.invalidate( "host", "db", "coll" );
+              } catch ( Exception e ) {
+                failure[ 0 ] = e;
+              }
+            }
+          };
+          other.start();
+          other.join( 10000 );
+          assertFalse( other.isAlive() );
+          return sample;
+        }
+      } );
+    assertEquals( 1, cache.getSchema( client, "host", "db", "coll" ).getDocumentCount() );
+    assertNull( failure[ 0 ] );
+    assertNull( cache.get( "host", "db", "coll" ) );
+    assertEquals( 0, directory.listFiles().length );
+  }
+
+  @Test public void testKeysAreDistinct() {
+    assertFalse( SchemaCache.key( "h", "a~b", "c" ).equals( SchemaCache.key( "h", "a", "b~c" ) ) );
+    assertFalse( SchemaCache.key( "host:27017", "db", "a/b" ).contains( "/" ) );
+  }
+
+  private static void assertSchemasEqual( CollectionSchema expected, CollectionSchema actual ) {
+    assertEquals( expected.getDocumentCount(), actual.getDocumentCount() );
+    assertEquals( expected.getFields().toString(), actual.getFields().toString() );
+    for ( FieldStats field : expected.getFields() ) {
+      FieldStats other = actual.getField( field.getPath() );
+      assertEquals( field.getMaxArrayLength(), other.getMaxArrayLength() );
+      assertEquals( field.getAverageArrayLength(), other.getAverageArrayLength(), 0 );
+      for ( FieldType type : field.getTypes() ) {
+        assertEquals( field.getCount( type ), other.getCount( type ) );
+      }
+    }
+  }
+
+  private static List<DBObject> documents( int from, int to ) {
+    List<DBObject> documents = new ArrayList<DBObject>();
+    for ( int i = from; i < to; i++ ) {
+      DBObject document = (DBObject) JSON.parse( "{ \"a\" : { \"b\" : [ 1, \"x\", [ 2 ] ] }, \"c\" : null }" );
+      document.put( "_id", i );
+      if ( i >= 3 ) {
+        document.put( "extra", true );
+      }
+      documents.add( document );
+    }
+    return documents;
+  }
+
+  private static MongoCursorWrapper cursor( final List<DBObject> documents ) throws Exception {
+    final MongoCursorWrapper cursor = mock( MongoCursorWrapper.class );
+    final int[] limit = { documents.size() };
+    when( cursor.sort( any( DBObject.class ) ) ).thenReturn( cursor );
+    when( cursor.decoderFactory( any( DBDecoderFactory.class ) ) ).thenReturn( cursor );
+    when( cursor.limit( anyInt() ) ).thenAnswer( new Answer<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper answer( InvocationOnMock invocation ) throws Throwable {
+        limit[ 0 ] = Math.min( limit[ 0 ], (Integer) invocation.getArguments()[ 0 ] );
+        return cursor;
+      }
+    } );
+    final int[] position = { 0 };
+    when( cursor.hasNext() ).thenAnswer( new Answer<Boolean>() {
+      @Override public Boolean answer( InvocationOnMock invocation ) throws Throwable {
+        return position[ 0 ] < limit[ 0 ];
+      }
+    } );
+    when( cursor.next() ).thenAnswer( new Answer<DBObject>() {
+      @Override public DBObject answer( InvocationOnMock invocation ) throws Throwable {
+        return documents.get( position[ 0 ]++ );
+      }
+    } );
+    when( cursor.nextBatch( any( List.class ), anyInt() ) ).thenAnswer( new Answer<Integer>() {
+      @Override public Integer answer( InvocationOnMock invocation ) throws Throwable {
+        List<DBObject> target = (List<DBObject>) invocation.getArguments()[ 0 ];
+        int added = 0;
+        while ( added < (Integer) invocation.getArguments()[ 1 ] && position[ 0 ] < limit[ 0 ] ) {
+          target.add( documents.get( position[ 0 ]++ ) );
+          added++;
+        }
+        return added;
+      }
+    } );
+    return cursor;
+  }
+}
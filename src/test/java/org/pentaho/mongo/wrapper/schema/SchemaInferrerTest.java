@@ -0,0 +1,196 @@
+/*!
+ * Copyright 2010 - 2017 Pentaho Corporation.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.pentaho.mongo.wrapper.schema;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.MongoCommandException;
+import com.mongodb.ServerAddress;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.pentaho.mongo.MongoDbException;
+import org.pentaho.mongo.wrapper.MongoClientWrapper;
+import org.pentaho.mongo.wrapper.collection.MongoCollectionWrapper;
+import org.pentaho.mongo.wrapper.cursor.MongoCursorWrapper;
+import org.pentaho.mongo.wrapper.cursor.RawDBDecoder;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SchemaInferrerTest {
+  private MongoClientWrapper client;
+  private MongoCollectionWrapper collection;
+
+  @Before public void setUp() throws Exception {
+    client = mock( MongoClientWrapper.class );
+    collection = mock( MongoCollectionWrapper.class );
+    when( client.getCollection( "db", "coll" ) ).thenReturn( collection );
+  }
+
+  @Test public void testRandomSampleIsSplitBetweenWorkers() throws Exception {
+    MongoCursorWrapper sample = cursor( 10 );
+    when( collection.aggregate( any( List.class ), any( AggregationOptions.class ) ) ).thenReturn( sample );
+
+    CollectionSchema schema = new SchemaInferrer.Builder( client, "db", "coll" ).sampleSize( 10 ).parallelism( 3 )
+      .query( new BasicDBObject( "a", 1 ) ).build().infer();
+
+    assertEquals( 10, schema.getDocumentCount() );
+    assertEquals( 10, schema.getField( "n" ).getCount( FieldType.INT32 ) );
+    ArgumentCaptor<List> pipeline = ArgumentCaptor.forClass( List.class );
+    verify( collection, times( 1 ) ).aggregate( pipeline.capture(), any( AggregationOptions.class ) );
+    assertEquals( Arrays.asList( new BasicDBObject( "$match", new BasicDBObject( "a", 1 ) ),
+      new BasicDBObject( "$sample", new BasicDBObject( "size", 10 ) ) ), pipeline.getValue() );
+    // the workers read the sample in shares of 4, i.e. 3 reads plus a final empty read per worker
+    verify( sample, times( 6 ) ).nextBatch( any( List.class ), eq( 4 ) );
+    verify( sample ).close();
+  }
+
+  @Test public void testRefineAddsToSchema() throws Exception {
+    when( collection.aggregate( any( List.class ), any( AggregationOptions.class ) ) )
+      .thenAnswer( new Answer<MongoCursorWrapper>() {
+        @Override public MongoCursorWrapper answer( InvocationOnMock invocation ) throws Throwable {
+          return cursor( 5 );
+        }
+      } );
+    SchemaInferrer inferrer = new SchemaInferrer.Builder( client, "db", "coll" ).sampleSize( 5 ).parallelism( 1 )
+      .build();
+    CollectionSchema schema = inferrer.infer();
+    assertSame( schema, inferrer.refine( schema ) );
+    assertEquals( 10, schema.getDocumentCount() );
+  }
+
+  @Test public void testRandomFallsBackToPartitionsWithoutSample() throws Exception {
+    when( collection.aggregate( any( List.class ), any( AggregationOptions.class ) ) ).thenThrow(
+      new MongoCommandException( new BsonDocument( "ok", new BsonDouble( 0 ) ).append( "code", new BsonInt32( 16436 ) ),
+        new ServerAddress() ) );
+    MongoCursorWrapper range = cursor( 100 );
+    when( collection.find( any( DBObject.class ), any( DBObject.class ) ) ).thenReturn( range );
+
+    CollectionSchema schema = new SchemaInferrer.Builder( client, "db", "coll" ).sampleSize( 7 ).parallelism( 1 )
+      .build().infer();
+
+    assertEquals( 7, schema.getDocumentCount() );
+    verify( range ).decoderFactory( RawDBDecoder.FACTORY );
+    verify( range ).limit( 7 );
+    verify( range ).close();
+  }
+
+  @Test public void testOtherAggregateFailureIsThrown() throws Exception {
+    MongoCommandException unauthorized = new MongoCommandException(
+      new BsonDocument( "ok", new BsonDouble( 0 ) ).append( "code", new BsonInt32( 13 ) ), new ServerAddress() );
+    when( collection.aggregate( any( List.class ), any( AggregationOptions.class ) ) ).thenThrow( unauthorized );
+    try {
+      new SchemaInferrer.Builder( client, "db", "coll" ).build().infer();
+      fail( "expected exception" );
+    } catch ( MongoCommandException e ) {
+      assertSame( unauthorized, e );
+    }
+    verify( collection, never() ).find( any( DBObject.class ), any( DBObject.class ) );
+  }
+
+  @Test public void testWorkerFailureIsThrown() throws Exception {
+    final MongoDbException failure = new MongoDbException( "getMore failed" );
+    MongoCursorWrapper failing = mock( MongoCursorWrapper.class );
+    when( failing.nextBatch( any( List.class ), anyInt() ) ).thenThrow( failure );
+    when( collection.aggregate( any( List.class ), any( AggregationOptions.class ) ) ).thenReturn( failing );
+    try {
+      new SchemaInferrer.Builder( client, "db", "coll" ).build().infer();
+      fail( "expected exception" );
+    } catch ( MongoDbException e ) {
+      assertSame( failure, e );
+    }
+  }
+
+  @Test public void testSampleIsClosedIfWorkersDoNotRun() throws Exception {
+    MongoCursorWrapper sample = cursor( 10 );
+    when( collection.aggregate( any( List.class ), any( AggregationOptions.class ) ) ).thenReturn( sample );
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    pool.shutdown();
+    try {
+      new SchemaInferrer.Builder( client, "db", "coll" ).parallelism( 2 ).executor( pool ).build().infer();
+      fail( "expected exception" );
+    } catch ( RejectedExecutionException e ) {
+      // expected
+    }
+    verify( sample, never() ).nextBatch( any( List.class ), anyInt() );
+    verify( sample ).close();
+  }
+
+  @Test public void testShare() {
+    assertEquals( 4, SchemaInferrer.share( 10, 3, 0 ) );
+    assertEquals( 3, SchemaInferrer.share( 10, 3, 1 ) );
+    assertEquals( 3, SchemaInferrer.share( 10, 3, 2 ) );
+    assertEquals( 0, SchemaInferrer.share( 2, 3, 2 ) );
+  }
+
+  /**
+   * @return a cursor returning up to documents documents, or fewer if limited
+   */
+  private static MongoCursorWrapper cursor( final int documents ) throws Exception {
+    final MongoCursorWrapper cursor = mock( MongoCursorWrapper.class );
+    final int[] limit = { documents };
+    when( cursor.hint( any( DBObject.class ) ) ).thenReturn( cursor );
+    when( cursor.decoderFactory( any( DBDecoderFactory.class ) ) ).thenReturn( cursor );
+    when( cursor.batchSize( anyInt() ) ).thenReturn( cursor );
+    when( cursor.limit( anyInt() ) ).thenAnswer( new Answer<MongoCursorWrapper>() {
+      @Override public MongoCursorWrapper answer( InvocationOnMock invocation ) throws Throwable {
+        limit[ 0 ] = Math.min( limit[ 0 ], (Integer) invocation.getArguments()[ 0 ] );
+        return cursor;
+      }
+    } );
+    when( cursor.nextBatch( any( List.class ), anyInt() ) ).thenAnswer( new Answer<Integer>() {
+      private int position;
+
+      @Override public Integer answer( InvocationOnMock invocation ) throws Throwable {
+        List<DBObject> target = (List<DBObject>) invocation.getArguments()[ 0 ];
+        int max = (Integer) invocation.getArguments()[ 1 ];
+        int added = 0;
+        while ( added < max && position < limit[ 0 ] ) {
+          target.add( new BasicDBObject( "_id", position ).append( "n", position++ ) );
+          added++;
+        }
+        return added;
+      }
+    } );
+    return cursor;
+  }
+}